@@ -0,0 +1,151 @@
+/*-
+ * #%L
+ * Java ECS logging
+ * %%
+ * Copyright (C) 2019 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.logging.benchmarks;
+
+import co.elastic.logging.EcsJsonSerializer;
+import co.elastic.logging.StringBuilderPool;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the {@link StringBuilderPool} with a {@link ThreadLocal} {@link StringBuilder},
+ * for a few long-lived platform threads and for many short-lived threads which only log a few events each.
+ * <p>
+ * Run with {@code java -jar ecs-logging-benchmarks/target/benchmarks.jar BufferPoolBenchmark -prof gc}
+ * to also compare the allocation rate.
+ * The {@code virtual} thread kind requires a JVM with virtual threads, use {@code -p threadKind=platform} otherwise.
+ * </p>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BufferPoolBenchmark {
+
+    private static final int EVENTS_PER_SHORT_LIVED_THREAD = 10;
+
+    @Param({"platform", "virtual"})
+    public String threadKind;
+
+    private final StringBuilderPool pool = new StringBuilderPool();
+    private final ThreadLocal<StringBuilder> threadLocal = new ThreadLocal<StringBuilder>() {
+        @Override
+        protected StringBuilder initialValue() {
+            return new StringBuilder(StringBuilderPool.DEFAULT_INITIAL_CAPACITY);
+        }
+    };
+    private Method startVirtualThread;
+
+    @Setup
+    public void setUp() throws Exception {
+        if ("virtual".equals(threadKind)) {
+            startVirtualThread = Thread.class.getMethod("startVirtualThread", Runnable.class);
+        }
+    }
+
+    @Benchmark
+    @Threads(4)
+    public int longLivedThreadsThreadLocal() {
+        StringBuilder builder = threadLocal.get();
+        builder.setLength(0);
+        return serializeEvent(builder);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public int longLivedThreadsPool() {
+        StringBuilder builder = pool.acquire();
+        try {
+            return serializeEvent(builder);
+        } finally {
+            pool.release(builder);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(EVENTS_PER_SHORT_LIVED_THREAD)
+    public void shortLivedThreadsThreadLocal(final Blackhole blackhole) throws Exception {
+        runInNewThread(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < EVENTS_PER_SHORT_LIVED_THREAD; i++) {
+                    blackhole.consume(longLivedThreadsThreadLocal());
+                }
+            }
+        });
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(EVENTS_PER_SHORT_LIVED_THREAD)
+    public void shortLivedThreadsPool(final Blackhole blackhole) throws Exception {
+        runInNewThread(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < EVENTS_PER_SHORT_LIVED_THREAD; i++) {
+                    blackhole.consume(longLivedThreadsPool());
+                }
+            }
+        });
+    }
+
+    private void runInNewThread(Runnable runnable) throws Exception {
+        Thread thread;
+        if (startVirtualThread != null) {
+            thread = (Thread) startVirtualThread.invoke(null, runnable);
+        } else {
+            thread = new Thread(runnable);
+            thread.start();
+        }
+        thread.join();
+    }
+
+    private static int serializeEvent(StringBuilder builder) {
+        EcsJsonSerializer.serializeObjectStart(builder, System.currentTimeMillis());
+        EcsJsonSerializer.serializeLogLevel(builder, "INFO");
+        EcsJsonSerializer.serializeFormattedMessage(builder, "Hello \"World\", this is a somewhat longer log message", null);
+        EcsJsonSerializer.serializeServiceName(builder, "benchmark");
+        EcsJsonSerializer.serializeThreadName(builder, "main");
+        EcsJsonSerializer.serializeLoggerName(builder, "co.elastic.logging.benchmarks.BufferPoolBenchmark");
+        EcsJsonSerializer.serializeObjectEnd(builder);
+        return builder.length();
+    }
+}
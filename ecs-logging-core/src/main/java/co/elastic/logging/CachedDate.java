@@ -0,0 +1,100 @@
+/*-
+ * #%L
+ * Java ECS logging
+ * %%
+ * Copyright (C) 2019 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.logging;
+
+/**
+ * The ISO 8601 date of one day, which {@link TimestampSerializer} caches,
+ * and the serialization of timestamps within that day, for example {@code 1970-01-01T00:00:00.000Z}.
+ * <p>
+ * The date is computed with {@link CivilDate}, which doesn't load any calendar classes,
+ * and the time part is serialized without floating point arithmetic,
+ * as a day has exactly {@code 1000 * 60 * 60 * 24} milliseconds.
+ * Also, we don't have to worry about leap seconds when dealing with the epoch timestamp.
+ * </p>
+ * <p>
+ * Instances are immutable.
+ * </p>
+ */
+final class CachedDate {
+
+    private static final int MILLIS_PER_SECOND = 1000;
+    private static final int MILLIS_PER_MINUTE = MILLIS_PER_SECOND * 60;
+    private static final int MILLIS_PER_HOUR = MILLIS_PER_MINUTE * 60;
+    private static final long MILLIS_PER_DAY = MILLIS_PER_HOUR * 24L;
+    private static final char TIME_SEPARATOR = 'T';
+    private static final char TIME_ZONE_SEPARATOR = 'Z';
+    private static final char COLON = ':';
+    private static final char DOT = '.';
+    private static final char ZERO = '0';
+
+    private final String cachedDateIso;
+    private final long startOfCachedDate;
+    private final long endOfCachedDate;
+
+    CachedDate(long epochTimestamp) {
+        final long epochDay = epochTimestamp >= 0 ? epochTimestamp / MILLIS_PER_DAY : (epochTimestamp + 1) / MILLIS_PER_DAY - 1;
+        cachedDateIso = CivilDate.toIsoDate(epochDay);
+        startOfCachedDate = epochDay * MILLIS_PER_DAY;
+        endOfCachedDate = startOfCachedDate + MILLIS_PER_DAY - 1;
+    }
+
+    boolean isDateCached(long epochTimestamp) {
+        return epochTimestamp >= startOfCachedDate && epochTimestamp <= endOfCachedDate;
+    }
+
+    /**
+     * Serializes a timestamp of the cached day, see {@link #isDateCached(long)}.
+     */
+    void serializeIsoDateTime(StringBuilder builder, long epochTimestamp) {
+        builder.append(cachedDateIso);
+
+        builder.append(TIME_SEPARATOR);
+
+        final int millisOfDay = (int) (epochTimestamp - startOfCachedDate);
+        // hours
+        serializeTwoDigits(builder, millisOfDay / MILLIS_PER_HOUR);
+        builder.append(COLON);
+
+        // minutes
+        serializeTwoDigits(builder, millisOfDay / MILLIS_PER_MINUTE % 60);
+        builder.append(COLON);
+
+        // seconds
+        serializeTwoDigits(builder, millisOfDay / MILLIS_PER_SECOND % 60);
+        builder.append(DOT);
+
+        // milliseconds
+        final int millis = millisOfDay % MILLIS_PER_SECOND;
+        builder.append((char) (ZERO + millis / 100));
+        serializeTwoDigits(builder, millis % 100);
+
+        builder.append(TIME_ZONE_SEPARATOR);
+    }
+
+    private static void serializeTwoDigits(StringBuilder builder, int value) {
+        builder.append((char) (ZERO + value / 10));
+        builder.append((char) (ZERO + value % 10));
+    }
+}
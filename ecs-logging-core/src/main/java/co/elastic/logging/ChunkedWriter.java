@@ -0,0 +1,223 @@
+/*-
+ * #%L
+ * Java ECS logging
+ * %%
+ * Copyright (C) 2019 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.logging;
+
+import java.io.PrintWriter;
+import java.io.Writer;
+
+/**
+ * Escapes large values in fixed-size chunks and hands each chunk over to the destination as soon as it is full.
+ * <p>
+ * This bounds the size of the {@link StringBuilder} an event is serialized into, regardless of the size of the event.
+ * Otherwise, logging a large payload would grow the builder to the size of the whole event,
+ * and a reused builder would stay at that size or would have to be trimmed and grown again.
+ * </p>
+ * <p>
+ * Flushed characters are taken into account for {@link FieldLimits#getMaxEventLength()}.
+ * </p>
+ * <p>
+ * Instances are not thread safe and can be reused for subsequent events after calling {@link #reset()}.
+ * </p>
+ */
+public abstract class ChunkedWriter {
+
+    /**
+     * Makes sure a chunk always has room for a {@link Redactor#MASK} or an escape sequence.
+     */
+    private static final int MIN_CHUNK_SIZE = 64;
+    private final int chunkSize;
+    private int flushedLength;
+    private final StringBuilder pendingLines = new StringBuilder();
+    private final PrintWriter stackTraceWriter = new PrintWriter(new StackTraceWriter());
+    private StringBuilder builder;
+    private Redactor redactor;
+    private FieldLimits limits;
+    private int remainingStackTraceLength;
+    private boolean stackTraceTruncated;
+
+    protected ChunkedWriter(int chunkSize) {
+        this.chunkSize = Math.max(MIN_CHUNK_SIZE, chunkSize);
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * Writes the chunk to the destination.
+     * The builder is cleared afterwards.
+     */
+    protected abstract void writeChunk(StringBuilder chunk);
+
+    public void reset() {
+        flushedLength = 0;
+    }
+
+    /**
+     * Writes the current content of the builder to the destination and clears the builder.
+     */
+    public void flush(StringBuilder builder) {
+        flushedLength += builder.length();
+        writeChunk(builder);
+        builder.setLength(0);
+    }
+
+    /**
+     * Returns the number of characters which have already been flushed for the current event.
+     */
+    public int getFlushedLength() {
+        return flushedLength;
+    }
+
+    /**
+     * Returns limits which take the already flushed characters into account.
+     */
+    public FieldLimits getFieldLimits(FieldLimits limits) {
+        return limits.withFlushedLength(flushedLength);
+    }
+
+    /**
+     * Escapes, masks and truncates the content, see {@link Redactor#quoteAsString(CharSequence, StringBuilder, Redactor, int, int)},
+     * and flushes the builder whenever it reaches the chunk size.
+     *
+     * @return {@code true} if the content has been truncated
+     */
+    public boolean quoteAsString(CharSequence content, StringBuilder builder, Redactor redactor, int maxLength, FieldLimits limits) {
+        final int end = JsonUtils.truncationIndex(content, maxLength);
+        final int i = quoteAsString(content, 0, end, builder, redactor, limits);
+        return i < content.length();
+    }
+
+    /**
+     * @return the index of the first character which has not been escaped, which is less than {@code end} if the event limit has been reached
+     */
+    private int quoteAsString(CharSequence content, int start, int end, StringBuilder builder, Redactor redactor, FieldLimits limits) {
+        int i = start;
+        while (i < end) {
+            final int maxBuilderLength = getFieldLimits(limits).getMaxBuilderLength();
+            final boolean eventLimitReached = maxBuilderLength <= chunkSize;
+            i = Redactor.quoteAsString(content, i, end, builder, redactor, eventLimitReached ? maxBuilderLength : chunkSize);
+            if (i < end) {
+                if (eventLimitReached) {
+                    return i;
+                }
+                flush(builder);
+            }
+        }
+        return i;
+    }
+
+    /**
+     * Prints the stack trace of the throwable and escapes, masks and truncates it like {@link #quoteAsString},
+     * without materializing the whole stack trace first.
+     * The stack trace is escaped line by line, so redaction patterns can't match across line breaks.
+     *
+     * @param maxLength the maximum length of the stack trace
+     * @return {@code true} if the stack trace has been truncated
+     */
+    public boolean quoteStackTrace(Throwable throwable, StringBuilder builder, Redactor redactor, int maxLength, FieldLimits limits) {
+        this.builder = builder;
+        this.redactor = redactor;
+        this.limits = limits;
+        remainingStackTraceLength = maxLength;
+        stackTraceTruncated = false;
+        try {
+            throwable.printStackTrace(stackTraceWriter);
+            stackTraceWriter.flush();
+            quotePendingLines(true);
+            return stackTraceTruncated;
+        } finally {
+            this.builder = null;
+            this.redactor = null;
+            this.limits = null;
+            pendingLines.setLength(0);
+            if (pendingLines.capacity() > 2 * chunkSize) {
+                // a single long line of the stack trace should not be retained
+                pendingLines.trimToSize();
+            }
+        }
+    }
+
+    private void quotePendingLines(boolean all) {
+        final int end = all ? pendingLines.length() : pendingLines.lastIndexOf("\n") + 1;
+        if (end > 0) {
+            if (quoteAsString(pendingLines, 0, end, builder, redactor, limits) < end) {
+                // the rest of the stack trace is discarded
+                stackTraceTruncated = true;
+                remainingStackTraceLength = 0;
+            }
+            pendingLines.delete(0, end);
+        }
+    }
+
+    private class StackTraceWriter extends Writer {
+
+        @Override
+        public void write(int c) {
+            if (reserve(1) == 1) {
+                pendingLines.append((char) c);
+                onWrite();
+            }
+        }
+
+        @Override
+        public void write(char[] cbuf, int off, int len) {
+            pendingLines.append(cbuf, off, reserve(len));
+            onWrite();
+        }
+
+        @Override
+        public void write(String str, int off, int len) {
+            pendingLines.append(str, off, off + reserve(len));
+            onWrite();
+        }
+
+        /**
+         * @return the number of characters which fit into the maximum length of the stack trace
+         */
+        private int reserve(int len) {
+            if (len > remainingStackTraceLength) {
+                stackTraceTruncated = true;
+                len = Math.max(0, remainingStackTraceLength);
+            }
+            remainingStackTraceLength -= len;
+            return len;
+        }
+
+        private void onWrite() {
+            if (pendingLines.length() >= chunkSize) {
+                quotePendingLines(false);
+            }
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
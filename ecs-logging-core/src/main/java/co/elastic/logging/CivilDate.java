@@ -0,0 +1,81 @@
+/*-
+ * #%L
+ * Java ECS logging
+ * %%
+ * Copyright (C) 2019 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.logging;
+
+/**
+ * Converts between days since the epoch and dates of the proleptic Gregorian calendar in UTC.
+ * <p>
+ * Uses the branch-free algorithms of Howard Hinnant (<a href="https://howardhinnant.github.io/date_algorithms.html">chrono-compatible low-level date algorithms</a>)
+ * instead of {@link java.text.SimpleDateFormat}, {@link java.util.TimeZone} or {@code java.time},
+ * which would load a considerable amount of calendar and locale classes when the first event is logged.
+ * </p>
+ */
+final class CivilDate {
+
+    private CivilDate() {
+    }
+
+    /**
+     * @return the number of days since 1970-01-01 of the given date
+     */
+    static long toEpochDay(long year, int month, int day) {
+        year -= month <= 2 ? 1 : 0;
+        final long era = (year >= 0 ? year : year - 399) / 400;
+        final long yearOfEra = year - era * 400;
+        final long dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+        final long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097 + dayOfEra - 719468;
+    }
+
+    /**
+     * @return the date of the given day since 1970-01-01 formatted as {@code yyyy-MM-dd}
+     */
+    static String toIsoDate(long epochDay) {
+        final long shifted = epochDay + 719468;
+        final long era = (shifted >= 0 ? shifted : shifted - 146096) / 146097;
+        final long dayOfEra = shifted - era * 146097;
+        final long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        final long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        final long monthIndex = (5 * dayOfYear + 2) / 153;
+        final int day = (int) (dayOfYear - (153 * monthIndex + 2) / 5 + 1);
+        final int month = (int) (monthIndex < 10 ? monthIndex + 3 : monthIndex - 9);
+        final long year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+
+        final StringBuilder date = new StringBuilder(10);
+        if (year >= 0 && year < 1000) {
+            date.append(year < 10 ? "000" : year < 100 ? "00" : "0");
+        }
+        date.append(year).append('-');
+        appendTwoDigits(date, month);
+        date.append('-');
+        appendTwoDigits(date, day);
+        return date.toString();
+    }
+
+    private static void appendTwoDigits(StringBuilder builder, int value) {
+        builder.append((char) ('0' + value / 10));
+        builder.append((char) ('0' + value % 10));
+    }
+}
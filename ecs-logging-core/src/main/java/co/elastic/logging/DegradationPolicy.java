@@ -0,0 +1,126 @@
+/*-
+ * #%L
+ * Java ECS logging
+ * %%
+ * Copyright (C) 2019 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.logging;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides whether events are serialized in a compact form, in order to shed load while the logging pipeline is backed up.
+ * <p>
+ * Events are degraded once the event rate or the usage of the queue of an asynchronous appender exceeds its threshold.
+ * Full detail is restored only after both have fallen below half of their thresholds,
+ * so that the output does not flip between both forms while the load hovers around a threshold.
+ * </p>
+ * <p>
+ * The state is re-evaluated at most every {@value #WINDOW_MILLIS} milliseconds, based on the timestamps of the events.
+ * In between, checking the state only costs an uncontended increment.
+ * </p>
+ * <p>
+ * Degraded events don't contain stack frames, labels which are not top-level and thread names.
+ * They are marked with {@code "event.degraded":true}.
+ * </p>
+ * <p>
+ * This class is thread safe.
+ * </p>
+ */
+public final class DegradationPolicy {
+
+    static final long WINDOW_MILLIS = 100;
+
+    private final int maxEventsPerSecond;
+    private final int maxQueueUsagePercent;
+    private final QueueUsage queueUsage;
+    private final StripedCounter events = new StripedCounter();
+    private final AtomicLong windowStart = new AtomicLong(Long.MIN_VALUE);
+    private volatile long windowStartEvents;
+    private volatile boolean degraded;
+
+    private DegradationPolicy(int maxEventsPerSecond, int maxQueueUsagePercent, QueueUsage queueUsage) {
+        this.maxEventsPerSecond = maxEventsPerSecond;
+        this.maxQueueUsagePercent = maxQueueUsagePercent;
+        this.queueUsage = queueUsage;
+    }
+
+    /**
+     * Creates a {@link DegradationPolicy}, values less than or equal to {@code 0} disable the corresponding threshold.
+     *
+     * @param queueUsage the queue to watch, may be {@code null}
+     * @return the policy, or {@code null} if no threshold is set
+     */
+    public static DegradationPolicy create(int maxEventsPerSecond, int maxQueueUsagePercent, QueueUsage queueUsage) {
+        if (maxEventsPerSecond <= 0 && (maxQueueUsagePercent <= 0 || queueUsage == null)) {
+            return null;
+        }
+        return new DegradationPolicy(maxEventsPerSecond, queueUsage != null ? maxQueueUsagePercent : 0, queueUsage);
+    }
+
+    /**
+     * Counts the event and returns whether it should be serialized in the compact form.
+     *
+     * @param timeMillis the timestamp of the event
+     */
+    public boolean onEvent(long timeMillis) {
+        events.increment();
+        final long start = windowStart.get();
+        if (start == Long.MIN_VALUE) {
+            if (windowStart.compareAndSet(start, timeMillis)) {
+                windowStartEvents = events.get();
+            }
+        } else if (timeMillis - start >= WINDOW_MILLIS && windowStart.compareAndSet(start, timeMillis)) {
+            update(timeMillis - start);
+        }
+        return degraded;
+    }
+
+    public boolean isDegraded() {
+        return degraded;
+    }
+
+    private void update(long elapsedMillis) {
+        final long total = events.get();
+        final long eventsPerSecond = (total - windowStartEvents) * 1000 / elapsedMillis;
+        windowStartEvents = total;
+        final int usage = maxQueueUsagePercent > 0 ? queueUsage.getUsagePercent() : 0;
+        if (!degraded) {
+            degraded = (maxEventsPerSecond > 0 && eventsPerSecond > maxEventsPerSecond)
+                    || (maxQueueUsagePercent > 0 && usage >= maxQueueUsagePercent);
+        } else {
+            final boolean rateRelieved = maxEventsPerSecond <= 0 || eventsPerSecond <= maxEventsPerSecond / 2;
+            final boolean queueRelieved = maxQueueUsagePercent <= 0 || usage < maxQueueUsagePercent / 2;
+            degraded = !(rateRelieved && queueRelieved);
+        }
+    }
+
+    /**
+     * The usage of the queue of an asynchronous appender.
+     */
+    public interface QueueUsage {
+
+        /**
+         * @return the percentage of the queue capacity which is in use, or {@code 0} if the queue is not known (yet)
+         */
+        int getUsagePercent();
+    }
+}
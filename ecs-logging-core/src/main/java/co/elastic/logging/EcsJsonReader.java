@@ -0,0 +1,683 @@
+/*-
+ * #%L
+ * Java ECS logging
+ * %%
+ * Copyright (C) 2019 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.logging;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A streaming reader for the newline delimited JSON written by {@link EcsJsonSerializer}.
+ * <p>
+ * In contrast to a general purpose JSON parser, it does not build a tree and does not decode any values up front.
+ * Instead, {@link #next()} only records where the keys and values of the fields of an event are located in the underlying buffer.
+ * This makes it possible to scan through gigabytes of log files, for example to filter events by their level,
+ * without creating a single {@link String}.
+ * Values are only decoded when calling {@link #getString(int)} or {@link #appendString(int, StringBuilder)}.
+ * </p>
+ * <p>
+ * As ECS logging writes flat, dotted keys, this reader does not descend into nested objects and arrays, such as {@code tags}.
+ * Their raw JSON is exposed as the value of the field instead.
+ * </p>
+ * <p>
+ * This class is not thread safe.
+ * </p>
+ */
+public class EcsJsonReader implements Closeable {
+
+    public enum Type {
+        STRING, NUMBER, BOOLEAN, NULL, ARRAY, OBJECT
+    }
+
+    static final int DEFAULT_WINDOW_SIZE = 256 * 1024 * 1024;
+    private static final String TIMESTAMP = "@timestamp";
+    private static final long MILLIS_PER_DAY = 1000 * 60 * 60 * 24;
+
+    private final FileChannel channel;
+    private final int windowSize;
+    private ByteBuffer buffer;
+    private long windowOffset;
+    private int position;
+    private int limit;
+
+    private int eventStart;
+    private int eventEnd;
+    private int fieldCount;
+    private int[] keyStarts = new int[16];
+    private int[] keyEnds = new int[16];
+    private int[] valueStarts = new int[16];
+    private int[] valueEnds = new int[16];
+    private Type[] types = new Type[16];
+    private final StringBuilder scratch = new StringBuilder();
+
+    /**
+     * Reads the events between the position and the limit of the buffer.
+     * The position and the limit of the buffer are not modified.
+     */
+    public EcsJsonReader(ByteBuffer buffer) {
+        this(buffer, null, 0);
+    }
+
+    private EcsJsonReader(ByteBuffer buffer, FileChannel channel, int windowSize) {
+        this.buffer = buffer;
+        this.channel = channel;
+        this.windowSize = windowSize;
+        this.position = buffer.position();
+        this.limit = buffer.limit();
+    }
+
+    /**
+     * Memory maps the file and reads the events in it.
+     * Large files are mapped in windows of 256 MiB.
+     */
+    public static EcsJsonReader open(File file) throws IOException {
+        return open(file, DEFAULT_WINDOW_SIZE);
+    }
+
+    static EcsJsonReader open(File file, int windowSize) throws IOException {
+        final FileChannel channel = new RandomAccessFile(file, "r").getChannel();
+        try {
+            final long size = Math.min(windowSize, channel.size());
+            return new EcsJsonReader(channel.map(FileChannel.MapMode.READ_ONLY, 0, size), channel, windowSize);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Advances to the next event.
+     *
+     * @return {@code false} if there are no more events
+     * @throws IllegalArgumentException if the next line is not a JSON object
+     * @throws IOException              if the next window of the file could not be mapped
+     */
+    public boolean next() throws IOException {
+        while (true) {
+            int i = skipWhitespace(position);
+            if (i < 0) {
+                if (remap(limit)) {
+                    continue;
+                }
+                position = limit;
+                fieldCount = 0;
+                return false;
+            }
+            if (buffer.get(i) != '{') {
+                throw malformed(i);
+            }
+            final int end = parseObject(i);
+            if (end < 0) {
+                if (remap(i)) {
+                    continue;
+                }
+                throw new IllegalArgumentException("Incomplete JSON object at offset " + (windowOffset + i));
+            }
+            eventStart = i;
+            eventEnd = end;
+            position = end;
+            return true;
+        }
+    }
+
+    /**
+     * Continues reading at an offset of the file or buffer, such as one returned by {@link #getEventOffset()} or {@link TimestampIndex}.
+     * The offset has to point to the start of an event or to whitespace before one.
+     *
+     * @throws IOException if the window of the file could not be mapped
+     */
+    public void seek(long offset) throws IOException {
+        if (offset < 0) {
+            throw new IllegalArgumentException("Negative offset " + offset);
+        }
+        if (channel != null) {
+            final long start = Math.min(offset, channel.size());
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(windowSize, channel.size() - start));
+            windowOffset = start;
+            position = 0;
+            limit = buffer.limit();
+        } else {
+            position = (int) Math.min(offset, limit);
+        }
+        fieldCount = 0;
+    }
+
+    /**
+     * Maps the window of the file which starts at the given offset of the current window.
+     *
+     * @return {@code false} if the end of the file has been reached
+     */
+    private boolean remap(int from) throws IOException {
+        if (channel == null) {
+            return false;
+        }
+        final long fileSize = channel.size();
+        final long offset = windowOffset + from;
+        if (offset >= fileSize || windowOffset + limit >= fileSize) {
+            return false;
+        }
+        if (from == 0) {
+            throw new IllegalArgumentException("Event at offset " + offset + " is larger than the window size of " + windowSize);
+        }
+        buffer = channel.map(FileChannel.MapMode.READ_ONLY, offset, Math.min(windowSize, fileSize - offset));
+        windowOffset = offset;
+        position = 0;
+        limit = buffer.limit();
+        return true;
+    }
+
+    /**
+     * @return the offset after the closing brace, or {@code -1} if the buffer ends before the object does
+     */
+    private int parseObject(int start) {
+        fieldCount = 0;
+        int i = skipWhitespace(start + 1);
+        if (i < 0) {
+            return -1;
+        }
+        if (buffer.get(i) == '}') {
+            return i + 1;
+        }
+        while (true) {
+            if (buffer.get(i) != '"') {
+                throw malformed(i);
+            }
+            final int keyStart = i + 1;
+            final int keyEnd = endOfString(keyStart);
+            if (keyEnd < 0 || (i = skipWhitespace(keyEnd + 1)) < 0) {
+                return -1;
+            }
+            if (buffer.get(i) != ':') {
+                throw malformed(i);
+            }
+            if ((i = skipWhitespace(i + 1)) < 0) {
+                return -1;
+            }
+            final byte first = buffer.get(i);
+            final int valueStart;
+            final int valueEnd;
+            final Type type;
+            if (first == '"') {
+                valueStart = i + 1;
+                valueEnd = endOfString(valueStart);
+                type = Type.STRING;
+                i = valueEnd + 1;
+            } else if (first == '{' || first == '[') {
+                valueStart = i;
+                valueEnd = endOfNested(i);
+                type = first == '{' ? Type.OBJECT : Type.ARRAY;
+                i = valueEnd;
+            } else {
+                valueStart = i;
+                valueEnd = endOfLiteral(i);
+                if (first == 't' || first == 'f') {
+                    type = Type.BOOLEAN;
+                } else if (first == 'n') {
+                    type = Type.NULL;
+                } else if (first == '-' || (first >= '0' && first <= '9')) {
+                    type = Type.NUMBER;
+                } else {
+                    throw malformed(i);
+                }
+                i = valueEnd;
+            }
+            if (valueEnd < 0 || (i = skipWhitespace(i)) < 0) {
+                return -1;
+            }
+            addField(keyStart, keyEnd, valueStart, valueEnd, type);
+            final byte separator = buffer.get(i);
+            if (separator == '}') {
+                return i + 1;
+            } else if (separator != ',') {
+                throw malformed(i);
+            } else if ((i = skipWhitespace(i + 1)) < 0) {
+                return -1;
+            }
+        }
+    }
+
+    private void addField(int keyStart, int keyEnd, int valueStart, int valueEnd, Type type) {
+        if (fieldCount == keyStarts.length) {
+            final int newLength = fieldCount * 2;
+            keyStarts = copyOf(keyStarts, newLength);
+            keyEnds = copyOf(keyEnds, newLength);
+            valueStarts = copyOf(valueStarts, newLength);
+            valueEnds = copyOf(valueEnds, newLength);
+            final Type[] newTypes = new Type[newLength];
+            System.arraycopy(types, 0, newTypes, 0, fieldCount);
+            types = newTypes;
+        }
+        keyStarts[fieldCount] = keyStart;
+        keyEnds[fieldCount] = keyEnd;
+        valueStarts[fieldCount] = valueStart;
+        valueEnds[fieldCount] = valueEnd;
+        types[fieldCount] = type;
+        fieldCount++;
+    }
+
+    private static int[] copyOf(int[] array, int newLength) {
+        final int[] copy = new int[newLength];
+        System.arraycopy(array, 0, copy, 0, array.length);
+        return copy;
+    }
+
+    /**
+     * @return the offset of the first non-whitespace byte or {@code -1} if the buffer ends before
+     */
+    private int skipWhitespace(int i) {
+        for (; i < limit; i++) {
+            final byte b = buffer.get(i);
+            if (b != ' ' && b != '\n' && b != '\r' && b != '\t') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return the offset of the closing quote or {@code -1} if the buffer ends before
+     */
+    private int endOfString(int i) {
+        while (i < limit) {
+            final byte b = buffer.get(i);
+            if (b == '"') {
+                return i;
+            } else if (b == '\\') {
+                i += 2;
+            } else if (b == '\n') {
+                throw malformed(i);
+            } else {
+                i++;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return the offset after the closing bracket or brace or {@code -1} if the buffer ends before
+     */
+    private int endOfNested(int i) {
+        int depth = 0;
+        while (i < limit) {
+            final byte b = buffer.get(i);
+            if (b == '"') {
+                i = endOfString(i + 1);
+                if (i < 0) {
+                    return -1;
+                }
+            } else if (b == '{' || b == '[') {
+                depth++;
+            } else if (b == '}' || b == ']') {
+                if (--depth == 0) {
+                    return i + 1;
+                }
+            } else if (b == '\n') {
+                throw malformed(i);
+            }
+            i++;
+        }
+        return -1;
+    }
+
+    /**
+     * @return the offset after the number or literal or {@code -1} if the buffer ends before the object does
+     */
+    private int endOfLiteral(int i) {
+        for (; i < limit; i++) {
+            final byte b = buffer.get(i);
+            if (b == ',' || b == '}' || b == ' ' || b == '\n' || b == '\r' || b == '\t') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private IllegalArgumentException malformed(int i) {
+        return new IllegalArgumentException("Malformed JSON at offset " + (windowOffset + i));
+    }
+
+    /**
+     * @return the number of fields of the current event
+     */
+    public int getFieldCount() {
+        return fieldCount;
+    }
+
+    /**
+     * Looks up a field by its key, without allocating.
+     *
+     * @return the index of the field or {@code -1} if the current event does not have a field with that key
+     */
+    public int indexOf(CharSequence key) {
+        for (int i = 0; i < fieldCount; i++) {
+            if (regionEquals(keyStarts[i], keyEnds[i], true, key)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public Type getType(int field) {
+        checkField(field);
+        return types[field];
+    }
+
+    /**
+     * Compares the key of a field without allocating.
+     */
+    public boolean keyEquals(int field, CharSequence key) {
+        checkField(field);
+        return regionEquals(keyStarts[field], keyEnds[field], true, key);
+    }
+
+    /**
+     * Compares the decoded value of a string field, or the raw JSON of any other field, without allocating.
+     */
+    public boolean valueEquals(int field, CharSequence value) {
+        checkField(field);
+        return regionEquals(valueStarts[field], valueEnds[field], types[field] == Type.STRING, value);
+    }
+
+    public String getKey(int field) {
+        checkField(field);
+        scratch.setLength(0);
+        decode(keyStarts[field], keyEnds[field], true, scratch);
+        return scratch.toString();
+    }
+
+    /**
+     * @return the decoded value of a string field, the raw JSON of any other field,
+     * or {@code null} if the field is {@code null}
+     */
+    public String getString(int field) {
+        checkField(field);
+        if (types[field] == Type.NULL) {
+            return null;
+        }
+        scratch.setLength(0);
+        appendString(field, scratch);
+        return scratch.toString();
+    }
+
+    /**
+     * @return the decoded value of the field with the given key,
+     * or {@code null} if there is no such field or the field is {@code null}
+     */
+    public String getString(CharSequence key) {
+        final int field = indexOf(key);
+        return field < 0 ? null : getString(field);
+    }
+
+    /**
+     * Appends the decoded value of a string field, or the raw JSON of any other field, to the builder.
+     */
+    public void appendString(int field, StringBuilder builder) {
+        checkField(field);
+        decode(valueStarts[field], valueEnds[field], types[field] == Type.STRING, builder);
+    }
+
+    public boolean getBoolean(int field) {
+        checkField(field);
+        if (types[field] != Type.BOOLEAN) {
+            throw new IllegalArgumentException("Field " + field + " is not a boolean but a " + types[field]);
+        }
+        return buffer.get(valueStarts[field]) == 't';
+    }
+
+    /**
+     * Parses the value of an integral number field without allocating.
+     */
+    public long getLong(int field) {
+        checkField(field);
+        if (types[field] != Type.NUMBER) {
+            throw new NumberFormatException("Field " + field + " is not a number but a " + types[field]);
+        }
+        final int start = valueStarts[field];
+        final int end = valueEnds[field];
+        final boolean negative = buffer.get(start) == '-';
+        long value = 0;
+        for (int i = negative ? start + 1 : start; i < end; i++) {
+            final byte b = buffer.get(i);
+            if (b < '0' || b > '9') {
+                throw new NumberFormatException("Field " + field + " is not an integral number");
+            }
+            value = value * 10 + (b - '0');
+        }
+        return negative ? -value : value;
+    }
+
+    /**
+     * Parses the {@code @timestamp} of the current event without allocating.
+     *
+     * @return the timestamp in milliseconds since the epoch
+     * @throws IllegalArgumentException if the event does not have a {@code @timestamp}
+     */
+    public long getTimestamp() {
+        final int field = indexOf(TIMESTAMP);
+        if (field < 0) {
+            throw new IllegalArgumentException("The current event does not have a " + TIMESTAMP);
+        }
+        return getEpochMillis(field);
+    }
+
+    /**
+     * Parses an ISO 8601 date time in UTC, such as {@code 2019-08-01T12:00:00.000Z}, without allocating.
+     *
+     * @return the timestamp in milliseconds since the epoch
+     */
+    public long getEpochMillis(int field) {
+        checkField(field);
+        final int start = valueStarts[field];
+        final int end = valueEnds[field];
+        if (types[field] != Type.STRING || end - start < 20
+                || buffer.get(start + 4) != '-' || buffer.get(start + 7) != '-' || buffer.get(start + 10) != 'T'
+                || buffer.get(start + 13) != ':' || buffer.get(start + 16) != ':' || buffer.get(end - 1) != 'Z') {
+            throw new IllegalArgumentException("Field " + field + " is not an ISO 8601 date time in UTC");
+        }
+        final int year = digits(start, 4);
+        final int month = digits(start + 5, 2);
+        final int day = digits(start + 8, 2);
+        long millis = CivilDate.toEpochDay(year, month, day) * MILLIS_PER_DAY
+                + digits(start + 11, 2) * 3600000L
+                + digits(start + 14, 2) * 60000L
+                + digits(start + 17, 2) * 1000L;
+        if (buffer.get(start + 19) == '.') {
+            int factor = 100;
+            for (int i = start + 20; i < end - 1 && factor > 0; i++, factor /= 10) {
+                millis += digits(i, 1) * factor;
+            }
+        }
+        return millis;
+    }
+
+    private int digits(int start, int length) {
+        int value = 0;
+        for (int i = start; i < start + length; i++) {
+            final byte b = buffer.get(i);
+            if (b < '0' || b > '9') {
+                throw malformed(i);
+            }
+            value = value * 10 + (b - '0');
+        }
+        return value;
+    }
+
+    /**
+     * @return a view of the raw bytes of the key of a field, without the quotes and without unescaping
+     */
+    public ByteBuffer getKeyBytes(int field) {
+        checkField(field);
+        return slice(keyStarts[field], keyEnds[field]);
+    }
+
+    /**
+     * @return a view of the raw bytes of the value of a field, without the quotes of strings and without unescaping
+     */
+    public ByteBuffer getValueBytes(int field) {
+        checkField(field);
+        return slice(valueStarts[field], valueEnds[field]);
+    }
+
+    /**
+     * @return a view of the raw bytes of the current event, without the trailing newline
+     */
+    public ByteBuffer getEventBytes() {
+        return slice(eventStart, eventEnd);
+    }
+
+    /**
+     * @return the offset of the current event in the file or buffer
+     */
+    public long getEventOffset() {
+        return windowOffset + eventStart;
+    }
+
+    private ByteBuffer slice(int start, int end) {
+        // casting to Buffer avoids binding to the covariant overrides added in Java 9
+        final ByteBuffer duplicate = buffer.duplicate();
+        ((Buffer) duplicate).limit(end);
+        ((Buffer) duplicate).position(start);
+        return duplicate.slice();
+    }
+
+    private void checkField(int field) {
+        if (field < 0 || field >= fieldCount) {
+            throw new IndexOutOfBoundsException("Field " + field + " of " + fieldCount);
+        }
+    }
+
+    private boolean regionEquals(int start, int end, boolean unescape, CharSequence value) {
+        int j = 0;
+        for (int i = start; i < end; i++, j++) {
+            final byte b = buffer.get(i);
+            if (b < 0 || (unescape && b == '\\')) {
+                // non-ASCII or escaped characters
+                scratch.setLength(0);
+                decode(i, end, unescape, scratch);
+                return contentEquals(scratch, value, j);
+            }
+            if (j >= value.length() || value.charAt(j) != b) {
+                return false;
+            }
+        }
+        return j == value.length();
+    }
+
+    private static boolean contentEquals(StringBuilder decodedSuffix, CharSequence value, int offset) {
+        if (value.length() - offset != decodedSuffix.length()) {
+            return false;
+        }
+        for (int i = 0; i < decodedSuffix.length(); i++) {
+            if (decodedSuffix.charAt(i) != value.charAt(offset + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Decodes UTF-8 and, if requested, JSON escape sequences.
+     */
+    private void decode(int start, int end, boolean unescape, StringBuilder builder) {
+        int i = start;
+        while (i < end) {
+            final int b = buffer.get(i);
+            if (b >= 0) {
+                if (unescape && b == '\\') {
+                    i = unescape(i + 1, builder);
+                } else {
+                    builder.append((char) b);
+                    i++;
+                }
+            } else if ((b & 0xE0) == 0xC0) {
+                builder.append((char) (((b & 0x1F) << 6) | (buffer.get(i + 1) & 0x3F)));
+                i += 2;
+            } else if ((b & 0xF0) == 0xE0) {
+                builder.append((char) (((b & 0x0F) << 12) | ((buffer.get(i + 1) & 0x3F) << 6) | (buffer.get(i + 2) & 0x3F)));
+                i += 3;
+            } else {
+                final int codePoint = ((b & 0x07) << 18) | ((buffer.get(i + 1) & 0x3F) << 12)
+                        | ((buffer.get(i + 2) & 0x3F) << 6) | (buffer.get(i + 3) & 0x3F);
+                builder.append((char) ((codePoint >>> 10) + (Character.MIN_HIGH_SURROGATE - (Character.MIN_SUPPLEMENTARY_CODE_POINT >>> 10))));
+                builder.append((char) ((codePoint & 0x3FF) + Character.MIN_LOW_SURROGATE));
+                i += 4;
+            }
+        }
+    }
+
+    /**
+     * @return the offset after the escape sequence
+     */
+    private int unescape(int i, StringBuilder builder) {
+        final byte escaped = buffer.get(i);
+        switch (escaped) {
+            case 'n':
+                builder.append('\n');
+                break;
+            case 'r':
+                builder.append('\r');
+                break;
+            case 't':
+                builder.append('\t');
+                break;
+            case 'b':
+                builder.append('\b');
+                break;
+            case 'f':
+                builder.append('\f');
+                break;
+            case 'u':
+                builder.append((char) ((hex(i + 1) << 12) | (hex(i + 2) << 8) | (hex(i + 3) << 4) | hex(i + 4)));
+                return i + 5;
+            default:
+                // \" \\ and \/
+                builder.append((char) escaped);
+        }
+        return i + 1;
+    }
+
+    private int hex(int i) {
+        final byte b = buffer.get(i);
+        if (b >= '0' && b <= '9') {
+            return b - '0';
+        } else if (b >= 'a' && b <= 'f') {
+            return b - 'a' + 10;
+        } else if (b >= 'A' && b <= 'F') {
+            return b - 'A' + 10;
+        }
+        throw malformed(i);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+        }
+    }
+}
@@ -25,8 +25,8 @@
 package co.elastic.logging;
 
 import java.io.PrintWriter;
-import java.io.StringWriter;
 import java.util.Arrays;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -34,6 +34,7 @@ import java.util.Set;
 public class EcsJsonSerializer {
 
     public static final List<String> DEFAULT_TOP_LEVEL_LABELS = Arrays.asList("trace.id", "transaction.id", "span.id");
+    static final int MAX_NESTING_DEPTH = 8;
     private static final TimestampSerializer TIMESTAMP_SERIALIZER = new TimestampSerializer();
 
     public static CharSequence toNullSafeString(final CharSequence s) {
@@ -69,13 +70,94 @@ public class EcsJsonSerializer {
     }
 
     public static void serializeFormattedMessage(StringBuilder builder, String message, Throwable t) {
+        serializeFormattedMessage(builder, message, t, null, FieldLimits.NONE);
+    }
+
+    /**
+     * @return {@code true} if the message or the stack trace has been truncated
+     */
+    public static boolean serializeFormattedMessage(StringBuilder builder, String message, Throwable t, Redactor redactor, FieldLimits limits) {
         builder.append("\"message\":\"");
-        JsonUtils.quoteAsString(message, builder);
+        boolean truncated = Redactor.quoteAsString(message, builder, redactor, limits.getMaxMessageLength(), limits.getMaxBuilderLength());
         if (t != null) {
             builder.append("\\n");
-            JsonUtils.quoteAsString(formatThrowable(t), builder);
+            truncated |= serializeStackTrace(builder, t, redactor, limits);
         }
         builder.append("\", ");
+        return truncated;
+    }
+
+    /**
+     * Serializes the stack trace of the {@link Throwable} without the surrounding quotes.
+     *
+     * @return {@code true} if the stack trace has been truncated
+     */
+    public static boolean serializeStackTrace(StringBuilder builder, Throwable t, Redactor redactor, FieldLimits limits) {
+        final StringBuilderWriter stackTrace = formatThrowable(t, limits.getMaxStackTraceLength());
+        return Redactor.quoteAsString(stackTrace.getBuilder(), builder, redactor, FieldLimits.UNLIMITED, limits.getMaxBuilderLength())
+                || stackTrace.isTruncated();
+    }
+
+    /**
+     * Serializes the first line of a stack trace, {@code class: message}, without the surrounding quotes and without the stack frames.
+     *
+     * @param message the message of the throwable, may be {@code null}
+     * @return {@code true} if the message has been truncated
+     * @see DegradationPolicy
+     */
+    public static boolean serializeThrowableSummary(StringBuilder builder, String className, String message, Redactor redactor, FieldLimits limits) {
+        JsonUtils.quoteAsString(className, builder);
+        if (message == null) {
+            return false;
+        }
+        builder.append(": ");
+        return Redactor.quoteAsString(message, builder, redactor, limits.getMaxStackTraceLength(), limits.getMaxBuilderLength());
+    }
+
+    /**
+     * Serializes the unformatted message template as {@code message_template} and its parameters as {@code message_parameters},
+     * which lets the formatted message be skipped.
+     * The parameters are serialized according to their type, see {@link #serializeValue(StringBuilder, Object, Redactor, int, int)}.
+     *
+     * @param parameters     the parameters, may be {@code null}
+     * @param parameterCount the number of parameters to serialize, for example to leave out a trailing {@link Throwable}
+     * @return {@code true} if the template or a parameter has been truncated
+     */
+    public static boolean serializeMessageTemplate(StringBuilder builder, String template, Object[] parameters, int parameterCount,
+                                                   Redactor redactor, FieldLimits limits) {
+        return serializeMessageTemplate(builder, template, parameters, parameterCount, null, redactor, limits);
+    }
+
+    /**
+     * Like {@link #serializeMessageTemplate(StringBuilder, String, Object[], int, Redactor, FieldLimits)},
+     * but leaves out the parameters of the given type, for example because they are serialized as fields of their own.
+     *
+     * @param excludedParameterType the type of the parameters to leave out, may be {@code null}
+     */
+    public static boolean serializeMessageTemplate(StringBuilder builder, String template, Object[] parameters, int parameterCount,
+                                                   Class<?> excludedParameterType, Redactor redactor, FieldLimits limits) {
+        builder.append("\"message_template\":\"");
+        boolean truncated = Redactor.quoteAsString(toNullSafeString(template), builder, redactor, limits.getMaxMessageLength(),
+                limits.getMaxBuilderLength());
+        builder.append("\",");
+        if (parameters != null && parameterCount > 0) {
+            final int mark = builder.length();
+            builder.append("\"message_parameters\":[");
+            final int start = builder.length();
+            for (int i = 0; i < parameterCount; i++) {
+                if (excludedParameterType == null || !excludedParameterType.isInstance(parameters[i])) {
+                    truncated |= serializeValue(builder, parameters[i], redactor, limits.getMaxLabelValueLength(), limits.getMaxBuilderLength());
+                    builder.append(',');
+                }
+            }
+            if (builder.length() == start) {
+                builder.setLength(mark);
+            } else {
+                builder.setLength(builder.length() - 1);
+                builder.append("],");
+            }
+        }
+        return truncated;
     }
 
     public static void serializeServiceName(StringBuilder builder, String serviceName) {
@@ -97,6 +179,25 @@ public class EcsJsonSerializer {
         builder.append("\", ");
     }
 
+    /**
+     * Serializes the ids of a trace context as top-level fields, omitting {@code null} or empty ones.
+     *
+     * @see TraceContextProvider
+     */
+    public static void serializeTraceContext(StringBuilder builder, CharSequence traceId, CharSequence transactionId, CharSequence spanId) {
+        serializeId(builder, "trace.id", traceId);
+        serializeId(builder, "transaction.id", transactionId);
+        serializeId(builder, "span.id", spanId);
+    }
+
+    private static void serializeId(StringBuilder builder, String key, CharSequence id) {
+        if (id != null && id.length() > 0) {
+            builder.append('\"').append(key).append("\":\"");
+            JsonUtils.quoteAsString(id, builder);
+            builder.append("\",");
+        }
+    }
+
     public static void serializeTag(StringBuilder builder, String tag) {
         if (tag != null) {
             builder.append("\"tags\":[\"").append(tag).append("\"],");
@@ -104,37 +205,470 @@ public class EcsJsonSerializer {
     }
 
     public static void serializeLabels(StringBuilder builder, Map<String, ?> labels, Set<String> topLevelLabels) {
+        serializeLabels(builder, labels, topLevelLabels, null, FieldLimits.NONE);
+    }
+
+    /**
+     * @return {@code true} if a label has been truncated or omitted
+     */
+    public static boolean serializeLabels(StringBuilder builder, Map<String, ?> labels, Set<String> topLevelLabels, Redactor redactor, FieldLimits limits) {
+        boolean truncated = false;
         if (!labels.isEmpty()) {
             for (Map.Entry<String, ?> entry : labels.entrySet()) {
-                builder.append('\"');
-                String key = entry.getKey();
-                if (!topLevelLabels.contains(key)) {
-                    builder.append("labels.");
+                truncated |= serializeLabel(builder, entry.getKey(), entry.getValue(), topLevelLabels, redactor, limits);
+            }
+        }
+        return truncated;
+    }
+
+    /**
+     * Serializes only the labels which are top-level fields, such as {@code trace.id}, which is what degraded events retain.
+     *
+     * @return {@code true} if a label has been truncated or omitted
+     * @see DegradationPolicy
+     */
+    public static boolean serializeTopLevelLabels(StringBuilder builder, Map<String, ?> labels, Set<String> topLevelLabels, Redactor redactor, FieldLimits limits) {
+        boolean truncated = false;
+        if (!labels.isEmpty()) {
+            for (String key : topLevelLabels) {
+                final Object value = labels.get(key);
+                if (value != null) {
+                    truncated |= serializeLabel(builder, key, value, topLevelLabels, redactor, limits);
+                }
+            }
+        }
+        return truncated;
+    }
+
+    /**
+     * @return {@code true} if the label has been truncated or, if the maximum event length has been reached, omitted
+     */
+    public static boolean serializeLabel(StringBuilder builder, String key, Object value, Set<String> topLevelLabels, Redactor redactor, FieldLimits limits) {
+        final int maxBuilderLength = limits.getMaxBuilderLength();
+        if (builder.length() >= maxBuilderLength) {
+            return true;
+        }
+        builder.append('\"');
+        if (!topLevelLabels.contains(key)) {
+            builder.append("labels.");
+        }
+        JsonUtils.quoteAsString(key, builder);
+        builder.append("\":\"");
+        boolean truncated = false;
+        if (redactor != null && redactor.isRedactedKey(key)) {
+            builder.append(Redactor.MASK);
+        } else {
+            // avoids the toString() allocation for mutable char sequences, such as StringBuilder
+            final CharSequence stringValue = value instanceof CharSequence ? (CharSequence) value : String.valueOf(value);
+            truncated = Redactor.quoteAsString(stringValue, builder, redactor, limits.getMaxLabelValueLength(), maxBuilderLength);
+        }
+        builder.append("\",");
+        return truncated;
+    }
+
+    /**
+     * Like {@link #serializeLabel}, but serializes numbers and booleans as JSON numbers and booleans instead of strings.
+     *
+     * @return {@code true} if the value has been truncated or, if the maximum event length has been reached, omitted
+     */
+    public static boolean serializeField(StringBuilder builder, String key, Object value, Set<String> topLevelLabels, Redactor redactor, FieldLimits limits) {
+        final int maxBuilderLength = limits.getMaxBuilderLength();
+        if (builder.length() >= maxBuilderLength) {
+            return true;
+        }
+        builder.append('\"');
+        if (!topLevelLabels.contains(key)) {
+            builder.append("labels.");
+        }
+        JsonUtils.quoteAsString(key, builder);
+        builder.append("\":");
+        boolean truncated = false;
+        if (redactor != null && redactor.isRedactedKey(key)) {
+            builder.append('\"').append(Redactor.MASK).append('\"');
+        } else {
+            truncated = serializeValue(builder, value, redactor, limits.getMaxLabelValueLength(), maxBuilderLength);
+        }
+        builder.append(',');
+        return truncated;
+    }
+
+    /**
+     * Appends the members of a JSON object as top-level fields, each followed by a comma.
+     * Whitespace outside of strings is removed, so that pretty-printed JSON does not break the newline delimited framing.
+     * Members whose key is reserved, such as the fields the layout writes itself, are prefixed with {@code reservedKeyPrefix}
+     * so that the event doesn't contain duplicate keys.
+     * <p>
+     * Like labels, string values, including the ones nested in objects and arrays, are redacted and truncated to
+     * {@link FieldLimits#getMaxLabelValueLength()}, and the values of members with a redacted key are masked.
+     * Other values are copied as they are.
+     * The JSON is only checked as far as needed to find the members, and to make sure that strings don't contain line breaks.
+     * </p>
+     *
+     * @param redactor the redactor, may be {@code null}
+     * @param scratch  a builder to unescape string values into
+     * @return the number of string values which have been truncated,
+     * or {@code -1} if the JSON is not a single object, in which case nothing has been appended
+     */
+    public static int serializeJsonMembers(StringBuilder builder, CharSequence json, Set<String> reservedKeys, String reservedKeyPrefix,
+                                           Redactor redactor, FieldLimits limits, StringBuilder scratch) {
+        final int mark = builder.length();
+        final int length = json.length();
+        int truncated = 0;
+        int i = skipJsonWhitespace(json, 0);
+        if (i >= length || json.charAt(i) != '{') {
+            return -1;
+        }
+        i = skipJsonWhitespace(json, i + 1);
+        if (i < length && json.charAt(i) == '}') {
+            i++;
+        } else {
+            while (true) {
+                if (i >= length || json.charAt(i) != '"') {
+                    return invalidJson(builder, mark);
+                }
+                final int keyStart = i;
+                final int keyEnd = skipJsonString(json, keyStart);
+                if (keyEnd < 0) {
+                    return invalidJson(builder, mark);
+                }
+                i = skipJsonWhitespace(json, keyEnd);
+                if (i >= length || json.charAt(i) != ':') {
+                    return invalidJson(builder, mark);
+                }
+                final int valueStart = skipJsonWhitespace(json, i + 1);
+                final int valueEnd = skipJsonValue(json, valueStart);
+                if (valueEnd < 0) {
+                    return invalidJson(builder, mark);
+                }
+                // reserved and redacted keys don't need to be escaped, so the raw key can be compared
+                final String key = json.subSequence(keyStart + 1, keyEnd - 1).toString();
+                builder.append('"');
+                if (reservedKeys.contains(key)) {
+                    builder.append(reservedKeyPrefix);
+                }
+                builder.append(json, keyStart + 1, keyEnd).append(':');
+                if (redactor != null && redactor.isRedactedKey(key)) {
+                    builder.append('"').append(Redactor.MASK).append('"');
+                } else {
+                    final int truncatedValues = appendCompactJson(builder, json, valueStart, valueEnd, redactor, limits, scratch);
+                    if (truncatedValues < 0) {
+                        return invalidJson(builder, mark);
+                    }
+                    truncated += truncatedValues;
+                }
+                builder.append(',');
+                i = skipJsonWhitespace(json, valueEnd);
+                if (i < length && json.charAt(i) == ',') {
+                    i = skipJsonWhitespace(json, i + 1);
+                } else if (i < length && json.charAt(i) == '}') {
+                    i++;
+                    break;
+                } else {
+                    return invalidJson(builder, mark);
+                }
+            }
+        }
+        if (skipJsonWhitespace(json, i) != length) {
+            return invalidJson(builder, mark);
+        }
+        return truncated;
+    }
+
+    private static int invalidJson(StringBuilder builder, int mark) {
+        builder.setLength(mark);
+        return -1;
+    }
+
+    private static int skipJsonWhitespace(CharSequence json, int i) {
+        while (i < json.length() && isJsonWhitespace(json.charAt(i))) {
+            i++;
+        }
+        return i;
+    }
+
+    private static boolean isJsonWhitespace(char c) {
+        return c == ' ' || c == '\n' || c == '\r' || c == '\t';
+    }
+
+    /**
+     * @return the index after the closing quote of the string which starts at {@code start}, or {@code -1} if it is not terminated
+     * or contains unescaped control characters, such as line breaks
+     */
+    private static int skipJsonString(CharSequence json, int start) {
+        for (int i = start + 1; i < json.length(); i++) {
+            final char c = json.charAt(i);
+            if (c == '"') {
+                return i + 1;
+            } else if (c == '\\') {
+                i++;
+            } else if (c < 0x20) {
+                return -1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return the index after the value which starts at {@code start}, or {@code -1} if it is malformed
+     */
+    private static int skipJsonValue(CharSequence json, int start) {
+        int depth = 0;
+        int i = start;
+        while (i < json.length()) {
+            final char c = json.charAt(i);
+            if (c == '"') {
+                i = skipJsonString(json, i);
+                if (i < 0) {
+                    return -1;
+                }
+            } else if (c == '{' || c == '[') {
+                depth++;
+                i++;
+            } else if (c == '}' || c == ']') {
+                if (depth == 0) {
+                    break;
+                }
+                depth--;
+                i++;
+            } else if (c == ',' && depth == 0) {
+                break;
+            } else if (isJsonWhitespace(c) && depth == 0) {
+                break;
+            } else {
+                i++;
+            }
+            if (depth == 0 && (c == '"' || c == '}' || c == ']')) {
+                // the value ends with the closing quote or bracket
+                break;
+            }
+        }
+        return depth == 0 && i > start ? i : -1;
+    }
+
+    /**
+     * @return the number of string values which have been truncated, or {@code -1} if a string contains a malformed escape sequence
+     */
+    private static int appendCompactJson(StringBuilder builder, CharSequence json, int start, int end, Redactor redactor, FieldLimits limits,
+                                         StringBuilder scratch) {
+        int truncated = 0;
+        for (int i = start; i < end; i++) {
+            final char c = json.charAt(i);
+            if (c == '"') {
+                final int stringEnd = skipJsonString(json, i);
+                final int next = skipJsonWhitespace(json, stringEnd);
+                final boolean isKey = next < end && json.charAt(next) == ':';
+                if (isKey || redactor == null && stringEnd - i - 2 <= limits.getMaxLabelValueLength()) {
+                    // the unescaped value can't be longer than the escaped one
+                    builder.append(json, i, stringEnd);
+                } else {
+                    scratch.setLength(0);
+                    if (!unescapeJsonString(json, i + 1, stringEnd - 1, scratch)) {
+                        return -1;
+                    }
+                    builder.append('"');
+                    if (Redactor.quoteAsString(scratch, builder, redactor, limits.getMaxLabelValueLength(), limits.getMaxBuilderLength())) {
+                        truncated++;
+                    }
+                    builder.append('"');
                 }
-                JsonUtils.quoteAsString(key, builder);
-                builder.append("\":\"");
-                JsonUtils.quoteAsString(toNullSafeString(String.valueOf(entry.getValue())), builder);
-                builder.append("\",");
+                i = stringEnd - 1;
+            } else if (!isJsonWhitespace(c)) {
+                builder.append(c);
+            }
+        }
+        return truncated;
+    }
+
+    /**
+     * @return {@code false} if the string contains a malformed escape sequence
+     */
+    private static boolean unescapeJsonString(CharSequence json, int start, int end, StringBuilder sb) {
+        for (int i = start; i < end; i++) {
+            final char c = json.charAt(i);
+            if (c != '\\') {
+                sb.append(c);
+                continue;
+            }
+            if (++i >= end) {
+                return false;
+            }
+            switch (json.charAt(i)) {
+                case '"':
+                case '\\':
+                case '/':
+                    sb.append(json.charAt(i));
+                    break;
+                case 'b':
+                    sb.append('\b');
+                    break;
+                case 'f':
+                    sb.append('\f');
+                    break;
+                case 'n':
+                    sb.append('\n');
+                    break;
+                case 'r':
+                    sb.append('\r');
+                    break;
+                case 't':
+                    sb.append('\t');
+                    break;
+                case 'u':
+                    if (i + 4 >= end) {
+                        return false;
+                    }
+                    int codeUnit = 0;
+                    for (int j = i + 1; j <= i + 4; j++) {
+                        final int digit = Character.digit(json.charAt(j), 16);
+                        if (digit < 0) {
+                            return false;
+                        }
+                        codeUnit = codeUnit * 16 + digit;
+                    }
+                    sb.append((char) codeUnit);
+                    i += 4;
+                    break;
+                default:
+                    return false;
             }
         }
+        return true;
+    }
+
+    /**
+     * Serializes a value according to its type:
+     * {@code null} as {@code null}, booleans as JSON booleans, finite numbers as JSON numbers,
+     * maps as JSON objects, collections and arrays as JSON arrays and everything else as a quoted string.
+     * Structures nested deeper than {@value #MAX_NESTING_DEPTH} levels are cut off, which also guards against cycles.
+     *
+     * @return {@code true} if a value has been truncated
+     */
+    public static boolean serializeValue(StringBuilder builder, Object value, Redactor redactor, int maxLength, int maxBuilderLength) {
+        return serializeValue(builder, value, redactor, maxLength, maxBuilderLength, 0);
+    }
+
+    private static boolean serializeValue(StringBuilder builder, Object value, Redactor redactor, int maxLength, int maxBuilderLength, int depth) {
+        if (value == null) {
+            builder.append("null");
+        } else if (value instanceof Boolean) {
+            builder.append(((Boolean) value).booleanValue());
+        } else if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte) {
+            builder.append(((Number) value).longValue());
+        } else if ((value instanceof Double || value instanceof Float) && isFinite(((Number) value).doubleValue())) {
+            builder.append(((Number) value).doubleValue());
+        } else if (value instanceof Map || value instanceof Iterable || value instanceof Object[]) {
+            if (depth >= MAX_NESTING_DEPTH) {
+                // toString() of a cyclic structure would overflow the stack
+                builder.append("\"...\"");
+                return true;
+            } else if (value instanceof Map) {
+                return serializeObject(builder, (Map<?, ?>) value, redactor, maxLength, maxBuilderLength, depth + 1);
+            } else if (value instanceof Iterable) {
+                return serializeArray(builder, ((Iterable<?>) value).iterator(), redactor, maxLength, maxBuilderLength, depth + 1);
+            } else {
+                return serializeArray(builder, Arrays.asList((Object[]) value).iterator(), redactor, maxLength, maxBuilderLength, depth + 1);
+            }
+        } else {
+            builder.append('\"');
+            // avoids the toString() allocation for mutable char sequences, such as StringBuilder
+            final CharSequence stringValue = value instanceof CharSequence ? (CharSequence) value : String.valueOf(value);
+            final boolean truncated = Redactor.quoteAsString(stringValue, builder, redactor, maxLength, maxBuilderLength);
+            builder.append('\"');
+            return truncated;
+        }
+        return false;
+    }
+
+    private static boolean serializeObject(StringBuilder builder, Map<?, ?> map, Redactor redactor, int maxLength, int maxBuilderLength, int depth) {
+        boolean truncated = false;
+        builder.append('{');
+        for (Map.Entry<?, ?> entry : map.entrySet()) {
+            if (builder.length() >= maxBuilderLength) {
+                truncated = true;
+                break;
+            }
+            final String key = String.valueOf(entry.getKey());
+            builder.append('\"');
+            JsonUtils.quoteAsString(key, builder);
+            builder.append("\":");
+            if (redactor != null && redactor.isRedactedKey(key)) {
+                builder.append('\"').append(Redactor.MASK).append('\"');
+            } else {
+                truncated |= serializeValue(builder, entry.getValue(), redactor, maxLength, maxBuilderLength, depth);
+            }
+            builder.append(',');
+        }
+        removeTrailingComma(builder, '{');
+        builder.append('}');
+        return truncated;
+    }
+
+    private static boolean serializeArray(StringBuilder builder, Iterator<?> values, Redactor redactor, int maxLength, int maxBuilderLength, int depth) {
+        boolean truncated = false;
+        builder.append('[');
+        while (values.hasNext()) {
+            if (builder.length() >= maxBuilderLength) {
+                truncated = true;
+                break;
+            }
+            truncated |= serializeValue(builder, values.next(), redactor, maxLength, maxBuilderLength, depth);
+            builder.append(',');
+        }
+        removeTrailingComma(builder, '[');
+        builder.append(']');
+        return truncated;
+    }
+
+    private static void removeTrailingComma(StringBuilder builder, char start) {
+        if (builder.charAt(builder.length() - 1) != start) {
+            builder.setLength(builder.length() - 1);
+        }
+    }
+
+    private static boolean isFinite(double value) {
+        // NaN and Infinity can't be represented as JSON numbers
+        return !Double.isNaN(value) && !Double.isInfinite(value);
     }
 
     public static void serializeException(StringBuilder builder, Throwable thrown) {
+        serializeException(builder, thrown, null, FieldLimits.NONE);
+    }
+
+    /**
+     * @return {@code true} if the stack trace has been truncated
+     */
+    public static boolean serializeException(StringBuilder builder, Throwable thrown, Redactor redactor, FieldLimits limits) {
+        boolean truncated = false;
         if (thrown != null) {
             builder.append("\"error.code\":\"");
             JsonUtils.quoteAsString(thrown.getClass().getName(), builder);
             builder.append("\",");
             builder.append("\"error.message\":\"");
-            JsonUtils.quoteAsString(formatThrowable(thrown), builder);
+            truncated = serializeStackTrace(builder, thrown, redactor, limits);
             builder.append("\",");
         }
+        return truncated;
+    }
+
+    /**
+     * Marks the event as truncated, see {@link FieldLimits}
+     */
+    public static void serializeTruncatedMarker(StringBuilder builder) {
+        builder.append("\"event.truncated\":true,");
+    }
+
+    /**
+     * Marks the event as degraded, see {@link DegradationPolicy}
+     */
+    public static void serializeDegradedMarker(StringBuilder builder) {
+        builder.append("\"event.degraded\":true,");
     }
 
-    private static CharSequence formatThrowable(final Throwable throwable) {
-        StringWriter sw = new StringWriter(2048);
+    private static StringBuilderWriter formatThrowable(final Throwable throwable, int maxLength) {
+        StringBuilderWriter sw = new StringBuilderWriter(new StringBuilder(Math.min(2048, maxLength)), maxLength);
         final PrintWriter pw = new PrintWriter(sw);
         throwable.printStackTrace(pw);
         pw.flush();
-        return sw.toString();
+        return sw;
     }
 }
@@ -0,0 +1,277 @@
+/*-
+ * #%L
+ * Java ECS logging
+ * %%
+ * Copyright (C) 2019 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.logging;
+
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Low-overhead metrics of a layout or encoder, exposed as the JMX MBean
+ * {@code co.elastic.logging:type=<layout or encoder>,name=<service name>}.
+ * The MBeans are registered asynchronously, so that JMX doesn't slow down the startup of the application.
+ * <p>
+ * Counters are striped so that concurrent logging threads don't contend on them
+ * and the encode time is only measured for every {@value #SAMPLE_INTERVAL}th event of a thread.
+ * </p>
+ * <p>
+ * Metrics are opt-in and have to be enabled with {@code -Dco.elastic.logging.metrics.enabled=true}.
+ * As {@link #ENABLED} is a {@code static final} field, the JIT compiler treats it as a constant
+ * and removes all code guarded by it if metrics are disabled.
+ * </p>
+ */
+public final class EcsMetrics implements EcsMetricsMBean {
+
+    public static final boolean ENABLED = Boolean.getBoolean("co.elastic.logging.metrics.enabled");
+    /**
+     * Returned by {@link #onEventStart()} if the encode time of the event is not measured
+     */
+    public static final long NOT_SAMPLED = Long.MIN_VALUE;
+    private static final int SAMPLE_INTERVAL = 64;
+    private static final ConcurrentMap<String, EcsMetrics> metricsByName = new ConcurrentHashMap<String, EcsMetrics>();
+    private static final List<Object[]> pendingRegistrations = new ArrayList<Object[]>();
+    private static Thread registrationThread;
+
+    private final StripedCounter events = new StripedCounter();
+    private final StripedCounter bytes = new StripedCounter();
+    private final StripedCounter exceptions = new StripedCounter();
+    private final StripedCounter truncatedEvents = new StripedCounter();
+    private final StripedCounter bufferGrowths = new StripedCounter();
+    private final StripedCounter bufferTrims = new StripedCounter();
+    private final LatencyHistogram encodeTime = new LatencyHistogram();
+
+    EcsMetrics() {
+    }
+
+    /**
+     * Returns the metrics of the given layout or encoder, registering them on first use.
+     * Layouts of the same type and service name share their metrics,
+     * which also means the metrics survive reconfigurations.
+     *
+     * @param type        the type of the layout or encoder, for example {@code log4j2-ecs-layout}
+     * @param serviceName the service name of the layout or encoder, may be {@code null}
+     * @return the metrics, or {@code null} if metrics are disabled
+     */
+    public static EcsMetrics forComponent(String type, String serviceName) {
+        if (!ENABLED) {
+            return null;
+        }
+        final String objectName = "co.elastic.logging:type=" + type + ",name=" + ObjectName.quote(serviceName == null ? "default" : serviceName);
+        EcsMetrics metrics = metricsByName.get(objectName);
+        if (metrics == null) {
+            final EcsMetrics newMetrics = new EcsMetrics();
+            metrics = metricsByName.putIfAbsent(objectName, newMetrics);
+            if (metrics == null) {
+                metrics = newMetrics;
+                registerMBean(metrics, objectName);
+            }
+        }
+        return metrics;
+    }
+
+    /**
+     * Registers the MBean on a background thread.
+     * <p>
+     * Initializing the platform MBean server loads hundreds of classes and takes tens of milliseconds,
+     * which would otherwise delay the first event of the application.
+     * If threads can't be started, the MBean is registered on the calling thread.
+     * </p>
+     */
+    static void registerMBean(final Object mBean, final String objectName) {
+        synchronized (pendingRegistrations) {
+            pendingRegistrations.add(new Object[]{mBean, objectName});
+            if (registrationThread == null || !registrationThread.isAlive()) {
+                try {
+                    final Thread thread = new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            registerPendingMBeans();
+                        }
+                    }, "ecs-logging-metrics-registration");
+                    thread.setDaemon(true);
+                    thread.start();
+                    registrationThread = thread;
+                    return;
+                } catch (Exception e) {
+                    // for example a SecurityException
+                } catch (Error e) {
+                    // for example an OutOfMemoryError if no more native threads can be created
+                }
+            } else {
+                return;
+            }
+        }
+        registerPendingMBeans();
+    }
+
+    private static void registerPendingMBeans() {
+        while (true) {
+            final Object[] registration;
+            synchronized (pendingRegistrations) {
+                if (pendingRegistrations.isEmpty()) {
+                    registrationThread = null;
+                    pendingRegistrations.notifyAll();
+                    return;
+                }
+                registration = pendingRegistrations.remove(0);
+            }
+            try {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(registration[0], new ObjectName((String) registration[1]));
+            } catch (Exception ignore) {
+                // metrics are best effort and must never prevent logging, for example when JMX is not available
+            } catch (LinkageError ignore) {
+                // javax.management is not available on all platforms
+            }
+        }
+    }
+
+    /**
+     * Waits until all MBeans passed to {@link #registerMBean(Object, String)} have been registered.
+     */
+    static void awaitRegistrations() throws InterruptedException {
+        synchronized (pendingRegistrations) {
+            while (registrationThread != null) {
+                pendingRegistrations.wait();
+            }
+        }
+    }
+
+    /**
+     * To be called before serializing an event.
+     *
+     * @return the start timestamp in nanoseconds if the encode time of this event should be measured, {@link #NOT_SAMPLED} otherwise
+     */
+    public long onEventStart() {
+        if (events.increment() % SAMPLE_INTERVAL == 0) {
+            return System.nanoTime();
+        }
+        return NOT_SAMPLED;
+    }
+
+    /**
+     * To be called after an event has been serialized.
+     *
+     * @param start     the value returned from {@link #onEventStart()}
+     * @param bytes     the length of the serialized event in UTF-8 bytes
+     * @param exception whether the event contained an exception
+     * @param truncated whether the event has been truncated
+     */
+    public void onEventEnd(long start, int bytes, boolean exception, boolean truncated) {
+        if (start != NOT_SAMPLED) {
+            encodeTime.record(System.nanoTime() - start);
+        }
+        this.bytes.add(bytes);
+        if (exception) {
+            exceptions.increment();
+        }
+        if (truncated) {
+            truncatedEvents.increment();
+        }
+    }
+
+    /**
+     * To be called if the capacity of a buffer had to be increased to hold an event
+     */
+    public void onBufferGrowth() {
+        bufferGrowths.increment();
+    }
+
+    /**
+     * To be called if an oversized buffer has been trimmed to limit the retained memory
+     */
+    public void onBufferTrim() {
+        bufferTrims.increment();
+    }
+
+    static void onEscapedChars(int escapedChars) {
+        SerializerMetrics.INSTANCE.escapedChars.add(escapedChars);
+    }
+
+    static void onTimestampCacheAccess(boolean hit) {
+        if (hit) {
+            SerializerMetrics.INSTANCE.timestampCacheHits.increment();
+        } else {
+            SerializerMetrics.INSTANCE.timestampCacheMisses.increment();
+        }
+    }
+
+    @Override
+    public long getEvents() {
+        return events.get();
+    }
+
+    @Override
+    public long getBytes() {
+        return bytes.get();
+    }
+
+    @Override
+    public long getExceptions() {
+        return exceptions.get();
+    }
+
+    @Override
+    public long getTruncatedEvents() {
+        return truncatedEvents.get();
+    }
+
+    @Override
+    public long getBufferGrowths() {
+        return bufferGrowths.get();
+    }
+
+    @Override
+    public long getBufferTrims() {
+        return bufferTrims.get();
+    }
+
+    @Override
+    public long getEncodeTimeSamples() {
+        return encodeTime.getCount();
+    }
+
+    @Override
+    public long getEncodeTimeMeanNanos() {
+        return encodeTime.getMeanNanos();
+    }
+
+    @Override
+    public long getEncodeTimeP50Nanos() {
+        return encodeTime.getPercentileNanos(0.5);
+    }
+
+    @Override
+    public long getEncodeTimeP99Nanos() {
+        return encodeTime.getPercentileNanos(0.99);
+    }
+
+    @Override
+    public long getEncodeTimeMaxNanos() {
+        return encodeTime.getMaxNanos();
+    }
+}
@@ -0,0 +1,56 @@
+/*-
+ * #%L
+ * Java ECS logging
+ * %%
+ * Copyright (C) 2019 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.logging;
+
+/**
+ * The JMX view of the {@link EcsMetrics} of a layout or encoder.
+ */
+public interface EcsMetricsMBean {
+
+    long getEvents();
+
+    /**
+     * @return the number of serialized bytes, or characters for layouts which leave the encoding to the appender
+     */
+    long getBytes();
+
+    long getExceptions();
+
+    long getTruncatedEvents();
+
+    long getBufferGrowths();
+
+    long getBufferTrims();
+
+    long getEncodeTimeSamples();
+
+    long getEncodeTimeMeanNanos();
+
+    long getEncodeTimeP50Nanos();
+
+    long getEncodeTimeP99Nanos();
+
+    long getEncodeTimeMaxNanos();
+}
@@ -0,0 +1,77 @@
+/*-
+ * #%L
+ * Java ECS logging
+ * %%
+ * Copyright (C) 2019 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.logging;
+
+import java.lang.reflect.Method;
+
+/**
+ * Reads the ids of the current transaction and span through the public API of the Elastic APM agent,
+ * which is accessed reflectively so that it does not have to be on the class path.
+ * Without an active transaction, the API returns no-op objects with empty ids.
+ */
+final class ElasticApmTraceContextProvider implements TraceContextProvider {
+
+    private static final Object[] NO_ARGS = new Object[0];
+
+    private final Method currentTransaction;
+    private final Method currentSpan;
+    private final Method getTraceId;
+    private final Method getId;
+
+    ElasticApmTraceContextProvider(Class<?> elasticApm, Class<?> span) throws NoSuchMethodException {
+        this.currentTransaction = elasticApm.getMethod("currentTransaction");
+        this.currentSpan = elasticApm.getMethod("currentSpan");
+        this.getTraceId = span.getMethod("getTraceId");
+        this.getId = span.getMethod("getId");
+    }
+
+    static TraceContextProvider create(ClassLoader classLoader) {
+        try {
+            return new ElasticApmTraceContextProvider(
+                    Class.forName("co.elastic.apm.api.ElasticApm", true, classLoader),
+                    Class.forName("co.elastic.apm.api.Span", true, classLoader));
+        } catch (Exception e) {
+            throw new IllegalArgumentException("The Elastic APM API is not available", e);
+        }
+    }
+
+    @Override
+    public void serializeTraceContext(StringBuilder builder) {
+        try {
+            final Object transaction = currentTransaction.invoke(null, NO_ARGS);
+            final String traceId = (String) getTraceId.invoke(transaction, NO_ARGS);
+            if (traceId == null || traceId.isEmpty()) {
+                return;
+            }
+            final String transactionId = (String) getId.invoke(transaction, NO_ARGS);
+            final String spanId = (String) getId.invoke(currentSpan.invoke(null, NO_ARGS), NO_ARGS);
+            // the current span is the transaction itself unless a span has been started within it
+            EcsJsonSerializer.serializeTraceContext(builder, traceId, transactionId,
+                    spanId != null && !spanId.equals(transactionId) ? spanId : null);
+        } catch (Exception ignore) {
+            // the agent's API never throws
+        }
+    }
+}
@@ -0,0 +1,601 @@
+/*-
+ * #%L
+ * Java ECS logging
+ * %%
+ * Copyright (C) 2019 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.logging;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A ring buffer of binary event records in a memory mapped file, which moves the JSON serialization off the logging thread.
+ * <p>
+ * Writing an event only copies its values into the mapped file, encoding strings as UTF-8 without escaping them.
+ * Strings which repeat from a small set, such as levels, logger names and label keys, are dictionary-encoded into ids.
+ * A new dictionary entry is written as a record into the ring, right before the first event using it.
+ * The renderer appends the entries it reads to a file next to the journal, see {@link #getDictionaryFile(File)},
+ * so that the writing threads never do file I/O.
+ * Thread names and label values are stored inline, as they are unbounded, think of {@code pool-42-thread-7}.
+ * The dictionary is capped at {@link #MAX_DICTIONARY_SIZE} entries, after which new strings are stored inline as well.
+ * {@link #render(StringBuilder, String, Set, int)} later turns the records into ECS NDJSON,
+ * with the same fields as {@link EcsJsonSerializer}, and frees their space.
+ * </p>
+ * <p>
+ * As the positions of the writer and the renderer are stored in the file,
+ * events which have not been rendered before the application stopped or crashed can be rendered after the fact by re-opening the journal,
+ * for example with {@link #main(String[])}.
+ * </p>
+ * <p>
+ * If the renderer doesn't keep up and the journal is full, events are dropped rather than blocking the logging thread,
+ * see {@link #getDroppedEvents()}.
+ * </p>
+ * <p>
+ * Writing is thread safe. Rendering must only be done by one thread at a time.
+ * </p>
+ */
+public final class EventJournal implements Closeable {
+
+    static final int MAX_DICTIONARY_SIZE = 16384;
+    private static final int MAGIC = 0x45435331;
+    private static final int HEADER_SIZE = 64;
+    private static final int CAPACITY_OFFSET = 4;
+    private static final int READ_POSITION_OFFSET = 8;
+    private static final int WRITE_POSITION_OFFSET = 16;
+    private static final byte EVENT = 1;
+    private static final byte PADDING = 2;
+    private static final byte DICTIONARY_ENTRY = 3;
+    /**
+     * The length and the type of a record
+     */
+    private static final int RECORD_HEADER_SIZE = 5;
+    private static final int NO_STACK_TRACE = -1;
+    /**
+     * The id of a string which directly follows as length and UTF-8 bytes
+     */
+    private static final int INLINE = -1;
+    private static final int NO_SPACE = -2;
+
+    private final FileChannel channel;
+    private final MappedByteBuffer mapped;
+    private final ByteBuffer writeBuffer;
+    private final ByteBuffer readBuffer;
+    private final int capacity;
+    private final Object lock = new Object();
+    private volatile long writePosition;
+    private volatile long readPosition;
+    private volatile long droppedEvents;
+    // guarded by lock
+    private final Map<String, Integer> ids = new HashMap<String, Integer>();
+    private long reservedPosition;
+    private int[] labelKeyIds = new int[8];
+    // only accessed by the renderer
+    private String[] strings = new String[64];
+    private final DataOutputStream dictionaryOut;
+    private boolean dictionaryChanged;
+    private final StringBuilder message = new StringBuilder();
+    private final StringBuilder stackTrace = new StringBuilder();
+    private final StringBuilder scratch = new StringBuilder();
+
+    /**
+     * Opens the journal, or creates it with the given capacity if the file does not contain a journal yet.
+     * The capacity and the events which have not been rendered yet of an existing journal are retained.
+     *
+     * @param capacity the size of the ring buffer in bytes
+     */
+    public EventJournal(File file, int capacity) throws IOException {
+        final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        this.channel = randomAccessFile.getChannel();
+        try {
+            final boolean existing = isJournal(randomAccessFile);
+            if (existing) {
+                capacity = randomAccessFile.readInt();
+            } else if (capacity <= RECORD_HEADER_SIZE) {
+                throw new IllegalArgumentException(file + " is not a journal");
+            }
+            this.capacity = capacity;
+            this.mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long) capacity);
+            if (existing) {
+                readPosition = mapped.getLong(READ_POSITION_OFFSET);
+                writePosition = mapped.getLong(WRITE_POSITION_OFFSET);
+            } else {
+                mapped.putInt(0, MAGIC);
+                mapped.putInt(CAPACITY_OFFSET, capacity);
+                mapped.putLong(READ_POSITION_OFFSET, 0);
+                mapped.putLong(WRITE_POSITION_OFFSET, 0);
+            }
+            reservedPosition = writePosition;
+            ((Buffer) mapped).position(HEADER_SIZE);
+            // the cast avoids binding to the covariant MappedByteBuffer.slice() of Java 13+
+            final ByteBuffer ring = ((ByteBuffer) mapped).slice();
+            this.writeBuffer = ring.duplicate();
+            this.readBuffer = ring.duplicate();
+            final File dictionaryFile = getDictionaryFile(file);
+            if (existing) {
+                loadDictionary(dictionaryFile);
+                loadPendingDictionaryEntries();
+            }
+            // rewrites the loaded entries, in case the last one was incomplete
+            this.dictionaryOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(dictionaryFile, false)));
+            for (int id = 0; id < strings.length; id++) {
+                if (strings[id] != null) {
+                    appendToDictionaryFile(id, strings[id]);
+                }
+            }
+            dictionaryOut.flush();
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        } catch (RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private static boolean isJournal(RandomAccessFile file) throws IOException {
+        if (file.length() < HEADER_SIZE) {
+            return false;
+        }
+        file.seek(0);
+        return file.readInt() == MAGIC;
+    }
+
+    public static File getDictionaryFile(File journalFile) {
+        return new File(journalFile.getPath() + ".dict");
+    }
+
+    private void loadDictionary(File dictionaryFile) throws IOException {
+        if (!dictionaryFile.exists()) {
+            return;
+        }
+        final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(dictionaryFile)));
+        try {
+            while (true) {
+                final int id = in.readInt();
+                final byte[] bytes = new byte[in.readInt()];
+                in.readFully(bytes);
+                final String string = new String(bytes, "UTF-8");
+                addDictionaryEntry(id, string);
+                ids.put(string, id);
+            }
+        } catch (EOFException endOfFile) {
+            // an incomplete entry at the end is dropped
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * The entries in the ring which have not been rendered yet are not in the dictionary file,
+     * but the writer has to know them, so that it continues with the next free id.
+     * The renderer adds them to its dictionary when it reaches them.
+     */
+    private void loadPendingDictionaryEntries() {
+        for (long position = readPosition; position < writePosition; ) {
+            final int index = (int) (position % capacity);
+            if (capacity - index < RECORD_HEADER_SIZE) {
+                position += capacity - index;
+                continue;
+            }
+            if (readBuffer.get(index + 4) == DICTIONARY_ENTRY) {
+                ((Buffer) readBuffer).position(index + RECORD_HEADER_SIZE);
+                final int id = readBuffer.getInt();
+                getString(scratch);
+                ids.put(scratch.toString(), id);
+            }
+            position += readBuffer.getInt(index);
+        }
+    }
+
+    /**
+     * Copies the event into the journal.
+     *
+     * @param stackTrace the printed stack trace, or {@code null}
+     * @param labels     the labels, such as the MDC, whose values are rendered with {@link String#valueOf(Object)}, or {@code null}.
+     *                   The map must not be modified concurrently.
+     * @return {@code false} if the event was dropped because the journal is full
+     */
+    public boolean write(long timeMillis, String level, String loggerName, String threadName, CharSequence message,
+                         CharSequence stackTrace, Map<String, ?> labels) {
+        final int messageLength = Utf8Encoder.encodedLength(message);
+        final int stackTraceLength = stackTrace != null ? Utf8Encoder.encodedLength(stackTrace) : 0;
+        if (threadName == null) {
+            threadName = "";
+        }
+        final int threadNameLength = Utf8Encoder.encodedLength(threadName);
+        final int labelCount = labels != null ? labels.size() : 0;
+        // type, timestamp, thread, message, stack trace, label count
+        int length = RECORD_HEADER_SIZE + 8 + 4 + threadNameLength + 4 + messageLength + 4 + stackTraceLength + 4;
+        if (labelCount > 0) {
+            for (Map.Entry<String, ?> label : labels.entrySet()) {
+                length += 4 + Utf8Encoder.encodedLength(toCharSequence(label.getValue()));
+            }
+        }
+        synchronized (lock) {
+            final int levelId = getId(level);
+            final int loggerId = getId(loggerName);
+            if (levelId == NO_SPACE || loggerId == NO_SPACE) {
+                return drop();
+            }
+            length += sizeOf(levelId, level) + sizeOf(loggerId, loggerName);
+            if (labelCount > 0) {
+                if (labelKeyIds.length < labelCount) {
+                    labelKeyIds = new int[Math.max(labelCount, labelKeyIds.length * 2)];
+                }
+                int i = 0;
+                for (Map.Entry<String, ?> label : labels.entrySet()) {
+                    final int keyId = getId(label.getKey());
+                    if (keyId == NO_SPACE) {
+                        return drop();
+                    }
+                    labelKeyIds[i++] = keyId;
+                    length += sizeOf(keyId, label.getKey());
+                }
+            }
+            if (reserve(length) < 0) {
+                return drop();
+            }
+            writeBuffer.putInt(length);
+            writeBuffer.put(EVENT);
+            writeBuffer.putLong(timeMillis);
+            putDictionaryString(levelId, level);
+            putDictionaryString(loggerId, loggerName);
+            putString(threadName, threadNameLength);
+            putString(message, messageLength);
+            if (stackTrace != null) {
+                putString(stackTrace, stackTraceLength);
+            } else {
+                writeBuffer.putInt(NO_STACK_TRACE);
+            }
+            writeBuffer.putInt(labelCount);
+            if (labelCount > 0) {
+                int i = 0;
+                for (Map.Entry<String, ?> label : labels.entrySet()) {
+                    putDictionaryString(labelKeyIds[i++], label.getKey());
+                    final CharSequence value = toCharSequence(label.getValue());
+                    putString(value, Utf8Encoder.encodedLength(value));
+                }
+            }
+            publish();
+            return true;
+        }
+    }
+
+    /**
+     * Returns the id of the string, writing a new dictionary entry into the ring if it has not been seen before.
+     * Must be called while holding the lock.
+     *
+     * @return the id, {@link #INLINE} if the dictionary is full, or {@link #NO_SPACE} if the journal is full
+     */
+    private int getId(String string) {
+        if (string == null) {
+            string = "";
+        }
+        final Integer existingId = ids.get(string);
+        if (existingId != null) {
+            return existingId;
+        }
+        if (ids.size() >= MAX_DICTIONARY_SIZE) {
+            return INLINE;
+        }
+        final int id = ids.size();
+        final int stringLength = Utf8Encoder.encodedLength(string);
+        final int length = RECORD_HEADER_SIZE + 4 + 4 + stringLength;
+        if (reserve(length) < 0) {
+            return NO_SPACE;
+        }
+        writeBuffer.putInt(length);
+        writeBuffer.put(DICTIONARY_ENTRY);
+        writeBuffer.putInt(id);
+        putString(string, stringLength);
+        ids.put(string, id);
+        return id;
+    }
+
+    private static int sizeOf(int id, String string) {
+        return id == INLINE ? 4 + 4 + Utf8Encoder.encodedLength(string != null ? string : "") : 4;
+    }
+
+    private void putDictionaryString(int id, String string) {
+        writeBuffer.putInt(id);
+        if (id == INLINE) {
+            if (string == null) {
+                string = "";
+            }
+            putString(string, Utf8Encoder.encodedLength(string));
+        }
+    }
+
+    /**
+     * Reserves space for a record of the given length after the records which have been reserved before,
+     * wrapping around if it doesn't fit into the rest of the ring, and positions the write buffer at its start.
+     * Must be called while holding the lock.
+     *
+     * @return the index of the record, or {@code -1} if the journal is full
+     */
+    private int reserve(int length) {
+        final long position = reservedPosition;
+        final int index = (int) (position % capacity);
+        final int padding = index + length > capacity ? capacity - index : 0;
+        if (padding + length > capacity - (position - readPosition)) {
+            return -1;
+        }
+        if (padding >= RECORD_HEADER_SIZE) {
+            writeBuffer.putInt(index, padding);
+            writeBuffer.put(index + 4, PADDING);
+        }
+        final int start = padding > 0 ? 0 : index;
+        ((Buffer) writeBuffer).position(start);
+        reservedPosition = position + padding + length;
+        return start;
+    }
+
+    /**
+     * Dictionary entries which have been written for a dropped event are still published, as the ids are taken.
+     */
+    private boolean drop() {
+        droppedEvents++;
+        publish();
+        return false;
+    }
+
+    private void publish() {
+        final long newPosition = reservedPosition;
+        if (newPosition != writePosition) {
+            mapped.putLong(WRITE_POSITION_OFFSET, newPosition);
+            // publishes the records to the renderer
+            writePosition = newPosition;
+        }
+    }
+
+    private static CharSequence toCharSequence(Object value) {
+        return value instanceof CharSequence ? (CharSequence) value : String.valueOf(value);
+    }
+
+    private void putString(CharSequence value, int encodedLength) {
+        writeBuffer.putInt(encodedLength);
+        Utf8Encoder.encode(value, 0, value.length(), writeBuffer);
+    }
+
+    /**
+     * Renders the events which have been written since the last call as ECS NDJSON and frees their space.
+     *
+     * @param topLevelLabels the labels which are not prefixed with {@code labels.}
+     * @return the number of rendered events
+     */
+    public int render(StringBuilder builder, String serviceName, Set<String> topLevelLabels, int maxEvents) {
+        long position = readPosition;
+        final long end = writePosition;
+        int events = 0;
+        while (position < end && events < maxEvents) {
+            final int index = (int) (position % capacity);
+            if (capacity - index < RECORD_HEADER_SIZE) {
+                // implicit padding
+                position += capacity - index;
+                continue;
+            }
+            final int length = readBuffer.getInt(index);
+            final byte type = readBuffer.get(index + 4);
+            if (type == EVENT) {
+                renderEvent(index + RECORD_HEADER_SIZE, builder, serviceName, topLevelLabels);
+                events++;
+            } else if (type == DICTIONARY_ENTRY) {
+                readDictionaryEntry(index + RECORD_HEADER_SIZE);
+            }
+            position += length;
+        }
+        // the entries have to be in the file before their records are freed
+        flushDictionary();
+        mapped.putLong(READ_POSITION_OFFSET, position);
+        readPosition = position;
+        return events;
+    }
+
+    private void readDictionaryEntry(int index) {
+        ((Buffer) readBuffer).position(index);
+        final int id = readBuffer.getInt();
+        getString(scratch);
+        final String string = scratch.toString();
+        addDictionaryEntry(id, string);
+        try {
+            appendToDictionaryFile(id, string);
+            dictionaryChanged = true;
+        } catch (IOException ignore) {
+            // the entry can't be recovered after a restart, but the running renderer is not affected
+        }
+    }
+
+    private void addDictionaryEntry(int id, String string) {
+        if (id >= strings.length) {
+            final String[] grown = new String[Math.max(id + 1, strings.length * 2)];
+            System.arraycopy(strings, 0, grown, 0, strings.length);
+            strings = grown;
+        }
+        strings[id] = string;
+    }
+
+    private void appendToDictionaryFile(int id, String string) throws IOException {
+        final byte[] bytes = Utf8Encoder.toByteArray(string);
+        dictionaryOut.writeInt(id);
+        dictionaryOut.writeInt(bytes.length);
+        dictionaryOut.write(bytes);
+    }
+
+    private void flushDictionary() {
+        if (dictionaryChanged) {
+            dictionaryChanged = false;
+            try {
+                dictionaryOut.flush();
+            } catch (IOException ignore) {
+                // see readDictionaryEntry
+            }
+        }
+    }
+
+    private void renderEvent(int index, StringBuilder builder, String serviceName, Set<String> topLevelLabels) {
+        ((Buffer) readBuffer).position(index);
+        final long timeMillis = readBuffer.getLong();
+        final String level = getDictionaryString();
+        final String loggerName = getDictionaryString();
+        getString(scratch);
+        final String threadName = scratch.toString();
+        getString(message);
+        final boolean hasStackTrace = getString(stackTrace);
+        EcsJsonSerializer.serializeObjectStart(builder, timeMillis);
+        EcsJsonSerializer.serializeLogLevel(builder, level);
+        builder.append("\"message\":\"");
+        JsonUtils.quoteAsString(message, builder);
+        if (hasStackTrace) {
+            builder.append("\\n");
+            JsonUtils.quoteAsString(stackTrace, builder);
+        }
+        builder.append("\", ");
+        EcsJsonSerializer.serializeServiceName(builder, serviceName);
+        EcsJsonSerializer.serializeThreadName(builder, threadName);
+        EcsJsonSerializer.serializeLoggerName(builder, loggerName);
+        for (int i = 0, labels = readBuffer.getInt(); i < labels; i++) {
+            final String key = getDictionaryString();
+            getString(scratch);
+            EcsJsonSerializer.serializeLabel(builder, key, scratch, topLevelLabels, null, FieldLimits.NONE);
+        }
+        EcsJsonSerializer.serializeObjectEnd(builder);
+    }
+
+    private String getDictionaryString() {
+        final int id = readBuffer.getInt();
+        if (id == INLINE) {
+            getString(scratch);
+            return scratch.toString();
+        }
+        // the entry is missing if the dictionary file has been lost
+        return id < strings.length && strings[id] != null ? strings[id] : "";
+    }
+
+    /**
+     * Decodes a UTF-8 string at the position of the read buffer.
+     *
+     * @return {@code false} if there is no string
+     */
+    private boolean getString(StringBuilder sb) {
+        sb.setLength(0);
+        final int length = readBuffer.getInt();
+        if (length == NO_STACK_TRACE) {
+            return false;
+        }
+        final int end = readBuffer.position() + length;
+        while (readBuffer.position() < end) {
+            final int b = readBuffer.get();
+            if (b >= 0) {
+                sb.append((char) b);
+            } else if ((b & 0xE0) == 0xC0) {
+                sb.append((char) (((b & 0x1F) << 6) | (readBuffer.get() & 0x3F)));
+            } else if ((b & 0xF0) == 0xE0) {
+                sb.append((char) (((b & 0x0F) << 12) | ((readBuffer.get() & 0x3F) << 6) | (readBuffer.get() & 0x3F)));
+            } else {
+                final int codePoint = ((b & 0x07) << 18) | ((readBuffer.get() & 0x3F) << 12)
+                        | ((readBuffer.get() & 0x3F) << 6) | (readBuffer.get() & 0x3F);
+                sb.append((char) ((codePoint >>> 10) + (Character.MIN_HIGH_SURROGATE - (Character.MIN_SUPPLEMENTARY_CODE_POINT >>> 10))))
+                        .append((char) ((codePoint & 0x3FF) + Character.MIN_LOW_SURROGATE));
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the number of events which have been dropped since the journal has been opened, because it was full
+     */
+    public long getDroppedEvents() {
+        return droppedEvents;
+    }
+
+    /**
+     * @return whether there are events which have not been rendered yet
+     */
+    public boolean hasPendingEvents() {
+        return readPosition < writePosition;
+    }
+
+    int getDictionarySize() {
+        synchronized (lock) {
+            return ids.size();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (lock) {
+            mapped.force();
+            dictionaryOut.close();
+            channel.close();
+        }
+    }
+
+    /**
+     * Renders the pending events of a journal as NDJSON to standard out.
+     * <pre>
+     * java -cp ecs-logging-core.jar co.elastic.logging.EventJournal app.journal [service-name] &gt; app.ndjson
+     * </pre>
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: EventJournal <journal file> [service name]");
+            System.exit(1);
+            return;
+        }
+        final EventJournal journal = new EventJournal(new File(args[0]), 0);
+        try {
+            journal.renderTo(System.out, args.length > 1 ? args[1] : null, new HashSet<String>(EcsJsonSerializer.DEFAULT_TOP_LEVEL_LABELS));
+        } finally {
+            journal.close();
+        }
+    }
+
+    /**
+     * Renders all pending events as UTF-8 encoded NDJSON to the stream.
+     */
+    public void renderTo(OutputStream out, String serviceName, Set<String> topLevelLabels) throws IOException {
+        final StringBuilder builder = new StringBuilder();
+        while (render(builder, serviceName, topLevelLabels, 1024) > 0) {
+            out.write(Utf8Encoder.toByteArray(builder));
+            builder.setLength(0);
+        }
+        out.flush();
+    }
+}
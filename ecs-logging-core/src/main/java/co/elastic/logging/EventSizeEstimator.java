@@ -0,0 +1,64 @@
+/*-
+ * #%L
+ * Java ECS logging
+ * %%
+ * Copyright (C) 2019 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.logging;
+
+/**
+ * A cheap running estimate of a high percentile of event sizes.
+ * <p>
+ * Like the retransmission timeout of TCP, it keeps an exponentially weighted moving average of the sizes
+ * and of their deviation from the average and estimates the high percentile as the average plus four deviations.
+ * Recording a size is a few integer operations without allocations or locks.
+ * Concurrent updates may overwrite each other, which only makes the estimate adapt a little slower.
+ * </p>
+ * <p>
+ * This class is thread safe.
+ * </p>
+ */
+final class EventSizeEstimator {
+
+    private volatile int average;
+    private volatile int deviation;
+
+    void record(int size) {
+        final int currentAverage = average;
+        if (currentAverage == 0) {
+            average = size;
+            deviation = size / 2;
+        } else {
+            final int error = size - currentAverage;
+            // gains of 1/8 and 1/4, as used for TCP's round trip time
+            average = currentAverage + (error >> 3);
+            deviation = deviation + ((Math.abs(error) - deviation) >> 2);
+        }
+    }
+
+    /**
+     * @return the estimated high percentile of the recorded sizes, or {@code 0} if no size has been recorded yet
+     */
+    int getHighPercentile() {
+        final long estimate = (long) average + 4L * deviation;
+        return (int) Math.min(Integer.MAX_VALUE, estimate);
+    }
+}
@@ -0,0 +1,110 @@
+/*-
+ * #%L
+ * Java ECS logging
+ * %%
+ * Copyright (C) 2019 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.logging;
+
+/**
+ * Caps the size of individual fields and of the whole event.
+ * <p>
+ * The values are truncated while they are escaped, so that oversized values are never copied in full.
+ * Events which have been truncated are marked with {@code "event.truncated":true}.
+ * </p>
+ * <p>
+ * All lengths are measured in {@code char}s.
+ * The maximum event length is a soft limit which only applies to the message, the stack trace and the labels.
+ * </p>
+ */
+public final class FieldLimits {
+
+    public static final int UNLIMITED = Integer.MAX_VALUE;
+    public static final FieldLimits NONE = new FieldLimits(UNLIMITED, UNLIMITED, UNLIMITED, UNLIMITED);
+    /**
+     * Space reserved for the truncation marker and the end of the JSON object
+     */
+    private static final int RESERVED_LENGTH = 32;
+
+    private final int maxMessageLength;
+    private final int maxLabelValueLength;
+    private final int maxStackTraceLength;
+    private final int maxEventLength;
+
+    private FieldLimits(int maxMessageLength, int maxLabelValueLength, int maxStackTraceLength, int maxEventLength) {
+        this.maxMessageLength = maxMessageLength;
+        this.maxLabelValueLength = maxLabelValueLength;
+        this.maxStackTraceLength = maxStackTraceLength;
+        this.maxEventLength = maxEventLength;
+    }
+
+    /**
+     * Creates {@link FieldLimits}, values less than or equal to {@code 0} mean unlimited.
+     */
+    public static FieldLimits create(int maxMessageLength, int maxLabelValueLength, int maxStackTraceLength, int maxEventLength) {
+        if (maxMessageLength <= 0 && maxLabelValueLength <= 0 && maxStackTraceLength <= 0 && maxEventLength <= 0) {
+            return NONE;
+        }
+        return new FieldLimits(orUnlimited(maxMessageLength), orUnlimited(maxLabelValueLength), orUnlimited(maxStackTraceLength), orUnlimited(maxEventLength));
+    }
+
+    private static int orUnlimited(int limit) {
+        return limit <= 0 ? UNLIMITED : limit;
+    }
+
+    public int getMaxMessageLength() {
+        return maxMessageLength;
+    }
+
+    public int getMaxLabelValueLength() {
+        return maxLabelValueLength;
+    }
+
+    public int getMaxStackTraceLength() {
+        return maxStackTraceLength;
+    }
+
+    public int getMaxEventLength() {
+        return maxEventLength;
+    }
+
+    /**
+     * The length of the builder at which the serialization of variable-sized fields stops.
+     */
+    public int getMaxBuilderLength() {
+        if (maxEventLength == UNLIMITED) {
+            return UNLIMITED;
+        }
+        return Math.max(0, maxEventLength - RESERVED_LENGTH);
+    }
+
+    /**
+     * Returns limits whose maximum event length accounts for the characters which have already been flushed.
+     *
+     * @see ChunkedWriter
+     */
+    FieldLimits withFlushedLength(int flushedLength) {
+        if (maxEventLength == UNLIMITED || flushedLength == 0) {
+            return this;
+        }
+        return new FieldLimits(maxMessageLength, maxLabelValueLength, maxStackTraceLength, Math.max(1, maxEventLength - flushedLength));
+    }
+}
@@ -0,0 +1,58 @@
+/*-
+ * #%L
+ * Java ECS logging
+ * %%
+ * Copyright (C) 2019 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.logging;
+
+/**
+ * The loop of {@link JsonUtils#quoteAsString(CharSequence, int, int, StringBuilder, int)},
+ * which has a Java 9+ variant in {@code src/main/java9}.
+ */
+final class JsonEscaper {
+
+    private JsonEscaper() {
+    }
+
+    static int quoteAsString(CharSequence content, int start, int end, StringBuilder sb, int maxBuilderLength) {
+        int escaped = 0;
+        int i = start;
+        for (; i < end; ++i) {
+            char c = content.charAt(i);
+            if (sb.length() + 1 >= maxBuilderLength
+                    && (sb.length() >= maxBuilderLength || Character.isHighSurrogate(c))) {
+                // don't split surrogate pairs
+                break;
+            }
+            if (!JsonUtils.needsEscaping(c)) {
+                sb.append(c);
+                continue;
+            }
+            ++escaped;
+            JsonUtils.appendEscaped(c, sb);
+        }
+        if (EcsMetrics.ENABLED && escaped != 0) {
+            EcsMetrics.onEscapedChars(escaped);
+        }
+        return i;
+    }
+}
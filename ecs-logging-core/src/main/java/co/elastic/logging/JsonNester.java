@@ -0,0 +1,414 @@
+/*-
+ * #%L
+ * Java ECS logging
+ * %%
+ * Copyright (C) 2019 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.logging;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Rewrites a serialized event with flat, dotted keys, such as {@code {"log.level":"INFO","log.logger":"foo"}},
+ * into nested objects, such as {@code {"log":{"level":"INFO","logger":"foo"}}}.
+ * This saves Elasticsearch from expanding the dots of each document at ingest time.
+ * <p>
+ * Computing how the keys are grouped into objects requires building a tree of the keys.
+ * As most events of an application share one of a few key sequences, this plan is cached per distinct key sequence.
+ * Checking whether a cached plan applies only compares the keys of the event with the keys of the plan,
+ * so that the cost per event is linear in its length.
+ * </p>
+ * <p>
+ * A group is written at the position of its first member, so that {@code @timestamp} stays the first field.
+ * If a key is both a value and the prefix of other keys, such as {@code foo} and {@code foo.bar},
+ * the longer keys are written as flat keys, regardless of the order of the keys,
+ * so that an object never has two members with the same name.
+ * Events which are not a JSON object are left untouched.
+ * </p>
+ * <p>
+ * This class is thread safe.
+ * </p>
+ */
+public final class JsonNester {
+
+    private static final int CACHE_SIZE = 256;
+    private static final int STRIPES = StringBuilderPool.stripes();
+    private static final int OPEN = -1;
+    private static final int CLOSE = -2;
+
+    private final AtomicReferenceArray<Plan> plans = new AtomicReferenceArray<Plan>(CACHE_SIZE);
+    /**
+     * Reusable arrays for the offsets of the members of an event
+     */
+    private final AtomicReferenceArray<int[]> offsetsPool = new AtomicReferenceArray<int[]>(STRIPES);
+
+    /**
+     * Rewrites the JSON object that starts at {@code start} and extends to the end of the builder, except for trailing whitespace.
+     *
+     * @param builder the builder containing the event
+     * @param start   the index of the opening brace of the event
+     * @param scratch a builder that may be overwritten
+     */
+    public void nest(StringBuilder builder, int start, StringBuilder scratch) {
+        final int stripe = (int) Thread.currentThread().getId() & (STRIPES - 1);
+        int[] offsets = offsetsPool.getAndSet(stripe, null);
+        if (offsets == null) {
+            offsets = new int[64];
+        }
+        try {
+            offsets = parse(builder, start, offsets);
+            if (offsets == null) {
+                return;
+            }
+            final int memberCount = offsets[0];
+            final int hash = offsets[1];
+            final int cacheIndex = hash & (CACHE_SIZE - 1);
+            Plan plan = plans.get(cacheIndex);
+            if (plan == null || !plan.matches(builder, offsets, memberCount, hash)) {
+                plan = Plan.create(builder, offsets, memberCount, hash);
+                plans.set(cacheIndex, plan);
+            }
+            render(builder, start, offsets, plan, scratch);
+        } finally {
+            if (offsets != null) {
+                offsetsPool.set(stripe, offsets);
+            }
+        }
+    }
+
+    /**
+     * Records the offsets of the members of the object.
+     * {@code offsets[0]} is the number of members, {@code offsets[1]} a hash of the keys, {@code offsets[2]} the end of the object,
+     * followed by the start and end of each key and value (excluding the quotes of the key).
+     *
+     * @return the offsets, which might be a bigger array than the one passed in, or {@code null} if the JSON is malformed
+     */
+    static int[] parse(CharSequence json, int start, int[] offsets) {
+        final int length = json.length();
+        int i = skipWhitespace(json, start, length);
+        if (i >= length || json.charAt(i) != '{') {
+            return null;
+        }
+        int memberCount = 0;
+        int hash = 1;
+        i = skipWhitespace(json, i + 1, length);
+        if (i < length && json.charAt(i) == '}') {
+            offsets[0] = 0;
+            offsets[1] = hash;
+            offsets[2] = i;
+            return offsets;
+        }
+        while (i < length) {
+            if (json.charAt(i) != '"') {
+                return null;
+            }
+            final int keyStart = i + 1;
+            final int keyEnd = skipString(json, i, length) - 1;
+            if (keyEnd < keyStart) {
+                return null;
+            }
+            for (int k = keyStart; k < keyEnd; k++) {
+                hash = 31 * hash + json.charAt(k);
+            }
+            hash = 31 * hash + ':';
+            i = skipWhitespace(json, keyEnd + 1, length);
+            if (i >= length || json.charAt(i) != ':') {
+                return null;
+            }
+            final int valueStart = skipWhitespace(json, i + 1, length);
+            final int valueEnd = skipValue(json, valueStart, length);
+            if (valueEnd < 0) {
+                return null;
+            }
+            final int base = 3 + memberCount * 4;
+            if (base + 4 > offsets.length) {
+                final int[] grown = new int[offsets.length * 2];
+                System.arraycopy(offsets, 0, grown, 0, offsets.length);
+                offsets = grown;
+            }
+            offsets[base] = keyStart;
+            offsets[base + 1] = keyEnd;
+            offsets[base + 2] = valueStart;
+            offsets[base + 3] = valueEnd;
+            memberCount++;
+            i = skipWhitespace(json, valueEnd, length);
+            if (i >= length) {
+                return null;
+            }
+            if (json.charAt(i) == '}') {
+                offsets[0] = memberCount;
+                offsets[1] = hash;
+                offsets[2] = i;
+                return offsets;
+            } else if (json.charAt(i) != ',') {
+                return null;
+            }
+            i = skipWhitespace(json, i + 1, length);
+        }
+        return null;
+    }
+
+    private static int skipWhitespace(CharSequence json, int i, int length) {
+        while (i < length && json.charAt(i) <= ' ') {
+            i++;
+        }
+        return i;
+    }
+
+    /**
+     * @return the index after the closing quote of the string starting at {@code i}, or {@code -1} if it is not terminated
+     */
+    private static int skipString(CharSequence json, int i, int length) {
+        for (i = i + 1; i < length; i++) {
+            final char c = json.charAt(i);
+            if (c == '\\') {
+                i++;
+            } else if (c == '"') {
+                return i + 1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return the index after the value starting at {@code i}, or {@code -1} if it is malformed
+     */
+    private static int skipValue(CharSequence json, int i, int length) {
+        if (i >= length) {
+            return -1;
+        }
+        final char first = json.charAt(i);
+        if (first == '"') {
+            return skipString(json, i, length);
+        } else if (first == '{' || first == '[') {
+            int depth = 0;
+            while (i < length) {
+                final char c = json.charAt(i);
+                if (c == '"') {
+                    i = skipString(json, i, length);
+                    if (i < 0) {
+                        return -1;
+                    }
+                    continue;
+                } else if (c == '{' || c == '[') {
+                    depth++;
+                } else if (c == '}' || c == ']') {
+                    if (--depth == 0) {
+                        return i + 1;
+                    }
+                }
+                i++;
+            }
+            return -1;
+        } else {
+            while (i < length) {
+                final char c = json.charAt(i);
+                if (c == ',' || c == '}' || c <= ' ') {
+                    return i;
+                }
+                i++;
+            }
+            return -1;
+        }
+    }
+
+    private static void render(StringBuilder builder, int start, int[] offsets, Plan plan, StringBuilder scratch) {
+        scratch.setLength(0);
+        scratch.append('{');
+        for (int i = 0; i < plan.ops.length; i++) {
+            final int op = plan.ops[i];
+            if (op == CLOSE) {
+                closeObject(scratch);
+                scratch.append(',');
+            } else {
+                scratch.append('"').append(plan.names[i]).append("\":");
+                if (op == OPEN) {
+                    scratch.append('{');
+                } else {
+                    final int base = 3 + op * 4;
+                    scratch.append(builder, offsets[base + 2], offsets[base + 3]).append(',');
+                }
+            }
+        }
+        closeObject(scratch);
+        // keeps what follows the object, usually a line break
+        scratch.append(builder, offsets[2] + 1, builder.length());
+        builder.setLength(start);
+        builder.append(scratch);
+    }
+
+    private static void closeObject(StringBuilder builder) {
+        if (builder.charAt(builder.length() - 1) == ',') {
+            builder.setLength(builder.length() - 1);
+        }
+        builder.append('}');
+    }
+
+    /**
+     * The grouping of a key sequence, as a list of operations:
+     * opening an object with a name, closing an object or writing the value of a member with a name.
+     */
+    private static final class Plan {
+        private final int hash;
+        private final String[] keys;
+        private final int[] ops;
+        private final String[] names;
+
+        private Plan(int hash, String[] keys, int[] ops, String[] names) {
+            this.hash = hash;
+            this.keys = keys;
+            this.ops = ops;
+            this.names = names;
+        }
+
+        boolean matches(CharSequence json, int[] offsets, int memberCount, int hash) {
+            if (this.hash != hash || keys.length != memberCount) {
+                return false;
+            }
+            for (int i = 0; i < memberCount; i++) {
+                final String key = keys[i];
+                final int keyStart = offsets[3 + i * 4];
+                final int keyEnd = offsets[3 + i * 4 + 1];
+                if (key.length() != keyEnd - keyStart) {
+                    return false;
+                }
+                for (int j = 0; j < key.length(); j++) {
+                    if (key.charAt(j) != json.charAt(keyStart + j)) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+
+        static Plan create(CharSequence json, int[] offsets, int memberCount, int hash) {
+            final String[] keys = new String[memberCount];
+            for (int i = 0; i < memberCount; i++) {
+                keys[i] = json.subSequence(offsets[3 + i * 4], offsets[3 + i * 4 + 1]).toString();
+            }
+            final Set<String> keySet = new HashSet<String>(Arrays.asList(keys));
+            final Node root = new Node(null, -1);
+            for (int i = 0; i < memberCount; i++) {
+                root.add(keys[i], i, keySet);
+            }
+            final List<Integer> ops = new ArrayList<Integer>();
+            final List<String> names = new ArrayList<String>();
+            for (Node child : root.children) {
+                child.flatten(ops, names);
+            }
+            final int[] opsArray = new int[ops.size()];
+            for (int i = 0; i < opsArray.length; i++) {
+                opsArray[i] = ops.get(i);
+            }
+            return new Plan(hash, keys, opsArray, names.toArray(new String[0]));
+        }
+    }
+
+    private static final class Node {
+        private final String name;
+        private final int member;
+        private final List<Node> children = new ArrayList<Node>();
+        private final Map<String, Node> childrenByName = new HashMap<String, Node>();
+
+        private Node(String name, int member) {
+            this.name = name;
+            this.member = member;
+        }
+
+        private boolean isLeaf() {
+            return member >= 0;
+        }
+
+        /**
+         * Adds the key to the tree below the root node.
+         *
+         * @param keys all keys of the event
+         */
+        void add(String key, int member, Set<String> keys) {
+            final String[] segments = key.split("\\.", -1);
+            if (segments[segments.length - 1].length() == 0 || hasKeyAsPrefix(key, segments, keys)) {
+                // conflicts with another key or can't be split, written as is
+                addChild(new Node(key, member));
+                return;
+            }
+            Node parent = this;
+            for (int i = 0; i < segments.length - 1; i++) {
+                final String segment = segments[i];
+                Node group = parent.childrenByName.get(segment);
+                if (group == null) {
+                    group = new Node(segment, -1);
+                    parent.addChild(group);
+                }
+                parent = group;
+            }
+            parent.addChild(new Node(segments[segments.length - 1], member));
+        }
+
+        /**
+         * Whether one of the groups the key would be nested into has an empty name or is a key of its own.
+         * In the latter case, the group would clash with that key, for example {@code foo} with the group of {@code foo.bar}.
+         */
+        private static boolean hasKeyAsPrefix(String key, String[] segments, Set<String> keys) {
+            int prefixEnd = 0;
+            for (int i = 0; i < segments.length - 1; i++) {
+                if (segments[i].length() == 0) {
+                    return true;
+                }
+                prefixEnd += segments[i].length();
+                if (keys.contains(key.substring(0, prefixEnd))) {
+                    return true;
+                }
+                // the dot
+                prefixEnd++;
+            }
+            return false;
+        }
+
+        private void addChild(Node child) {
+            children.add(child);
+            if (!childrenByName.containsKey(child.name)) {
+                childrenByName.put(child.name, child);
+            }
+        }
+
+        void flatten(List<Integer> ops, List<String> names) {
+            if (isLeaf()) {
+                ops.add(member);
+                names.add(name);
+            } else {
+                ops.add(OPEN);
+                names.add(name);
+                for (Node child : children) {
+                    child.flatten(ops, names);
+                }
+                ops.add(CLOSE);
+                names.add(null);
+            }
+        }
+    }
+}
@@ -58,35 +58,71 @@ public final class JsonUtils {
     }
 
     public static void quoteAsString(CharSequence content, StringBuilder sb) {
-        final int[] escCodes = sOutputEscapes128;
-        final int escLen = escCodes.length;
-        for (int i = 0, len = content.length(); i < len; ++i) {
-            char c = content.charAt(i);
-            if (c >= escLen || escCodes[c] == 0) {
-                sb.append(c);
-                continue;
-            }
-            sb.append('\\');
-            int escCode = escCodes[c];
-            if (escCode < 0) { // generic quoting (hex value)
-                // The only negative value sOutputEscapes128 returns
-                // is CharacterEscapes.ESCAPE_STANDARD, which mean
-                // appendQuotes should encode using the Unicode encoding;
-                // not sure if this is the right way to encode for
-                // CharacterEscapes.ESCAPE_CUSTOM or other (future)
-                // CharacterEscapes.ESCAPE_XXX values.
+        quoteAsString(content, 0, content.length(), sb);
+    }
+
+    /**
+     * Escapes the characters of {@code content} from {@code start} (inclusive) to {@code end} (exclusive)
+     * without creating an intermediate {@link CharSequence#subSequence(int, int)}.
+     */
+    public static void quoteAsString(CharSequence content, int start, int end, StringBuilder sb) {
+        quoteAsString(content, start, end, sb, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Escapes the characters of {@code content} from {@code start} (inclusive) to {@code end} (exclusive)
+     * but stops as soon as the length of the {@link StringBuilder} reaches {@code maxBuilderLength}.
+     * This makes sure that oversized values are truncated before they are copied.
+     *
+     * @return the index of the first character which has not been escaped or {@code end} if all characters have been escaped
+     */
+    public static int quoteAsString(CharSequence content, int start, int end, StringBuilder sb, int maxBuilderLength) {
+        return JsonEscaper.quoteAsString(content, start, end, sb, maxBuilderLength);
+    }
+
+    /**
+     * @return whether the character has to be escaped with {@link #appendEscaped(char, StringBuilder)}
+     */
+    static boolean needsEscaping(char c) {
+        return c < sOutputEscapes128.length && sOutputEscapes128[c] != 0;
+    }
+
+    static void appendEscaped(char c, StringBuilder sb) {
+        sb.append('\\');
+        int escCode = sOutputEscapes128[c];
+        if (escCode < 0) { // generic quoting (hex value)
+            // The only negative value sOutputEscapes128 returns
+            // is CharacterEscapes.ESCAPE_STANDARD, which mean
+            // appendQuotes should encode using the Unicode encoding;
+            // not sure if this is the right way to encode for
+            // CharacterEscapes.ESCAPE_CUSTOM or other (future)
+            // CharacterEscapes.ESCAPE_XXX values.
+
+            // We know that it has to fit in just 2 hex chars
+            sb.append('u');
+            sb.append('0');
+            sb.append('0');
+            int value = c;  // widening
+            sb.append(HC[value >> 4]);
+            sb.append(HC[value & 0xF]);
+        } else { // "named", i.e. prepend with slash
+            sb.append((char) escCode);
+        }
+    }
 
-                // We know that it has to fit in just 2 hex chars
-                sb.append('u');
-                sb.append('0');
-                sb.append('0');
-                int value = c;  // widening
-                sb.append(HC[value >> 4]);
-                sb.append(HC[value & 0xF]);
-            } else { // "named", i.e. prepend with slash
-                sb.append((char) escCode);
-            }
+    /**
+     * Returns the index up to which {@code content} can be escaped so that it is no longer than {@code maxLength},
+     * without splitting a surrogate pair.
+     */
+    static int truncationIndex(CharSequence content, int maxLength) {
+        final int length = content.length();
+        if (length <= maxLength) {
+            return length;
+        }
+        if (maxLength > 0 && Character.isHighSurrogate(content.charAt(maxLength - 1))) {
+            return maxLength - 1;
         }
+        return maxLength;
     }
 
 }
@@ -0,0 +1,149 @@
+/*-
+ * #%L
+ * Java ECS logging
+ * %%
+ * Copyright (C) 2019 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.logging;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Caches the serialized labels of recent events, so that an MDC which doesn't change,
+ * as is common within a request, is only serialized once.
+ * <p>
+ * A cached fragment is reused if the labels have the same size and each cached key maps to an equal value.
+ * This is checked with one {@link Map#get(Object)} per label, without iterating over the map or copying it.
+ * The values are usually the very same {@link String} instances, which makes the check even cheaper.
+ * Only labels with {@link String} values are cached, as other values could change without the map changing.
+ * </p>
+ * <p>
+ * As the MDC is bound to a thread, there's one entry per stripe of threads, similar to the {@link StringBuilderPool}.
+ * Truncated fragments are not cached, as the truncation depends on the position of the labels within the event.
+ * </p>
+ * <p>
+ * This class is thread safe.
+ * </p>
+ */
+public final class LabelsCache {
+
+    static final int MAX_FRAGMENT_LENGTH = 4 * 1024;
+    private static final int STRIPES = StringBuilderPool.stripes();
+
+    private final AtomicReferenceArray<Entry> entries = new AtomicReferenceArray<Entry>(STRIPES);
+    private final Set<String> topLevelLabels;
+    private final Redactor redactor;
+    private final FieldLimits limits;
+
+    public LabelsCache(Set<String> topLevelLabels, Redactor redactor, FieldLimits limits) {
+        this.topLevelLabels = topLevelLabels;
+        this.redactor = redactor;
+        this.limits = limits;
+    }
+
+    /**
+     * Serializes the labels, reusing the fragment of a previous event if the labels haven't changed.
+     *
+     * @return {@code true} if a label has been truncated or omitted
+     * @see EcsJsonSerializer#serializeLabels(StringBuilder, Map, Set, Redactor, FieldLimits)
+     */
+    public boolean serializeLabels(StringBuilder builder, Map<String, ?> labels) {
+        if (labels == null || labels.isEmpty()) {
+            return false;
+        }
+        final int index = (int) Thread.currentThread().getId() & (STRIPES - 1);
+        final Entry entry = entries.get(index);
+        if (entry != null && entry.fragment.length() <= limits.getMaxBuilderLength() - builder.length() && entry.matches(labels)) {
+            builder.append(entry.fragment);
+            return false;
+        }
+        final int start = builder.length();
+        final boolean truncated = EcsJsonSerializer.serializeLabels(builder, labels, topLevelLabels, redactor, limits);
+        if (!truncated && builder.length() - start <= MAX_FRAGMENT_LENGTH) {
+            final Entry newEntry = Entry.create(labels, builder, start);
+            if (newEntry != null) {
+                entries.set(index, newEntry);
+            }
+        }
+        return truncated;
+    }
+
+    /**
+     * Serializes only the top-level labels, bypassing the cache.
+     *
+     * @return {@code true} if a label has been truncated or omitted
+     * @see EcsJsonSerializer#serializeTopLevelLabels(StringBuilder, Map, Set, Redactor, FieldLimits)
+     */
+    public boolean serializeTopLevelLabels(StringBuilder builder, Map<String, ?> labels) {
+        if (labels == null) {
+            return false;
+        }
+        return EcsJsonSerializer.serializeTopLevelLabels(builder, labels, topLevelLabels, redactor, limits);
+    }
+
+    private static final class Entry {
+        private final String[] keys;
+        private final String[] values;
+        private final String fragment;
+
+        private Entry(String[] keys, String[] values, String fragment) {
+            this.keys = keys;
+            this.values = values;
+            this.fragment = fragment;
+        }
+
+        /**
+         * @return the entry or {@code null} if not all values are {@link String}s
+         */
+        static Entry create(Map<String, ?> labels, StringBuilder builder, int start) {
+            final String[] keys = new String[labels.size()];
+            final String[] values = new String[keys.length];
+            int i = 0;
+            for (Map.Entry<String, ?> label : labels.entrySet()) {
+                if (i == keys.length || !(label.getValue() instanceof String)) {
+                    return null;
+                }
+                keys[i] = label.getKey();
+                values[i] = (String) label.getValue();
+                i++;
+            }
+            if (i != keys.length) {
+                return null;
+            }
+            return new Entry(keys, values, builder.substring(start));
+        }
+
+        boolean matches(Map<String, ?> labels) {
+            if (labels.size() != keys.length) {
+                return false;
+            }
+            for (int i = 0; i < keys.length; i++) {
+                final Object value = labels.get(keys[i]);
+                if (value != values[i] && !values[i].equals(value)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,75 @@
+/*-
+ * #%L
+ * Java ECS logging
+ * %%
+ * Copyright (C) 2019 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.logging;
+
+import java.lang.reflect.Method;
+
+/**
+ * Reads the ids of the current span through the OpenTelemetry API,
+ * which is accessed reflectively so that it does not have to be on the class path.
+ * OpenTelemetry does not have the notion of a transaction, so only {@code trace.id} and {@code span.id} are serialized.
+ */
+final class OpenTelemetryTraceContextProvider implements TraceContextProvider {
+
+    private static final Object[] NO_ARGS = new Object[0];
+
+    private final Method current;
+    private final Method getSpanContext;
+    private final Method isValid;
+    private final Method getTraceId;
+    private final Method getSpanId;
+
+    OpenTelemetryTraceContextProvider(Class<?> span, Class<?> spanContext) throws NoSuchMethodException {
+        this.current = span.getMethod("current");
+        this.getSpanContext = span.getMethod("getSpanContext");
+        this.isValid = spanContext.getMethod("isValid");
+        this.getTraceId = spanContext.getMethod("getTraceId");
+        this.getSpanId = spanContext.getMethod("getSpanId");
+    }
+
+    static TraceContextProvider create(ClassLoader classLoader) {
+        try {
+            return new OpenTelemetryTraceContextProvider(
+                    Class.forName("io.opentelemetry.api.trace.Span", true, classLoader),
+                    Class.forName("io.opentelemetry.api.trace.SpanContext", true, classLoader));
+        } catch (Exception e) {
+            throw new IllegalArgumentException("The OpenTelemetry API is not available", e);
+        }
+    }
+
+    @Override
+    public void serializeTraceContext(StringBuilder builder) {
+        try {
+            final Object spanContext = getSpanContext.invoke(current.invoke(null, NO_ARGS), NO_ARGS);
+            if (!(Boolean) isValid.invoke(spanContext, NO_ARGS)) {
+                return;
+            }
+            EcsJsonSerializer.serializeTraceContext(builder, (String) getTraceId.invoke(spanContext, NO_ARGS), null,
+                    (String) getSpanId.invoke(spanContext, NO_ARGS));
+        } catch (Exception ignore) {
+            // the API never throws
+        }
+    }
+}
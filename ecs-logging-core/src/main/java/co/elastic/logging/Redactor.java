@@ -0,0 +1,211 @@
+/*-
+ * #%L
+ * Java ECS logging
+ * %%
+ * Copyright (C) 2019 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.logging;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Masks sensitive data, such as credit card numbers, tokens or email addresses, while a value is being escaped.
+ * <p>
+ * All configured patterns are precompiled into a single alternation so that each value is scanned exactly once.
+ * The segments between the matches are escaped directly into the output {@link StringBuilder},
+ * which means that no intermediate {@link String}s are created.
+ * </p>
+ * <p>
+ * In addition to pattern-based masking, the values of labels with a configured key are masked entirely.
+ * </p>
+ * <p>
+ * This class is thread safe.
+ * </p>
+ */
+public final class Redactor {
+
+    public static final String MASK = "[REDACTED]";
+    private static final int STRIPES = StringBuilderPool.stripes();
+
+    private final Pattern pattern;
+    private final Set<String> redactedKeys;
+    /**
+     * Reusable matchers, striped by thread like the {@link StringBuilderPool},
+     * so that their number doesn't depend on the number of threads
+     */
+    private final AtomicReferenceArray<Matcher> matcherPool = new AtomicReferenceArray<Matcher>(STRIPES);
+
+    private Redactor(Pattern pattern, Set<String> redactedKeys) {
+        this.pattern = pattern;
+        this.redactedKeys = redactedKeys;
+    }
+
+    /**
+     * Creates a {@link Redactor}
+     *
+     * @param patterns     the regular expressions whose matches should be masked
+     * @param redactedKeys the keys of the labels whose values should be masked entirely
+     * @return a {@link Redactor} or {@code null} if neither patterns nor keys are configured
+     */
+    public static Redactor create(Collection<String> patterns, Collection<String> redactedKeys) {
+        if (patterns.isEmpty() && redactedKeys.isEmpty()) {
+            return null;
+        }
+        Pattern pattern = null;
+        if (!patterns.isEmpty()) {
+            StringBuilder alternation = new StringBuilder();
+            for (String p : patterns) {
+                if (alternation.length() > 0) {
+                    alternation.append('|');
+                }
+                alternation.append("(?:").append(p).append(')');
+            }
+            pattern = Pattern.compile(alternation.toString());
+        }
+        return new Redactor(pattern, new HashSet<String>(redactedKeys));
+    }
+
+    public boolean isRedactedKey(String key) {
+        return redactedKeys.contains(key);
+    }
+
+    public void quoteAsString(CharSequence content, StringBuilder sb) {
+        quoteAsString(content, sb, FieldLimits.UNLIMITED, FieldLimits.UNLIMITED);
+    }
+
+    /**
+     * Escapes the content while masking all matches of the configured patterns.
+     * At most the first {@code maxLength} characters of the content are considered
+     * and the escaping stops as soon as the builder reaches {@code maxBuilderLength}.
+     *
+     * @return {@code true} if the content has been truncated
+     */
+    public boolean quoteAsString(CharSequence content, StringBuilder sb, int maxLength, int maxBuilderLength) {
+        return quoteAsString(content, 0, JsonUtils.truncationIndex(content, maxLength), sb, maxBuilderLength) < content.length();
+    }
+
+    /**
+     * Escapes the characters of {@code content} from {@code start} to {@code end} while masking all matches of the configured patterns.
+     * The escaping stops as soon as the builder reaches {@code maxBuilderLength} and can be resumed at the returned index.
+     *
+     * @return the index of the first character which has not been escaped or masked,
+     * a value greater than or equal to {@code end} if the whole range has been escaped
+     */
+    public int quoteAsString(CharSequence content, int start, int end, StringBuilder sb, int maxBuilderLength) {
+        if (pattern == null) {
+            return JsonUtils.quoteAsString(content, start, end, sb, maxBuilderLength);
+        }
+        final int stripe = (int) Thread.currentThread().getId() & (STRIPES - 1);
+        Matcher matcher = matcherPool.getAndSet(stripe, null);
+        if (matcher == null) {
+            matcher = pattern.matcher(content);
+        } else {
+            matcher.reset(content);
+        }
+        try {
+            // matches may extend beyond the end so that truncated values don't leak a part of sensitive data
+            matcher.region(start, content.length());
+            int i = start;
+            while (i < end && matcher.find()) {
+                final int matchStart = matcher.start();
+                if (matchStart >= end) {
+                    break;
+                }
+                if (matcher.end() == matchStart) {
+                    // empty matches don't mask anything
+                    continue;
+                }
+                final int stop = JsonUtils.quoteAsString(content, i, matchStart, sb, maxBuilderLength);
+                if (stop < matchStart) {
+                    return stop;
+                }
+                if (sb.length() + MASK.length() > maxBuilderLength) {
+                    return matchStart;
+                }
+                sb.append(MASK);
+                i = matcher.end();
+            }
+            if (i < end) {
+                return JsonUtils.quoteAsString(content, i, end, sb, maxBuilderLength);
+            }
+            return i;
+        } finally {
+            // don't retain a reference to the content
+            matcher.reset("");
+            matcherPool.set(stripe, matcher);
+        }
+    }
+
+    /**
+     * Escapes the content and masks the matches of the configured patterns, if a {@link Redactor} is configured.
+     *
+     * @param content  the content to escape
+     * @param sb       the builder to append the escaped content to
+     * @param redactor the redactor, may be {@code null}
+     */
+    public static void quoteAsString(CharSequence content, StringBuilder sb, Redactor redactor) {
+        if (redactor == null) {
+            JsonUtils.quoteAsString(content, sb);
+        } else {
+            redactor.quoteAsString(content, sb);
+        }
+    }
+
+    /**
+     * Escapes and truncates the content and masks the matches of the configured patterns, if a {@link Redactor} is configured.
+     *
+     * @param content          the content to escape
+     * @param sb               the builder to append the escaped content to
+     * @param redactor         the redactor, may be {@code null}
+     * @param maxLength        the maximum number of characters of the content to consider
+     * @param maxBuilderLength the length of the builder at which the escaping stops
+     * @return {@code true} if the content has been truncated
+     */
+    public static boolean quoteAsString(CharSequence content, StringBuilder sb, Redactor redactor, int maxLength, int maxBuilderLength) {
+        if (redactor == null) {
+            final int end = JsonUtils.truncationIndex(content, maxLength);
+            return JsonUtils.quoteAsString(content, 0, end, sb, maxBuilderLength) < content.length();
+        } else {
+            return redactor.quoteAsString(content, sb, maxLength, maxBuilderLength);
+        }
+    }
+
+    /**
+     * Resumable variant of {@link #quoteAsString(CharSequence, StringBuilder, Redactor, int, int)},
+     * see also {@link #quoteAsString(CharSequence, int, int, StringBuilder, int)}.
+     *
+     * @param redactor the redactor, may be {@code null}
+     * @return the index of the first character which has not been escaped or masked,
+     * a value greater than or equal to {@code end} if the whole range has been escaped
+     */
+    public static int quoteAsString(CharSequence content, int start, int end, StringBuilder sb, Redactor redactor, int maxBuilderLength) {
+        if (redactor == null) {
+            return JsonUtils.quoteAsString(content, start, end, sb, maxBuilderLength);
+        } else {
+            return redactor.quoteAsString(content, start, end, sb, maxBuilderLength);
+        }
+    }
+}
@@ -0,0 +1,67 @@
+/*-
+ * #%L
+ * Java ECS logging
+ * %%
+ * Copyright (C) 2019 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.logging;
+
+/**
+ * Metrics of the static serialization utilities which can't be attributed to a particular layout or encoder.
+ * Registered as {@code co.elastic.logging:type=EcsJsonSerializer}.
+ */
+final class SerializerMetrics implements SerializerMetricsMBean {
+
+    static final SerializerMetrics INSTANCE = new SerializerMetrics();
+
+    static {
+        EcsMetrics.registerMBean(INSTANCE, "co.elastic.logging:type=EcsJsonSerializer");
+    }
+
+    final StripedCounter escapedChars = new StripedCounter();
+    final StripedCounter timestampCacheHits = new StripedCounter();
+    final StripedCounter timestampCacheMisses = new StripedCounter();
+
+    private SerializerMetrics() {
+    }
+
+    @Override
+    public long getEscapedChars() {
+        return escapedChars.get();
+    }
+
+    @Override
+    public long getTimestampCacheHits() {
+        return timestampCacheHits.get();
+    }
+
+    @Override
+    public long getTimestampCacheMisses() {
+        return timestampCacheMisses.get();
+    }
+
+    @Override
+    public double getTimestampCacheHitRatio() {
+        final long hits = getTimestampCacheHits();
+        final long total = hits + getTimestampCacheMisses();
+        return total == 0 ? 0 : (double) hits / total;
+    }
+}
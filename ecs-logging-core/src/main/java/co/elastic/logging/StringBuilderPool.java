@@ -0,0 +1,165 @@
+/*-
+ * #%L
+ * Java ECS logging
+ * %%
+ * Copyright (C) 2019 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.logging;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded pool of {@link StringBuilder}s to serialize events into.
+ * <p>
+ * Unlike a {@link ThreadLocal}, the number of pooled builders does not depend on the number of threads.
+ * This matters if there are many short-lived threads or virtual threads,
+ * where a thread local would retain one builder per thread, and each new thread would have to allocate a new one.
+ * </p>
+ * <p>
+ * The pool is striped into a few slots per stripe.
+ * A thread first looks for a free slot in the stripe selected by its id and then in the neighbouring stripe,
+ * so that threads running concurrently mostly don't touch the same slots.
+ * All operations are lock-free.
+ * If the pool is empty, a new builder is allocated.
+ * If it is full, a released builder is dropped.
+ * </p>
+ * <p>
+ * The pool tracks the sizes of the content of released builders.
+ * New builders are pre-sized to a high percentile of these sizes, which avoids repeatedly growing builders for large events.
+ * Released builders are only trimmed if their capacity is far above that percentile,
+ * so that a single large event doesn't pin an oversized builder.
+ * Both are bounded by the initial and the maximum retained capacity.
+ * </p>
+ * <p>
+ * This class is thread safe.
+ * </p>
+ */
+public final class StringBuilderPool {
+
+    public static final int DEFAULT_INITIAL_CAPACITY = 1024;
+    public static final int DEFAULT_MAX_RETAINED_CAPACITY = 8 * 1024;
+    private static final int SLOTS_PER_STRIPE = 4;
+    private static final int STRIPES = stripes();
+    private static final int PROBES = Math.min(STRIPES, 2) * SLOTS_PER_STRIPE;
+
+    private final AtomicReferenceArray<StringBuilder> slots = new AtomicReferenceArray<StringBuilder>(STRIPES * SLOTS_PER_STRIPE);
+    private final int initialCapacity;
+    private final int maxRetainedCapacity;
+    private final EventSizeEstimator sizeEstimator = new EventSizeEstimator();
+
+    public StringBuilderPool() {
+        this(DEFAULT_INITIAL_CAPACITY, DEFAULT_MAX_RETAINED_CAPACITY);
+    }
+
+    /**
+     * @param initialCapacity     the minimum capacity of newly allocated builders
+     * @param maxRetainedCapacity builders with a larger capacity are always trimmed when they are released
+     */
+    public StringBuilderPool(int initialCapacity, int maxRetainedCapacity) {
+        this.initialCapacity = initialCapacity;
+        this.maxRetainedCapacity = Math.max(initialCapacity, maxRetainedCapacity);
+    }
+
+    static int stripes() {
+        final int processors = Runtime.getRuntime().availableProcessors();
+        int stripes = 1;
+        while (stripes < processors) {
+            stripes <<= 1;
+        }
+        return Math.min(64, stripes);
+    }
+
+    /**
+     * Takes an empty builder from the pool or allocates a new one if the pool is empty.
+     */
+    public StringBuilder acquire() {
+        final int length = slots.length();
+        final int start = startIndex();
+        for (int i = 0; i < PROBES; i++) {
+            final int index = (start + i) % length;
+            final StringBuilder builder = slots.get(index);
+            if (builder != null && slots.compareAndSet(index, builder, null)) {
+                return builder;
+            }
+        }
+        return new StringBuilder(getTargetCapacity());
+    }
+
+    /**
+     * Clears the builder, which contains a serialized event, and returns it to the pool.
+     * The builder must not be used after it has been released.
+     *
+     * @return {@code true} if the builder has been trimmed as its capacity was far above the typical event size
+     */
+    public boolean release(StringBuilder builder) {
+        return release(builder, true);
+    }
+
+    /**
+     * Clears the builder and returns it to the pool.
+     * The builder must not be used after it has been released.
+     *
+     * @param recordSize whether the length of the builder counts as an event size for the capacity of new builders,
+     *                   which is not the case for scratch builders, for example for a formatted message or a stack trace
+     * @return {@code true} if the builder has been trimmed as its capacity was far above the typical event size
+     */
+    public boolean release(StringBuilder builder, boolean recordSize) {
+        // an outlier must not raise the estimate before deciding whether to trim the builder that contains it
+        final int maxCapacity = sizeEstimator.getHighPercentile() == 0
+                ? maxRetainedCapacity
+                : Math.min(maxRetainedCapacity, Math.max(initialCapacity, 2 * getTargetCapacity()));
+        if (recordSize && builder.length() > 0) {
+            sizeEstimator.record(builder.length());
+        }
+        final boolean trim = builder.capacity() > maxCapacity;
+        if (trim) {
+            builder.setLength(Math.min(maxCapacity, getTargetCapacity()));
+            builder.trimToSize();
+        }
+        builder.setLength(0);
+        final int length = slots.length();
+        final int start = startIndex();
+        for (int i = 0; i < PROBES; i++) {
+            final int index = (start + i) % length;
+            if (slots.get(index) == null && slots.compareAndSet(index, null, builder)) {
+                break;
+            }
+        }
+        return trim;
+    }
+
+    public int getInitialCapacity() {
+        return initialCapacity;
+    }
+
+    /**
+     * @return the capacity of newly allocated builders,
+     * a high percentile of the recent event sizes bounded by the initial and the maximum retained capacity
+     */
+    int getTargetCapacity() {
+        return Math.max(initialCapacity, Math.min(maxRetainedCapacity, sizeEstimator.getHighPercentile()));
+    }
+
+    private static int startIndex() {
+        // thread ids are handed out sequentially so that the lower bits are well distributed
+        return ((int) Thread.currentThread().getId() & (STRIPES - 1)) * SLOTS_PER_STRIPE;
+    }
+}
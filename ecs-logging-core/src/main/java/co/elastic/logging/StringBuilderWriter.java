@@ -0,0 +1,97 @@
+/*-
+ * #%L
+ * Java ECS logging
+ * %%
+ * Copyright (C) 2019 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.logging;
+
+import java.io.Writer;
+
+/**
+ * A {@link Writer} which appends to a {@link StringBuilder} and discards everything beyond a maximum number of written characters.
+ * <p>
+ * This is used to print stack traces without materializing more than the configured maximum stack trace length.
+ * </p>
+ */
+public class StringBuilderWriter extends Writer {
+
+    private final StringBuilder builder;
+    private final int maxBuilderLength;
+    private boolean truncated;
+
+    public StringBuilderWriter(StringBuilder builder) {
+        this(builder, FieldLimits.UNLIMITED);
+    }
+
+    public StringBuilderWriter(StringBuilder builder, int maxLength) {
+        this.builder = builder;
+        this.maxBuilderLength = maxLength == FieldLimits.UNLIMITED ? FieldLimits.UNLIMITED : builder.length() + maxLength;
+    }
+
+    @Override
+    public void write(int c) {
+        if (builder.length() < maxBuilderLength) {
+            builder.append((char) c);
+        } else {
+            truncated = true;
+        }
+    }
+
+    @Override
+    public void write(char[] cbuf, int off, int len) {
+        final int remaining = maxBuilderLength - builder.length();
+        if (len > remaining) {
+            truncated = true;
+            len = Math.max(0, remaining);
+        }
+        builder.append(cbuf, off, len);
+    }
+
+    @Override
+    public void write(String str, int off, int len) {
+        final int remaining = maxBuilderLength - builder.length();
+        if (len > remaining) {
+            truncated = true;
+            len = Math.max(0, remaining);
+        }
+        builder.append(str, off, off + len);
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    public void close() {
+    }
+
+    public StringBuilder getBuilder() {
+        return builder;
+    }
+
+    /**
+     * @return {@code true} if characters have been discarded because the maximum length has been exceeded
+     */
+    public boolean isTruncated() {
+        return truncated;
+    }
+}
@@ -0,0 +1,81 @@
+/*-
+ * #%L
+ * Java ECS logging
+ * %%
+ * Copyright (C) 2019 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.logging;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter which spreads its updates over several cache-line padded cells, selected by the id of the current thread.
+ * This avoids contention when many threads increment the same counter concurrently.
+ * Reading the value is comparatively expensive, as it sums up all cells.
+ * <p>
+ * This class is thread safe.
+ * </p>
+ */
+public final class StripedCounter {
+
+    /**
+     * 8 longs take up 64 bytes, which is the cache line size of most CPUs
+     */
+    private static final int PADDING = 8;
+    private static final int STRIPES = stripes();
+    private static final int MASK = STRIPES - 1;
+
+    private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PADDING);
+
+    private static int stripes() {
+        final int target = Math.min(64, Runtime.getRuntime().availableProcessors() * 2);
+        int stripes = 1;
+        while (stripes < target) {
+            stripes <<= 1;
+        }
+        return stripes;
+    }
+
+    /**
+     * @return the value of the cell used by the current thread, which is <em>not</em> the total value of this counter
+     * but may be used to make cheap sampling decisions
+     */
+    public long increment() {
+        return cells.incrementAndGet(index());
+    }
+
+    public void add(long delta) {
+        cells.addAndGet(index(), delta);
+    }
+
+    public long get() {
+        long sum = 0;
+        for (int i = 0; i < STRIPES; i++) {
+            sum += cells.get(i * PADDING);
+        }
+        return sum;
+    }
+
+    private static int index() {
+        // thread ids are handed out sequentially so that the lower bits are well distributed
+        return ((int) Thread.currentThread().getId() & MASK) * PADDING;
+    }
+}
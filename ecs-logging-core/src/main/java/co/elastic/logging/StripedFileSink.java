@@ -0,0 +1,247 @@
+/*-
+ * #%L
+ * Java ECS logging
+ * %%
+ * Copyright (C) 2019 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.logging;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Writes events into one file per stripe of threads, so that threads logging concurrently don't contend on a single stream.
+ * <p>
+ * The stripe is chosen by the id of the writing thread.
+ * Each stripe has its own buffer and its own lock, which is uncontended as long as there are at least as many stripes as logging threads.
+ * The file of a stripe is named after the base file, with the number of the stripe before the extension,
+ * for example {@code app-0.json}, {@code app-1.json} for {@code app.json}, so that Filebeat can ingest them with a single glob.
+ * </p>
+ * <p>
+ * Events are only ordered by time within a file.
+ * {@link #merge(List, OutputStream)} merges the files into a single stream ordered by {@code @timestamp}.
+ * </p>
+ */
+public final class StripedFileSink implements Closeable, Flushable {
+
+    private final Stripe[] stripes;
+
+    /**
+     * Opens the stripe files for appending.
+     *
+     * @param stripes    the number of files, for example the number of available processors
+     * @param bufferSize the size of the buffer of each stripe in bytes
+     */
+    public StripedFileSink(File baseFile, int stripes, int bufferSize) throws IOException {
+        if (stripes <= 0) {
+            throw new IllegalArgumentException("The number of stripes has to be positive");
+        }
+        this.stripes = new Stripe[stripes];
+        try {
+            for (int i = 0; i < stripes; i++) {
+                this.stripes[i] = new Stripe(new BufferedOutputStream(new FileOutputStream(getStripeFile(baseFile, i), true), bufferSize));
+            }
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns the file of a stripe, which is named like the base file with {@code -<stripe>} before the extension.
+     */
+    public static File getStripeFile(File baseFile, int stripe) {
+        final String name = baseFile.getName();
+        final int extension = name.lastIndexOf('.');
+        final String stripeName = extension > 0
+                ? name.substring(0, extension) + '-' + stripe + name.substring(extension)
+                : name + '-' + stripe;
+        return new File(baseFile.getParentFile(), stripeName);
+    }
+
+    /**
+     * Returns the existing stripe files of a base file, regardless of the number of stripes they have been written with.
+     */
+    public static List<File> getStripeFiles(File baseFile) {
+        final List<File> files = new ArrayList<File>();
+        for (int i = 0; ; i++) {
+            final File file = getStripeFile(baseFile, i);
+            if (!file.exists()) {
+                return files;
+            }
+            files.add(file);
+        }
+    }
+
+    /**
+     * Appends an encoded event to the stripe of the current thread.
+     */
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+        final Stripe stripe = stripes[(int) (Thread.currentThread().getId() % stripes.length)];
+        synchronized (stripe) {
+            stripe.out.write(bytes, offset, length);
+        }
+    }
+
+    public void write(byte[] bytes) throws IOException {
+        write(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Flushes the buffers of all stripes.
+     */
+    @Override
+    public void flush() throws IOException {
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                stripe.out.flush();
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        IOException exception = null;
+        for (Stripe stripe : stripes) {
+            if (stripe == null) {
+                continue;
+            }
+            synchronized (stripe) {
+                try {
+                    stripe.out.close();
+                } catch (IOException e) {
+                    exception = e;
+                }
+            }
+        }
+        if (exception != null) {
+            throw exception;
+        }
+    }
+
+    /**
+     * Merges NDJSON files, such as the files of a {@link StripedFileSink}, into a single stream ordered by {@code @timestamp}.
+     * Each file is expected to be ordered by time already.
+     * Events with the same timestamp are written in the order of the files.
+     * The events are copied as they are, without being parsed into objects.
+     * <p>
+     * Files which are still being written to may end with an incomplete event, so the sink should be flushed or closed before.
+     * </p>
+     *
+     * @return the number of merged events
+     */
+    public static long merge(List<File> files, OutputStream out) throws IOException {
+        final PriorityQueue<Source> queue = new PriorityQueue<Source>(Math.max(1, files.size()), Source.COMPARATOR);
+        final List<EcsJsonReader> readers = new ArrayList<EcsJsonReader>(files.size());
+        final WritableByteChannel channel = Channels.newChannel(out);
+        final byte[] newLine = {'\n'};
+        long events = 0;
+        try {
+            for (int i = 0; i < files.size(); i++) {
+                final EcsJsonReader reader = EcsJsonReader.open(files.get(i));
+                readers.add(reader);
+                final Source source = new Source(reader, i);
+                if (source.next()) {
+                    queue.add(source);
+                }
+            }
+            Source source;
+            while ((source = queue.poll()) != null) {
+                channel.write(source.reader.getEventBytes());
+                out.write(newLine);
+                events++;
+                if (source.next()) {
+                    queue.add(source);
+                }
+            }
+            out.flush();
+            return events;
+        } finally {
+            for (EcsJsonReader reader : readers) {
+                reader.close();
+            }
+        }
+    }
+
+    /**
+     * Merges the stripe files of a base file by {@code @timestamp} and writes them to standard out.
+     * <pre>
+     * java -cp ecs-logging-core.jar co.elastic.logging.StripedFileSink app.json &gt; app-merged.json
+     * </pre>
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length != 1) {
+            System.err.println("Usage: StripedFileSink <base file>");
+            System.exit(1);
+            return;
+        }
+        merge(getStripeFiles(new File(args[0])), new BufferedOutputStream(System.out));
+    }
+
+    private static final class Stripe {
+        private final OutputStream out;
+
+        private Stripe(OutputStream out) {
+            this.out = out;
+        }
+    }
+
+    private static final class Source {
+
+        static final Comparator<Source> COMPARATOR = new Comparator<Source>() {
+            @Override
+            public int compare(Source a, Source b) {
+                if (a.timestamp != b.timestamp) {
+                    return a.timestamp < b.timestamp ? -1 : 1;
+                }
+                return a.index - b.index;
+            }
+        };
+
+        private final EcsJsonReader reader;
+        private final int index;
+        private long timestamp;
+
+        private Source(EcsJsonReader reader, int index) {
+            this.reader = reader;
+            this.index = index;
+        }
+
+        boolean next() throws IOException {
+            if (!reader.next()) {
+                return false;
+            }
+            timestamp = reader.getTimestamp();
+            return true;
+        }
+    }
+}
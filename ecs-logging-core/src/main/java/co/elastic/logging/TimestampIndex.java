@@ -0,0 +1,209 @@
+/*-
+ * #%L
+ * Java ECS logging
+ * %%
+ * Copyright (C) 2019 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.logging;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A sparse index of the byte offsets of the events in an NDJSON log file by their {@code @timestamp},
+ * which lets an {@link EcsJsonReader} {@link EcsJsonReader#seek(long) seek} to a time window instead of scanning the whole file.
+ * <p>
+ * The index is stored next to the log file, see {@link #getIndexFile(File)}.
+ * It consists of 16 byte entries, each made up of a key and the offset of an event.
+ * The key is the latest timestamp of all events before that offset.
+ * As events of different threads may be written slightly out of order, the key is not necessarily the timestamp of the event at the offset.
+ * But it never decreases, which allows for a binary search,
+ * and it guarantees that no event before the offset is at or after the key.
+ * </p>
+ * <pre>
+ * TimestampIndex index = TimestampIndex.read(TimestampIndex.getIndexFile(logFile));
+ * EcsJsonReader reader = EcsJsonReader.open(logFile);
+ * reader.seek(index.getOffset(from));
+ * while (reader.next()) {
+ *     // stop once the timestamps are well past the end of the window
+ * }
+ * </pre>
+ */
+public final class TimestampIndex {
+
+    static final int ENTRY_SIZE = 16;
+    private static final String SUFFIX = ".idx";
+
+    private final long[] keys;
+    private final long[] offsets;
+
+    private TimestampIndex(long[] keys, long[] offsets) {
+        this.keys = keys;
+        this.offsets = offsets;
+    }
+
+    public static File getIndexFile(File logFile) {
+        return new File(logFile.getPath() + SUFFIX);
+    }
+
+    /**
+     * Reads an index file, ignoring an incomplete entry at the end which may still be being written.
+     * A missing index file yields an empty index.
+     */
+    public static TimestampIndex read(File indexFile) throws IOException {
+        if (!indexFile.exists()) {
+            return new TimestampIndex(new long[0], new long[0]);
+        }
+        final FileInputStream in = new FileInputStream(indexFile);
+        try {
+            final FileChannel channel = in.getChannel();
+            final int entries = (int) Math.min(Integer.MAX_VALUE, channel.size() / ENTRY_SIZE);
+            final ByteBuffer buffer = ByteBuffer.allocate(entries * ENTRY_SIZE);
+            while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+                // read until the buffer is full
+            }
+            ((Buffer) buffer).flip();
+            final long[] keys = new long[buffer.remaining() / ENTRY_SIZE];
+            final long[] offsets = new long[keys.length];
+            for (int i = 0; i < keys.length; i++) {
+                keys[i] = buffer.getLong();
+                offsets[i] = buffer.getLong();
+            }
+            return new TimestampIndex(keys, offsets);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Returns the offset to start reading at, in order not to miss any event at or after the given time.
+     * Events before that time may still follow the offset, at most as many as are written between two entries.
+     */
+    public long getOffset(long fromMillis) {
+        // the last entry whose key is before the time
+        int low = 0;
+        int high = keys.length - 1;
+        int result = -1;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            if (keys[mid] < fromMillis) {
+                result = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return result < 0 ? 0 : offsets[result];
+    }
+
+    public int size() {
+        return keys.length;
+    }
+
+    /**
+     * Appends entries to an index while events are written to the log file.
+     * <p>
+     * An entry is added after a given number of events or once the timestamps have advanced by a given number of milliseconds,
+     * whichever comes first.
+     * As entries are sparse, they are written straight to the file without buffering,
+     * and recording an event which doesn't add an entry only costs a few comparisons.
+     * </p>
+     * <p>
+     * This class is not thread safe, the writer of the log file has to serialize the calls to {@link #onEvent(long, long)}.
+     * </p>
+     */
+    public static final class Writer implements Closeable {
+
+        private final FileChannel channel;
+        private final int maxEvents;
+        private final long maxMillis;
+        private final ByteBuffer entry = ByteBuffer.allocate(ENTRY_SIZE);
+        private long maxTimestamp;
+        private boolean empty = true;
+        private long lastEntryTimestamp;
+        private int eventsSinceLastEntry;
+
+        /**
+         * @param indexFile     the index file, which is appended to
+         * @param logFileLength the current length of the log file.
+         *                      If the index refers to offsets beyond that, the log file has been truncated and the index is started over.
+         * @param maxEvents     the maximum number of events between two entries
+         * @param maxMillis     the maximum number of milliseconds between two entries
+         */
+        public Writer(File indexFile, long logFileLength, int maxEvents, long maxMillis) throws IOException {
+            final TimestampIndex existing = logFileLength > 0 ? read(indexFile) : null;
+            final boolean append = existing != null && existing.size() > 0 && existing.offsets[existing.size() - 1] < logFileLength;
+            this.channel = new FileOutputStream(indexFile, append).getChannel();
+            if (append) {
+                // drop an incomplete entry
+                channel.truncate(existing.size() * (long) ENTRY_SIZE);
+                channel.position(channel.size());
+            }
+            this.maxEvents = Math.max(1, maxEvents);
+            this.maxMillis = Math.max(1, maxMillis);
+            // the timestamps of the events which are already in the log file are unknown,
+            // but they are not later than now
+            this.maxTimestamp = logFileLength > 0 ? System.currentTimeMillis() : Long.MIN_VALUE;
+            if (append) {
+                this.maxTimestamp = Math.max(maxTimestamp, existing.keys[existing.size() - 1]);
+            }
+        }
+
+        /**
+         * Records an event before it is written to the log file.
+         *
+         * @param timestampMillis the {@code @timestamp} of the event
+         * @param offset          the offset in the log file the event is going to be written to
+         */
+        public void onEvent(long timestampMillis, long offset) throws IOException {
+            if (empty || eventsSinceLastEntry >= maxEvents || timestampMillis - lastEntryTimestamp >= maxMillis) {
+                writeEntry(maxTimestamp, offset);
+                empty = false;
+                lastEntryTimestamp = timestampMillis;
+                eventsSinceLastEntry = 0;
+            }
+            eventsSinceLastEntry++;
+            if (timestampMillis > maxTimestamp) {
+                maxTimestamp = timestampMillis;
+            }
+        }
+
+        private void writeEntry(long key, long offset) throws IOException {
+            ((Buffer) entry).clear();
+            entry.putLong(key).putLong(offset);
+            ((Buffer) entry).flip();
+            while (entry.hasRemaining()) {
+                channel.write(entry);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+}
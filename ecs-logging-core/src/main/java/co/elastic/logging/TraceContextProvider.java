@@ -0,0 +1,54 @@
+/*-
+ * #%L
+ * Java ECS logging
+ * %%
+ * Copyright (C) 2019 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.logging;
+
+/**
+ * Supplies the ids of the current trace context straight to the serializer,
+ * so that tracers don't have to put them into the MDC whenever a span starts and remove them when it ends.
+ * <p>
+ * The provider is queried on the thread which serializes the event.
+ * Events which are serialized on a different thread than the one which logged them, such as by asynchronous appenders,
+ * don't contain the trace context of the provider.
+ * Adapters can therefore only support providers if their events carry the identity or the id of the logging thread,
+ * a thread name is not enough, as it doesn't have to be unique.
+ * </p>
+ * <p>
+ * The ids are not de-duplicated with the labels of the MDC,
+ * so tracers should stop putting them into the MDC when a provider is used.
+ * </p>
+ * <p>
+ * Implementations have to be thread safe and should not allocate.
+ * They can be registered as a {@link java.util.ServiceLoader service} or referenced by their class name,
+ * see {@link TraceContextProviders#create(String)}.
+ * </p>
+ */
+public interface TraceContextProvider {
+
+    /**
+     * Serializes the ids of the current trace context, if there is one,
+     * using {@link EcsJsonSerializer#serializeTraceContext(StringBuilder, CharSequence, CharSequence, CharSequence)}.
+     */
+    void serializeTraceContext(StringBuilder builder);
+}
@@ -0,0 +1,113 @@
+/*-
+ * #%L
+ * Java ECS logging
+ * %%
+ * Copyright (C) 2019 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.logging;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.Iterator;
+import java.util.ServiceLoader;
+
+/**
+ * Creates {@link TraceContextProvider}s by name.
+ */
+public final class TraceContextProviders {
+
+    /**
+     * Reads the current transaction and span of the Elastic APM agent through its public API
+     */
+    public static final String ELASTIC_APM = "elastic-apm";
+    /**
+     * Reads the current span of the OpenTelemetry API
+     */
+    public static final String OPENTELEMETRY = "opentelemetry";
+    /**
+     * Uses the first {@link java.util.ServiceLoader service}, or the first of the Elastic APM and OpenTelemetry APIs which is available
+     */
+    public static final String AUTO = "auto";
+
+    private TraceContextProviders() {
+    }
+
+    /**
+     * @param name {@value #ELASTIC_APM}, {@value #OPENTELEMETRY}, {@value #AUTO}
+     *             or the fully qualified name of a {@link TraceContextProvider} with a public no-arg constructor.
+     * @return the provider, or {@code null} if the name is {@code null} or empty, or if {@value #AUTO} didn't find any
+     * @throws IllegalArgumentException if the provider could not be created, for example because the API it relies on is not available
+     */
+    public static TraceContextProvider create(String name) {
+        if (name == null || name.trim().isEmpty()) {
+            return null;
+        }
+        name = name.trim();
+        final ClassLoader classLoader = getClassLoader();
+        if (ELASTIC_APM.equals(name)) {
+            return ElasticApmTraceContextProvider.create(classLoader);
+        } else if (OPENTELEMETRY.equals(name)) {
+            return OpenTelemetryTraceContextProvider.create(classLoader);
+        } else if (AUTO.equals(name)) {
+            final Iterator<TraceContextProvider> services = ServiceLoader.load(TraceContextProvider.class, classLoader).iterator();
+            if (services.hasNext()) {
+                return services.next();
+            }
+            try {
+                return ElasticApmTraceContextProvider.create(classLoader);
+            } catch (IllegalArgumentException e) {
+                // fall through
+            }
+            try {
+                return OpenTelemetryTraceContextProvider.create(classLoader);
+            } catch (IllegalArgumentException e) {
+                return null;
+            }
+        }
+        return newInstance(name, classLoader);
+    }
+
+    private static TraceContextProvider newInstance(String className, ClassLoader classLoader) {
+        try {
+            return Class.forName(className, true, classLoader)
+                    .asSubclass(TraceContextProvider.class)
+                    .getDeclaredConstructor()
+                    .newInstance();
+        } catch (InvocationTargetException e) {
+            // the constructor threw, report its exception rather than the reflective wrapper
+            throw new IllegalArgumentException("Could not create the trace context provider " + className, e.getCause());
+        } catch (ClassNotFoundException e) {
+            throw new IllegalArgumentException("Could not create the trace context provider " + className, e);
+        } catch (NoSuchMethodException e) {
+            throw new IllegalArgumentException("The trace context provider " + className + " has no no-arg constructor", e);
+        } catch (InstantiationException e) {
+            throw new IllegalArgumentException("Could not create the trace context provider " + className, e);
+        } catch (IllegalAccessException e) {
+            throw new IllegalArgumentException("The no-arg constructor of the trace context provider " + className + " is not public", e);
+        } catch (ClassCastException e) {
+            throw new IllegalArgumentException(className + " does not implement " + TraceContextProvider.class.getName(), e);
+        }
+    }
+
+    private static ClassLoader getClassLoader() {
+        final ClassLoader contextClassLoader = Thread.currentThread().getContextClassLoader();
+        return contextClassLoader != null ? contextClassLoader : TraceContextProviders.class.getClassLoader();
+    }
+}
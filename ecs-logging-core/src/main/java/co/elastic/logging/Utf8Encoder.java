@@ -0,0 +1,204 @@
+/*-
+ * #%L
+ * Java ECS logging
+ * %%
+ * Copyright (C) 2019 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.logging;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+
+/**
+ * Encodes characters as UTF-8 directly from a {@link CharSequence},
+ * without creating an intermediate {@link String} or going through a {@link java.nio.charset.CharsetEncoder}.
+ * <p>
+ * Unpaired surrogates are encoded as {@code ?}, just like {@link String#getBytes(java.nio.charset.Charset)} does.
+ * </p>
+ */
+public final class Utf8Encoder {
+
+    private static final byte REPLACEMENT = '?';
+
+    private Utf8Encoder() {
+    }
+
+    public static byte[] toByteArray(CharSequence content) {
+        final byte[] bytes = new byte[encodedLength(content)];
+        encode(content, 0, content.length(), bytes, 0);
+        return bytes;
+    }
+
+    /**
+     * Returns the number of bytes the content takes up when encoded as UTF-8.
+     */
+    public static int encodedLength(CharSequence content) {
+        return encodedLength(content, 0, content.length());
+    }
+
+    /**
+     * Returns the number of bytes the characters of {@code content} from {@code start} to {@code end} take up when encoded as UTF-8.
+     */
+    public static int encodedLength(CharSequence content, int start, int end) {
+        int length = 0;
+        for (int i = start; i < end; i++) {
+            final char c = content.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(content.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else if (isSurrogate(c)) {
+                length++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Encodes the characters of {@code content} from {@code start} to {@code end} into {@code dst}, starting at {@code offset}.
+     * If {@code dst} is too small, the encoding stops before the first character which does not fit.
+     * Surrogate pairs are never split.
+     *
+     * @return the index of the first character which has not been encoded
+     */
+    public static int encode(CharSequence content, int start, int end, byte[] dst, int offset) {
+        return indexOf(encode(content, start, end, dst, offset, dst.length));
+    }
+
+    /**
+     * Encodes the characters of {@code content} from {@code start} to {@code end} into the remaining space of {@code dst}.
+     *
+     * @return the index of the first character which has not been encoded
+     */
+    public static int encode(CharSequence content, int start, int end, ByteBuffer dst) {
+        if (dst.hasArray()) {
+            final int arrayOffset = dst.arrayOffset();
+            final long result = encode(content, start, end, dst.array(), arrayOffset + dst.position(), arrayOffset + dst.limit());
+            // the cast avoids binding to the covariant ByteBuffer.position(int) of Java 9+, which does not exist on Java 6 to 8
+            ((Buffer) dst).position(positionOf(result) - arrayOffset);
+            return indexOf(result);
+        }
+        int i = start;
+        while (i < end) {
+            final char c = content.charAt(i);
+            final int remaining = dst.remaining();
+            if (c < 0x80) {
+                if (remaining < 1) {
+                    break;
+                }
+                dst.put((byte) c);
+            } else if (c < 0x800) {
+                if (remaining < 2) {
+                    break;
+                }
+                dst.put((byte) (0xC0 | (c >> 6)));
+                dst.put((byte) (0x80 | (c & 0x3F)));
+            } else if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(content.charAt(i + 1))) {
+                if (remaining < 4) {
+                    break;
+                }
+                final int codePoint = Character.toCodePoint(c, content.charAt(++i));
+                dst.put((byte) (0xF0 | (codePoint >> 18)));
+                dst.put((byte) (0x80 | ((codePoint >> 12) & 0x3F)));
+                dst.put((byte) (0x80 | ((codePoint >> 6) & 0x3F)));
+                dst.put((byte) (0x80 | (codePoint & 0x3F)));
+            } else if (isSurrogate(c)) {
+                if (remaining < 1) {
+                    break;
+                }
+                dst.put(REPLACEMENT);
+            } else {
+                if (remaining < 3) {
+                    break;
+                }
+                dst.put((byte) (0xE0 | (c >> 12)));
+                dst.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                dst.put((byte) (0x80 | (c & 0x3F)));
+            }
+            i++;
+        }
+        return i;
+    }
+
+    /**
+     * @return the position in {@code dst} in the upper and the index of the first character which has not been encoded
+     * in the lower 32 bits
+     */
+    private static long encode(CharSequence content, int start, int end, byte[] dst, int position, int limit) {
+        int i = start;
+        while (i < end) {
+            final char c = content.charAt(i);
+            final int remaining = limit - position;
+            if (c < 0x80) {
+                if (remaining < 1) {
+                    break;
+                }
+                dst[position++] = (byte) c;
+            } else if (c < 0x800) {
+                if (remaining < 2) {
+                    break;
+                }
+                dst[position++] = (byte) (0xC0 | (c >> 6));
+                dst[position++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(content.charAt(i + 1))) {
+                if (remaining < 4) {
+                    break;
+                }
+                final int codePoint = Character.toCodePoint(c, content.charAt(++i));
+                dst[position++] = (byte) (0xF0 | (codePoint >> 18));
+                dst[position++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                dst[position++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                dst[position++] = (byte) (0x80 | (codePoint & 0x3F));
+            } else if (isSurrogate(c)) {
+                if (remaining < 1) {
+                    break;
+                }
+                dst[position++] = REPLACEMENT;
+            } else {
+                if (remaining < 3) {
+                    break;
+                }
+                dst[position++] = (byte) (0xE0 | (c >> 12));
+                dst[position++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                dst[position++] = (byte) (0x80 | (c & 0x3F));
+            }
+            i++;
+        }
+        return ((long) position << 32) | (i & 0xFFFFFFFFL);
+    }
+
+    private static boolean isSurrogate(char c) {
+        return c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE;
+    }
+
+    private static int positionOf(long result) {
+        return (int) (result >>> 32);
+    }
+
+    private static int indexOf(long result) {
+        return (int) result;
+    }
+}
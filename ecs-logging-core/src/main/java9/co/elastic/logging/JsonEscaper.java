@@ -0,0 +1,74 @@
+/*-
+ * #%L
+ * Java ECS logging
+ * %%
+ * Copyright (C) 2019 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.logging;
+
+import org.codehaus.mojo.animal_sniffer.IgnoreJRERequirement;
+
+/**
+ * The Java 9+ variant of the loop of {@link JsonUtils#quoteAsString(CharSequence, int, int, StringBuilder, int)},
+ * which appends runs of characters which don't need to be escaped in bulk.
+ */
+@IgnoreJRERequirement
+final class JsonEscaper {
+
+    private JsonEscaper() {
+    }
+
+    static int quoteAsString(CharSequence content, int start, int end, StringBuilder sb, int maxBuilderLength) {
+        int escaped = 0;
+        int runStart = start;
+        int i = start;
+        for (; i < end; ++i) {
+            char c = content.charAt(i);
+            final int length = sb.length() + i - runStart;
+            if (length + 1 >= maxBuilderLength
+                    && (length >= maxBuilderLength || Character.isHighSurrogate(c))) {
+                // don't split surrogate pairs
+                break;
+            }
+            if (!JsonUtils.needsEscaping(c)) {
+                continue;
+            }
+            appendRun(content, runStart, i, sb);
+            runStart = i + 1;
+            ++escaped;
+            JsonUtils.appendEscaped(c, sb);
+        }
+        appendRun(content, runStart, i, sb);
+        if (EcsMetrics.ENABLED && escaped != 0) {
+            EcsMetrics.onEscapedChars(escaped);
+        }
+        return i;
+    }
+
+    private static void appendRun(CharSequence content, int start, int end, StringBuilder sb) {
+        if (start == 0 && end == content.length() && content instanceof String) {
+            // copies the backing array in bulk, which is a byte[] for compact Latin1 strings
+            sb.append((String) content);
+        } else if (start < end) {
+            sb.append(content, start, end);
+        }
+    }
+}
@@ -0,0 +1,74 @@
+/*-
+ * #%L
+ * Java ECS logging
+ * %%
+ * Copyright (C) 2019 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.logging;
+
+import org.codehaus.mojo.animal_sniffer.IgnoreJRERequirement;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
+/**
+ * This class serializes an epoch timestamp in milliseconds to an ISO 8601 date time string,
+ * for example {@code 1970-01-01T00:00:00.000Z}
+ * <p>
+ * This is the Java 9+ variant of this class.
+ * The cached date is published with release/acquire semantics via a {@link VarHandle},
+ * which is cheaper than a volatile write and read but still guarantees that readers see a fully constructed date.
+ * The formatting itself is shared with the baseline variant, see {@link CachedDate}.
+ * </p>
+ * <p>
+ * This class is thread safe.
+ * </p>
+ */
+@IgnoreJRERequirement
+class TimestampSerializer {
+
+    private static final VarHandle CACHED_DATE;
+
+    static {
+        try {
+            CACHED_DATE = MethodHandles.lookup().findVarHandle(TimestampSerializer.class, "cachedDate", CachedDate.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    // only accessed via CACHED_DATE
+    private CachedDate cachedDate;
+
+    void serializeEpochTimestampAsIsoDateTime(StringBuilder builder, long epochTimestamp) {
+        CachedDate cachedDateLocal = (CachedDate) CACHED_DATE.getAcquire(this);
+        final boolean cacheHit = cachedDateLocal != null && cachedDateLocal.isDateCached(epochTimestamp);
+        if (!cacheHit) {
+            cachedDateLocal = new CachedDate(epochTimestamp);
+            CACHED_DATE.setRelease(this, cachedDateLocal);
+        }
+        if (EcsMetrics.ENABLED) {
+            EcsMetrics.onTimestampCacheAccess(cacheHit);
+        }
+        cachedDateLocal.serializeIsoDateTime(builder, epochTimestamp);
+    }
+
+}
@@ -37,6 +37,7 @@ import java.io.StringWriter;
 import java.time.Duration;
 import java.time.Instant;
 import java.time.temporal.ChronoUnit;
+import java.util.Collections;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.assertj.core.api.Assertions.within;
@@ -91,6 +92,31 @@ public abstract class AbstractEcsLoggingTest {
         assertThat(getLastLogLine().get("message").textValue()).contains("at co.elastic.logging.AbstractEcsLoggingTest.testLogException");
     }
 
+    @Test
+    void testRedaction() throws Exception {
+        putMdc("password", "secret");
+        putMdc("card", "1234-5678-9012-3456");
+        debug("paid with \"1234-5678-9012-3456\" and 1111-2222-3333-4444");
+        assertThat(getLastLogLine().get("message").textValue()).isEqualTo("paid with \"[REDACTED]\" and [REDACTED]");
+        assertThat(getLastLogLine().get("labels.password").textValue()).isEqualTo("[REDACTED]");
+        assertThat(getLastLogLine().get("labels.card").textValue()).isEqualTo("[REDACTED]");
+    }
+
+    @Test
+    void testNoTruncation() throws Exception {
+        debug("test");
+        assertThat(getLastLogLine().get("event.truncated")).isNull();
+    }
+
+    @Test
+    void testTruncation() throws Exception {
+        putMdc("long", String.join("", Collections.nCopies(200, "x")));
+        debug(String.join("", Collections.nCopies(2000, "y")));
+        assertThat(getLastLogLine().get("message").textValue()).hasSize(1000);
+        assertThat(getLastLogLine().get("labels.long").textValue()).hasSize(100);
+        assertThat(getLastLogLine().get("event.truncated").booleanValue()).isTrue();
+    }
+
     public abstract void putMdc(String key, String value);
 
     public boolean putNdc(String message) {
@@ -0,0 +1,86 @@
+/*-
+ * #%L
+ * Java ECS logging
+ * %%
+ * Copyright (C) 2019 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.logging;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+import java.util.spi.ToolProvider;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Fails if the main classes of a module call one of the methods which Java 9+ overrides with a covariant return type,
+ * such as {@code ByteBuffer.position(int)}.
+ * When compiled against a newer JDK without {@code --release}, such calls are linked to methods which don't exist on Java 6 to 8,
+ * and fail with a {@link NoSuchMethodError} there.
+ * The animal-sniffer check only reports them as info.
+ * Casting the receiver to {@link java.nio.Buffer} or {@link java.nio.ByteBuffer} avoids them.
+ */
+public abstract class AbstractJava6CompatibilityTest {
+
+    private static final Pattern COVARIANT_CALL = Pattern.compile(
+            "Method java/nio/\\w+Buffer\\.(position|limit|flip|clear|mark|reset|rewind):\\(I?\\)Ljava/nio/\\w+Buffer;"
+                    + "|Method java/nio/MappedByteBuffer\\.(slice|duplicate|compact):\\(\\)Ljava/nio/MappedByteBuffer;");
+
+    @Test
+    void testNoCovariantBufferCalls() throws Exception {
+        final List<String> classFiles;
+        // the Java 9+ variants in META-INF/versions are compiled with --release and are allowed to use these methods
+        try (Stream<Path> files = Files.walk(Paths.get("target", "classes"))) {
+            classFiles = files
+                    .filter(file -> file.toString().endsWith(".class") && !file.toString().contains("META-INF"))
+                    .map(Path::toString)
+                    .collect(Collectors.toList());
+        }
+        assertThat(classFiles).isNotEmpty();
+        final List<String> args = new ArrayList<>(List.of("-c", "-p"));
+        args.addAll(classFiles);
+        final StringWriter out = new StringWriter();
+        final int exitCode = ToolProvider.findFirst("javap").orElseThrow()
+                .run(new PrintWriter(out), new PrintWriter(out), args.toArray(new String[0]));
+        assertThat(exitCode).describedAs(out.toString()).isZero();
+
+        final List<String> violations = new ArrayList<>();
+        String source = null;
+        for (String line : out.toString().split("\n")) {
+            if (line.startsWith("Compiled from")) {
+                source = line;
+            } else if (COVARIANT_CALL.matcher(line).find()) {
+                violations.add(source + ": " + line.trim());
+            }
+        }
+        assertThat(violations).isEmpty();
+    }
+}
@@ -0,0 +1,113 @@
+/*-
+ * #%L
+ * Java ECS logging
+ * %%
+ * Copyright (C) 2019 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.logging;
+
+import java.lang.management.ManagementFactory;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * Measures the bytes allocated by the current thread per invocation of an operation,
+ * based on {@link com.sun.management.ThreadMXBean#getThreadAllocatedBytes(long)}.
+ * <p>
+ * The operation is invoked often enough to be JIT-compiled before measuring,
+ * so that the result reflects the steady state, including escape analysis.
+ * The minimum of several measurement rounds is reported, to rule out one-off allocations,
+ * such as growing a pooled buffer or a cache miss when the date changes.
+ * </p>
+ * <p>
+ * Tests using this class are skipped on JVMs which don't support measuring thread allocations.
+ * </p>
+ */
+public final class AllocationMeter {
+
+    private static final int WARMUP_ITERATIONS = 100_000;
+    private static final int ITERATIONS = 1_000;
+    private static final int ROUNDS = 5;
+
+    private AllocationMeter() {
+    }
+
+    /**
+     * Fails if invoking {@code operation} allocates more than {@code budget} bytes on average.
+     *
+     * @param description describes the operation in the failure message
+     * @param budget      the maximum number of bytes allowed to be allocated per invocation
+     * @param operation   the operation to measure, for example serializing an event
+     */
+    public static void assertAllocatedBytesPerOperation(String description, long budget, Runnable operation) {
+        final long allocatedBytes = measureAllocatedBytesPerOperation(operation);
+        assertThat(allocatedBytes)
+                .describedAs("bytes allocated per invocation of '%s'", description)
+                .isLessThanOrEqualTo(budget);
+    }
+
+    /**
+     * Creates an exception with a fixed stack trace so that the allocations of printing it
+     * don't depend on the depth of the stack the test is executed in.
+     */
+    public static Exception createException() {
+        Exception exception = new RuntimeException("test");
+        exception.setStackTrace(new StackTraceElement[]{
+                new StackTraceElement("co.elastic.logging.Foo", "bar", "Foo.java", 42),
+                new StackTraceElement("co.elastic.logging.Foo", "baz", "Foo.java", 21),
+                new StackTraceElement("co.elastic.logging.Main", "main", "Main.java", 7),
+        });
+        return exception;
+    }
+
+    /**
+     * @return the number of bytes allocated by the current thread per invocation of the operation
+     */
+    public static long measureAllocatedBytesPerOperation(Runnable operation) {
+        final com.sun.management.ThreadMXBean threadMXBean = getThreadMXBean();
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            operation.run();
+        }
+        final long threadId = Thread.currentThread().getId();
+        long min = Long.MAX_VALUE;
+        for (int round = 0; round < ROUNDS; round++) {
+            final long before = threadMXBean.getThreadAllocatedBytes(threadId);
+            for (int i = 0; i < ITERATIONS; i++) {
+                operation.run();
+            }
+            final long after = threadMXBean.getThreadAllocatedBytes(threadId);
+            min = Math.min(min, (after - before) / ITERATIONS);
+        }
+        return min;
+    }
+
+    private static com.sun.management.ThreadMXBean getThreadMXBean() {
+        final java.lang.management.ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        assumeTrue(threadMXBean instanceof com.sun.management.ThreadMXBean, "measuring thread allocations is not supported");
+        final com.sun.management.ThreadMXBean sunThreadMXBean = (com.sun.management.ThreadMXBean) threadMXBean;
+        assumeTrue(sunThreadMXBean.isThreadAllocatedMemorySupported(), "measuring thread allocations is not supported");
+        if (!sunThreadMXBean.isThreadAllocatedMemoryEnabled()) {
+            sunThreadMXBean.setThreadAllocatedMemoryEnabled(true);
+        }
+        return sunThreadMXBean;
+    }
+}
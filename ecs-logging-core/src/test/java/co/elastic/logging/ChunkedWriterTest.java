@@ -0,0 +1,73 @@
+/*-
+ * #%L
+ * Java ECS logging
+ * %%
+ * Copyright (C) 2019 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.logging;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class ChunkedWriterTest {
+
+    private final List<String> chunks = new ArrayList<>();
+    private final ChunkedWriter chunkedWriter = new ChunkedWriter(64) {
+        @Override
+        protected void writeChunk(StringBuilder chunk) {
+            chunks.add(chunk.toString());
+        }
+    };
+
+    @Test
+    void testQuoteStackTrace() {
+        Exception exception = new Exception("card 1234-5678\n\"quoted\"");
+        Redactor redactor = Redactor.create(Collections.singletonList("\\d{4}-\\d{4}"), Collections.<String>emptyList());
+        StringBuilder builder = new StringBuilder();
+
+        assertThat(chunkedWriter.quoteStackTrace(exception, builder, redactor, FieldLimits.UNLIMITED, FieldLimits.NONE)).isFalse();
+
+        StringBuilder expected = new StringBuilder();
+        EcsJsonSerializer.serializeStackTrace(expected, exception, redactor, FieldLimits.NONE);
+        assertThat(String.join("", chunks) + builder).isEqualTo(expected.toString());
+        assertThat(chunks).isNotEmpty();
+        assertThat(chunks).allSatisfy(chunk -> assertThat(chunk.length()).isLessThanOrEqualTo(64));
+        assertThat(builder.length()).isLessThanOrEqualTo(64);
+        assertThat(expected.toString()).contains("card [REDACTED]\\n\\\"quoted\\\"");
+    }
+
+    @Test
+    void testQuoteStackTraceTruncated() {
+        Exception exception = new Exception("message");
+        StringBuilder builder = new StringBuilder();
+
+        assertThat(chunkedWriter.quoteStackTrace(exception, builder, null, 100, FieldLimits.NONE)).isTrue();
+
+        StringBuilder expected = new StringBuilder();
+        EcsJsonSerializer.serializeStackTrace(expected, exception, null, FieldLimits.create(FieldLimits.UNLIMITED, FieldLimits.UNLIMITED, 100, FieldLimits.UNLIMITED));
+        assertThat(String.join("", chunks) + builder).isEqualTo(expected.toString());
+    }
+}
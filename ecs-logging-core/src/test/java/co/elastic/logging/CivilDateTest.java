@@ -0,0 +1,53 @@
+/*-
+ * #%L
+ * Java ECS logging
+ * %%
+ * Copyright (C) 2019 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.logging;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalDate;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class CivilDateTest {
+
+    @Test
+    void testToEpochDay() {
+        for (long day = -1_000_000; day < 1_000_000; day += 97) {
+            LocalDate date = LocalDate.ofEpochDay(day);
+            assertThat(CivilDate.toEpochDay(date.getYear(), date.getMonthValue(), date.getDayOfMonth())).isEqualTo(day);
+        }
+    }
+
+    @Test
+    void testToIsoDate() {
+        long firstDay = LocalDate.of(0, 1, 1).toEpochDay();
+        long lastDay = LocalDate.of(9999, 12, 31).toEpochDay();
+        for (long day = firstDay; day <= lastDay; day += 7) {
+            assertThat(CivilDate.toIsoDate(day)).isEqualTo(LocalDate.ofEpochDay(day).toString());
+        }
+        assertThat(CivilDate.toIsoDate(lastDay)).isEqualTo("9999-12-31");
+        assertThat(CivilDate.toIsoDate(0)).isEqualTo("1970-01-01");
+    }
+}
@@ -0,0 +1,100 @@
+/*-
+ * #%L
+ * Java ECS logging
+ * %%
+ * Copyright (C) 2019 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.logging;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class DegradationPolicyTest {
+
+    @Test
+    void testDisabledWithoutThresholds() {
+        assertThat(DegradationPolicy.create(0, 0, null)).isNull();
+        assertThat(DegradationPolicy.create(0, 80, null)).isNull();
+    }
+
+    @Test
+    void testDegradesAboveEventRateWithHysteresis() {
+        DegradationPolicy policy = DegradationPolicy.create(1000, 0, null);
+        long time = 0;
+        // 100 events per window of 100ms is 1000 events per second, which is not above the threshold
+        time = logEvents(policy, time, 100);
+        assertThat(policy.onEvent(time)).isFalse();
+
+        time = logEvents(policy, time, 200);
+        assertThat(policy.onEvent(time)).isTrue();
+
+        // below the threshold, but not below half of it
+        time = logEvents(policy, time, 80);
+        assertThat(policy.onEvent(time)).isTrue();
+
+        time = logEvents(policy, time, 40);
+        assertThat(policy.onEvent(time)).isFalse();
+    }
+
+    @Test
+    void testDegradesAboveQueueUsageWithHysteresis() {
+        AtomicInteger usage = new AtomicInteger();
+        DegradationPolicy policy = DegradationPolicy.create(0, 80, usage::get);
+        long time = 0;
+        assertThat(policy.onEvent(time)).isFalse();
+
+        usage.set(80);
+        time += DegradationPolicy.WINDOW_MILLIS;
+        assertThat(policy.onEvent(time)).isTrue();
+
+        usage.set(50);
+        time += DegradationPolicy.WINDOW_MILLIS;
+        assertThat(policy.onEvent(time)).isTrue();
+
+        usage.set(39);
+        time += DegradationPolicy.WINDOW_MILLIS;
+        assertThat(policy.onEvent(time)).isFalse();
+    }
+
+    @Test
+    void testStateOnlyChangesOncePerWindow() {
+        AtomicInteger usage = new AtomicInteger();
+        DegradationPolicy policy = DegradationPolicy.create(0, 80, usage::get);
+        policy.onEvent(0);
+        usage.set(100);
+        assertThat(policy.onEvent(DegradationPolicy.WINDOW_MILLIS - 1)).isFalse();
+        assertThat(policy.onEvent(DegradationPolicy.WINDOW_MILLIS)).isTrue();
+        assertThat(policy.isDegraded()).isTrue();
+    }
+
+    /**
+     * Logs the events evenly spread across one window and returns the start of the next window
+     */
+    private static long logEvents(DegradationPolicy policy, long windowStart, int events) {
+        for (int i = 0; i < events - 1; i++) {
+            policy.onEvent(windowStart + i * DegradationPolicy.WINDOW_MILLIS / events);
+        }
+        return windowStart + DegradationPolicy.WINDOW_MILLIS;
+    }
+}
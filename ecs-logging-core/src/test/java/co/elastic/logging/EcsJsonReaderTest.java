@@ -0,0 +1,176 @@
+/*-
+ * #%L
+ * Java ECS logging
+ * %%
+ * Copyright (C) 2019 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.logging;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class EcsJsonReaderTest {
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void testRoundTrip() throws Exception {
+        String ndJson = serialize(1564657200123L, "INFO", "Hello \"World\"\nä€😀", null)
+                + serialize(1564657201000L, "ERROR", "failed", new IllegalStateException("boom"))
+                + "\n";
+        EcsJsonReader reader = new EcsJsonReader(ByteBuffer.wrap(ndJson.getBytes(StandardCharsets.UTF_8)));
+        Iterator<String> lines = List.of(ndJson.split("\n")).iterator();
+
+        int events = 0;
+        while (reader.next()) {
+            assertMatchesJackson(reader, objectMapper.readTree(lines.next()));
+            events++;
+        }
+        assertThat(events).isEqualTo(2);
+        assertThat(reader.next()).isFalse();
+    }
+
+    @Test
+    void testLookups() throws Exception {
+        EcsJsonReader reader = new EcsJsonReader(ByteBuffer.wrap(serialize(1564657200123L, "WARN", "ä \"quoted\"", null)
+                .getBytes(StandardCharsets.UTF_8)));
+        assertThat(reader.next()).isTrue();
+
+        assertThat(reader.getTimestamp()).isEqualTo(1564657200123L);
+        assertThat(reader.getString("log.level")).isEqualTo("WARN");
+        assertThat(reader.valueEquals(reader.indexOf("log.level"), "WARN")).isTrue();
+        assertThat(reader.valueEquals(reader.indexOf("log.level"), "WARNING")).isFalse();
+        assertThat(reader.valueEquals(reader.indexOf("message"), "ä \"quoted\"")).isTrue();
+        assertThat(reader.indexOf("labels.foo")).isNotNegative();
+        assertThat(reader.indexOf("labels.missing")).isEqualTo(-1);
+        assertThat(reader.getString("labels.missing")).isNull();
+        assertThat(reader.getType(reader.indexOf("tags"))).isEqualTo(EcsJsonReader.Type.ARRAY);
+        assertThat(reader.getString("tags")).isEqualTo("[\"bar\"]");
+        assertThat(StandardCharsets.UTF_8.decode(reader.getValueBytes(reader.indexOf("log.level"))).toString()).isEqualTo("WARN");
+        assertThat(StandardCharsets.UTF_8.decode(reader.getKeyBytes(0)).toString()).isEqualTo("@timestamp");
+    }
+
+    @Test
+    void testPrimitives() throws Exception {
+        EcsJsonReader reader = new EcsJsonReader(ByteBuffer.wrap(
+                "{\"a\": -42, \"b\":true, \"c\" : false,\"d\":null, \"e\":{\"f\":[1,\"}\"]}, \"g\":1.5}".getBytes(StandardCharsets.UTF_8)));
+        assertThat(reader.next()).isTrue();
+
+        assertThat(reader.getFieldCount()).isEqualTo(6);
+        assertThat(reader.getLong(0)).isEqualTo(-42);
+        assertThat(reader.getBoolean(1)).isTrue();
+        assertThat(reader.getBoolean(2)).isFalse();
+        assertThat(reader.getType(3)).isEqualTo(EcsJsonReader.Type.NULL);
+        assertThat(reader.getString(3)).isNull();
+        assertThat(reader.getType(4)).isEqualTo(EcsJsonReader.Type.OBJECT);
+        assertThat(reader.getString(4)).isEqualTo("{\"f\":[1,\"}\"]}");
+        assertThat(reader.getString(5)).isEqualTo("1.5");
+        assertThatThrownBy(() -> reader.getLong(5)).isInstanceOf(NumberFormatException.class);
+        assertThatThrownBy(() -> reader.getLong(6)).isInstanceOf(IndexOutOfBoundsException.class);
+    }
+
+    @Test
+    void testMalformed() {
+        assertThatThrownBy(() -> new EcsJsonReader(ByteBuffer.wrap("foo\n".getBytes(StandardCharsets.UTF_8))).next())
+                .isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> new EcsJsonReader(ByteBuffer.wrap("{\"foo\":\"bar\n".getBytes(StandardCharsets.UTF_8))).next())
+                .isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> new EcsJsonReader(ByteBuffer.wrap("{\"foo\":\"bar\"".getBytes(StandardCharsets.UTF_8))).next())
+                .isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    void testMappedFileWithSmallWindows() throws Exception {
+        StringBuilder ndJson = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            ndJson.append(serialize(1564657200000L + i, "INFO", "message " + i, null));
+        }
+        File file = tempDir.resolve("test.ndjson").toFile();
+        Files.write(file.toPath(), ndJson.toString().getBytes(StandardCharsets.UTF_8));
+
+        EcsJsonReader reader = EcsJsonReader.open(file, 1024);
+        try {
+            int events = 0;
+            long previousOffset = -1;
+            while (reader.next()) {
+                assertThat(reader.getString("message")).isEqualTo("message " + events);
+                assertThat(reader.getTimestamp()).isEqualTo(1564657200000L + events);
+                assertThat(reader.getEventOffset()).isGreaterThan(previousOffset);
+                previousOffset = reader.getEventOffset();
+                events++;
+            }
+            assertThat(events).isEqualTo(100);
+        } finally {
+            reader.close();
+        }
+    }
+
+    private void assertMatchesJackson(EcsJsonReader reader, JsonNode expected) {
+        assertThat(reader.getFieldCount()).isEqualTo(expected.size());
+        Iterator<Map.Entry<String, JsonNode>> fields = expected.fields();
+        for (int i = 0; fields.hasNext(); i++) {
+            Map.Entry<String, JsonNode> field = fields.next();
+            assertThat(reader.getKey(i)).isEqualTo(field.getKey());
+            assertThat(reader.keyEquals(i, field.getKey())).isTrue();
+            if (field.getValue().isTextual()) {
+                assertThat(reader.getString(i)).isEqualTo(field.getValue().textValue());
+                assertThat(reader.valueEquals(i, field.getValue().textValue())).isTrue();
+            } else {
+                assertThat(reader.getString(i)).isEqualTo(field.getValue().toString());
+            }
+        }
+        assertThat(reader.getTimestamp()).isEqualTo(Instant.parse(expected.get("@timestamp").textValue()).toEpochMilli());
+    }
+
+    private static String serialize(long timestamp, String level, String message, Throwable thrown) {
+        StringBuilder builder = new StringBuilder();
+        EcsJsonSerializer.serializeObjectStart(builder, timestamp);
+        EcsJsonSerializer.serializeLogLevel(builder, level);
+        EcsJsonSerializer.serializeFormattedMessage(builder, message, thrown);
+        EcsJsonSerializer.serializeServiceName(builder, "test");
+        EcsJsonSerializer.serializeThreadName(builder, "main");
+        EcsJsonSerializer.serializeLoggerName(builder, "co.elastic.logging.EcsJsonReaderTest");
+        EcsJsonSerializer.serializeLabels(builder, Map.of("foo", "bär", "transaction.id", "0af7651916cd43dd"),
+                Set.copyOf(EcsJsonSerializer.DEFAULT_TOP_LEVEL_LABELS));
+        EcsJsonSerializer.serializeTag(builder, "bar");
+        EcsJsonSerializer.serializeObjectEnd(builder);
+        return builder.toString();
+    }
+}
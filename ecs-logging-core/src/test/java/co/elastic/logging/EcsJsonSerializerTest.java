@@ -0,0 +1,112 @@
+/*-
+ * #%L
+ * Java ECS logging
+ * %%
+ * Copyright (C) 2019 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.logging;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class EcsJsonSerializerTest {
+
+    @Test
+    void testSerializeValue() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("string", "foo\"bar");
+        map.put("long", 1L);
+        map.put("double", 0.5);
+        map.put("nan", Double.NaN);
+        map.put("boolean", false);
+        map.put("null", null);
+        map.put("list", List.of(1, "a"));
+        map.put("array", new Object[]{Map.of()});
+        assertThat(serializeValue(map))
+                .isEqualTo("{\"string\":\"foo\\\"bar\",\"long\":1,\"double\":0.5,\"nan\":\"NaN\",\"boolean\":false,\"null\":null,\"list\":[1,\"a\"],\"array\":[{}]}");
+    }
+
+    @Test
+    void testSerializeCyclicValue() {
+        List<Object> list = new ArrayList<>();
+        list.add(list);
+        StringBuilder builder = new StringBuilder();
+        assertThat(EcsJsonSerializer.serializeValue(builder, list, null, FieldLimits.UNLIMITED, FieldLimits.UNLIMITED)).isTrue();
+        assertThat(builder.toString()).isEqualTo("[".repeat(EcsJsonSerializer.MAX_NESTING_DEPTH) + "\"...\"" + "]".repeat(EcsJsonSerializer.MAX_NESTING_DEPTH));
+    }
+
+    @Test
+    void testSerializeMessageTemplate() {
+        StringBuilder builder = new StringBuilder();
+        Object[] parameters = {"foo", 42, true, new RuntimeException()};
+        assertThat(EcsJsonSerializer.serializeMessageTemplate(builder, "{} \"{}\" {}", parameters, 3, null, FieldLimits.NONE)).isFalse();
+        assertThat(builder.toString()).isEqualTo("\"message_template\":\"{} \\\"{}\\\" {}\",\"message_parameters\":[\"foo\",42,true],");
+
+        builder.setLength(0);
+        EcsJsonSerializer.serializeMessageTemplate(builder, "no parameters", null, 0, null, FieldLimits.NONE);
+        assertThat(builder.toString()).isEqualTo("\"message_template\":\"no parameters\",");
+    }
+
+    @Test
+    void testSerializeJsonMembers() {
+        StringBuilder builder = new StringBuilder();
+        String json = "{\n  \"order\" : {\"id\": 1, \"note\": \"a b\\n\"},\n  \"log.level\": \"x\",\n  \"items\": [ \"a\", true, null ]\n}\n";
+        assertThat(EcsJsonSerializer.serializeJsonMembers(builder, json, Set.of("log.level"), "labels.", null, FieldLimits.NONE, new StringBuilder())).isZero();
+        assertThat(builder.toString()).isEqualTo("\"order\":{\"id\":1,\"note\":\"a b\\n\"},\"labels.log.level\":\"x\",\"items\":[\"a\",true,null],");
+
+        builder.setLength(0);
+        assertThat(EcsJsonSerializer.serializeJsonMembers(builder, " {} ", Set.of(), "labels.", null, FieldLimits.NONE, new StringBuilder())).isZero();
+        assertThat(builder.toString()).isEmpty();
+    }
+
+    @Test
+    void testSerializeJsonMembersRedactedAndTruncated() {
+        StringBuilder builder = new StringBuilder();
+        Redactor redactor = Redactor.create(List.of("secret"), List.of("password"));
+        String json = "{\"password\": [1], \"note\": \"a secret\\ttab\", \"nested\": {\"key\": \"abcdefgh\"}}";
+        assertThat(EcsJsonSerializer.serializeJsonMembers(builder, json, Set.of(), "labels.", redactor,
+                FieldLimits.create(FieldLimits.UNLIMITED, 5, FieldLimits.UNLIMITED, FieldLimits.UNLIMITED), new StringBuilder())).isEqualTo(2);
+        assertThat(builder.toString()).isEqualTo("\"password\":\"[REDACTED]\",\"note\":\"a [REDACTED]\",\"nested\":{\"key\":\"abcde\"},");
+    }
+
+    @Test
+    void testSerializeInvalidJsonMembers() {
+        for (String json : List.of("[1]", "{\"a\":1", "{\"a\":1}{", "{\"a\" 1}", "{\"a\":\"line\nbreak\"}", "{\"a\":}", "{\"a\":1,}")) {
+            StringBuilder builder = new StringBuilder("prefix");
+            assertThat(EcsJsonSerializer.serializeJsonMembers(builder, json, Set.of(), "labels.", null, FieldLimits.NONE, new StringBuilder()))
+                    .describedAs(json).isEqualTo(-1);
+            assertThat(builder.toString()).isEqualTo("prefix");
+        }
+    }
+
+    private static String serializeValue(Object value) {
+        StringBuilder builder = new StringBuilder();
+        assertThat(EcsJsonSerializer.serializeValue(builder, value, null, FieldLimits.UNLIMITED, FieldLimits.UNLIMITED)).isFalse();
+        return builder.toString();
+    }
+}
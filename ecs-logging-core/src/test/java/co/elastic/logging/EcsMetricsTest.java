@@ -0,0 +1,103 @@
+/*-
+ * #%L
+ * Java ECS logging
+ * %%
+ * Copyright (C) 2019 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.logging;
+
+import org.junit.jupiter.api.Test;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class EcsMetricsTest {
+
+    @Test
+    void testStripedCounter() throws Exception {
+        final StripedCounter counter = new StripedCounter();
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(() -> {
+                for (int j = 0; j < 1000; j++) {
+                    counter.increment();
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        counter.add(42);
+        assertThat(counter.get()).isEqualTo(4042);
+    }
+
+    @Test
+    void testLatencyHistogram() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertThat(histogram.getPercentileNanos(0.99)).isEqualTo(0);
+        for (int i = 0; i < 99; i++) {
+            histogram.record(100);
+        }
+        histogram.record(10_000);
+        assertThat(histogram.getCount()).isEqualTo(100);
+        assertThat(histogram.getMeanNanos()).isEqualTo(199);
+        assertThat(histogram.getMaxNanos()).isEqualTo(10_000);
+        assertThat(histogram.getPercentileNanos(0.5)).isBetween(100L, 200L);
+        assertThat(histogram.getPercentileNanos(0.99)).isBetween(100L, 200L);
+        assertThat(histogram.getPercentileNanos(1)).isEqualTo(10_000);
+    }
+
+    @Test
+    void testMetricsAreRegisteredAndShared() throws Exception {
+        EcsMetrics metrics = EcsMetrics.forComponent("test", "foo");
+        assertThat(EcsMetrics.forComponent("test", "foo")).isSameAs(metrics);
+        long start = metrics.onEventStart();
+        metrics.onEventEnd(start, 42, true, false);
+        metrics.onBufferGrowth();
+
+        EcsMetrics.awaitRegistrations();
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName("co.elastic.logging:type=test,name=\"foo\"");
+        assertThat(server.getAttribute(name, "Events")).isEqualTo(1L);
+        assertThat(server.getAttribute(name, "Bytes")).isEqualTo(42L);
+        assertThat(server.getAttribute(name, "Exceptions")).isEqualTo(1L);
+        assertThat(server.getAttribute(name, "TruncatedEvents")).isEqualTo(0L);
+        assertThat(server.getAttribute(name, "BufferGrowths")).isEqualTo(1L);
+    }
+
+    @Test
+    void testSerializerMetrics() throws Exception {
+        long escapedChars = SerializerMetrics.INSTANCE.getEscapedChars();
+        JsonUtils.quoteAsString("foo\n\"bar\"", new StringBuilder());
+        assertThat(SerializerMetrics.INSTANCE.getEscapedChars()).isEqualTo(escapedChars + 3);
+
+        EcsJsonSerializer.serializeObjectStart(new StringBuilder(), System.currentTimeMillis());
+        EcsMetrics.awaitRegistrations();
+        assertThat(ManagementFactory.getPlatformMBeanServer()
+                .getAttribute(new ObjectName("co.elastic.logging:type=EcsJsonSerializer"), "TimestampCacheHits"))
+                .isEqualTo(SerializerMetrics.INSTANCE.getTimestampCacheHits());
+        assertThat(SerializerMetrics.INSTANCE.getTimestampCacheHitRatio()).isGreaterThan(0);
+    }
+}
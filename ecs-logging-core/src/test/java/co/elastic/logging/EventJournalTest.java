@@ -0,0 +1,171 @@
+/*-
+ * #%L
+ * Java ECS logging
+ * %%
+ * Copyright (C) 2019 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.logging;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class EventJournalTest {
+
+    private static final Set<String> TOP_LEVEL_LABELS = Set.copyOf(EcsJsonSerializer.DEFAULT_TOP_LEVEL_LABELS);
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void testRendersEvent() throws Exception {
+        try (EventJournal journal = new EventJournal(tempDir.resolve("app.journal").toFile(), 4096)) {
+            Map<String, Object> labels = new LinkedHashMap<>();
+            labels.put("foo", "bar");
+            labels.put("trace.id", 42);
+            assertThat(journal.write(1_000, "WARN", "co.elastic.Test", "main", "café \"😀\"\n", "java.lang.RuntimeException: boom\n\tat Test", labels)).isTrue();
+            assertThat(journal.hasPendingEvents()).isTrue();
+
+            List<JsonNode> events = render(journal);
+            assertThat(events).hasSize(1);
+            JsonNode event = events.get(0);
+            assertThat(event.get("@timestamp").textValue()).isEqualTo("1970-01-01T00:00:01.000Z");
+            assertThat(event.get("log.level").textValue()).isEqualTo("WARN");
+            assertThat(event.get("message").textValue()).isEqualTo("café \"😀\"\n\njava.lang.RuntimeException: boom\n\tat Test");
+            assertThat(event.get("service.name").textValue()).isEqualTo("test");
+            assertThat(event.get("process.thread.name").textValue()).isEqualTo("main");
+            assertThat(event.get("log.logger").textValue()).isEqualTo("co.elastic.Test");
+            assertThat(event.get("labels.foo").textValue()).isEqualTo("bar");
+            assertThat(event.get("trace.id").textValue()).isEqualTo("42");
+            assertThat(journal.hasPendingEvents()).isFalse();
+        }
+    }
+
+    @Test
+    void testWrapsAround() throws Exception {
+        try (EventJournal journal = new EventJournal(tempDir.resolve("app.journal").toFile(), 512)) {
+            for (int i = 0; i < 100; i++) {
+                assertThat(journal.write(1_000 + i, "INFO", "logger", "main", "message " + i, null, null)).isTrue();
+                assertThat(journal.write(1_000 + i, "INFO", "logger", "main", "other message " + i, null, null)).isTrue();
+                List<JsonNode> events = render(journal);
+                assertThat(events).hasSize(2);
+                assertThat(events.get(0).get("message").textValue()).isEqualTo("message " + i);
+                assertThat(events.get(1).get("message").textValue()).isEqualTo("other message " + i);
+            }
+        }
+    }
+
+    @Test
+    void testDropsEventsWhenFull() throws Exception {
+        try (EventJournal journal = new EventJournal(tempDir.resolve("app.journal").toFile(), 256)) {
+            int written = 0;
+            while (journal.write(1_000, "INFO", "logger", "main", "message " + written, null, null)) {
+                written++;
+            }
+            assertThat(journal.getDroppedEvents()).isEqualTo(1);
+            assertThat(render(journal)).hasSize(written);
+            assertThat(journal.write(1_000, "INFO", "logger", "main", "message", null, null)).isTrue();
+        }
+    }
+
+    @Test
+    void testRendersPendingEventsAfterReopen() throws Exception {
+        File file = tempDir.resolve("app.journal").toFile();
+        try (EventJournal journal = new EventJournal(file, 4096)) {
+            journal.write(1_000, "INFO", "logger", "main", "rendered", null, null);
+            render(journal);
+            // the dictionary entries for ERROR, other and foo are still in the ring
+            journal.write(2_000, "ERROR", "other", "worker", "pending", null, Map.of("foo", "bar"));
+        }
+        // the capacity of an existing journal is retained
+        try (EventJournal journal = new EventJournal(file, 0)) {
+            List<JsonNode> events = render(journal);
+            assertThat(events).hasSize(1);
+            assertThat(events.get(0).get("message").textValue()).isEqualTo("pending");
+            assertThat(events.get(0).get("log.logger").textValue()).isEqualTo("other");
+            assertThat(events.get(0).get("process.thread.name").textValue()).isEqualTo("worker");
+            assertThat(events.get(0).get("labels.foo").textValue()).isEqualTo("bar");
+
+            // new strings get new ids after the ones which have been loaded
+            journal.write(3_000, "DEBUG", "third", "main", "new", null, null);
+            journal.write(4_000, "ERROR", "logger", "main", "known", null, null);
+            events = render(journal);
+            assertThat(events.get(0).get("log.logger").textValue()).isEqualTo("third");
+            assertThat(events.get(1).get("log.logger").textValue()).isEqualTo("logger");
+            assertThat(events.get(1).get("log.level").textValue()).isEqualTo("ERROR");
+        }
+        try (EventJournal journal = new EventJournal(file, 0)) {
+            journal.write(5_000, "DEBUG", "third", "main", "again", null, null);
+            assertThat(render(journal).get(0).get("log.logger").textValue()).isEqualTo("third");
+            assertThat(journal.getDictionarySize()).isEqualTo(7);
+        }
+    }
+
+    @Test
+    void testDoesNotGrowDictionaryWithThreadNames() throws Exception {
+        File file = tempDir.resolve("app.journal").toFile();
+        try (EventJournal journal = new EventJournal(file, 4096)) {
+            for (int i = 0; i < 1000; i++) {
+                assertThat(journal.write(1_000, "INFO", "logger", "pool-1-thread-" + i, "message", null, Map.of("foo", "bar" + i))).isTrue();
+                assertThat(render(journal).get(0).get("process.thread.name").textValue()).isEqualTo("pool-1-thread-" + i);
+            }
+            // INFO, logger and foo
+            assertThat(journal.getDictionarySize()).isEqualTo(3);
+        }
+        assertThat(EventJournal.getDictionaryFile(file).length()).isLessThan(100);
+    }
+
+    @Test
+    void testStoresStringsInlineWhenDictionaryIsFull() throws Exception {
+        try (EventJournal journal = new EventJournal(tempDir.resolve("app.journal").toFile(), 4096)) {
+            for (int i = 0; i < EventJournal.MAX_DICTIONARY_SIZE + 10; i++) {
+                assertThat(journal.write(1_000, "INFO", "logger" + i, "main", "message", null, null)).isTrue();
+                assertThat(render(journal).get(0).get("log.logger").textValue()).isEqualTo("logger" + i);
+            }
+            assertThat(journal.getDictionarySize()).isEqualTo(EventJournal.MAX_DICTIONARY_SIZE);
+        }
+    }
+
+    private List<JsonNode> render(EventJournal journal) throws IOException {
+        StringBuilder builder = new StringBuilder();
+        journal.render(builder, "test", TOP_LEVEL_LABELS, Integer.MAX_VALUE);
+        List<JsonNode> events = new ArrayList<>();
+        for (String line : builder.toString().split("\n")) {
+            if (!line.isEmpty()) {
+                events.add(objectMapper.readTree(line));
+            }
+        }
+        return events;
+    }
+}
@@ -0,0 +1,90 @@
+/*-
+ * #%L
+ * Java ECS logging
+ * %%
+ * Copyright (C) 2019 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.logging;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class JsonNesterTest {
+
+    private final JsonNester nester = new JsonNester();
+
+    @Test
+    void testNestsDottedKeys() {
+        assertThat(nest("{\"@timestamp\":\"2019-01-01T00:00:00.000Z\", \"log.level\": \"INFO\", \"message\":\"a.b\", " +
+                "\"log.logger\":\"foo\",\"labels.x\":1,\"labels.y\":{\"z\":[1,\"}\"]},\"trace.id\":\"abc\"}\n"))
+                .isEqualTo("{\"@timestamp\":\"2019-01-01T00:00:00.000Z\",\"log\":{\"level\":\"INFO\",\"logger\":\"foo\"},\"message\":\"a.b\"," +
+                        "\"labels\":{\"x\":1,\"y\":{\"z\":[1,\"}\"]}},\"trace\":{\"id\":\"abc\"}}\n");
+    }
+
+    @Test
+    void testReusesPlan() throws Exception {
+        String first = nest("{\"a.b\":1,\"a.c\":2}\n");
+        assertThat(nest("{\"a.b\":3,\"a.c\":4}\n")).isEqualTo("{\"a\":{\"b\":3,\"c\":4}}\n");
+        assertThat(nest("{\"a.c\":3,\"a.b\":4}\n")).isEqualTo("{\"a\":{\"c\":3,\"b\":4}}\n");
+        assertThat(new ObjectMapper().readTree(first).get("a").get("b").intValue()).isEqualTo(1);
+    }
+
+    @Test
+    void testConflictingKeys() throws Exception {
+        JsonNode node = new ObjectMapper().readTree(nest("{\"foo\":1,\"foo.bar\":2,\"baz.\":3,\"\\\"x\\\".y\":4}"));
+        assertThat(node.get("foo").intValue()).isEqualTo(1);
+        assertThat(node.get("foo.bar").intValue()).isEqualTo(2);
+        assertThat(node.get("baz.").intValue()).isEqualTo(3);
+        assertThat(node.get("\"x\"").get("y").intValue()).isEqualTo(4);
+    }
+
+    @Test
+    void testConflictingKeysInAnyOrder() throws Exception {
+        String nested = nest("{\"foo.bar\":1,\"foo.baz\":2,\"foo\":3,\"a.b.c\":4,\"a.b\":5,\"a.d\":6}");
+        assertThat(nested).isEqualTo("{\"foo.bar\":1,\"foo.baz\":2,\"foo\":3,\"a.b.c\":4,\"a\":{\"b\":5,\"d\":6}}");
+        JsonNode node = new ObjectMapper().readTree(nested);
+        assertThat(node.get("foo").intValue()).isEqualTo(3);
+        assertThat(node.get("a").get("b").intValue()).isEqualTo(5);
+    }
+
+    @Test
+    void testIgnoresMalformedJson() {
+        assertThat(nest("{\"a.b\":1")).isEqualTo("{\"a.b\":1");
+        assertThat(nest("[1]")).isEqualTo("[1]");
+        assertThat(nest("{}\n")).isEqualTo("{}\n");
+    }
+
+    @Test
+    void testPrefix() {
+        StringBuilder builder = new StringBuilder("prefix{\"a.b\":1}");
+        nester.nest(builder, "prefix".length(), new StringBuilder());
+        assertThat(builder.toString()).isEqualTo("prefix{\"a\":{\"b\":1}}");
+    }
+
+    private String nest(String json) {
+        StringBuilder builder = new StringBuilder(json);
+        nester.nest(builder, 0, new StringBuilder());
+        return builder.toString();
+    }
+}
@@ -0,0 +1,108 @@
+/*-
+ * #%L
+ * Java ECS logging
+ * %%
+ * Copyright (C) 2019 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.logging;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class LabelsCacheTest {
+
+    private final Set<String> topLevelLabels = new HashSet<>(EcsJsonSerializer.DEFAULT_TOP_LEVEL_LABELS);
+    private final LabelsCache cache = new LabelsCache(topLevelLabels, null, FieldLimits.NONE);
+
+    @Test
+    void testReusesFragmentOfUnchangedLabels() {
+        Map<String, Object> labels = new HashMap<>();
+        labels.put("foo", "bar");
+        labels.put("trace.id", "0af7651916cd43dd8448eb211c80319c");
+
+        String first = serialize(labels);
+        assertThat(first).isEqualTo(serializeUncached(labels));
+        assertThat(serialize(labels)).isEqualTo(first);
+        assertThat(serialize(new HashMap<>(labels))).isEqualTo(first);
+    }
+
+    @Test
+    void testDetectsChanges() {
+        Map<String, Object> labels = new HashMap<>();
+        labels.put("foo", "bar");
+        serialize(labels);
+
+        labels.put("foo", "baz");
+        assertThat(serialize(labels)).isEqualTo(serializeUncached(labels));
+        labels.put("qux", "quux");
+        assertThat(serialize(labels)).isEqualTo(serializeUncached(labels));
+        labels.remove("foo");
+        assertThat(serialize(labels)).isEqualTo(serializeUncached(labels));
+        labels.put("foo", null);
+        labels.remove("qux");
+        assertThat(serialize(labels)).isEqualTo(serializeUncached(labels));
+        assertThat(serialize(Collections.emptyMap())).isEmpty();
+    }
+
+    @Test
+    void testDoesNotCacheMutableValues() {
+        StringBuilder value = new StringBuilder("bar");
+        Map<String, Object> labels = Collections.singletonMap("foo", value);
+        serialize(labels);
+        value.append("baz");
+        assertThat(serialize(labels)).isEqualTo("\"labels.foo\":\"barbaz\",");
+    }
+
+    @Test
+    void testRespectsMaxEventLength() {
+        LabelsCache limitedCache = new LabelsCache(topLevelLabels, null, FieldLimits.create(0, 0, 0, 64));
+        Map<String, Object> labels = Collections.singletonMap("foo", "bar");
+        StringBuilder builder = new StringBuilder();
+        assertThat(limitedCache.serializeLabels(builder, labels)).isFalse();
+        assertThat(builder.toString()).isEqualTo("\"labels.foo\":\"bar\",");
+
+        builder.setLength(0);
+        builder.append("x".repeat(30));
+        assertThat(limitedCache.serializeLabels(builder, labels)).isTrue();
+        StringBuilder uncached = new StringBuilder("x".repeat(30));
+        EcsJsonSerializer.serializeLabels(uncached, labels, topLevelLabels, null, FieldLimits.create(0, 0, 0, 64));
+        assertThat(builder.toString()).isEqualTo(uncached.toString());
+    }
+
+    private String serialize(Map<String, ?> labels) {
+        StringBuilder builder = new StringBuilder();
+        cache.serializeLabels(builder, labels);
+        return builder.toString();
+    }
+
+    private String serializeUncached(Map<String, ?> labels) {
+        StringBuilder builder = new StringBuilder();
+        EcsJsonSerializer.serializeLabels(builder, labels, topLevelLabels);
+        return builder.toString();
+    }
+}
@@ -0,0 +1,71 @@
+/*-
+ * #%L
+ * Java ECS logging
+ * %%
+ * Copyright (C) 2019 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.logging;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class RedactorTest {
+
+    private final Redactor redactor = Redactor.create(Arrays.asList("\\d{4}-\\d{4}", "[a-z]+@example\\.com"), Collections.singletonList("password"));
+
+    @Test
+    void testNothingConfigured() {
+        assertThat(Redactor.create(Collections.<String>emptyList(), Collections.<String>emptyList())).isNull();
+    }
+
+    @Test
+    void testMaskAllPatterns() {
+        StringBuilder builder = new StringBuilder();
+        redactor.quoteAsString("1234-5678 \"foo@example.com\"\n", builder);
+        assertThat(builder.toString()).isEqualTo("[REDACTED] \\\"[REDACTED]\\\"\\n");
+        assertThat(redactor.isRedactedKey("password")).isTrue();
+    }
+
+    @Test
+    void testTruncateMaxLength() {
+        StringBuilder builder = new StringBuilder();
+        assertThat(redactor.quoteAsString("foo 1234-5678 bar", builder, 6, FieldLimits.UNLIMITED)).isTrue();
+        assertThat(builder.toString()).isEqualTo("foo [REDACTED]");
+    }
+
+    @Test
+    void testTruncateMaxBuilderLength() {
+        StringBuilder builder = new StringBuilder();
+        assertThat(Redactor.quoteAsString("foo\nbar", builder, null, FieldLimits.UNLIMITED, 5)).isTrue();
+        assertThat(builder.toString()).isEqualTo("foo\\n");
+    }
+
+    @Test
+    void testDoesNotSplitSurrogatePairs() {
+        StringBuilder builder = new StringBuilder();
+        assertThat(Redactor.quoteAsString("a😀", builder, null, 2, FieldLimits.UNLIMITED)).isTrue();
+        assertThat(builder.toString()).isEqualTo("a");
+    }
+}
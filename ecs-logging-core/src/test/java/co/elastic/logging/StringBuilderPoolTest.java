@@ -0,0 +1,118 @@
+/*-
+ * #%L
+ * Java ECS logging
+ * %%
+ * Copyright (C) 2019 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.logging;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class StringBuilderPoolTest {
+
+    @Test
+    void testReusesReleasedBuilders() {
+        StringBuilderPool pool = new StringBuilderPool(16, 64);
+        StringBuilder builder = pool.acquire();
+        builder.append("foo");
+        assertThat(pool.release(builder)).isFalse();
+        StringBuilder reused = pool.acquire();
+        assertThat(reused).isSameAs(builder);
+        assertThat(reused).isEmpty();
+    }
+
+    @Test
+    void testTrimsOversizedBuilders() {
+        StringBuilderPool pool = new StringBuilderPool(16, 64);
+        StringBuilder builder = pool.acquire();
+        builder.append(new char[1000]);
+        assertThat(pool.release(builder)).isTrue();
+        assertThat(pool.acquire().capacity()).isEqualTo(64);
+    }
+
+    @Test
+    void testPresizesNewBuildersToTypicalEventSize() {
+        StringBuilderPool pool = new StringBuilderPool(16, 64 * 1024);
+        for (int i = 0; i < 100; i++) {
+            StringBuilder builder = new StringBuilder();
+            builder.append(new char[4000 + i % 10]);
+            pool.release(builder);
+        }
+        assertThat(pool.getTargetCapacity()).isBetween(4000, 8000);
+        // drains the pool, so that new builders are allocated
+        for (int i = 0; i < 100; i++) {
+            pool.acquire();
+        }
+        assertThat(pool.acquire().capacity()).isEqualTo(pool.getTargetCapacity());
+    }
+
+    @Test
+    void testScratchBuildersDontAffectTypicalEventSize() {
+        StringBuilderPool pool = new StringBuilderPool(16, 64 * 1024);
+        for (int i = 0; i < 100; i++) {
+            StringBuilder event = new StringBuilder();
+            event.append(new char[4000]);
+            pool.release(event);
+            StringBuilder scratch = new StringBuilder();
+            scratch.append(new char[10]);
+            pool.release(scratch, false);
+        }
+        assertThat(pool.getTargetCapacity()).isBetween(4000, 8000);
+    }
+
+    @Test
+    void testTrimsBuildersFarAboveTypicalEventSize() {
+        StringBuilderPool pool = new StringBuilderPool(16, 64 * 1024);
+        for (int i = 0; i < 100; i++) {
+            StringBuilder builder = pool.acquire();
+            builder.append(new char[100]);
+            assertThat(pool.release(builder)).isFalse();
+        }
+        StringBuilder large = pool.acquire();
+        large.append(new char[16 * 1024]);
+        assertThat(pool.release(large)).isTrue();
+        assertThat(large.capacity()).isLessThan(16 * 1024);
+    }
+
+    @Test
+    void testIsBounded() {
+        StringBuilderPool pool = new StringBuilderPool(16, 64);
+        StringBuilder[] builders = new StringBuilder[100];
+        for (int i = 0; i < builders.length; i++) {
+            builders[i] = pool.acquire();
+        }
+        for (StringBuilder builder : builders) {
+            pool.release(builder);
+        }
+        int reused = 0;
+        for (int i = 0; i < builders.length; i++) {
+            StringBuilder builder = pool.acquire();
+            for (StringBuilder b : builders) {
+                if (b == builder) {
+                    reused++;
+                }
+            }
+        }
+        assertThat(reused).isGreaterThan(0).isLessThanOrEqualTo(8);
+    }
+}
@@ -0,0 +1,134 @@
+/*-
+ * #%L
+ * Java ECS logging
+ * %%
+ * Copyright (C) 2019 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.logging;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class StripedFileSinkTest {
+
+    private static final long START = 1_565_000_000_000L;
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void testStripeFileNames() {
+        File dir = tempDir.toFile();
+        assertThat(StripedFileSink.getStripeFile(new File(dir, "app.json"), 3)).isEqualTo(new File(dir, "app-3.json"));
+        assertThat(StripedFileSink.getStripeFile(new File(dir, "app.log.json"), 0)).isEqualTo(new File(dir, "app.log-0.json"));
+        assertThat(StripedFileSink.getStripeFile(new File(dir, "app"), 1)).isEqualTo(new File(dir, "app-1"));
+    }
+
+    @Test
+    void testMergesConcurrentWritesByTimestamp() throws Exception {
+        File baseFile = tempDir.resolve("app.json").toFile();
+        int threads = 8;
+        int eventsPerThread = 1000;
+        AtomicLong clock = new AtomicLong(START);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> writers = new ArrayList<>();
+        try (StripedFileSink sink = new StripedFileSink(baseFile, 4, 1024)) {
+            for (int t = 0; t < threads; t++) {
+                Thread writer = new Thread(() -> {
+                    try {
+                        start.await();
+                        StringBuilder builder = new StringBuilder();
+                        for (int i = 0; i < eventsPerThread; i++) {
+                            builder.setLength(0);
+                            // taking the timestamp and writing atomically keeps every file strictly ordered,
+                            // so that the merged stream can be checked exactly
+                            synchronized (clock) {
+                                EcsJsonSerializer.serializeObjectStart(builder, clock.incrementAndGet());
+                                EcsJsonSerializer.serializeLoggerName(builder, "logger");
+                                EcsJsonSerializer.serializeObjectEnd(builder);
+                                sink.write(Utf8Encoder.toByteArray(builder));
+                            }
+                        }
+                    } catch (Exception e) {
+                        throw new IllegalStateException(e);
+                    }
+                });
+                writers.add(writer);
+                writer.start();
+            }
+            start.countDown();
+            for (Thread writer : writers) {
+                writer.join();
+            }
+        }
+
+        List<File> files = StripedFileSink.getStripeFiles(baseFile);
+        assertThat(files).hasSize(4);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertThat(StripedFileSink.merge(files, out)).isEqualTo(threads * eventsPerThread);
+
+        try (EcsJsonReader reader = new EcsJsonReader(ByteBuffer.wrap(out.toByteArray()))) {
+            long expected = START;
+            while (reader.next()) {
+                assertThat(reader.getTimestamp()).isEqualTo(++expected);
+            }
+            assertThat(expected).isEqualTo(START + threads * eventsPerThread);
+        }
+        assertThat(new String(out.toByteArray(), StandardCharsets.UTF_8)).endsWith("}\n");
+    }
+
+    @Test
+    void testMergeKeepsOrderOfFilesForEqualTimestamps() throws Exception {
+        File baseFile = tempDir.resolve("app.json").toFile();
+        try (StripedFileSink sink = new StripedFileSink(baseFile, 1, 1024)) {
+            sink.write(event(START, "first"));
+        }
+        File other = tempDir.resolve("other.json").toFile();
+        try (StripedFileSink sink = new StripedFileSink(other, 1, 1024)) {
+            sink.write(event(START, "second"));
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        StripedFileSink.merge(List.of(StripedFileSink.getStripeFile(baseFile, 0), StripedFileSink.getStripeFile(other, 0)), out);
+        String merged = new String(out.toByteArray(), StandardCharsets.UTF_8);
+        assertThat(merged.indexOf("first")).isLessThan(merged.indexOf("second"));
+    }
+
+    private static byte[] event(long timestamp, String message) {
+        StringBuilder builder = new StringBuilder();
+        EcsJsonSerializer.serializeObjectStart(builder, timestamp);
+        EcsJsonSerializer.serializeFormattedMessage(builder, message, null);
+        EcsJsonSerializer.serializeLoggerName(builder, "logger");
+        EcsJsonSerializer.serializeObjectEnd(builder);
+        return Utf8Encoder.toByteArray(builder);
+    }
+}
@@ -0,0 +1,141 @@
+/*-
+ * #%L
+ * Java ECS logging
+ * %%
+ * Copyright (C) 2019 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.logging;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class TimestampIndexTest {
+
+    private static final long START = 1_565_000_000_000L;
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void testSeeksToWindow() throws Exception {
+        File logFile = tempDir.resolve("test.ndjson").toFile();
+        // every 10th event is logged 5ms late, which makes the timestamps slightly out of order
+        writeEvents(logFile, 1000, 0, i -> START + i * 10 - (i % 10 == 0 ? 5 : 0), 50, 1000);
+        TimestampIndex index = TimestampIndex.read(TimestampIndex.getIndexFile(logFile));
+        assertThat(index.size()).isEqualTo(20);
+
+        for (long from : new long[]{START - 1, START + 1234, START + 5000, START + 9990, START + 20000}) {
+            try (EcsJsonReader reader = EcsJsonReader.open(logFile)) {
+                long offset = index.getOffset(from);
+                reader.seek(offset);
+                int skipped = 0;
+                while (reader.next() && reader.getTimestamp() < from) {
+                    skipped++;
+                }
+                assertThat(skipped).isLessThanOrEqualTo(50);
+                // no event at or after the start of the window is before the offset
+                assertThat(countEventsBefore(logFile, offset, from)).isZero();
+            }
+        }
+    }
+
+    @Test
+    void testAddsEntriesEveryInterval() throws Exception {
+        File logFile = tempDir.resolve("test.ndjson").toFile();
+        writeEvents(logFile, 100, 0, i -> START + i * 100, 1000, 1000);
+        assertThat(TimestampIndex.read(TimestampIndex.getIndexFile(logFile)).size()).isEqualTo(10);
+    }
+
+    @Test
+    void testAppendsToExistingIndex() throws Exception {
+        File logFile = tempDir.resolve("test.ndjson").toFile();
+        // the timestamps of the events in an existing file are assumed to be in the past
+        long start = System.currentTimeMillis() + 60_000;
+        writeEvents(logFile, 100, 0, i -> start + i, 10, 1000);
+        long length = logFile.length();
+        writeEvents(logFile, 100, length, i -> start + 100 + i, 10, 1000);
+        TimestampIndex index = TimestampIndex.read(TimestampIndex.getIndexFile(logFile));
+        assertThat(index.size()).isEqualTo(20);
+        assertThat(index.getOffset(start + 150)).isGreaterThan(length);
+    }
+
+    @Test
+    void testStartsOverIfLogFileHasBeenTruncated() throws Exception {
+        File logFile = tempDir.resolve("test.ndjson").toFile();
+        writeEvents(logFile, 100, 0, i -> START + i, 10, 1000);
+        Files.write(logFile.toPath(), new byte[0]);
+        writeEvents(logFile, 10, 0, i -> START + i, 10, 1000);
+        assertThat(TimestampIndex.read(TimestampIndex.getIndexFile(logFile)).size()).isEqualTo(1);
+    }
+
+    @Test
+    void testMissingIndex() throws Exception {
+        TimestampIndex index = TimestampIndex.read(tempDir.resolve("missing.idx").toFile());
+        assertThat(index.size()).isZero();
+        assertThat(index.getOffset(START)).isZero();
+    }
+
+    private static int countEventsBefore(File logFile, long offset, long from) throws IOException {
+        int count = 0;
+        try (EcsJsonReader reader = EcsJsonReader.open(logFile)) {
+            while (reader.next() && reader.getEventOffset() < offset) {
+                if (reader.getTimestamp() >= from) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    private static void writeEvents(File logFile, int events, long fileOffset, Timestamps timestamps, int maxEvents, long maxMillis) throws IOException {
+        StringBuilder builder = new StringBuilder();
+        long offset = fileOffset;
+        try (OutputStream out = new FileOutputStream(logFile, fileOffset > 0);
+             TimestampIndex.Writer writer = new TimestampIndex.Writer(TimestampIndex.getIndexFile(logFile), fileOffset, maxEvents, maxMillis)) {
+            for (int i = 0; i < events; i++) {
+                long timestamp = timestamps.get(i);
+                builder.setLength(0);
+                EcsJsonSerializer.serializeObjectStart(builder, timestamp);
+                EcsJsonSerializer.serializeFormattedMessage(builder, "event " + i, null);
+                EcsJsonSerializer.serializeLoggerName(builder, "test");
+                EcsJsonSerializer.serializeObjectEnd(builder);
+                byte[] bytes = builder.toString().getBytes(StandardCharsets.UTF_8);
+                writer.onEvent(timestamp, offset);
+                out.write(bytes);
+                offset += bytes.length;
+            }
+        }
+    }
+
+    private interface Timestamps {
+        long get(int i);
+    }
+}
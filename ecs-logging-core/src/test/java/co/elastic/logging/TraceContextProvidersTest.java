@@ -0,0 +1,192 @@
+/*-
+ * #%L
+ * Java ECS logging
+ * %%
+ * Copyright (C) 2019 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.logging;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class TraceContextProvidersTest {
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    @AfterEach
+    void tearDown() {
+        ElasticApm.transaction = new FakeSpan("", "");
+        ElasticApm.span = ElasticApm.transaction;
+        OpenTelemetrySpanContext.current = new OpenTelemetrySpanContext(false, "00000000000000000000000000000000", "0000000000000000");
+    }
+
+    @Test
+    void testCreate() {
+        assertThat(TraceContextProviders.create(null)).isNull();
+        assertThat(TraceContextProviders.create(" ")).isNull();
+        assertThat(TraceContextProviders.create(ConstantTraceContextProvider.class.getName())).isInstanceOf(ConstantTraceContextProvider.class);
+        // neither API is on the class path of the tests
+        assertThat(TraceContextProviders.create(TraceContextProviders.AUTO)).isNull();
+        assertThatThrownBy(() -> TraceContextProviders.create(TraceContextProviders.ELASTIC_APM)).isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> TraceContextProviders.create(TraceContextProviders.OPENTELEMETRY)).isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> TraceContextProviders.create("com.example.Missing")).isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> TraceContextProviders.create(String.class.getName())).isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> TraceContextProviders.create(FailingTraceContextProvider.class.getName()))
+                .isInstanceOf(IllegalArgumentException.class)
+                .hasCauseInstanceOf(IllegalStateException.class);
+    }
+
+    @Test
+    void testElasticApm() throws Exception {
+        TraceContextProvider provider = new ElasticApmTraceContextProvider(ElasticApm.class, Span.class);
+        assertThat(serialize(provider).size()).isZero();
+
+        ElasticApm.transaction = new FakeSpan("trace", "transaction");
+        ElasticApm.span = ElasticApm.transaction;
+        JsonNode fields = serialize(provider);
+        assertThat(fields.get("trace.id").textValue()).isEqualTo("trace");
+        assertThat(fields.get("transaction.id").textValue()).isEqualTo("transaction");
+        assertThat(fields.get("span.id")).isNull();
+
+        ElasticApm.span = new FakeSpan("trace", "span");
+        assertThat(serialize(provider).get("span.id").textValue()).isEqualTo("span");
+    }
+
+    @Test
+    void testOpenTelemetry() throws Exception {
+        TraceContextProvider provider = new OpenTelemetryTraceContextProvider(OpenTelemetrySpan.class, OpenTelemetrySpanContext.class);
+        assertThat(serialize(provider).size()).isZero();
+
+        OpenTelemetrySpanContext.current = new OpenTelemetrySpanContext(true, "4bf92f3577b34da6a3ce929d0e0e4736", "00f067aa0ba902b7");
+        JsonNode fields = serialize(provider);
+        assertThat(fields.get("trace.id").textValue()).isEqualTo("4bf92f3577b34da6a3ce929d0e0e4736");
+        assertThat(fields.get("transaction.id")).isNull();
+        assertThat(fields.get("span.id").textValue()).isEqualTo("00f067aa0ba902b7");
+    }
+
+    private JsonNode serialize(TraceContextProvider provider) throws Exception {
+        StringBuilder builder = new StringBuilder("{");
+        provider.serializeTraceContext(builder);
+        builder.append("\"end\":true}");
+        return ((ObjectNode) objectMapper.readTree(builder.toString())).without("end");
+    }
+
+    public static class ConstantTraceContextProvider implements TraceContextProvider {
+        @Override
+        public void serializeTraceContext(StringBuilder builder) {
+            EcsJsonSerializer.serializeTraceContext(builder, "trace", null, null);
+        }
+    }
+
+    public static class FailingTraceContextProvider implements TraceContextProvider {
+        public FailingTraceContextProvider() {
+            throw new IllegalStateException("boom");
+        }
+
+        @Override
+        public void serializeTraceContext(StringBuilder builder) {
+        }
+    }
+
+    /**
+     * Has the same shape as {@code co.elastic.apm.api.ElasticApm}
+     */
+    public static class ElasticApm {
+        static Span transaction = new FakeSpan("", "");
+        static Span span = transaction;
+
+        public static Span currentTransaction() {
+            return transaction;
+        }
+
+        public static Span currentSpan() {
+            return span;
+        }
+    }
+
+    public interface Span {
+        String getTraceId();
+
+        String getId();
+    }
+
+    private static class FakeSpan implements Span {
+        private final String traceId;
+        private final String id;
+
+        FakeSpan(String traceId, String id) {
+            this.traceId = traceId;
+            this.id = id;
+        }
+
+        @Override
+        public String getTraceId() {
+            return traceId;
+        }
+
+        @Override
+        public String getId() {
+            return id;
+        }
+    }
+
+    /**
+     * Has the same shape as {@code io.opentelemetry.api.trace.Span}
+     */
+    public interface OpenTelemetrySpan {
+        static OpenTelemetrySpan current() {
+            return () -> OpenTelemetrySpanContext.current;
+        }
+
+        OpenTelemetrySpanContext getSpanContext();
+    }
+
+    public static class OpenTelemetrySpanContext {
+        static OpenTelemetrySpanContext current = new OpenTelemetrySpanContext(false, "00000000000000000000000000000000", "0000000000000000");
+        private final boolean valid;
+        private final String traceId;
+        private final String spanId;
+
+        OpenTelemetrySpanContext(boolean valid, String traceId, String spanId) {
+            this.valid = valid;
+            this.traceId = traceId;
+            this.spanId = spanId;
+        }
+
+        public boolean isValid() {
+            return valid;
+        }
+
+        public String getTraceId() {
+            return traceId;
+        }
+
+        public String getSpanId() {
+            return spanId;
+        }
+    }
+}
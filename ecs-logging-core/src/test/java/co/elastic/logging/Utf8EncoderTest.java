@@ -0,0 +1,64 @@
+/*-
+ * #%L
+ * Java ECS logging
+ * %%
+ * Copyright (C) 2019 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.logging;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class Utf8EncoderTest {
+
+    @Test
+    void testToByteArray() {
+        for (String value : new String[]{"", "foo", "äöü", "€", "😀", "a😀b", "\uD800", "\uDC00a"}) {
+            assertThat(Utf8Encoder.toByteArray(new StringBuilder(value))).isEqualTo(value.getBytes(StandardCharsets.UTF_8));
+            assertThat(Utf8Encoder.encodedLength(value)).isEqualTo(value.getBytes(StandardCharsets.UTF_8).length);
+            assertThat(Utf8Encoder.encodedLength("x" + value + "x", 1, value.length() + 1)).isEqualTo(value.getBytes(StandardCharsets.UTF_8).length);
+        }
+    }
+
+    @Test
+    void testEncodeDoesNotSplitCharacters() {
+        ByteBuffer buffer = ByteBuffer.allocate(5);
+        assertThat(Utf8Encoder.encode("a😀b", 0, 4, buffer)).isEqualTo(3);
+        assertThat(buffer.position()).isEqualTo(5);
+        buffer.clear();
+        assertThat(Utf8Encoder.encode("€€", 0, 2, buffer)).isEqualTo(1);
+        assertThat(buffer.position()).isEqualTo(3);
+    }
+
+    @Test
+    void testEncodeDirectBuffer() {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(16);
+        assertThat(Utf8Encoder.encode("äöü😀", 0, 5, buffer)).isEqualTo(5);
+        buffer.flip();
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        assertThat(new String(bytes, StandardCharsets.UTF_8)).isEqualTo("äöü😀");
+    }
+}
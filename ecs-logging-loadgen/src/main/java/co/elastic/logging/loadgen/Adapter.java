@@ -0,0 +1,276 @@
+/*-
+ * #%L
+ * Java ECS logging
+ * %%
+ * Copyright (C) 2019 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.logging.loadgen;
+
+import ch.qos.logback.classic.spi.ThrowableProxy;
+import co.elastic.logging.logback.EcsEncoder;
+import org.apache.log4j.Logger;
+import org.apache.log4j.spi.LoggingEvent;
+import org.apache.log4j.spi.ThrowableInformation;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.LoggerContext;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.apache.logging.log4j.core.layout.ByteBufferDestination;
+import org.apache.logging.log4j.message.SimpleMessage;
+import org.apache.logging.log4j.spi.MutableThreadContextStack;
+import org.apache.logging.log4j.util.SortedArrayStringMap;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Serializes the events of the corpus with one of the ECS logging adapters and writes them to the {@link Sink}.
+ * <p>
+ * The native events of the logging framework are created once, before the replay starts,
+ * so that the measurements only include the cost of the layout or encoder and of the sink.
+ * Implementations are shared by all replaying threads.
+ * </p>
+ */
+abstract class Adapter {
+
+    final Sink sink;
+
+    Adapter(Sink sink) {
+        this.sink = sink;
+    }
+
+    static Adapter create(String name, List<RecordedEvent> corpus, Sink sink) {
+        switch (name) {
+            case "log4j2":
+                return new Log4j2Adapter(corpus, sink);
+            case "logback":
+                return new LogbackAdapter(corpus, sink);
+            case "log4j":
+                return new Log4jAdapter(corpus, sink);
+            default:
+                throw new IllegalArgumentException("Unknown adapter " + name);
+        }
+    }
+
+    /**
+     * Serializes the event with the given index of the corpus and writes it to the sink.
+     */
+    abstract void replay(int index) throws IOException;
+
+    /**
+     * Writes out any events which are still buffered by the adapter.
+     */
+    void flush() throws IOException {
+    }
+
+    /**
+     * Uses {@link co.elastic.logging.log4j2.EcsLayout#encode(LogEvent, ByteBufferDestination)},
+     * which is the garbage free code path log4j2 appenders use.
+     */
+    static class Log4j2Adapter extends Adapter {
+
+        private final co.elastic.logging.log4j2.EcsLayout layout;
+        private final LogEvent[] events;
+        private final SinkDestination destination;
+
+        Log4j2Adapter(List<RecordedEvent> corpus, Sink sink) {
+            super(sink);
+            layout = co.elastic.logging.log4j2.EcsLayout.newBuilder()
+                    .setConfiguration(LoggerContext.getContext().getConfiguration())
+                    .setServiceName("loadgen")
+                    .build();
+            destination = new SinkDestination(sink);
+            events = new LogEvent[corpus.size()];
+            for (int i = 0; i < events.length; i++) {
+                final RecordedEvent recorded = corpus.get(i);
+                final SortedArrayStringMap contextData = new SortedArrayStringMap();
+                for (Map.Entry<String, String> label : recorded.labels.entrySet()) {
+                    contextData.putValue(label.getKey(), label.getValue());
+                }
+                contextData.freeze();
+                events[i] = Log4jLogEvent.newBuilder()
+                        .setTimeMillis(recorded.timestamp)
+                        .setLevel(org.apache.logging.log4j.Level.toLevel(recorded.level, org.apache.logging.log4j.Level.INFO))
+                        .setLoggerName(recorded.loggerName)
+                        .setLoggerFqcn(Adapter.class.getName())
+                        .setThreadName(recorded.threadName)
+                        .setMessage(new SimpleMessage(recorded.message))
+                        .setThrown(recorded.thrown)
+                        .setContextData(contextData)
+                        .setContextStack(new MutableThreadContextStack(recorded.tags))
+                        .build();
+            }
+        }
+
+        @Override
+        void replay(int index) {
+            layout.encode(events[index], destination);
+        }
+
+        @Override
+        void flush() throws IOException {
+            destination.flush();
+        }
+    }
+
+    /**
+     * A {@link ByteBufferDestination} which drains into the sink, like the destination of a log4j2 file appender.
+     */
+    static class SinkDestination implements ByteBufferDestination {
+
+        private final Sink sink;
+        private final ByteBuffer buffer = ByteBuffer.allocate(8 * 1024);
+
+        SinkDestination(Sink sink) {
+            this.sink = sink;
+        }
+
+        @Override
+        public ByteBuffer getByteBuffer() {
+            return buffer;
+        }
+
+        @Override
+        public synchronized ByteBuffer drain(ByteBuffer buf) {
+            buf.flip();
+            try {
+                sink.write(buf);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            buf.clear();
+            return buf;
+        }
+
+        @Override
+        public synchronized void writeBytes(ByteBuffer data) {
+            if (data.remaining() > buffer.remaining()) {
+                drain(buffer);
+            }
+            if (data.remaining() > buffer.remaining()) {
+                try {
+                    sink.write(data);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            } else {
+                buffer.put(data);
+            }
+        }
+
+        @Override
+        public synchronized void writeBytes(byte[] data, int offset, int length) {
+            writeBytes(ByteBuffer.wrap(data, offset, length));
+        }
+
+        synchronized void flush() {
+            drain(buffer);
+        }
+    }
+
+    /**
+     * Uses {@link EcsEncoder#encode(ch.qos.logback.classic.spi.ILoggingEvent)}, just like a logback appender.
+     */
+    static class LogbackAdapter extends Adapter {
+
+        private final EcsEncoder encoder;
+        private final ch.qos.logback.classic.spi.LoggingEvent[] events;
+
+        LogbackAdapter(List<RecordedEvent> corpus, Sink sink) {
+            super(sink);
+            encoder = new EcsEncoder();
+            encoder.setServiceName("loadgen");
+            encoder.start();
+            final ch.qos.logback.classic.LoggerContext context = new ch.qos.logback.classic.LoggerContext();
+            events = new ch.qos.logback.classic.spi.LoggingEvent[corpus.size()];
+            for (int i = 0; i < events.length; i++) {
+                final RecordedEvent recorded = corpus.get(i);
+                final ch.qos.logback.classic.spi.LoggingEvent event = new ch.qos.logback.classic.spi.LoggingEvent();
+                event.setLoggerContextRemoteView(context.getLoggerContextRemoteView());
+                event.setTimeStamp(recorded.timestamp);
+                event.setLevel(ch.qos.logback.classic.Level.toLevel(recorded.level, ch.qos.logback.classic.Level.INFO));
+                event.setLoggerName(recorded.loggerName);
+                event.setThreadName(recorded.threadName);
+                event.setMessage(recorded.message);
+                event.setMDCPropertyMap(recorded.labels);
+                if (recorded.thrown != null) {
+                    event.setThrowableProxy(new ThrowableProxy(recorded.thrown));
+                }
+                events[i] = event;
+            }
+        }
+
+        @Override
+        void replay(int index) throws IOException {
+            final byte[] bytes = encoder.encode(events[index]);
+            sink.write(bytes, 0, bytes.length);
+        }
+    }
+
+    /**
+     * Uses {@link co.elastic.logging.log4j.EcsLayout#format(LoggingEvent)} and encodes the result as UTF-8,
+     * which is what the log4j writer based appenders do.
+     * As log4j supports a single nested diagnostic context, the tags of an event are joined by a space.
+     */
+    static class Log4jAdapter extends Adapter {
+
+        private final co.elastic.logging.log4j.EcsLayout layout;
+        private final LoggingEvent[] events;
+
+        Log4jAdapter(List<RecordedEvent> corpus, Sink sink) {
+            super(sink);
+            layout = new co.elastic.logging.log4j.EcsLayout();
+            layout.setServiceName("loadgen");
+            layout.activateOptions();
+            events = new LoggingEvent[corpus.size()];
+            for (int i = 0; i < events.length; i++) {
+                final RecordedEvent recorded = corpus.get(i);
+                final StringBuilder ndc = new StringBuilder();
+                for (String tag : recorded.tags) {
+                    if (ndc.length() > 0) {
+                        ndc.append(' ');
+                    }
+                    ndc.append(tag);
+                }
+                events[i] = new LoggingEvent(Adapter.class.getName(),
+                        Logger.getLogger(recorded.loggerName),
+                        recorded.timestamp,
+                        org.apache.log4j.Level.toLevel(recorded.level, org.apache.log4j.Level.INFO),
+                        recorded.message,
+                        recorded.threadName,
+                        recorded.thrown != null ? new ThrowableInformation(recorded.thrown) : null,
+                        ndc.length() > 0 ? ndc.toString() : null,
+                        null,
+                        new HashMap<String, String>(recorded.labels));
+            }
+        }
+
+        @Override
+        void replay(int index) throws IOException {
+            final byte[] bytes = layout.format(events[index]).getBytes(StandardCharsets.UTF_8);
+            sink.write(bytes, 0, bytes.length);
+        }
+    }
+}
@@ -0,0 +1,260 @@
+/*-
+ * #%L
+ * Java ECS logging
+ * %%
+ * Copyright (C) 2019 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.logging.loadgen;
+
+import java.io.PrintStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Replays a corpus of log events with multiple threads through one of the ECS logging adapters,
+ * either at full speed or at a fixed rate, and reports the throughput, the latency distribution,
+ * the GC activity and the allocated bytes per event.
+ * <p>
+ * In contrast to the JMH benchmarks, which measure a single event shape on a single thread,
+ * this shows how the adapters behave under a realistic mix of events and contention on the destination.
+ * </p>
+ * <p>
+ * When a rate is given, the latency of an event is measured from the time it was scheduled to be logged,
+ * rather than from the time it was actually logged,
+ * so that stalls also account for the events which could not be logged while the stall lasted.
+ * </p>
+ */
+public class LoadGenerator {
+
+    private static final int WARMUP = 0;
+    private static final int MEASURE = 1;
+    private static final int DONE = 2;
+
+    public static void main(String[] args) throws Exception {
+        final Options options;
+        try {
+            options = Options.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.print(Options.USAGE);
+            System.exit(1);
+            return;
+        }
+        run(options).print(System.out);
+    }
+
+    static Result run(Options options) throws Exception {
+        final List<RecordedEvent> corpus = options.corpus != null
+                ? RecordedEvent.readNdJson(options.corpus)
+                : RecordedEvent.syntheticCorpus();
+        if (corpus.isEmpty()) {
+            throw new IllegalArgumentException("The corpus " + options.corpus + " does not contain any events");
+        }
+        try (Sink sink = Sink.create(options)) {
+            final Adapter adapter = Adapter.create(options.adapter, corpus, sink);
+            final Phase phase = new Phase();
+            final long intervalNanos = options.rate > 0 ? TimeUnit.SECONDS.toNanos(options.threads) / options.rate : 0;
+            final Worker[] workers = new Worker[options.threads];
+            for (int i = 0; i < workers.length; i++) {
+                workers[i] = new Worker(adapter, corpus.size(), i * corpus.size() / workers.length, intervalNanos, phase);
+                workers[i].setName("loadgen-" + i);
+                workers[i].setDaemon(true);
+                workers[i].start();
+            }
+
+            Thread.sleep(TimeUnit.SECONDS.toMillis(options.warmupSeconds));
+            final long gcCountBefore = getGcCount();
+            final long gcTimeBefore = getGcTimeMillis();
+            final long bytesBefore = sink.getBytesWritten();
+            final long start = System.nanoTime();
+            phase.value = MEASURE;
+            Thread.sleep(TimeUnit.SECONDS.toMillis(options.durationSeconds));
+            phase.value = DONE;
+            final long duration = System.nanoTime() - start;
+            final long bytes = sink.getBytesWritten() - bytesBefore;
+            final long gcCount = getGcCount() - gcCountBefore;
+            final long gcTime = getGcTimeMillis() - gcTimeBefore;
+
+            final Histogram latencies = new Histogram();
+            long allocatedBytes = 0;
+            for (Worker worker : workers) {
+                worker.join();
+                if (worker.error != null) {
+                    throw new IllegalStateException("Replaying events failed on " + worker.getName(), worker.error);
+                }
+                latencies.merge(worker.latencies);
+                allocatedBytes = allocatedBytes < 0 || worker.allocatedBytes < 0 ? -1 : allocatedBytes + worker.allocatedBytes;
+            }
+            adapter.flush();
+            return new Result(options, latencies, duration, bytes, gcCount, gcTime, allocatedBytes);
+        }
+    }
+
+    private static long getGcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, gc.getCollectionCount());
+        }
+        return count;
+    }
+
+    private static long getGcTimeMillis() {
+        long time = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            time += Math.max(0, gc.getCollectionTime());
+        }
+        return time;
+    }
+
+    /**
+     * @return the bytes allocated by the current thread so far, or {@code -1} if the JVM can't tell
+     */
+    private static long getAllocatedBytes() {
+        final ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        if (threadMXBean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) threadMXBean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    private static class Phase {
+        volatile int value = WARMUP;
+    }
+
+    private static class Worker extends Thread {
+
+        private final Adapter adapter;
+        private final int corpusSize;
+        private final int offset;
+        private final long intervalNanos;
+        private final Phase phase;
+        private final Histogram latencies = new Histogram();
+        private long allocatedBytes;
+        private volatile Throwable error;
+
+        private Worker(Adapter adapter, int corpusSize, int offset, long intervalNanos, Phase phase) {
+            this.adapter = adapter;
+            this.corpusSize = corpusSize;
+            this.offset = offset;
+            this.intervalNanos = intervalNanos;
+            this.phase = phase;
+        }
+
+        @Override
+        public void run() {
+            try {
+                replay();
+            } catch (Throwable t) {
+                error = t;
+            }
+        }
+
+        private void replay() throws Exception {
+            // each thread starts at a different position in the corpus so that they don't log the same events in lockstep
+            int index = offset;
+            long nextEvent = System.nanoTime();
+            boolean measuring = false;
+            long allocatedBefore = 0;
+            int currentPhase;
+            while ((currentPhase = phase.value) != DONE) {
+                if (!measuring && currentPhase == MEASURE) {
+                    measuring = true;
+                    allocatedBefore = getAllocatedBytes();
+                }
+                final long scheduled;
+                if (intervalNanos > 0) {
+                    scheduled = nextEvent;
+                    nextEvent += intervalNanos;
+                    long remaining;
+                    while ((remaining = scheduled - System.nanoTime()) > 0) {
+                        LockSupport.parkNanos(remaining);
+                    }
+                } else {
+                    scheduled = System.nanoTime();
+                }
+                adapter.replay(index);
+                if (measuring) {
+                    latencies.record(System.nanoTime() - scheduled);
+                }
+                if (++index == corpusSize) {
+                    index = 0;
+                }
+            }
+            allocatedBytes = allocatedBefore < 0 || !measuring ? -1 : getAllocatedBytes() - allocatedBefore;
+        }
+    }
+
+    static class Result {
+
+        private final Options options;
+        private final Histogram latencies;
+        private final long durationNanos;
+        private final long bytes;
+        private final long gcCount;
+        private final long gcTimeMillis;
+        private final long allocatedBytes;
+
+        private Result(Options options, Histogram latencies, long durationNanos, long bytes, long gcCount, long gcTimeMillis, long allocatedBytes) {
+            this.options = options;
+            this.latencies = latencies;
+            this.durationNanos = durationNanos;
+            this.bytes = bytes;
+            this.gcCount = gcCount;
+            this.gcTimeMillis = gcTimeMillis;
+            this.allocatedBytes = allocatedBytes;
+        }
+
+        long getEvents() {
+            return latencies.getCount();
+        }
+
+        long getBytes() {
+            return bytes;
+        }
+
+        void print(PrintStream out) {
+            final double seconds = durationNanos / 1e9;
+            final long events = getEvents();
+            out.printf("adapter=%s threads=%d rate=%s sink=%s%n", options.adapter, options.threads,
+                    options.rate > 0 ? options.rate + "/s" : "full speed", options.sink);
+            out.printf("throughput: %.0f events/s, %.2f MB/s (%d events in %.1f s)%n",
+                    events / seconds, bytes / seconds / (1024 * 1024), events, seconds);
+            out.printf("latency (us): p50=%.1f p90=%.1f p99=%.1f p99.9=%.1f max=%.1f%n",
+                    micros(latencies.getPercentile(50)), micros(latencies.getPercentile(90)),
+                    micros(latencies.getPercentile(99)), micros(latencies.getPercentile(99.9)),
+                    micros(latencies.getMax()));
+            out.printf("gc: %d collections, %d ms%n", gcCount, gcTimeMillis);
+            if (allocatedBytes >= 0 && events > 0) {
+                out.printf("allocation: %d bytes/event%n", allocatedBytes / events);
+            } else {
+                out.println("allocation: not supported by this JVM");
+            }
+        }
+
+        private static double micros(long nanos) {
+            return nanos / 1000.0;
+        }
+    }
+}
@@ -0,0 +1,101 @@
+/*-
+ * #%L
+ * Java ECS logging
+ * %%
+ * Copyright (C) 2019 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.logging.loadgen;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The command line options of the {@link LoadGenerator}, in the form of {@code --name=value}.
+ */
+class Options {
+
+    static final String USAGE = "Usage: java -jar loadgen.jar [options]\n" +
+            "  --adapter=log4j2|logback|log4j  the adapter to serialize events with (default: log4j2)\n" +
+            "  --corpus=<file>                 ECS NDJSON file with the events to replay (default: a synthetic event mix)\n" +
+            "  --threads=<n>                   the number of threads replaying events (default: 4)\n" +
+            "  --rate=<events per second>      the target rate across all threads, 0 means full speed (default: 0)\n" +
+            "  --duration=<seconds>            how long to measure (default: 30)\n" +
+            "  --warmup=<seconds>              how long to replay events before measuring (default: 10)\n" +
+            "  --sink=null|file|mmap           where to write the serialized events (default: null)\n" +
+            "  --output=<file>                 the file of the file and mmap sinks (default: loadgen.ndjson)\n" +
+            "  --mmap-size=<bytes>             the size of the mapped region, which is overwritten once full (default: 268435456)\n";
+
+    final String adapter;
+    final String corpus;
+    final int threads;
+    final long rate;
+    final long durationSeconds;
+    final long warmupSeconds;
+    final String sink;
+    final String output;
+    final long mmapSize;
+
+    Options(String adapter, String corpus, int threads, long rate, long durationSeconds, long warmupSeconds,
+            String sink, String output, long mmapSize) {
+        this.adapter = adapter;
+        this.corpus = corpus;
+        this.threads = threads;
+        this.rate = rate;
+        this.durationSeconds = durationSeconds;
+        this.warmupSeconds = warmupSeconds;
+        this.sink = sink;
+        this.output = output;
+        this.mmapSize = mmapSize;
+    }
+
+    static Options parse(String... args) {
+        final Map<String, String> values = new HashMap<>();
+        for (String arg : args) {
+            final int separator = arg.indexOf('=');
+            if (!arg.startsWith("--") || separator < 0) {
+                throw new IllegalArgumentException("Invalid option " + arg);
+            }
+            values.put(arg.substring(2, separator), arg.substring(separator + 1));
+        }
+        final Options options = new Options(
+                remove(values, "adapter", "log4j2"),
+                remove(values, "corpus", null),
+                Integer.parseInt(remove(values, "threads", "4")),
+                Long.parseLong(remove(values, "rate", "0")),
+                Long.parseLong(remove(values, "duration", "30")),
+                Long.parseLong(remove(values, "warmup", "10")),
+                remove(values, "sink", "null"),
+                remove(values, "output", "loadgen.ndjson"),
+                Long.parseLong(remove(values, "mmap-size", String.valueOf(256 * 1024 * 1024))));
+        if (!values.isEmpty()) {
+            throw new IllegalArgumentException("Unknown options " + values.keySet());
+        }
+        if (options.threads < 1) {
+            throw new IllegalArgumentException("--threads must be at least 1");
+        }
+        return options;
+    }
+
+    private static String remove(Map<String, String> values, String name, String defaultValue) {
+        final String value = values.remove(name);
+        return value != null ? value : defaultValue;
+    }
+}
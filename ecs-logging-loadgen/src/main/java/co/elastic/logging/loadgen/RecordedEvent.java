@@ -0,0 +1,220 @@
+/*-
+ * #%L
+ * Java ECS logging
+ * %%
+ * Copyright (C) 2019 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.logging.loadgen;
+
+import co.elastic.logging.EcsJsonReader;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * An event of the replayed corpus, independent of a particular logging framework.
+ * Each adapter converts it into the native event of its framework once, before the replay starts.
+ */
+class RecordedEvent {
+
+    private static final Pattern STACK_TRACE_ELEMENT = Pattern.compile("\\s*at (.+)\\.([^.]+)\\((.*)\\)");
+    private static final List<String> TOP_LEVEL_LABELS = Arrays.asList("trace.id", "transaction.id", "span.id");
+
+    final long timestamp;
+    final String level;
+    final String loggerName;
+    final String threadName;
+    final String message;
+    final Map<String, String> labels;
+    final List<String> tags;
+    final Throwable thrown;
+
+    RecordedEvent(long timestamp, String level, String loggerName, String threadName, String message,
+                  Map<String, String> labels, List<String> tags, Throwable thrown) {
+        this.timestamp = timestamp;
+        this.level = level;
+        this.loggerName = loggerName;
+        this.threadName = threadName;
+        this.message = message;
+        this.labels = labels;
+        this.tags = tags;
+        this.thrown = thrown;
+    }
+
+    /**
+     * Reads events in the format written by the ECS layouts and encoders, one JSON object per line.
+     * Stack traces, which are part of the message or the {@code error.message}, are turned into a {@link ReplayedException}.
+     */
+    static List<RecordedEvent> readNdJson(String file) throws IOException {
+        final ObjectMapper objectMapper = new ObjectMapper();
+        final List<RecordedEvent> events = new ArrayList<>();
+        try (EcsJsonReader reader = EcsJsonReader.open(new File(file))) {
+            while (reader.next()) {
+                events.add(fromJson(reader, objectMapper));
+            }
+        }
+        if (events.isEmpty()) {
+            throw new IllegalArgumentException("The corpus " + file + " does not contain any events");
+        }
+        return events;
+    }
+
+    private static RecordedEvent fromJson(EcsJsonReader json, ObjectMapper objectMapper) throws IOException {
+        final Map<String, String> labels = new LinkedHashMap<>();
+        final List<String> tags = new ArrayList<>();
+        for (int i = 0; i < json.getFieldCount(); i++) {
+            final String key = json.getKey(i);
+            if (key.startsWith("labels.")) {
+                labels.put(key.substring("labels.".length()), json.getString(i));
+            } else if (TOP_LEVEL_LABELS.contains(key)) {
+                labels.put(key, json.getString(i));
+            } else if (key.equals("tags") && json.getType(i) == EcsJsonReader.Type.ARRAY) {
+                for (JsonNode tag : objectMapper.readTree(json.getString(i))) {
+                    tags.add(tag.asText());
+                }
+            }
+        }
+        String message = text(json, "message", "");
+        Throwable thrown = null;
+        final String errorMessage = json.getString("error.message");
+        if (errorMessage != null) {
+            thrown = ReplayedException.parse(errorMessage);
+        } else {
+            final int stackTraceStart = message.indexOf("\n\tat ");
+            if (stackTraceStart >= 0) {
+                final int exceptionStart = message.lastIndexOf('\n', stackTraceStart - 1);
+                thrown = ReplayedException.parse(message.substring(exceptionStart + 1));
+                message = message.substring(0, Math.max(0, exceptionStart));
+            }
+        }
+        return new RecordedEvent(
+                json.indexOf("@timestamp") >= 0 ? json.getTimestamp() : System.currentTimeMillis(),
+                text(json, "log.level", "INFO").trim(),
+                text(json, "log.logger", "co.elastic.logging.loadgen.LoadGenerator"),
+                text(json, "process.thread.name", "main"),
+                message,
+                labels,
+                tags,
+                thrown);
+    }
+
+    private static String text(EcsJsonReader json, String field, String defaultValue) {
+        final String value = json.getString(field);
+        return value != null ? value : defaultValue;
+    }
+
+    /**
+     * A deterministic mix of short messages, messages with labels and tags, long messages and exceptions.
+     */
+    static List<RecordedEvent> syntheticCorpus() {
+        final List<RecordedEvent> events = new ArrayList<>();
+        final long now = System.currentTimeMillis();
+        final Map<String, String> labels = new LinkedHashMap<>();
+        labels.put("trace.id", "0af7651916cd43dd8448eb211c80319c");
+        labels.put("transaction.id", "b7ad6b7169203331");
+        labels.put("user.id", "42");
+        labels.put("http.request.method", "GET");
+        final StringBuilder longMessage = new StringBuilder();
+        for (int i = 0; i < 40; i++) {
+            longMessage.append("Processed batch ").append(i).append(" with \"quoted\" values\tand tabs; ");
+        }
+        final Exception exception = new IllegalStateException("Something went wrong");
+        exception.setStackTrace(new StackTraceElement[]{
+                new StackTraceElement("com.example.OrderService", "placeOrder", "OrderService.java", 117),
+                new StackTraceElement("com.example.OrderController", "post", "OrderController.java", 42),
+                new StackTraceElement("java.lang.Thread", "run", "Thread.java", 748),
+        });
+        for (int i = 0; i < 100; i++) {
+            final String logger = "com.example.Service" + i % 7;
+            if (i % 20 == 0) {
+                events.add(new RecordedEvent(now, "ERROR", logger, "http-nio-8080-exec-" + i % 10, "Failed to place order " + i,
+                        labels, Collections.<String>emptyList(), exception));
+            } else if (i % 10 == 1) {
+                events.add(new RecordedEvent(now, "DEBUG", logger, "worker-" + i % 4, longMessage.toString(),
+                        Collections.<String, String>emptyMap(), Collections.<String>emptyList(), null));
+            } else if (i % 5 == 2) {
+                events.add(new RecordedEvent(now, "INFO", logger, "http-nio-8080-exec-" + i % 10, "Handled request " + i + " in 12ms",
+                        labels, Collections.singletonList("request"), null));
+            } else {
+                events.add(new RecordedEvent(now, "INFO", logger, "main", "Cache refreshed, " + i + " entries",
+                        Collections.<String, String>emptyMap(), Collections.<String>emptyList(), null));
+            }
+        }
+        return events;
+    }
+
+    /**
+     * An exception which prints the class name and the stack trace of a recorded stack trace.
+     * Frames of causes are not restored.
+     */
+    static class ReplayedException extends RuntimeException {
+
+        private final String header;
+
+        private ReplayedException(String header) {
+            super(header, null, false, true);
+            this.header = header;
+        }
+
+        static ReplayedException parse(String stackTrace) {
+            final String[] lines = stackTrace.split("\r?\n");
+            final ReplayedException exception = new ReplayedException(lines[0]);
+            final List<StackTraceElement> elements = new ArrayList<>();
+            for (int i = 1; i < lines.length; i++) {
+                final Matcher matcher = STACK_TRACE_ELEMENT.matcher(lines[i]);
+                if (matcher.matches()) {
+                    final String location = matcher.group(3);
+                    final int colon = location.lastIndexOf(':');
+                    int lineNumber = -1;
+                    String fileName = location;
+                    if (colon > 0) {
+                        fileName = location.substring(0, colon);
+                        try {
+                            lineNumber = Integer.parseInt(location.substring(colon + 1));
+                        } catch (NumberFormatException ignore) {
+                            fileName = location;
+                        }
+                    }
+                    elements.add(new StackTraceElement(matcher.group(1), matcher.group(2), fileName, lineNumber));
+                } else if (lines[i].trim().startsWith("Caused by:")) {
+                    break;
+                }
+            }
+            exception.setStackTrace(elements.toArray(new StackTraceElement[0]));
+            return exception;
+        }
+
+        @Override
+        public String toString() {
+            return header;
+        }
+    }
+}
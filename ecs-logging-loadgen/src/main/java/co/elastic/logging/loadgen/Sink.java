@@ -0,0 +1,175 @@
+/*-
+ * #%L
+ * Java ECS logging
+ * %%
+ * Copyright (C) 2019 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.logging.loadgen;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Where the serialized events are written to.
+ * Sinks are shared by all threads, just like an appender, and therefore synchronized.
+ */
+abstract class Sink implements Closeable {
+
+    private final AtomicLong bytesWritten = new AtomicLong();
+
+    static Sink create(Options options) throws IOException {
+        switch (options.sink) {
+            case "null":
+                return new NullSink();
+            case "file":
+                return new FileSink(options.output);
+            case "mmap":
+                return new MmapSink(options.output, options.mmapSize);
+            default:
+                throw new IllegalArgumentException("Unknown sink " + options.sink);
+        }
+    }
+
+    final void write(byte[] bytes, int offset, int length) throws IOException {
+        bytesWritten.addAndGet(length);
+        doWrite(bytes, offset, length);
+    }
+
+    final void write(ByteBuffer buffer) throws IOException {
+        bytesWritten.addAndGet(buffer.remaining());
+        doWrite(buffer);
+    }
+
+    long getBytesWritten() {
+        return bytesWritten.get();
+    }
+
+    protected abstract void doWrite(byte[] bytes, int offset, int length) throws IOException;
+
+    protected abstract void doWrite(ByteBuffer buffer) throws IOException;
+
+    @Override
+    public void close() throws IOException {
+    }
+
+    /**
+     * Discards all events, which shows the cost of serialization alone.
+     */
+    static class NullSink extends Sink {
+
+        @Override
+        protected void doWrite(byte[] bytes, int offset, int length) {
+        }
+
+        @Override
+        protected void doWrite(ByteBuffer buffer) {
+            buffer.position(buffer.limit());
+        }
+    }
+
+    /**
+     * Appends to a file through a buffer, similar to a buffered file appender.
+     */
+    static class FileSink extends Sink {
+
+        private final OutputStream outputStream;
+
+        FileSink(String file) throws IOException {
+            outputStream = new BufferedOutputStream(new FileOutputStream(file), 256 * 1024);
+        }
+
+        @Override
+        protected synchronized void doWrite(byte[] bytes, int offset, int length) throws IOException {
+            outputStream.write(bytes, offset, length);
+        }
+
+        @Override
+        protected synchronized void doWrite(ByteBuffer buffer) throws IOException {
+            if (buffer.hasArray()) {
+                outputStream.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+                buffer.position(buffer.limit());
+            } else {
+                while (buffer.hasRemaining()) {
+                    outputStream.write(buffer.get());
+                }
+            }
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            outputStream.close();
+        }
+    }
+
+    /**
+     * Writes to a memory mapped region of a file.
+     * Once the region is full, it's overwritten from the start, so that arbitrarily long runs don't need arbitrarily large files.
+     */
+    static class MmapSink extends Sink {
+
+        private final FileChannel channel;
+        private final MappedByteBuffer buffer;
+
+        MmapSink(String file, long size) throws IOException {
+            channel = FileChannel.open(Paths.get(file), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+
+        @Override
+        protected synchronized void doWrite(byte[] bytes, int offset, int length) {
+            if (length > buffer.capacity()) {
+                return;
+            }
+            if (buffer.remaining() < length) {
+                buffer.clear();
+            }
+            buffer.put(bytes, offset, length);
+        }
+
+        @Override
+        protected synchronized void doWrite(ByteBuffer data) {
+            if (data.remaining() > buffer.capacity()) {
+                data.position(data.limit());
+                return;
+            }
+            if (buffer.remaining() < data.remaining()) {
+                buffer.clear();
+            }
+            buffer.put(data);
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            buffer.force();
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,179 @@
+/*-
+ * #%L
+ * Java ECS logging
+ * %%
+ * Copyright (C) 2019 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.logging.loadgen;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.lang.management.ClassLoadingMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Measures the time to the first serialized event and the number of classes loaded to get there, for each adapter.
+ * <p>
+ * Every run starts a new JVM, as the cost of class loading and static initialization is only paid once per JVM.
+ * The time is measured both from the point the adapter is created and from the start of the JVM.
+ * </p>
+ * <pre>
+ * java -cp ecs-logging-loadgen/target/loadgen.jar co.elastic.logging.loadgen.StartupBenchmark --runs=20
+ * </pre>
+ */
+public class StartupBenchmark {
+
+    private static final String USAGE = "Usage: StartupBenchmark [--adapters=log4j2,logback,log4j] [--runs=10]\n";
+
+    public static void main(String[] args) throws Exception {
+        List<String> adapters = Arrays.asList("log4j2", "logback", "log4j");
+        int runs = 10;
+        for (String arg : args) {
+            if (arg.startsWith("--probe=")) {
+                probe(arg.substring("--probe=".length())).print(System.out);
+                return;
+            } else if (arg.startsWith("--adapters=")) {
+                adapters = Arrays.asList(arg.substring("--adapters=".length()).split(","));
+            } else if (arg.startsWith("--runs=")) {
+                runs = Integer.parseInt(arg.substring("--runs=".length()));
+            } else {
+                System.err.println("Unknown option " + arg);
+                System.err.print(USAGE);
+                System.exit(1);
+                return;
+            }
+        }
+        for (String adapter : adapters) {
+            run(adapter, runs).print(System.out);
+        }
+    }
+
+    static Summary run(String adapter, int runs) throws Exception {
+        final String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        final Summary summary = new Summary(adapter);
+        for (int i = 0; i < runs; i++) {
+            final Process process = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                    StartupBenchmark.class.getName(), "--probe=" + adapter)
+                    .redirectErrorStream(true)
+                    .start();
+            final List<String> output = new ArrayList<>();
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+                for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                    output.add(line);
+                }
+            }
+            if (process.waitFor() != 0 || output.isEmpty()) {
+                throw new IllegalStateException("The probe for " + adapter + " failed: " + output);
+            }
+            summary.add(Probe.parse(output.get(output.size() - 1)));
+        }
+        return summary;
+    }
+
+    /**
+     * Creates the adapter and serializes a single event in the current JVM.
+     * Only the first call in a JVM shows the startup cost.
+     */
+    static Probe probe(String adapter) throws Exception {
+        final ClassLoadingMXBean classLoading = ManagementFactory.getClassLoadingMXBean();
+        final long jvmStartMillis = ManagementFactory.getRuntimeMXBean().getStartTime();
+        final RecordedEvent event = new RecordedEvent(System.currentTimeMillis(), "INFO", "co.elastic.logging.Startup",
+                "main", "first", Collections.<String, String>emptyMap(), Collections.<String>emptyList(), null);
+        try (Sink sink = new Sink.NullSink()) {
+            final long classesBefore = classLoading.getTotalLoadedClassCount();
+            final long start = System.nanoTime();
+            Adapter.create(adapter, Collections.singletonList(event), sink).replay(0);
+            final long nanos = System.nanoTime() - start;
+            return new Probe(nanos, System.currentTimeMillis() - jvmStartMillis, classLoading.getTotalLoadedClassCount() - classesBefore);
+        }
+    }
+
+    static class Probe {
+        final long firstEventNanos;
+        final long sinceJvmStartMillis;
+        final long loadedClasses;
+
+        Probe(long firstEventNanos, long sinceJvmStartMillis, long loadedClasses) {
+            this.firstEventNanos = firstEventNanos;
+            this.sinceJvmStartMillis = sinceJvmStartMillis;
+            this.loadedClasses = loadedClasses;
+        }
+
+        static Probe parse(String line) {
+            final String[] values = line.split(" ");
+            if (values.length != 3) {
+                throw new IllegalArgumentException("Unexpected probe output: " + line);
+            }
+            return new Probe(Long.parseLong(values[0]), Long.parseLong(values[1]), Long.parseLong(values[2]));
+        }
+
+        void print(PrintStream out) {
+            out.println(firstEventNanos + " " + sinceJvmStartMillis + " " + loadedClasses);
+        }
+    }
+
+    static class Summary {
+        private final String adapter;
+        private final List<Probe> probes = new ArrayList<>();
+
+        Summary(String adapter) {
+            this.adapter = adapter;
+        }
+
+        void add(Probe probe) {
+            probes.add(probe);
+        }
+
+        List<Probe> getProbes() {
+            return probes;
+        }
+
+        void print(PrintStream out) {
+            final long[] firstEvent = new long[probes.size()];
+            final long[] sinceJvmStart = new long[probes.size()];
+            final long[] classes = new long[probes.size()];
+            for (int i = 0; i < probes.size(); i++) {
+                firstEvent[i] = probes.get(i).firstEventNanos;
+                sinceJvmStart[i] = probes.get(i).sinceJvmStartMillis;
+                classes[i] = probes.get(i).loadedClasses;
+            }
+            out.printf("adapter=%s runs=%d%n", adapter, probes.size());
+            out.printf("first event (ms): p50=%.1f p90=%.1f%n",
+                    percentile(firstEvent, 50) / 1e6, percentile(firstEvent, 90) / 1e6);
+            out.printf("since jvm start (ms): p50=%d p90=%d%n", percentile(sinceJvmStart, 50), percentile(sinceJvmStart, 90));
+            out.printf("loaded classes: p50=%d%n", percentile(classes, 50));
+        }
+
+        private static long percentile(long[] values, double percentile) {
+            final long[] sorted = values.clone();
+            Arrays.sort(sorted);
+            final int rank = (int) Math.ceil(sorted.length * percentile / 100);
+            return sorted[Math.max(0, rank - 1)];
+        }
+    }
+}
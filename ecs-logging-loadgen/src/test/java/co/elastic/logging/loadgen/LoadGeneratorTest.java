@@ -0,0 +1,128 @@
+/*-
+ * #%L
+ * Java ECS logging
+ * %%
+ * Copyright (C) 2019 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.logging.loadgen;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class LoadGeneratorTest {
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void testLog4j2() throws Exception {
+        assertReplaysSyntheticCorpus("log4j2");
+    }
+
+    @Test
+    void testLogback() throws Exception {
+        assertReplaysSyntheticCorpus("logback");
+    }
+
+    @Test
+    void testLog4j() throws Exception {
+        assertReplaysSyntheticCorpus("log4j");
+    }
+
+    @Test
+    void testReplaysRecordedCorpus() throws Exception {
+        Path corpus = tempDir.resolve("corpus.ndjson");
+        LoadGenerator.run(Options.parse("--adapter=log4j2", "--threads=1", "--rate=1000", "--duration=1", "--warmup=0",
+                "--sink=file", "--output=" + corpus));
+        Path output = tempDir.resolve("replayed.ndjson");
+        LoadGenerator.Result result = LoadGenerator.run(Options.parse("--adapter=log4j", "--corpus=" + corpus, "--threads=1", "--rate=1000",
+                "--duration=1", "--warmup=0", "--sink=file", "--output=" + output));
+
+        assertThat(result.getEvents()).isPositive();
+        JsonNode replayed = objectMapper.readTree(Files.readAllLines(output, StandardCharsets.UTF_8).get(0));
+        JsonNode recorded = objectMapper.readTree(Files.readAllLines(corpus, StandardCharsets.UTF_8).get(0));
+        assertThat(firstLine(replayed.get("message").textValue())).isEqualTo(firstLine(recorded.get("message").textValue()));
+        assertThat(replayed.get("log.logger").textValue()).isEqualTo(recorded.get("log.logger").textValue());
+    }
+
+    @Test
+    void testMmapSink() throws Exception {
+        Path output = tempDir.resolve("loadgen.mmap");
+        LoadGenerator.Result result = LoadGenerator.run(Options.parse("--rate=1000", "--duration=1", "--warmup=0",
+                "--sink=mmap", "--mmap-size=4096", "--output=" + output));
+        assertThat(result.getEvents()).isPositive();
+        assertThat(result.getBytes()).isGreaterThan(4096);
+        assertThat(Files.size(output)).isEqualTo(4096);
+    }
+
+    @Test
+    void testInvalidOptions() {
+        assertThatThrownBy(() -> Options.parse("--threads=0")).isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> Options.parse("--foo=bar")).isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> Options.parse("threads")).isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    void testHistogram() {
+        Histogram histogram = new Histogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i * 1000L);
+        }
+        assertThat(histogram.getCount()).isEqualTo(1000);
+        assertThat(histogram.getMax()).isEqualTo(1_000_000);
+        assertThat(histogram.getPercentile(50)).isBetween(500_000L, 500_000L * 107 / 100);
+        assertThat(histogram.getPercentile(99)).isBetween(990_000L, 1_000_000L);
+        assertThat(histogram.getPercentile(100)).isEqualTo(1_000_000);
+    }
+
+    private void assertReplaysSyntheticCorpus(String adapter) throws Exception {
+        Path output = tempDir.resolve(adapter + ".ndjson");
+        LoadGenerator.Result result = LoadGenerator.run(Options.parse("--adapter=" + adapter, "--threads=2", "--rate=2000",
+                "--duration=1", "--warmup=0", "--sink=file", "--output=" + output));
+
+        List<String> lines = Files.readAllLines(output, StandardCharsets.UTF_8);
+        assertThat(result.getEvents()).isPositive();
+        assertThat((long) lines.size()).isGreaterThanOrEqualTo(result.getEvents());
+        assertThat(result.getBytes()).isLessThanOrEqualTo(Files.size(output));
+        for (String line : lines) {
+            JsonNode event = objectMapper.readTree(line);
+            assertThat(event.get("@timestamp")).isNotNull();
+            assertThat(event.get("message")).isNotNull();
+        }
+    }
+
+    private static String firstLine(String message) {
+        int newLine = message.indexOf('\n');
+        return newLine < 0 ? message : message.substring(0, newLine);
+    }
+}
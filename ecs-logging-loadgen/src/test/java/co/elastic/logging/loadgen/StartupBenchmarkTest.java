@@ -0,0 +1,43 @@
+/*-
+ * #%L
+ * Java ECS logging
+ * %%
+ * Copyright (C) 2019 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.logging.loadgen;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class StartupBenchmarkTest {
+
+    @Test
+    void testProbesInNewJvm() throws Exception {
+        StartupBenchmark.Summary summary = StartupBenchmark.run("logback", 1);
+
+        assertThat(summary.getProbes()).hasSize(1);
+        StartupBenchmark.Probe probe = summary.getProbes().get(0);
+        assertThat(probe.firstEventNanos).isPositive();
+        assertThat(probe.loadedClasses).isPositive();
+        assertThat(probe.sinceJvmStartMillis).isGreaterThanOrEqualTo(probe.firstEventNanos / 1_000_000);
+    }
+}
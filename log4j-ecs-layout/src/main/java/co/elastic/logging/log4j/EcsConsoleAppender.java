@@ -0,0 +1,69 @@
+/*-
+ * #%L
+ * Java ECS logging
+ * %%
+ * Copyright (C) 2019 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.logging.log4j;
+
+import java.io.OutputStream;
+
+/**
+ * Writes events serialized by the {@link EcsLayout} to {@link System#out} or {@link System#err},
+ * see {@link EcsOutputStreamAppender}.
+ */
+public class EcsConsoleAppender extends EcsOutputStreamAppender {
+
+    public static final String SYSTEM_OUT = "System.out";
+    public static final String SYSTEM_ERR = "System.err";
+
+    private String target = SYSTEM_OUT;
+
+    public EcsConsoleAppender() {
+    }
+
+    public EcsConsoleAppender(EcsLayout layout) {
+        setLayout(layout);
+        activateOptions();
+    }
+
+    @Override
+    public void activateOptions() {
+        super.activateOptions();
+        setOutputStream(SYSTEM_ERR.equalsIgnoreCase(target) ? System.err : System.out);
+    }
+
+    @Override
+    protected void closeOutputStream(OutputStream outputStream) {
+        // System.out and System.err are not owned by this appender
+    }
+
+    public String getTarget() {
+        return target;
+    }
+
+    /**
+     * @param target either {@code System.out} or {@code System.err}
+     */
+    public void setTarget(String target) {
+        this.target = target == null ? SYSTEM_OUT : target.trim();
+    }
+}
@@ -0,0 +1,168 @@
+/*-
+ * #%L
+ * Java ECS logging
+ * %%
+ * Copyright (C) 2019 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.logging.log4j;
+
+import co.elastic.logging.TimestampIndex;
+import org.apache.log4j.spi.ErrorCode;
+import org.apache.log4j.spi.LoggingEvent;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Writes events serialized by the {@link EcsLayout} to a file, see {@link EcsOutputStreamAppender}.
+ * <p>
+ * If {@code timestampIndex} is enabled, a sparse {@link TimestampIndex} is maintained next to the file,
+ * which lets readers seek to a time window instead of scanning the whole file.
+ * </p>
+ */
+public class EcsFileAppender extends EcsOutputStreamAppender {
+
+    private String file;
+    private boolean append = true;
+    private boolean timestampIndex;
+    private int timestampIndexEvents = 10000;
+    private long timestampIndexMillis = 1000;
+    private TimestampIndex.Writer timestampIndexWriter;
+    private long fileOffset;
+
+    public EcsFileAppender() {
+    }
+
+    public EcsFileAppender(EcsLayout layout, String file) {
+        setLayout(layout);
+        setFile(file);
+        activateOptions();
+    }
+
+    @Override
+    public void activateOptions() {
+        super.activateOptions();
+        if (file == null) {
+            errorHandler.error("File option not set for appender [" + name + "].");
+            return;
+        }
+        try {
+            final File parent = new File(file).getAbsoluteFile().getParentFile();
+            if (parent != null && !parent.exists()) {
+                parent.mkdirs();
+            }
+            setOutputStream(new FileOutputStream(file, append));
+            fileOffset = new File(file).length();
+        } catch (IOException e) {
+            errorHandler.error("Failed to open the file [" + file + "] of the appender named [" + name + "].", e, ErrorCode.FILE_OPEN_FAILURE);
+            return;
+        }
+        closeTimestampIndex();
+        if (timestampIndex) {
+            try {
+                timestampIndexWriter = new TimestampIndex.Writer(TimestampIndex.getIndexFile(new File(file)), fileOffset,
+                        timestampIndexEvents, timestampIndexMillis);
+            } catch (IOException e) {
+                errorHandler.error("Failed to open the timestamp index of the appender named [" + name + "].", e, ErrorCode.FILE_OPEN_FAILURE);
+            }
+        }
+    }
+
+    @Override
+    protected void append(LoggingEvent event) {
+        if (timestampIndexWriter != null) {
+            try {
+                timestampIndexWriter.onEvent(event.getTimeStamp(), fileOffset + getPosition());
+            } catch (IOException e) {
+                errorHandler.error("Failed to write the timestamp index of the appender named [" + name + "].", e, ErrorCode.WRITE_FAILURE);
+                closeTimestampIndex();
+            }
+        }
+        super.append(event);
+    }
+
+    @Override
+    public synchronized void close() {
+        super.close();
+        closeTimestampIndex();
+    }
+
+    private void closeTimestampIndex() {
+        if (timestampIndexWriter != null) {
+            try {
+                timestampIndexWriter.close();
+            } catch (IOException e) {
+                errorHandler.error("Failed to close the timestamp index of the appender named [" + name + "].", e, ErrorCode.CLOSE_FAILURE);
+            }
+            timestampIndexWriter = null;
+        }
+    }
+
+    public String getFile() {
+        return file;
+    }
+
+    public void setFile(String file) {
+        this.file = file == null ? null : file.trim();
+    }
+
+    public boolean isAppend() {
+        return append;
+    }
+
+    public void setAppend(boolean append) {
+        this.append = append;
+    }
+
+    public boolean isTimestampIndex() {
+        return timestampIndex;
+    }
+
+    /**
+     * Maintains a {@link TimestampIndex} in a file next to the log file, named like the log file with an {@code .idx} suffix.
+     */
+    public void setTimestampIndex(boolean timestampIndex) {
+        this.timestampIndex = timestampIndex;
+    }
+
+    public int getTimestampIndexEvents() {
+        return timestampIndexEvents;
+    }
+
+    /**
+     * The maximum number of events between two entries of the timestamp index.
+     */
+    public void setTimestampIndexEvents(int timestampIndexEvents) {
+        this.timestampIndexEvents = timestampIndexEvents;
+    }
+
+    public long getTimestampIndexMillis() {
+        return timestampIndexMillis;
+    }
+
+    /**
+     * The maximum number of milliseconds between two entries of the timestamp index.
+     */
+    public void setTimestampIndexMillis(long timestampIndexMillis) {
+        this.timestampIndexMillis = timestampIndexMillis;
+    }
+}
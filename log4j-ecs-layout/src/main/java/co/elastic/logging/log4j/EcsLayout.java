@@ -24,32 +24,165 @@
  */
 package co.elastic.logging.log4j;
 
+import co.elastic.logging.DegradationPolicy;
 import co.elastic.logging.EcsJsonSerializer;
+import co.elastic.logging.EcsMetrics;
+import co.elastic.logging.FieldLimits;
+import co.elastic.logging.JsonNester;
+import co.elastic.logging.LabelsCache;
+import co.elastic.logging.Redactor;
+import co.elastic.logging.StringBuilderPool;
+import co.elastic.logging.Utf8Encoder;
 import org.apache.log4j.Layout;
+import org.apache.log4j.MDC;
 import org.apache.log4j.spi.LoggingEvent;
 
+import java.lang.reflect.Field;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 public class EcsLayout extends Layout {
 
+    private static final Field MDC_COPY_LOOKUP_REQUIRED = getLoggingEventField("mdcCopyLookupRequired");
+    private static final Field MDC_COPY = MDC_COPY_LOOKUP_REQUIRED != null ? getLoggingEventField("mdcCopy") : null;
+
     private String serviceName;
     private Set<String> topLevelLabels = new HashSet<String>(EcsJsonSerializer.DEFAULT_TOP_LEVEL_LABELS);
+    private String redactPattern;
+    private String redactedLabels;
+    private Redactor redactor;
+    private int maxMessageLength;
+    private int maxLabelValueLength;
+    private int maxStackTraceLength;
+    private int maxEventLength;
+    private FieldLimits fieldLimits = FieldLimits.NONE;
+    private boolean nestedObjects;
+    private JsonNester jsonNester;
+    private int degradeAboveEventsPerSecond;
+    private DegradationPolicy degradationPolicy;
+    private EcsMetrics metrics;
+    private final StringBuilderPool bufferPool = new StringBuilderPool();
+    private LabelsCache labelsCache = new LabelsCache(topLevelLabels, null, FieldLimits.NONE);
 
     @Override
     public String format(LoggingEvent event) {
-        StringBuilder builder = new StringBuilder();
+        final StringBuilder builder = bufferPool.acquire();
+        try {
+            serialize(event, builder);
+            return builder.toString();
+        } finally {
+            if (bufferPool.release(builder) && EcsMetrics.ENABLED && metrics != null) {
+                metrics.onBufferTrim();
+            }
+        }
+    }
+
+    /**
+     * Serializes the event into the builder.
+     * This lets {@link EcsFileAppender} and {@link EcsConsoleAppender} encode the event without the {@link String}
+     * {@link #format(LoggingEvent)} has to return.
+     */
+    void serialize(LoggingEvent event, StringBuilder builder) {
+        final long start = EcsMetrics.ENABLED && metrics != null ? metrics.onEventStart() : EcsMetrics.NOT_SAMPLED;
+        final int initialCapacity = builder.capacity();
+        final int eventStart = builder.length();
+        final boolean degraded = degradationPolicy != null && degradationPolicy.onEvent(event.getTimeStamp());
         EcsJsonSerializer.serializeObjectStart(builder, event.getTimeStamp());
         EcsJsonSerializer.serializeLogLevel(builder, event.getLevel().toString());
         Throwable thrown = event.getThrowableInformation() != null ? event.getThrowableInformation().getThrowable() : null;
-        EcsJsonSerializer.serializeFormattedMessage(builder, event.getRenderedMessage(), thrown);
+        boolean truncated;
+        if (degraded) {
+            truncated = serializeDegradedMessage(builder, event.getRenderedMessage(), thrown);
+        } else {
+            truncated = EcsJsonSerializer.serializeFormattedMessage(builder, event.getRenderedMessage(), thrown, redactor, fieldLimits);
+        }
         EcsJsonSerializer.serializeServiceName(builder, serviceName);
-        EcsJsonSerializer.serializeThreadName(builder, event.getThreadName());
+        if (!degraded) {
+            EcsJsonSerializer.serializeThreadName(builder, event.getThreadName());
+        }
         EcsJsonSerializer.serializeLoggerName(builder, event.getLoggerName());
-        EcsJsonSerializer.serializeLabels(builder, event.getProperties(), topLevelLabels);
+        if (degraded) {
+            truncated |= labelsCache.serializeTopLevelLabels(builder, getMdc(event));
+        } else {
+            truncated |= labelsCache.serializeLabels(builder, getMdc(event));
+        }
         EcsJsonSerializer.serializeTag(builder, event.getNDC());
+        if (truncated) {
+            EcsJsonSerializer.serializeTruncatedMarker(builder);
+        }
+        if (degraded) {
+            EcsJsonSerializer.serializeDegradedMarker(builder);
+        }
         EcsJsonSerializer.serializeObjectEnd(builder);
-        return builder.toString();
+        if (jsonNester != null) {
+            final StringBuilder scratch = bufferPool.acquire();
+            try {
+                jsonNester.nest(builder, eventStart, scratch);
+            } finally {
+                bufferPool.release(scratch, false);
+            }
+        }
+        if (EcsMetrics.ENABLED && metrics != null) {
+            if (builder.capacity() > initialCapacity) {
+                metrics.onBufferGrowth();
+            }
+            metrics.onEventEnd(start, Utf8Encoder.encodedLength(builder, eventStart, builder.length()), thrown != null, truncated);
+        }
+    }
+
+    /**
+     * Serializes the message and only the first line of the stack trace, without the stack frames.
+     */
+    private boolean serializeDegradedMessage(StringBuilder builder, String message, Throwable thrown) {
+        boolean truncated = EcsJsonSerializer.serializeFormattedMessage(builder, message, null, redactor, fieldLimits);
+        if (thrown != null) {
+            // remove `", `
+            builder.setLength(builder.length() - 3);
+            builder.append("\\n");
+            truncated |= EcsJsonSerializer.serializeThrowableSummary(builder, thrown.getClass().getName(), thrown.getMessage(), redactor, fieldLimits);
+            builder.append("\", ");
+        }
+        return truncated;
+    }
+
+    /**
+     * Returns the MDC of the event without calling {@link LoggingEvent#getProperties()},
+     * which copies the MDC of the current thread for each event.
+     * <p>
+     * If an appender, such as the {@link org.apache.log4j.AsyncAppender}, has already taken a copy,
+     * or the event has been created with properties, the copy is returned.
+     * Otherwise, the event is still being appended on the thread which logged it and the MDC of the current thread is returned as-is.
+     * </p>
+     */
+    @SuppressWarnings("unchecked")
+    static Map<String, ?> getMdc(LoggingEvent event) {
+        if (MDC_COPY != null) {
+            try {
+                final Map<String, ?> mdc = MDC_COPY_LOOKUP_REQUIRED.getBoolean(event) ? MDC.getContext() : (Map<String, ?>) MDC_COPY.get(event);
+                return mdc != null ? mdc : Collections.<String, Object>emptyMap();
+            } catch (IllegalAccessException ignore) {
+                // fall through
+            }
+        }
+        return event.getProperties();
+    }
+
+    private static Field getLoggingEventField(String name) {
+        try {
+            final Field field = LoggingEvent.class.getDeclaredField(name);
+            field.setAccessible(true);
+            return field;
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    EcsMetrics getMetrics() {
+        return metrics;
     }
 
     @Override
@@ -59,10 +192,63 @@ public class EcsLayout extends Layout {
 
     @Override
     public void activateOptions() {
-
+        List<String> patterns = redactPattern == null ? Collections.<String>emptyList() : Collections.singletonList(redactPattern);
+        List<String> keys = redactedLabels == null ? Collections.<String>emptyList() : Arrays.asList(redactedLabels.split("\\s*,\\s*"));
+        redactor = Redactor.create(patterns, keys);
+        fieldLimits = FieldLimits.create(maxMessageLength, maxLabelValueLength, maxStackTraceLength, maxEventLength);
+        labelsCache = new LabelsCache(topLevelLabels, redactor, fieldLimits);
+        jsonNester = nestedObjects ? new JsonNester() : null;
+        degradationPolicy = DegradationPolicy.create(degradeAboveEventsPerSecond, 0, null);
+        metrics = EcsMetrics.forComponent("log4j-ecs-layout", serviceName);
     }
 
     public void setServiceName(String serviceName) {
         this.serviceName = serviceName;
     }
+
+    /**
+     * Matches of this regular expression are masked in the message, the stack trace and label values.
+     */
+    public void setRedactPattern(String redactPattern) {
+        this.redactPattern = redactPattern;
+    }
+
+    /**
+     * A comma-separated list of label keys whose values are masked entirely.
+     */
+    public void setRedactedLabels(String redactedLabels) {
+        this.redactedLabels = redactedLabels;
+    }
+
+    public void setMaxMessageLength(int maxMessageLength) {
+        this.maxMessageLength = maxMessageLength;
+    }
+
+    public void setMaxLabelValueLength(int maxLabelValueLength) {
+        this.maxLabelValueLength = maxLabelValueLength;
+    }
+
+    public void setMaxStackTraceLength(int maxStackTraceLength) {
+        this.maxStackTraceLength = maxStackTraceLength;
+    }
+
+    public void setMaxEventLength(int maxEventLength) {
+        this.maxEventLength = maxEventLength;
+    }
+
+    /**
+     * Writes dotted keys as nested objects, for example {@code "log":{"level":"INFO"}} instead of {@code "log.level":"INFO"}.
+     */
+    public void setNestedObjects(boolean nestedObjects) {
+        this.nestedObjects = nestedObjects;
+    }
+
+    /**
+     * Serializes events in a compact form while more than this many events per second are formatted.
+     * Degraded events don't contain stack frames, labels which are not top-level and thread names.
+     * Full detail is restored once the rate has fallen below half of this threshold.
+     */
+    public void setDegradeAboveEventsPerSecond(int degradeAboveEventsPerSecond) {
+        this.degradeAboveEventsPerSecond = degradeAboveEventsPerSecond;
+    }
 }
@@ -0,0 +1,205 @@
+/*-
+ * #%L
+ * Java ECS logging
+ * %%
+ * Copyright (C) 2019 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.logging.log4j;
+
+import co.elastic.logging.EcsMetrics;
+import co.elastic.logging.StringBuilderPool;
+import co.elastic.logging.Utf8Encoder;
+import org.apache.log4j.AppenderSkeleton;
+import org.apache.log4j.Layout;
+import org.apache.log4j.spi.ErrorCode;
+import org.apache.log4j.spi.LoggingEvent;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+
+/**
+ * Writes events serialized by the {@link EcsLayout} as UTF-8 to an {@link OutputStream}.
+ * <p>
+ * Unlike log4j's {@link org.apache.log4j.WriterAppender}, this appender does not go through
+ * {@link Layout#format(LoggingEvent)}, which has to return a new {@link String} for each event,
+ * and a {@link java.io.Writer}, which encodes that {@link String} once more.
+ * Instead, it serializes the event into a pooled {@link StringBuilder} and encodes it straight into a reused byte buffer.
+ * </p>
+ * <p>
+ * If {@code immediateFlush} is {@code false}, the buffer is only written to the stream once it is full,
+ * which saves a system call per event at the risk of losing the buffered events if the application crashes.
+ * </p>
+ */
+public class EcsOutputStreamAppender extends AppenderSkeleton {
+
+    private static final int DEFAULT_BUFFER_SIZE = 8 * 1024;
+    private static final int MIN_BUFFER_SIZE = 16;
+
+    private final StringBuilderPool bufferPool = new StringBuilderPool();
+    private boolean immediateFlush = true;
+    private int bufferSize = DEFAULT_BUFFER_SIZE;
+    private OutputStream outputStream;
+    private ByteBuffer buffer;
+    private long drainedBytes;
+
+    public EcsOutputStreamAppender() {
+    }
+
+    public EcsOutputStreamAppender(EcsLayout layout, OutputStream outputStream) {
+        setLayout(layout);
+        setOutputStream(outputStream);
+    }
+
+    @Override
+    public void activateOptions() {
+        if (layout == null) {
+            final EcsLayout ecsLayout = new EcsLayout();
+            ecsLayout.activateOptions();
+            layout = ecsLayout;
+        }
+    }
+
+    /**
+     * Sets the stream to write to, closing the current one.
+     */
+    public synchronized void setOutputStream(OutputStream outputStream) {
+        closeOutputStream();
+        this.outputStream = outputStream;
+        this.buffer = ByteBuffer.allocate(bufferSize);
+        this.drainedBytes = 0;
+    }
+
+    @Override
+    protected void append(LoggingEvent event) {
+        if (outputStream == null) {
+            errorHandler.error("No output stream set for the appender named [" + name + "].");
+            return;
+        }
+        final StringBuilder builder = bufferPool.acquire();
+        try {
+            if (layout instanceof EcsLayout) {
+                ((EcsLayout) layout).serialize(event, builder);
+            } else {
+                builder.append(layout.format(event));
+            }
+            encode(builder);
+            if (immediateFlush) {
+                flush();
+            }
+        } catch (IOException e) {
+            errorHandler.error("Failed to write to the appender named [" + name + "].", e, ErrorCode.WRITE_FAILURE);
+        } finally {
+            if (bufferPool.release(builder) && EcsMetrics.ENABLED && layout instanceof EcsLayout
+                    && ((EcsLayout) layout).getMetrics() != null) {
+                ((EcsLayout) layout).getMetrics().onBufferTrim();
+            }
+        }
+    }
+
+    private void encode(CharSequence content) throws IOException {
+        final int length = content.length();
+        int i = 0;
+        while ((i = Utf8Encoder.encode(content, i, length, buffer)) < length) {
+            drain();
+        }
+    }
+
+    private void drain() throws IOException {
+        if (buffer.position() > 0) {
+            outputStream.write(buffer.array(), buffer.arrayOffset(), buffer.position());
+            drainedBytes += buffer.position();
+            // casting to Buffer avoids binding to the covariant override added in Java 9
+            ((Buffer) buffer).clear();
+        }
+    }
+
+    /**
+     * @return the number of bytes written to the current stream so far, including the buffered ones,
+     * which is where the next event starts relative to where the stream started
+     */
+    protected long getPosition() {
+        return buffer != null ? drainedBytes + buffer.position() : 0;
+    }
+
+    /**
+     * Writes the buffered events to the stream and flushes it.
+     */
+    public synchronized void flush() throws IOException {
+        if (outputStream != null) {
+            drain();
+            outputStream.flush();
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        closeOutputStream();
+    }
+
+    private void closeOutputStream() {
+        if (outputStream != null) {
+            try {
+                flush();
+                closeOutputStream(outputStream);
+            } catch (IOException e) {
+                errorHandler.error("Failed to close the appender named [" + name + "].", e, ErrorCode.CLOSE_FAILURE);
+            }
+            outputStream = null;
+        }
+    }
+
+    /**
+     * Closes the stream, unless it is owned by someone else, such as {@link System#out}.
+     */
+    protected void closeOutputStream(OutputStream outputStream) throws IOException {
+        outputStream.close();
+    }
+
+    @Override
+    public boolean requiresLayout() {
+        return true;
+    }
+
+    public boolean isImmediateFlush() {
+        return immediateFlush;
+    }
+
+    public void setImmediateFlush(boolean immediateFlush) {
+        this.immediateFlush = immediateFlush;
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * Sets the size of the byte buffer, which takes effect when the next output stream is set.
+     */
+    public void setBufferSize(int bufferSize) {
+        this.bufferSize = Math.max(MIN_BUFFER_SIZE, bufferSize);
+    }
+}
@@ -0,0 +1,148 @@
+/*-
+ * #%L
+ * Java ECS logging
+ * %%
+ * Copyright (C) 2019 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.logging.log4j;
+
+import co.elastic.logging.AbstractEcsLoggingTest;
+import co.elastic.logging.EcsJsonReader;
+import co.elastic.logging.TimestampIndex;
+import com.fasterxml.jackson.databind.JsonNode;
+import org.apache.log4j.Level;
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+import org.apache.log4j.MDC;
+import org.apache.log4j.NDC;
+import org.apache.log4j.spi.LoggingEvent;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class EcsFileAppenderTest extends AbstractEcsLoggingTest {
+
+    @TempDir
+    Path tempDir;
+    private Path file;
+    private Logger logger;
+    private EcsFileAppender appender;
+
+    @BeforeEach
+    void setUp() {
+        file = tempDir.resolve("logs").resolve("test.ndjson");
+        logger = LogManager.getLogger(getClass());
+        logger.removeAllAppenders();
+        EcsLayout ecsLayout = new EcsLayout();
+        ecsLayout.setServiceName("test");
+        ecsLayout.setRedactPattern("\\d{4}-\\d{4}-\\d{4}-\\d{4}");
+        ecsLayout.setRedactedLabels("password");
+        ecsLayout.setMaxMessageLength(1000);
+        ecsLayout.setMaxLabelValueLength(100);
+        ecsLayout.activateOptions();
+        appender = new EcsFileAppender(ecsLayout, file.toString());
+        logger.addAppender(appender);
+    }
+
+    @BeforeEach
+    @AfterEach
+    void tearDown() {
+        MDC.clear();
+        NDC.clear();
+        if (appender != null) {
+            appender.close();
+        }
+    }
+
+    @Test
+    void testBufferedUntilFlushed() throws Exception {
+        appender.setImmediateFlush(false);
+        debug("buffered");
+        assertThat(Files.size(file)).isZero();
+        appender.flush();
+        assertThat(getLastLogLine().get("message").textValue()).isEqualTo("buffered");
+    }
+
+    @Test
+    void testEventsLargerThanBuffer() throws Exception {
+        appender.setBufferSize(16);
+        appender.activateOptions();
+        debug("äöü€😀 larger than the buffer");
+        assertThat(getLastLogLine().get("message").textValue()).isEqualTo("äöü€😀 larger than the buffer");
+    }
+
+    @Test
+    void testTimestampIndex() throws Exception {
+        appender.setTimestampIndex(true);
+        appender.setTimestampIndexEvents(10);
+        appender.setAppend(false);
+        appender.activateOptions();
+        long start = 1_565_000_000_000L;
+        for (int i = 0; i < 100; i++) {
+            appender.doAppend(new LoggingEvent(getClass().getName(), logger, start + i, Level.INFO, "event " + i, null));
+        }
+        appender.close();
+
+        TimestampIndex index = TimestampIndex.read(TimestampIndex.getIndexFile(file.toFile()));
+        assertThat(index.size()).isEqualTo(10);
+        try (EcsJsonReader reader = EcsJsonReader.open(file.toFile())) {
+            reader.seek(index.getOffset(start + 55));
+            assertThat(reader.next()).isTrue();
+            assertThat(reader.getString("message")).isEqualTo("event 50");
+        }
+    }
+
+    @Override
+    public void putMdc(String key, String value) {
+        MDC.put(key, value);
+    }
+
+    @Override
+    public boolean putNdc(String message) {
+        NDC.push(message);
+        return true;
+    }
+
+    @Override
+    public void debug(String message) {
+        logger.debug(message);
+    }
+
+    @Override
+    public void error(String message, Throwable t) {
+        logger.error(message, t);
+    }
+
+    @Override
+    public JsonNode getLastLogLine() throws IOException {
+        List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+        return objectMapper.readTree(lines.get(lines.size() - 1));
+    }
+}
@@ -0,0 +1,98 @@
+/*-
+ * #%L
+ * Java ECS logging
+ * %%
+ * Copyright (C) 2019 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.logging.log4j;
+
+import co.elastic.logging.AllocationMeter;
+import org.apache.log4j.Level;
+import org.apache.log4j.LogManager;
+import org.apache.log4j.spi.LoggingEvent;
+import org.apache.log4j.spi.ThrowableInformation;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.OutputStream;
+import java.util.Map;
+
+/**
+ * The {@link EcsLayout} can't be garbage free, as log4j's layout API returns a new {@link String} for each event
+ * and {@link LoggingEvent#getProperties()} wraps the MDC in a new map.
+ * The budgets allow for these allocations and some headroom,
+ * as the JIT compiler doesn't reliably eliminate all short-lived objects, for example iterators.
+ */
+class Log4jEcsLayoutAllocationTest {
+
+    private EcsLayout ecsLayout;
+
+    @BeforeEach
+    void setUp() {
+        ecsLayout = new EcsLayout();
+        ecsLayout.setServiceName("test");
+        ecsLayout.activateOptions();
+    }
+
+    @Test
+    void testMessage() {
+        assertAllocatedBytes("message", 1024, createEvent(null, null, null));
+    }
+
+    @Test
+    void testLabelsAndTags() {
+        assertAllocatedBytes("labels and tags", 1024, createEvent(Map.of("foo", "bar", "trace.id", "0af7651916cd43dd8448eb211c80319c"), "foo bar", null));
+    }
+
+    @Test
+    void testException() {
+        LoggingEvent event = createEvent(null, null, AllocationMeter.createException());
+        // printing the stack trace is inherently not garbage free
+        AllocationMeter.assertAllocatedBytesPerOperation("exception", 8 * 1024, () -> ecsLayout.format(event));
+    }
+
+    @Test
+    void testOutputStreamAppender() {
+        EcsOutputStreamAppender appender = new EcsOutputStreamAppender(ecsLayout, new NullOutputStream());
+        LoggingEvent event = createEvent(Map.of("foo", "bar", "trace.id", "0af7651916cd43dd8448eb211c80319c"), "foo bar", null);
+        // only log4j's copy of the MDC remains, the String and the byte[] of the layout are avoided
+        AllocationMeter.assertAllocatedBytesPerOperation("appender", 512, () -> appender.doAppend(event));
+    }
+
+    private void assertAllocatedBytes(String description, long budget, LoggingEvent event) {
+        AllocationMeter.assertAllocatedBytesPerOperation(description, budget, () -> ecsLayout.format(event));
+    }
+
+    private LoggingEvent createEvent(Map<String, String> mdc, String ndc, Throwable thrown) {
+        return new LoggingEvent(getClass().getName(), LogManager.getLogger(getClass()), System.currentTimeMillis(), Level.INFO,
+                "Hello \"World\"\n", "main", thrown != null ? new ThrowableInformation(thrown) : null, ndc, null, mdc);
+    }
+
+    private static class NullOutputStream extends OutputStream {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    }
+}
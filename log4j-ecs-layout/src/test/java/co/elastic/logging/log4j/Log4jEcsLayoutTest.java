@@ -26,12 +26,15 @@ package co.elastic.logging.log4j;
 
 import co.elastic.logging.AbstractEcsLoggingTest;
 import com.fasterxml.jackson.databind.JsonNode;
+import org.apache.log4j.Level;
 import org.apache.log4j.LogManager;
 import org.apache.log4j.Logger;
 import org.apache.log4j.MDC;
 import org.apache.log4j.NDC;
+import org.apache.log4j.spi.LoggingEvent;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
 
 import java.io.IOException;
 
@@ -51,6 +54,11 @@ class Log4jEcsLayoutTest extends AbstractEcsLoggingTest {
         logger.addAppender(appender);
         ecsLayout = new EcsLayout();
         ecsLayout.setServiceName("test");
+        ecsLayout.setRedactPattern("\\d{4}-\\d{4}-\\d{4}-\\d{4}");
+        ecsLayout.setRedactedLabels("password");
+        ecsLayout.setMaxMessageLength(1000);
+        ecsLayout.setMaxLabelValueLength(100);
+        ecsLayout.activateOptions();
     }
 
     @BeforeEach
@@ -60,6 +68,39 @@ class Log4jEcsLayoutTest extends AbstractEcsLoggingTest {
         NDC.clear();
     }
 
+    @Test
+    void testNestedObjects() throws Exception {
+        ecsLayout.setNestedObjects(true);
+        ecsLayout.activateOptions();
+        putMdc("foo", "bar");
+        debug("test");
+        JsonNode log = getLastLogLine();
+        assertThat(log.get("log").get("level").textValue()).isEqualTo("DEBUG");
+        assertThat(log.get("log").get("logger").textValue()).isEqualTo(getClass().getName());
+        assertThat(log.get("labels").get("foo").textValue()).isEqualTo("bar");
+        assertThat(log.get("message").textValue()).isEqualTo("test");
+        assertThat(log.fieldNames().next()).isEqualTo("@timestamp");
+    }
+
+    @Test
+    void testDegradesAboveEventRate() throws Exception {
+        ecsLayout.setDegradeAboveEventsPerSecond(10);
+        ecsLayout.activateOptions();
+        putMdc("trace.id", "foo");
+        putMdc("foo", "bar");
+        JsonNode log = null;
+        for (int i = 0; i < 3; i++) {
+            // 3 events within 100ms
+            log = objectMapper.readTree(ecsLayout.format(
+                    new LoggingEvent(getClass().getName(), logger, i * 50, Level.ERROR, "test", new RuntimeException("boom"))));
+        }
+        assertThat(log.get("event.degraded").booleanValue()).isTrue();
+        assertThat(log.get("message").textValue()).isEqualTo("test\njava.lang.RuntimeException: boom");
+        assertThat(log.get("trace.id").textValue()).isEqualTo("foo");
+        assertThat(log.get("labels.foo")).isNull();
+        assertThat(log.get("process.thread.name")).isNull();
+    }
+
     @Override
     public void putMdc(String key, String value) {
         MDC.put(key, value);
@@ -84,7 +125,6 @@ class Log4jEcsLayoutTest extends AbstractEcsLoggingTest {
 
     @Override
     public JsonNode getLastLogLine() throws IOException {
-        return objectMapper.readTree(ecsLayout.format(appender.getLogEvents().get(0)));
+        return objectMapper.readTree(ecsLayout.format(appender.getLogEvents().get(appender.getLogEvents().size() - 1)));
     }
-
 }
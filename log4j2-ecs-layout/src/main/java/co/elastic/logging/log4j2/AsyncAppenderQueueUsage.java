@@ -0,0 +1,64 @@
+/*-
+ * #%L
+ * Java ECS logging
+ * %%
+ * Copyright (C) 2019 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.logging.log4j2;
+
+import co.elastic.logging.DegradationPolicy;
+import org.apache.logging.log4j.core.Appender;
+import org.apache.logging.log4j.core.appender.AsyncAppender;
+import org.apache.logging.log4j.core.config.Configuration;
+
+/**
+ * The usage of the queue of an {@link AsyncAppender}, which is looked up by name in the configuration.
+ * The lookup is retried until the appender exists, as layouts are created before the appenders which refer to them.
+ */
+class AsyncAppenderQueueUsage implements DegradationPolicy.QueueUsage {
+
+    private final Configuration configuration;
+    private final String appenderName;
+    private volatile AsyncAppender appender;
+
+    AsyncAppenderQueueUsage(Configuration configuration, String appenderName) {
+        this.configuration = configuration;
+        this.appenderName = appenderName;
+    }
+
+    @Override
+    public int getUsagePercent() {
+        AsyncAppender appender = this.appender;
+        if (appender == null) {
+            final Appender candidate = configuration.getAppender(appenderName);
+            if (!(candidate instanceof AsyncAppender)) {
+                return 0;
+            }
+            appender = (AsyncAppender) candidate;
+            this.appender = appender;
+        }
+        final int capacity = appender.getQueueCapacity();
+        if (capacity <= 0) {
+            return 0;
+        }
+        return (int) ((long) (capacity - appender.getQueueRemainingCapacity()) * 100 / capacity);
+    }
+}
@@ -25,7 +25,19 @@
 package co.elastic.logging.log4j2;
 
 
+import co.elastic.logging.ChunkedWriter;
+import co.elastic.logging.DegradationPolicy;
 import co.elastic.logging.EcsJsonSerializer;
+import co.elastic.logging.EcsMetrics;
+import co.elastic.logging.FieldLimits;
+import co.elastic.logging.JsonNester;
+import co.elastic.logging.Redactor;
+import co.elastic.logging.StringBuilderPool;
+import co.elastic.logging.StringBuilderWriter;
+import co.elastic.logging.TraceContextProvider;
+import co.elastic.logging.TraceContextProviders;
+import co.elastic.logging.Utf8Encoder;
+import org.apache.logging.log4j.ThreadContext;
 import org.apache.logging.log4j.core.Layout;
 import org.apache.logging.log4j.core.LogEvent;
 import org.apache.logging.log4j.core.config.Configuration;
@@ -36,55 +48,102 @@ import org.apache.logging.log4j.core.config.plugins.PluginBuilderFactory;
 import org.apache.logging.log4j.core.config.plugins.PluginElement;
 import org.apache.logging.log4j.core.layout.AbstractStringLayout;
 import org.apache.logging.log4j.core.layout.ByteBufferDestination;
-import org.apache.logging.log4j.core.layout.Encoder;
 import org.apache.logging.log4j.core.lookup.StrSubstitutor;
 import org.apache.logging.log4j.core.util.JsonUtils;
 import org.apache.logging.log4j.core.util.KeyValuePair;
-import org.apache.logging.log4j.core.util.StringBuilderWriter;
 import org.apache.logging.log4j.message.MapMessage;
+import org.apache.logging.log4j.message.MultiformatMessage;
+import org.apache.logging.log4j.message.ObjectMessage;
 import org.apache.logging.log4j.message.Message;
+import org.apache.logging.log4j.util.IndexedReadOnlyStringMap;
+import org.apache.logging.log4j.util.ReadOnlyStringMap;
 import org.apache.logging.log4j.util.StringBuilderFormattable;
-import org.apache.logging.log4j.util.TriConsumer;
 
 import java.io.PrintWriter;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 @Plugin(name = "EcsLayout", category = Node.CATEGORY, elementType = Layout.ELEMENT_TYPE)
 public class EcsLayout extends AbstractStringLayout {
 
-    private static final ThreadLocal<StringBuilder> messageStringBuilder = new ThreadLocal<StringBuilder>();
-
-    private final TriConsumer<String, Object, StringBuilder> WRITE_KEY_VALUES_INTO = new TriConsumer<String, Object, StringBuilder>() {
-        @Override
-        public void accept(final String key, final Object value, final StringBuilder stringBuilder) {
-            stringBuilder.append('\"');
-            if (!topLevelLabels.contains(key)) {
-                stringBuilder.append("labels.");
-            }
-            co.elastic.logging.JsonUtils.quoteAsString(key, stringBuilder);
-            stringBuilder.append("\":\"");
-            co.elastic.logging.JsonUtils.quoteAsString(EcsJsonSerializer.toNullSafeString(String.valueOf(value)), stringBuilder);
-            stringBuilder.append("\",");
-        }
-    };
+    /**
+     * Lookups which don't depend on the event and which can therefore be resolved once
+     */
+    private static final Set<String> EVENT_INDEPENDENT_LOOKUPS = new HashSet<String>(Arrays.asList(
+            "env", "sys", "java", "main", "jvmrunargs", "log4j", "bundle", "docker", "k8s", "kubernetes", "spring", "web"));
+    private static final String[] JSON_FORMAT = {"JSON"};
+    private static final int CHUNKED_WRITER_STRIPES = 16;
+    /**
+     * The fields the layout writes itself, which members of a JSON message must not duplicate
+     */
+    private static final List<String> RESERVED_FIELDS = Arrays.asList("@timestamp", "log.level", "message_template", "message_parameters",
+            "error.stack_trace", "service.name", "process.thread.name", "log.logger", "tags", "event.truncated", "event.degraded");
 
     private final KeyValuePair[] additionalFields;
+    private final KeyValuePair[] constantAdditionalFields;
+    private final KeyValuePair[] eventDependentAdditionalFields;
+    private volatile ResolvedFields resolvedConstantAdditionalFields;
     private final Set<String> topLevelLabels;
+    private final String[] topLevelLabelArray;
+    private final Set<String> reservedJsonKeys;
+    private final Redactor redactor;
+    private final FieldLimits fieldLimits;
+    private final int streamingChunkSize;
+    private final JsonNester jsonNester;
+    private final DegradationPolicy degradationPolicy;
+    private final TraceContextProvider traceContextProvider;
+    private final boolean messageTemplate;
+    private final boolean includeFormattedMessage;
+    private final StringBuilderPool bufferPool = new StringBuilderPool(DEFAULT_STRING_BUILDER_SIZE, MAX_STRING_BUILDER_SIZE);
+    private final AtomicReferenceArray<DestinationChunkedWriter> chunkedWriters = new AtomicReferenceArray<DestinationChunkedWriter>(CHUNKED_WRITER_STRIPES);
+    private final EcsMetrics metrics;
     private String serviceName;
 
-    private EcsLayout(Configuration config, String serviceName, KeyValuePair[] additionalFields, Collection<String> topLevelLabels) {
+    private EcsLayout(Configuration config, String serviceName, KeyValuePair[] additionalFields, Collection<String> topLevelLabels,
+                      Redactor redactor, FieldLimits fieldLimits, int streamingChunkSize, boolean nestedObjects,
+                      DegradationPolicy degradationPolicy, TraceContextProvider traceContextProvider, boolean messageTemplate,
+                      boolean includeFormattedMessage) {
         super(config, Charset.forName("UTF-8"), null, null);
         this.serviceName = serviceName;
         this.topLevelLabels = new HashSet<String>(topLevelLabels);
         this.topLevelLabels.add("trace.id");
         this.topLevelLabels.add("transaction.id");
+        this.topLevelLabelArray = this.topLevelLabels.toArray(new String[0]);
         this.additionalFields = additionalFields;
+        this.reservedJsonKeys = new HashSet<String>(RESERVED_FIELDS);
+        this.reservedJsonKeys.addAll(this.topLevelLabels);
+        for (KeyValuePair additionalField : additionalFields) {
+            this.reservedJsonKeys.add(additionalField.getKey());
+        }
+        final List<KeyValuePair> constantFields = new ArrayList<KeyValuePair>();
+        final List<KeyValuePair> eventDependentFields = new ArrayList<KeyValuePair>();
+        for (KeyValuePair additionalField : additionalFields) {
+            if (isEventIndependent(additionalField.getValue())) {
+                constantFields.add(additionalField);
+            } else {
+                eventDependentFields.add(additionalField);
+            }
+        }
+        this.constantAdditionalFields = constantFields.toArray(new KeyValuePair[0]);
+        this.eventDependentAdditionalFields = eventDependentFields.toArray(new KeyValuePair[0]);
+        this.redactor = redactor;
+        this.fieldLimits = fieldLimits;
+        this.streamingChunkSize = streamingChunkSize;
+        this.jsonNester = nestedObjects ? new JsonNester() : null;
+        this.degradationPolicy = degradationPolicy;
+        this.traceContextProvider = traceContextProvider;
+        this.messageTemplate = messageTemplate;
+        this.includeFormattedMessage = includeFormattedMessage;
+        this.metrics = EcsMetrics.forComponent("log4j2-ecs-layout", serviceName);
     }
 
     @PluginBuilderFactory
@@ -92,68 +151,449 @@ public class EcsLayout extends AbstractStringLayout {
         return new EcsLayout.Builder().asBuilder();
     }
 
-    private static StringBuilder getMessageStringBuilder() {
-        StringBuilder result = messageStringBuilder.get();
-        if (result == null) {
-            result = new StringBuilder(DEFAULT_STRING_BUILDER_SIZE);
-            messageStringBuilder.set(result);
-        }
-        result.setLength(0);
-        return result;
-    }
-
     private static boolean valueNeedsLookup(final String value) {
         return value != null && value.contains("${");
     }
 
+    /**
+     * Returns {@code true} if the value is a literal or if all its lookups are independent of the event,
+     * such as {@code ${env:...}}, {@code ${sys:...}} or configuration properties like {@code ${hostName}}.
+     * Lookups like {@code ${ctx:...}} or {@code ${date:...}}, as well as unknown ones, have to be evaluated for each event.
+     */
+    static boolean isEventIndependent(final String value) {
+        if (!valueNeedsLookup(value)) {
+            return true;
+        }
+        for (int start = value.indexOf("${"); start >= 0; start = value.indexOf("${", start + 2)) {
+            int end = start + 2;
+            while (end < value.length() && value.charAt(end) != ':' && value.charAt(end) != '}' && value.charAt(end) != '$') {
+                end++;
+            }
+            if (end == value.length() || value.charAt(end) == '$') {
+                // nested or unterminated variables
+                return false;
+            }
+            if (value.charAt(end) == ':' && !EVENT_INDEPENDENT_LOOKUPS.contains(value.substring(start + 2, end))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     @Override
     public String toSerializable(LogEvent event) {
-        final StringBuilder text = toText(event, getStringBuilder(), false);
-        return text.toString();
+        final long start = EcsMetrics.ENABLED ? metrics.onEventStart() : EcsMetrics.NOT_SAMPLED;
+        final StringBuilder builder = bufferPool.acquire();
+        final StringBuilder scratch = bufferPool.acquire();
+        final int initialCapacity = builder.capacity();
+        try {
+            final Message message = resolveMessage(event.getMessage());
+            final boolean truncated = toText(event, message, formatMessage(message, false, scratch), builder, scratch, null);
+            if (EcsMetrics.ENABLED) {
+                onEventEnd(event, start, builder, initialCapacity, Utf8Encoder.encodedLength(builder), truncated);
+            }
+            return builder.toString();
+        } finally {
+            release(builder, true);
+            release(scratch, false);
+        }
     }
 
     @Override
     public void encode(LogEvent event, ByteBufferDestination destination) {
-        final StringBuilder text = toText(event, getStringBuilder(), true);
-        final Encoder<StringBuilder> helper = getStringBuilderEncoder();
-        helper.encode(text, destination);
+        final long start = EcsMetrics.ENABLED ? metrics.onEventStart() : EcsMetrics.NOT_SAMPLED;
+        final StringBuilder builder = bufferPool.acquire();
+        final StringBuilder scratch = bufferPool.acquire();
+        final int initialCapacity = builder.capacity();
+        try {
+            final Message message = resolveMessage(event.getMessage());
+            final CharSequence formattedMessage = formatMessage(message, true, scratch);
+            if (isStreamed(event, formattedMessage)) {
+                // the chunks of this event must not be interleaved with other events
+                synchronized (destination) {
+                    final DestinationChunkedWriter chunkedWriter = acquireChunkedWriter(destination);
+                    try {
+                        final boolean truncated = toText(event, message, formattedMessage, builder, scratch, chunkedWriter);
+                        final int bytes = encode(builder, destination);
+                        if (EcsMetrics.ENABLED) {
+                            onEventEnd(event, start, builder, initialCapacity, chunkedWriter.encodedBytes + bytes, truncated);
+                        }
+                    } finally {
+                        releaseChunkedWriter(chunkedWriter);
+                    }
+                }
+            } else {
+                final boolean truncated = toText(event, message, formattedMessage, builder, scratch, null);
+                final int bytes = encode(builder, destination);
+                if (EcsMetrics.ENABLED) {
+                    onEventEnd(event, start, builder, initialCapacity, bytes, truncated);
+                }
+            }
+        } finally {
+            release(builder, true);
+            release(scratch, false);
+        }
+    }
+
+    /**
+     * Events are streamed if they are likely to exceed the chunk size:
+     * if the formatted message alone does or if the event has a stack trace.
+     * Streamed events which turn out to be smaller than a chunk are written at once, just like other events.
+     */
+    private boolean isStreamed(LogEvent event, CharSequence formattedMessage) {
+        return streamingChunkSize > 0
+                && (event.getThrown() != null || formattedMessage != null && formattedMessage.length() > streamingChunkSize);
     }
 
-    private StringBuilder toText(LogEvent event, StringBuilder builder, boolean gcFree) {
+    private DestinationChunkedWriter acquireChunkedWriter(ByteBufferDestination destination) {
+        DestinationChunkedWriter chunkedWriter = chunkedWriters.getAndSet(chunkedWriterStripe(), null);
+        if (chunkedWriter == null) {
+            chunkedWriter = new DestinationChunkedWriter(streamingChunkSize);
+        }
+        chunkedWriter.reset();
+        chunkedWriter.destination = destination;
+        chunkedWriter.encodedBytes = 0;
+        return chunkedWriter;
+    }
+
+    private void releaseChunkedWriter(DestinationChunkedWriter chunkedWriter) {
+        chunkedWriter.destination = null;
+        chunkedWriters.set(chunkedWriterStripe(), chunkedWriter);
+    }
+
+    private static int chunkedWriterStripe() {
+        return (int) Thread.currentThread().getId() & (CHUNKED_WRITER_STRIPES - 1);
+    }
+
+    /**
+     * Encodes the text as UTF-8 directly into the destination's buffer,
+     * which avoids the thread local {@link org.apache.logging.log4j.core.layout.StringBuilderEncoder}.
+     *
+     * @return the number of bytes written
+     */
+    private static int encode(CharSequence text, ByteBufferDestination destination) {
+        synchronized (destination) {
+            final int end = text.length();
+            int bytes = 0;
+            ByteBuffer buffer = destination.getByteBuffer();
+            int position = buffer.position();
+            int i = Utf8Encoder.encode(text, 0, end, buffer);
+            while (i < end) {
+                bytes += buffer.position() - position;
+                buffer = destination.drain(buffer);
+                position = buffer.position();
+                i = Utf8Encoder.encode(text, i, end, buffer);
+            }
+            return bytes + buffer.position() - position;
+        }
+    }
+
+    private void release(StringBuilder builder, boolean recordSize) {
+        if (bufferPool.release(builder, recordSize) && EcsMetrics.ENABLED) {
+            metrics.onBufferTrim();
+        }
+    }
+
+    private void onEventEnd(LogEvent event, long start, StringBuilder builder, int initialCapacity, int bytes, boolean truncated) {
+        if (builder.capacity() > initialCapacity) {
+            metrics.onBufferGrowth();
+        }
+        metrics.onEventEnd(start, bytes, event.getThrown() != null, truncated);
+    }
+
+    /**
+     * @return the {@link EcsMessage} log4j has taken a memento of when copying the message into its own event, or the message itself
+     */
+    private static Message resolveMessage(Message message) {
+        final EcsMessage ecsMessage = EcsMessage.of(message);
+        return ecsMessage != null ? ecsMessage : message;
+    }
+
+    /**
+     * @return the formatted message, or {@code null} if only the template or the JSON of the message is serialized
+     */
+    private CharSequence formatMessage(Message message, boolean gcFree, StringBuilder scratch) {
+        if (isJsonMessage(message) || isTemplated(message) && !includeFormattedMessage) {
+            return null;
+        } else if (message instanceof CharSequence) {
+            return (CharSequence) message;
+        } else if (gcFree && message instanceof StringBuilderFormattable) {
+            ((StringBuilderFormattable) message).formatTo(scratch);
+            return scratch;
+        } else {
+            return EcsJsonSerializer.toNullSafeString(message.getFormattedMessage());
+        }
+    }
+
+    /**
+     * @return {@code true} if the event has been truncated
+     */
+    private boolean toText(LogEvent event, Message message, CharSequence formattedMessage, StringBuilder builder, StringBuilder scratch, ChunkedWriter chunkedWriter) {
+        final boolean degraded = degradationPolicy != null && degradationPolicy.onEvent(event.getTimeMillis());
         EcsJsonSerializer.serializeObjectStart(builder, event.getTimeMillis());
         EcsJsonSerializer.serializeLogLevel(builder, event.getLevel().toString());
-        serializeMessage(builder, gcFree, event.getMessage(), event.getThrown());
+        boolean truncated;
+        if (formattedMessage != null) {
+            truncated = serializeMessage(builder, formattedMessage, event.getThrown(), scratch, chunkedWriter, degraded);
+        } else {
+            truncated = serializeStackTrace(builder, event.getThrown(), scratch, chunkedWriter, degraded);
+        }
+        final FieldLimits limits = chunkedWriter != null ? chunkedWriter.getFieldLimits(fieldLimits) : fieldLimits;
+        if (isTemplated(message)) {
+            truncated |= serializeMessageTemplate(message, event.getThrown(), builder, limits);
+        }
+        if (message instanceof MapMessage) {
+            truncated |= serializeFields(((MapMessage) message).getIndexedReadOnlyStringMap(), builder, limits, degraded);
+        } else if (message instanceof EcsMessage) {
+            truncated |= serializeFields((EcsMessage) message, builder, limits);
+        } else if (message instanceof ObjectMessage) {
+            final Object payload = message.getParameters()[0];
+            if (payload instanceof Map) {
+                truncated |= serializeFields((Map<?, ?>) payload, builder, limits, degraded);
+            }
+        } else if (isJsonMessage(message)) {
+            truncated |= serializeJson((MultiformatMessage) message, builder, limits, scratch);
+        }
         EcsJsonSerializer.serializeServiceName(builder, serviceName);
-        EcsJsonSerializer.serializeThreadName(builder, event.getThreadName());
+        if (!degraded) {
+            EcsJsonSerializer.serializeThreadName(builder, event.getThreadName());
+        }
         EcsJsonSerializer.serializeLoggerName(builder, event.getLoggerName());
-        serializeLabels(event, builder);
+        // the current trace context only belongs to the event if it is serialized on the thread which logged it
+        if (traceContextProvider != null && event.getThreadId() == Thread.currentThread().getId()) {
+            traceContextProvider.serializeTraceContext(builder);
+        }
+        truncated |= serializeLabels(event, builder, limits, degraded);
         serializeTags(event, builder);
+        if (truncated) {
+            EcsJsonSerializer.serializeTruncatedMarker(builder);
+        }
+        if (degraded) {
+            EcsJsonSerializer.serializeDegradedMarker(builder);
+        }
         EcsJsonSerializer.serializeObjectEnd(builder);
-        return builder;
+        if (jsonNester != null) {
+            // the message is no longer needed, so the scratch builder can be reused
+            jsonNester.nest(builder, 0, scratch);
+        }
+        return truncated;
     }
 
-    private void serializeLabels(LogEvent event, StringBuilder builder) {
+    /**
+     * @param degraded whether to only serialize the top-level labels of the context data
+     */
+    private boolean serializeLabels(LogEvent event, StringBuilder builder, FieldLimits limits, boolean degraded) {
+        boolean truncated = false;
         if (!event.getContextData().isEmpty() || additionalFields.length > 0) {
             if (additionalFields.length > 0) {
-                final StrSubstitutor strSubstitutor = getConfiguration().getStrSubstitutor();
-                for (KeyValuePair additionalField : additionalFields) {
-                    builder.append('\"');
-                    JsonUtils.quoteAsString(additionalField.getKey(), builder);
-                    builder.append("\":\"");
-                    final String value = valueNeedsLookup(additionalField.getValue())
-                            ? strSubstitutor.replace(event, additionalField.getValue())
-                            : additionalField.getValue();
-                    JsonUtils.quoteAsString(EcsJsonSerializer.toNullSafeString(value), builder);
-                    builder.append("\",");
+                final ResolvedFields constantFields = resolveConstantAdditionalFields();
+                if (constantFields.fragment.length() <= limits.getMaxBuilderLength() - builder.length()) {
+                    builder.append(constantFields.fragment);
+                    truncated = constantFields.truncated;
+                } else {
+                    truncated = serializeAdditionalFields(null, constantFields.fields, builder, limits);
                 }
+                truncated |= serializeAdditionalFields(event, eventDependentAdditionalFields, builder, limits);
+            }
+            if (degraded) {
+                truncated |= serializeTopLevelLabels(event.getContextData(), builder, limits);
+            } else {
+                truncated |= serializeLabels(event.getContextData(), builder, limits);
+            }
+        }
+        return truncated;
+    }
+
+    private boolean serializeTopLevelLabels(ReadOnlyStringMap labels, StringBuilder builder, FieldLimits limits) {
+        boolean truncated = false;
+        for (String key : topLevelLabelArray) {
+            final Object value = labels.getValue(key);
+            if (value != null) {
+                truncated |= EcsJsonSerializer.serializeLabel(builder, key, value, topLevelLabels, redactor, limits);
             }
-            event.getContextData().forEach(WRITE_KEY_VALUES_INTO, builder);
+        }
+        return truncated;
+    }
+
+    /**
+     * Resolves the lookups of the additional fields which don't depend on the event and serializes them.
+     * The result is memoized, unless a lookup could not be resolved yet, for example because a configuration property is still missing.
+     */
+    private ResolvedFields resolveConstantAdditionalFields() {
+        ResolvedFields resolved = resolvedConstantAdditionalFields;
+        if (resolved == null) {
+            final StrSubstitutor strSubstitutor = getConfiguration() != null ? getConfiguration().getStrSubstitutor() : null;
+            final KeyValuePair[] fields = new KeyValuePair[constantAdditionalFields.length];
+            boolean complete = true;
+            for (int i = 0; i < fields.length; i++) {
+                final KeyValuePair field = constantAdditionalFields[i];
+                String value = field.getValue();
+                if (valueNeedsLookup(value) && strSubstitutor != null) {
+                    value = strSubstitutor.replace(value);
+                }
+                complete &= !valueNeedsLookup(value);
+                fields[i] = new KeyValuePair(field.getKey(), value);
+            }
+            final StringBuilder fragment = new StringBuilder();
+            // the maximum event length depends on where the fragment ends up, which is checked when appending it
+            final FieldLimits limits = FieldLimits.create(0, fieldLimits.getMaxLabelValueLength(), 0, 0);
+            final boolean truncated = serializeAdditionalFields(null, fields, fragment, limits);
+            resolved = new ResolvedFields(fields, fragment.toString(), truncated);
+            if (complete) {
+                resolvedConstantAdditionalFields = resolved;
+            }
+        }
+        return resolved;
+    }
+
+    /**
+     * @param event the event to resolve lookups for, or {@code null} if the values have already been resolved
+     */
+    private boolean serializeAdditionalFields(LogEvent event, KeyValuePair[] fields, StringBuilder builder, FieldLimits limits) {
+        boolean truncated = false;
+        for (KeyValuePair additionalField : fields) {
+            builder.append('\"');
+            JsonUtils.quoteAsString(additionalField.getKey(), builder);
+            builder.append("\":\"");
+            if (redactor != null && redactor.isRedactedKey(additionalField.getKey())) {
+                builder.append(Redactor.MASK);
+            } else {
+                final String value = event != null && valueNeedsLookup(additionalField.getValue())
+                        ? getConfiguration().getStrSubstitutor().replace(event, additionalField.getValue())
+                        : additionalField.getValue();
+                truncated |= Redactor.quoteAsString(EcsJsonSerializer.toNullSafeString(value), builder, redactor,
+                        limits.getMaxLabelValueLength(), limits.getMaxBuilderLength());
+            }
+            builder.append("\",");
+        }
+        return truncated;
+    }
+
+    /**
+     * Serializes the values of a {@link MapMessage} according to their type, including nested maps and lists
+     *
+     * @param degraded whether to only serialize top-level fields
+     */
+    private boolean serializeFields(IndexedReadOnlyStringMap fields, StringBuilder builder, FieldLimits limits, boolean degraded) {
+        boolean truncated = false;
+        for (int i = 0, size = fields.size(); i < size; i++) {
+            final String key = fields.getKeyAt(i);
+            if (!degraded || topLevelLabels.contains(key)) {
+                truncated |= EcsJsonSerializer.serializeField(builder, key, fields.getValueAt(i), topLevelLabels, redactor, limits);
+            }
+        }
+        return truncated;
+    }
+
+    private boolean serializeFields(Map<?, ?> fields, StringBuilder builder, FieldLimits limits, boolean degraded) {
+        boolean truncated = false;
+        for (Map.Entry<?, ?> entry : fields.entrySet()) {
+            final String key = String.valueOf(entry.getKey());
+            if (!degraded || topLevelLabels.contains(key)) {
+                truncated |= EcsJsonSerializer.serializeField(builder, key, entry.getValue(), topLevelLabels, redactor, limits);
+            }
+        }
+        return truncated;
+    }
+
+    /**
+     * Whether the members of the JSON format of the message are serialized as top-level fields, instead of the formatted message.
+     */
+    private static boolean isJsonMessage(Message message) {
+        return message instanceof MultiformatMessage
+                && !(message instanceof MapMessage || message instanceof EcsMessage || message instanceof ObjectMessage)
+                && supportsJson(((MultiformatMessage) message).getFormats());
+    }
+
+    /**
+     * Serializes the members of the JSON object as top-level fields, without escaping them into the message.
+     * A {@code message} member becomes the message of the event, members which clash with other fields of the layout are prefixed with {@code labels.}.
+     * If the JSON is not an object, or if it exceeds the maximum event length, the formatted message is serialized instead.
+     *
+     * @param scratch a builder to unescape string values into
+     */
+    private boolean serializeJson(MultiformatMessage message, StringBuilder builder, FieldLimits limits, StringBuilder scratch) {
+        final String json = message.getFormattedMessage(JSON_FORMAT);
+        final int mark = builder.length();
+        final int truncatedValues = json == null ? -1
+                : EcsJsonSerializer.serializeJsonMembers(builder, json, reservedJsonKeys, "labels.", redactor, limits, scratch);
+        if (truncatedValues < 0) {
+            return EcsJsonSerializer.serializeFormattedMessage(builder, message.getFormattedMessage(), null, redactor, limits);
+        }
+        if (builder.length() >= limits.getMaxBuilderLength()) {
+            builder.setLength(mark);
+            EcsJsonSerializer.serializeFormattedMessage(builder, message.getFormattedMessage(), null, redactor, limits);
+            return true;
+        }
+        return truncatedValues > 0;
+    }
+
+    private static boolean supportsJson(String[] formats) {
+        if (formats != null) {
+            for (String format : formats) {
+                if (JSON_FORMAT[0].equalsIgnoreCase(format)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+
+    private boolean serializeFields(EcsMessage message, StringBuilder builder, FieldLimits limits) {
+        boolean truncated = false;
+        for (int i = 0, size = message.getFieldCount(); i < size; i++) {
+            final String key = message.getKey(i);
+            builder.append('\"');
+            JsonUtils.quoteAsString(key, builder);
+            builder.append("\":");
+            final byte type = message.getType(i);
+            if (redactor != null && redactor.isRedactedKey(key)) {
+                builder.append('\"').append(Redactor.MASK).append('\"');
+            } else if (type == EcsMessage.TYPE_LONG) {
+                builder.append(message.getLong(i));
+            } else if (type == EcsMessage.TYPE_DOUBLE) {
+                final double value = message.getDouble(i);
+                if (Double.isNaN(value) || Double.isInfinite(value)) {
+                    // not representable as a JSON number
+                    builder.append('\"').append(value).append('\"');
+                } else {
+                    builder.append(value);
+                }
+            } else if (type == EcsMessage.TYPE_BOOLEAN) {
+                builder.append(message.getBoolean(i));
+            } else if (message.getString(i) == null) {
+                builder.append("null");
+            } else {
+                builder.append('\"');
+                truncated |= Redactor.quoteAsString(message.getString(i), builder, redactor,
+                        limits.getMaxLabelValueLength(), limits.getMaxBuilderLength());
+                builder.append('\"');
+            }
+            builder.append(',');
+        }
+        return truncated;
+    }
+
+    private boolean serializeLabels(ReadOnlyStringMap labels, StringBuilder builder, FieldLimits limits) {
+        if (labels instanceof IndexedReadOnlyStringMap) {
+            // avoids allocating a TriConsumer and allows to track truncation
+            final IndexedReadOnlyStringMap indexedLabels = (IndexedReadOnlyStringMap) labels;
+            boolean truncated = false;
+            for (int i = 0, size = indexedLabels.size(); i < size; i++) {
+                truncated |= EcsJsonSerializer.serializeLabel(builder, indexedLabels.getKeyAt(i), indexedLabels.getValueAt(i),
+                        topLevelLabels, redactor, limits);
+            }
+            return truncated;
+        } else {
+            return EcsJsonSerializer.serializeLabels(builder, labels.toMap(), topLevelLabels, redactor, limits);
         }
     }
 
     private void serializeTags(LogEvent event, StringBuilder builder) {
-        List<String> contextStack = event.getContextStack().asList();
-        if (!contextStack.isEmpty()) {
+        final ThreadContext.ContextStack stack = event.getContextStack();
+        if (stack != null && stack.getDepth() > 0) {
+            final List<String> contextStack = stack.asList();
             builder.append("\"tags\":[");
             for (int i = 0; i < contextStack.size(); i++) {
                 builder.append('\"');
@@ -166,38 +606,109 @@ public class EcsLayout extends AbstractStringLayout {
         }
     }
 
-    private void serializeMessage(StringBuilder builder, boolean gcFree, Message message, Throwable thrown) {
+    /**
+     * @param scratch  a builder to format the stack trace into, which may also hold the formatted message
+     * @param degraded whether to only serialize the first line of the stack trace, without the stack frames
+     */
+    private boolean serializeMessage(StringBuilder builder, CharSequence formattedMessage, Throwable thrown, StringBuilder scratch,
+                                     ChunkedWriter chunkedWriter, boolean degraded) {
         builder.append("\"message\":\"");
-        if (message instanceof CharSequence) {
-            JsonUtils.quoteAsString(((CharSequence) message), builder);
-        } else if (gcFree && message instanceof StringBuilderFormattable) {
-            final StringBuilder messageBuffer = getMessageStringBuilder();
-            try {
-                ((StringBuilderFormattable) message).formatTo(messageBuffer);
-                JsonUtils.quoteAsString(messageBuffer, builder);
-            } finally {
-                trimToMaxSize(messageBuffer);
-            }
-        } else {
-            JsonUtils.quoteAsString(EcsJsonSerializer.toNullSafeString(message.getFormattedMessage()), builder);
-        }
+        boolean truncated = quoteAsString(formattedMessage, builder, fieldLimits.getMaxMessageLength(), chunkedWriter);
         if (thrown != null) {
             builder.append("\\n");
-            JsonUtils.quoteAsString(formatThrowable(thrown), builder);
+            truncated |= serializeThrowable(builder, thrown, scratch, chunkedWriter, degraded);
         }
         builder.append("\", ");
-        if (message instanceof MapMessage) {
-            MapMessage mapMessage = (MapMessage) message;
-            mapMessage.forEach(WRITE_KEY_VALUES_INTO, builder);
+        return truncated;
+    }
+
+    /**
+     * Serializes the stack trace as {@code error.stack_trace}, for events whose formatted message is not serialized.
+     */
+    private boolean serializeStackTrace(StringBuilder builder, Throwable thrown, StringBuilder scratch, ChunkedWriter chunkedWriter,
+                                        boolean degraded) {
+        if (thrown == null) {
+            return false;
+        }
+        builder.append("\"error.stack_trace\":\"");
+        final boolean truncated = serializeThrowable(builder, thrown, scratch, chunkedWriter, degraded);
+        builder.append("\",");
+        return truncated;
+    }
+
+    private boolean serializeThrowable(StringBuilder builder, Throwable thrown, StringBuilder scratch, ChunkedWriter chunkedWriter,
+                                       boolean degraded) {
+        if (degraded) {
+            return EcsJsonSerializer.serializeThrowableSummary(builder, thrown.getClass().getName(), thrown.getMessage(), redactor,
+                    chunkedWriter != null ? chunkedWriter.getFieldLimits(fieldLimits) : fieldLimits);
+        }
+        if (chunkedWriter != null) {
+            return chunkedWriter.quoteStackTrace(thrown, builder, redactor, fieldLimits.getMaxStackTraceLength(), fieldLimits);
+        }
+        final StringBuilderWriter stackTrace = formatThrowable(thrown, fieldLimits.getMaxStackTraceLength(), scratch);
+        return quoteAsString(stackTrace.getBuilder(), builder, FieldLimits.UNLIMITED, null) || stackTrace.isTruncated();
+    }
+
+    /**
+     * Messages which are serialized as fields, such as {@link MapMessage}, are always formatted.
+     */
+    private boolean isTemplated(Message message) {
+        return messageTemplate && !(message instanceof MapMessage || message instanceof EcsMessage || message instanceof ObjectMessage
+                || message instanceof MultiformatMessage);
+    }
+
+    private boolean serializeMessageTemplate(Message message, Throwable thrown, StringBuilder builder, FieldLimits limits) {
+        final Object[] parameters = message.getParameters();
+        int parameterCount = parameters != null ? parameters.length : 0;
+        // a throwable which is not referenced by a placeholder is the last parameter
+        if (thrown != null && parameterCount > 0 && parameters[parameterCount - 1] == thrown) {
+            parameterCount--;
+        }
+        return EcsJsonSerializer.serializeMessageTemplate(builder, message.getFormat(), parameters, parameterCount, redactor, limits);
+    }
+
+    private boolean quoteAsString(CharSequence content, StringBuilder builder, int maxLength, ChunkedWriter chunkedWriter) {
+        if (chunkedWriter != null) {
+            return chunkedWriter.quoteAsString(content, builder, redactor, maxLength, fieldLimits);
         }
+        return Redactor.quoteAsString(content, builder, redactor, maxLength, fieldLimits.getMaxBuilderLength());
     }
 
-    private static CharSequence formatThrowable(final Throwable throwable) {
-        StringBuilderWriter sw = new StringBuilderWriter(getMessageStringBuilder());
+    private static StringBuilderWriter formatThrowable(final Throwable throwable, int maxLength, StringBuilder scratch) {
+        // the message has already been serialized at this point
+        scratch.setLength(0);
+        StringBuilderWriter sw = new StringBuilderWriter(scratch, maxLength);
         final PrintWriter pw = new PrintWriter(sw);
         throwable.printStackTrace(pw);
         pw.flush();
-        return sw.getBuilder();
+        return sw;
+    }
+
+    private static class DestinationChunkedWriter extends ChunkedWriter {
+
+        private ByteBufferDestination destination;
+        private int encodedBytes;
+
+        private DestinationChunkedWriter(int chunkSize) {
+            super(chunkSize);
+        }
+
+        @Override
+        protected void writeChunk(StringBuilder chunk) {
+            encodedBytes += encode(chunk, destination);
+        }
+    }
+
+    private static class ResolvedFields {
+        private final KeyValuePair[] fields;
+        private final String fragment;
+        private final boolean truncated;
+
+        private ResolvedFields(KeyValuePair[] fields, String fragment, boolean truncated) {
+            this.fields = fields;
+            this.fragment = fragment;
+            this.truncated = truncated;
+        }
     }
 
     public static class Builder extends AbstractStringLayout.Builder<EcsLayout.Builder>
@@ -209,6 +720,34 @@ public class EcsLayout extends AbstractStringLayout {
         private KeyValuePair[] additionalFields;
         @PluginElement("TopLevelLabels")
         private String[] topLevelLabels;
+        @PluginBuilderAttribute("redactPattern")
+        private String redactPattern;
+        @PluginBuilderAttribute("redactedLabels")
+        private String redactedLabels;
+        @PluginBuilderAttribute("maxMessageLength")
+        private int maxMessageLength;
+        @PluginBuilderAttribute("maxLabelValueLength")
+        private int maxLabelValueLength;
+        @PluginBuilderAttribute("maxStackTraceLength")
+        private int maxStackTraceLength;
+        @PluginBuilderAttribute("maxEventLength")
+        private int maxEventLength;
+        @PluginBuilderAttribute("streamingChunkSize")
+        private int streamingChunkSize;
+        @PluginBuilderAttribute("nestedObjects")
+        private boolean nestedObjects;
+        @PluginBuilderAttribute("degradeAboveEventsPerSecond")
+        private int degradeAboveEventsPerSecond;
+        @PluginBuilderAttribute("degradeAboveQueueUsagePercent")
+        private int degradeAboveQueueUsagePercent;
+        @PluginBuilderAttribute("degradationQueue")
+        private String degradationQueue;
+        @PluginBuilderAttribute("traceContextProvider")
+        private String traceContextProvider;
+        @PluginBuilderAttribute("messageTemplate")
+        private boolean messageTemplate;
+        @PluginBuilderAttribute("includeFormattedMessage")
+        private boolean includeFormattedMessage;
 
         Builder() {
             super();
@@ -247,9 +786,226 @@ public class EcsLayout extends AbstractStringLayout {
             return asBuilder();
         }
 
+        public String getRedactPattern() {
+            return redactPattern;
+        }
+
+        /**
+         * Matches of this regular expression are masked in the message, the stack trace and label values.
+         *
+         * @return this builder
+         */
+        public EcsLayout.Builder setRedactPattern(final String redactPattern) {
+            this.redactPattern = redactPattern;
+            return asBuilder();
+        }
+
+        public String getRedactedLabels() {
+            return redactedLabels;
+        }
+
+        /**
+         * A comma-separated list of label keys whose values are masked entirely.
+         *
+         * @return this builder
+         */
+        public EcsLayout.Builder setRedactedLabels(final String redactedLabels) {
+            this.redactedLabels = redactedLabels;
+            return asBuilder();
+        }
+
+        public int getMaxMessageLength() {
+            return maxMessageLength;
+        }
+
+        public EcsLayout.Builder setMaxMessageLength(final int maxMessageLength) {
+            this.maxMessageLength = maxMessageLength;
+            return asBuilder();
+        }
+
+        public int getMaxLabelValueLength() {
+            return maxLabelValueLength;
+        }
+
+        public EcsLayout.Builder setMaxLabelValueLength(final int maxLabelValueLength) {
+            this.maxLabelValueLength = maxLabelValueLength;
+            return asBuilder();
+        }
+
+        public int getMaxStackTraceLength() {
+            return maxStackTraceLength;
+        }
+
+        public EcsLayout.Builder setMaxStackTraceLength(final int maxStackTraceLength) {
+            this.maxStackTraceLength = maxStackTraceLength;
+            return asBuilder();
+        }
+
+        public int getMaxEventLength() {
+            return maxEventLength;
+        }
+
+        /**
+         * A soft limit for the length of the whole event which applies to the message, the stack trace and the labels.
+         *
+         * @return this builder
+         */
+        public EcsLayout.Builder setMaxEventLength(final int maxEventLength) {
+            this.maxEventLength = maxEventLength;
+            return asBuilder();
+        }
+
+        public int getStreamingChunkSize() {
+            return streamingChunkSize;
+        }
+
+        /**
+         * If the message of an event is longer than this, or if the event has a stack trace,
+         * the event is written to the destination in chunks of this size, instead of serializing the whole event into a buffer first.
+         * This bounds the memory needed per logging thread, regardless of the size of the event.
+         * Can't be combined with {@link #setNestedObjects(boolean)}.
+         *
+         * @return this builder
+         */
+        public EcsLayout.Builder setStreamingChunkSize(final int streamingChunkSize) {
+            this.streamingChunkSize = streamingChunkSize;
+            return asBuilder();
+        }
+
+        public boolean isNestedObjects() {
+            return nestedObjects;
+        }
+
+        /**
+         * Writes dotted keys as nested objects, for example {@code "log":{"level":"INFO"}} instead of {@code "log.level":"INFO"}.
+         * Can't be combined with {@link #setStreamingChunkSize(int)},
+         * as the beginning of a streamed event is written before the fields which would have to be nested with it are known.
+         *
+         * @return this builder
+         */
+        public EcsLayout.Builder setNestedObjects(final boolean nestedObjects) {
+            this.nestedObjects = nestedObjects;
+            return asBuilder();
+        }
+
+        public int getDegradeAboveEventsPerSecond() {
+            return degradeAboveEventsPerSecond;
+        }
+
+        /**
+         * Serializes events in a compact form while more than this many events per second are serialized.
+         * Degraded events don't contain stack frames, labels which are not top-level and thread names.
+         * Full detail is restored once the rate has fallen below half of this threshold.
+         *
+         * @return this builder
+         */
+        public EcsLayout.Builder setDegradeAboveEventsPerSecond(final int degradeAboveEventsPerSecond) {
+            this.degradeAboveEventsPerSecond = degradeAboveEventsPerSecond;
+            return asBuilder();
+        }
+
+        public int getDegradeAboveQueueUsagePercent() {
+            return degradeAboveQueueUsagePercent;
+        }
+
+        /**
+         * Serializes events in a compact form while the queue of the {@link #setDegradationQueue(String) degradation queue}
+         * is filled to this percentage or more.
+         * Full detail is restored once the usage has fallen below half of this threshold.
+         *
+         * @return this builder
+         */
+        public EcsLayout.Builder setDegradeAboveQueueUsagePercent(final int degradeAboveQueueUsagePercent) {
+            this.degradeAboveQueueUsagePercent = degradeAboveQueueUsagePercent;
+            return asBuilder();
+        }
+
+        public String getDegradationQueue() {
+            return degradationQueue;
+        }
+
+        /**
+         * The name of the {@link org.apache.logging.log4j.core.appender.AsyncAppender} whose queue usage is watched.
+         *
+         * @return this builder
+         */
+        public EcsLayout.Builder setDegradationQueue(final String degradationQueue) {
+            this.degradationQueue = degradationQueue;
+            return asBuilder();
+        }
+
+        public String getTraceContextProvider() {
+            return traceContextProvider;
+        }
+
+        /**
+         * Serializes the ids of the current trace context, see {@link TraceContextProviders#create(String)} for the possible values.
+         *
+         * @return this builder
+         */
+        public EcsLayout.Builder setTraceContextProvider(final String traceContextProvider) {
+            this.traceContextProvider = traceContextProvider;
+            return asBuilder();
+        }
+
+        public boolean isMessageTemplate() {
+            return messageTemplate;
+        }
+
+        /**
+         * Serializes the unformatted message as {@code message_template} and its parameters as {@code message_parameters},
+         * instead of the formatted {@code message}, unless {@link #setIncludeFormattedMessage(boolean)} is set.
+         * Without the formatted message, the stack trace is serialized as {@code error.stack_trace}.
+         * Messages which are serialized as fields, such as {@link MapMessage}, are always formatted.
+         *
+         * @return this builder
+         */
+        public EcsLayout.Builder setMessageTemplate(final boolean messageTemplate) {
+            this.messageTemplate = messageTemplate;
+            return asBuilder();
+        }
+
+        public boolean isIncludeFormattedMessage() {
+            return includeFormattedMessage;
+        }
+
+        /**
+         * Also serializes the formatted {@code message} when {@link #setMessageTemplate(boolean) messageTemplate} is enabled.
+         *
+         * @return this builder
+         */
+        public EcsLayout.Builder setIncludeFormattedMessage(final boolean includeFormattedMessage) {
+            this.includeFormattedMessage = includeFormattedMessage;
+            return asBuilder();
+        }
+
         @Override
         public EcsLayout build() {
-            return new EcsLayout(getConfiguration(), serviceName, additionalFields, topLevelLabels == null ? Collections.<String>emptyList() : Arrays.<String>asList(topLevelLabels));
+            if (nestedObjects && streamingChunkSize > 0) {
+                LOGGER.error("EcsLayout: nestedObjects can't be combined with streamingChunkSize");
+                return null;
+            }
+            return new EcsLayout(getConfiguration(), serviceName, additionalFields == null ? new KeyValuePair[0] : additionalFields,
+                    topLevelLabels == null ? Collections.<String>emptyList() : Arrays.<String>asList(topLevelLabels),
+                    Redactor.create(
+                            redactPattern == null ? Collections.<String>emptyList() : Collections.singletonList(redactPattern),
+                            redactedLabels == null ? Collections.<String>emptyList() : Arrays.asList(redactedLabels.split("\\s*,\\s*"))),
+                    FieldLimits.create(maxMessageLength, maxLabelValueLength, maxStackTraceLength, maxEventLength),
+                    streamingChunkSize, nestedObjects,
+                    DegradationPolicy.create(degradeAboveEventsPerSecond, degradeAboveQueueUsagePercent,
+                            degradationQueue != null && getConfiguration() != null
+                                    ? new AsyncAppenderQueueUsage(getConfiguration(), degradationQueue)
+                                    : null),
+                    createTraceContextProvider(), messageTemplate, includeFormattedMessage);
+        }
+
+        private TraceContextProvider createTraceContextProvider() {
+            try {
+                return TraceContextProviders.create(traceContextProvider);
+            } catch (IllegalArgumentException e) {
+                LOGGER.error(e.getMessage(), e);
+                return null;
+            }
         }
     }
 }
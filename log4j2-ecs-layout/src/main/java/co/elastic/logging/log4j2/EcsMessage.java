@@ -0,0 +1,288 @@
+/*-
+ * #%L
+ * Java ECS logging
+ * %%
+ * Copyright (C) 2019 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.logging.log4j2;
+
+import org.apache.logging.log4j.core.impl.MementoMessage;
+import org.apache.logging.log4j.message.Message;
+import org.apache.logging.log4j.message.ParameterConsumer;
+import org.apache.logging.log4j.message.ParameterVisitable;
+import org.apache.logging.log4j.message.ParameterizedMessage;
+import org.apache.logging.log4j.message.ReusableMessage;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A message with typed fields, such as {@code http.response.status_code} or {@code event.duration},
+ * which the {@link EcsLayout} serializes as top-level JSON fields with their native types.
+ * <pre>
+ * logger.info(EcsMessageFactory.INSTANCE.newEcsMessage("Request handled")
+ *         .with("http.response.status_code", 200)
+ *         .with("event.duration", durationNanos)
+ *         .with("url.path", path));
+ * </pre>
+ * <p>
+ * The fields are stored in primitive arrays, so that adding fields doesn't box values or allocate map entries.
+ * Instances obtained from {@link EcsMessageFactory#newEcsMessage(CharSequence)} are recycled per thread,
+ * which makes logging them garbage free.
+ * As with log4j's other {@link ReusableMessage}s, log4j copies an immutable {@link #memento()} of the message
+ * when the event outlives the logging call, for example with async loggers or the {@code AsyncAppender}.
+ * </p>
+ * <p>
+ * This class is not thread safe.
+ * </p>
+ */
+public class EcsMessage implements ReusableMessage {
+
+    private static final long serialVersionUID = 1L;
+    private static final int INITIAL_CAPACITY = 8;
+    static final byte TYPE_STRING = 0;
+    static final byte TYPE_LONG = 1;
+    static final byte TYPE_DOUBLE = 2;
+    static final byte TYPE_BOOLEAN = 3;
+    private static final int HOLDER_STRIPES = 16;
+    private static final AtomicReferenceArray<EcsMessage[]> holderPool = new AtomicReferenceArray<EcsMessage[]>(HOLDER_STRIPES);
+    private static final ParameterConsumer<EcsMessage[]> MEMENTO_CONSUMER = new ParameterConsumer<EcsMessage[]>() {
+        @Override
+        public void accept(Object parameter, int index, EcsMessage[] holder) {
+            if (index == 0 && parameter instanceof EcsMessage) {
+                holder[0] = (EcsMessage) parameter;
+            }
+        }
+    };
+
+    private CharSequence text = "";
+    private int size;
+    private String[] keys = new String[INITIAL_CAPACITY];
+    private byte[] types = new byte[INITIAL_CAPACITY];
+    private long[] longValues = new long[INITIAL_CAPACITY];
+    private double[] doubleValues = new double[INITIAL_CAPACITY];
+    private CharSequence[] stringValues = new CharSequence[INITIAL_CAPACITY];
+    private final boolean memento;
+
+    public EcsMessage() {
+        memento = false;
+    }
+
+    public EcsMessage(CharSequence text) {
+        memento = false;
+        setText(text);
+    }
+
+    private EcsMessage(EcsMessage message) {
+        memento = true;
+        text = message.text.toString();
+        size = message.size;
+        keys = Arrays.copyOf(message.keys, size);
+        types = Arrays.copyOf(message.types, size);
+        longValues = Arrays.copyOf(message.longValues, size);
+        doubleValues = Arrays.copyOf(message.doubleValues, size);
+        stringValues = new CharSequence[size];
+        for (int i = 0; i < size; i++) {
+            final CharSequence value = message.stringValues[i];
+            stringValues[i] = value == null ? null : value.toString();
+        }
+    }
+
+    /**
+     * Returns the {@link EcsMessage} of an event.
+     * That's either the message itself or, if log4j has copied a recycled message into its own reusable or immutable event,
+     * the {@link #memento()} it has taken of it.
+     *
+     * @return the {@link EcsMessage}, or {@code null} if the message is not one
+     */
+    static EcsMessage of(Message message) {
+        if (message instanceof EcsMessage) {
+            return (EcsMessage) message;
+        }
+        final EcsMessage memento;
+        if (message instanceof ReusableMessage && message instanceof ParameterVisitable) {
+            if (((ReusableMessage) message).getParameterCount() != 1) {
+                return null;
+            }
+            // visiting the parameters doesn't copy them, unlike getParameters()
+            final int stripe = (int) Thread.currentThread().getId() & (HOLDER_STRIPES - 1);
+            EcsMessage[] holder = holderPool.getAndSet(stripe, null);
+            if (holder == null) {
+                holder = new EcsMessage[1];
+            }
+            ((ParameterVisitable) message).forEachParameter(MEMENTO_CONSUMER, holder);
+            memento = holder[0];
+            holder[0] = null;
+            holderPool.set(stripe, holder);
+        } else if (message instanceof ParameterizedMessage || message instanceof MementoMessage) {
+            final Object[] parameters = message.getParameters();
+            memento = parameters != null && parameters.length == 1 && parameters[0] instanceof EcsMessage ? (EcsMessage) parameters[0] : null;
+        } else {
+            return null;
+        }
+        // the message could also be a parameterized one which merely has an EcsMessage as its argument
+        return memento != null && memento.text.equals(message.getFormat()) ? memento : null;
+    }
+
+    /**
+     * Clears the text and the fields, so that this instance can be reused.
+     */
+    EcsMessage clear() {
+        text = "";
+        Arrays.fill(stringValues, 0, size, null);
+        Arrays.fill(keys, 0, size, null);
+        size = 0;
+        return this;
+    }
+
+    EcsMessage setText(CharSequence text) {
+        this.text = text == null ? "null" : text;
+        return this;
+    }
+
+    public EcsMessage with(String key, long value) {
+        longValues[add(key, TYPE_LONG)] = value;
+        return this;
+    }
+
+    public EcsMessage with(String key, int value) {
+        return with(key, (long) value);
+    }
+
+    public EcsMessage with(String key, double value) {
+        doubleValues[add(key, TYPE_DOUBLE)] = value;
+        return this;
+    }
+
+    public EcsMessage with(String key, boolean value) {
+        longValues[add(key, TYPE_BOOLEAN)] = value ? 1 : 0;
+        return this;
+    }
+
+    /**
+     * Adds a string field. The value is serialized when the event is logged, so mutable values must not be changed until then.
+     */
+    public EcsMessage with(String key, CharSequence value) {
+        stringValues[add(key, TYPE_STRING)] = value;
+        return this;
+    }
+
+    private int add(String key, byte type) {
+        if (memento) {
+            throw new UnsupportedOperationException("The memento of an EcsMessage is immutable");
+        }
+        if (size == keys.length) {
+            final int newCapacity = size * 2;
+            keys = Arrays.copyOf(keys, newCapacity);
+            types = Arrays.copyOf(types, newCapacity);
+            longValues = Arrays.copyOf(longValues, newCapacity);
+            doubleValues = Arrays.copyOf(doubleValues, newCapacity);
+            stringValues = Arrays.copyOf(stringValues, newCapacity);
+        }
+        keys[size] = key;
+        types[size] = type;
+        return size++;
+    }
+
+    /**
+     * @return the number of fields
+     */
+    public int getFieldCount() {
+        return size;
+    }
+
+    String getKey(int index) {
+        return keys[index];
+    }
+
+    byte getType(int index) {
+        return types[index];
+    }
+
+    long getLong(int index) {
+        return longValues[index];
+    }
+
+    double getDouble(int index) {
+        return doubleValues[index];
+    }
+
+    boolean getBoolean(int index) {
+        return longValues[index] != 0;
+    }
+
+    CharSequence getString(int index) {
+        return stringValues[index];
+    }
+
+    @Override
+    public String getFormattedMessage() {
+        return text.toString();
+    }
+
+    @Override
+    public String getFormat() {
+        return text.toString();
+    }
+
+    /**
+     * @return the {@link #memento()} of this message, so that the fields survive log4j turning the message into a generic immutable one
+     */
+    @Override
+    public Object[] getParameters() {
+        return new Object[]{memento()};
+    }
+
+    @Override
+    public Object[] swapParameters(Object[] emptyReplacement) {
+        final Object[] result = emptyReplacement != null && emptyReplacement.length > 0 ? emptyReplacement : new Object[1];
+        result[0] = memento();
+        return result;
+    }
+
+    @Override
+    public short getParameterCount() {
+        return 1;
+    }
+
+    /**
+     * @return an immutable copy of this message, which is not affected by recycling this instance
+     */
+    @Override
+    public Message memento() {
+        return memento ? this : new EcsMessage(this);
+    }
+
+    @Override
+    public Throwable getThrowable() {
+        return null;
+    }
+
+    @Override
+    public void formatTo(StringBuilder buffer) {
+        buffer.append(text);
+    }
+
+    @Override
+    public String toString() {
+        return text.toString();
+    }
+}
@@ -0,0 +1,143 @@
+/*-
+ * #%L
+ * Java ECS logging
+ * %%
+ * Copyright (C) 2019 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.logging.log4j2;
+
+import org.apache.logging.log4j.message.Message;
+import org.apache.logging.log4j.message.MessageFactory2;
+import org.apache.logging.log4j.message.ReusableMessageFactory;
+import org.apache.logging.log4j.util.Constants;
+
+/**
+ * Creates {@link EcsMessage}s and, for all other messages, delegates to log4j's {@link ReusableMessageFactory}.
+ * <p>
+ * Like log4j's reusable messages, the {@link EcsMessage}s returned by {@link #newEcsMessage(CharSequence)} are recycled per thread:
+ * a message must be logged right away and not be held on to,
+ * as the next call on the same thread returns the same instance.
+ * </p>
+ * <p>
+ * As {@link EcsMessage} is a {@link org.apache.logging.log4j.message.ReusableMessage},
+ * log4j copies an immutable memento of it when the event outlives the logging call, for example with async loggers or the {@code AsyncAppender}.
+ * Recycling is disabled if thread locals are disabled ({@code log4j2.enable.threadlocals=false})
+ * or if the factory is created with {@code new EcsMessageFactory(false)}.
+ * </p>
+ */
+public class EcsMessageFactory implements MessageFactory2 {
+
+    public static final EcsMessageFactory INSTANCE = new EcsMessageFactory(true);
+
+    private final ThreadLocal<EcsMessage> messages;
+
+    /**
+     * @param reuse whether to recycle {@link EcsMessage}s per thread
+     */
+    public EcsMessageFactory(boolean reuse) {
+        messages = reuse && Constants.ENABLE_THREADLOCALS ? new ThreadLocal<EcsMessage>() : null;
+    }
+
+    /**
+     * Returns an empty {@link EcsMessage} with the given text, recycled per thread if possible.
+     */
+    public EcsMessage newEcsMessage(CharSequence text) {
+        if (messages == null) {
+            return new EcsMessage(text);
+        }
+        EcsMessage message = messages.get();
+        if (message == null) {
+            message = new EcsMessage();
+            messages.set(message);
+        }
+        return message.clear().setText(text);
+    }
+
+    @Override
+    public Message newMessage(CharSequence charSequence) {
+        return ReusableMessageFactory.INSTANCE.newMessage(charSequence);
+    }
+
+    @Override
+    public Message newMessage(Object message) {
+        return ReusableMessageFactory.INSTANCE.newMessage(message);
+    }
+
+    @Override
+    public Message newMessage(String message) {
+        return ReusableMessageFactory.INSTANCE.newMessage(message);
+    }
+
+    @Override
+    public Message newMessage(String message, Object... params) {
+        return ReusableMessageFactory.INSTANCE.newMessage(message, params);
+    }
+
+    @Override
+    public Message newMessage(String message, Object p0) {
+        return ReusableMessageFactory.INSTANCE.newMessage(message, p0);
+    }
+
+    @Override
+    public Message newMessage(String message, Object p0, Object p1) {
+        return ReusableMessageFactory.INSTANCE.newMessage(message, p0, p1);
+    }
+
+    @Override
+    public Message newMessage(String message, Object p0, Object p1, Object p2) {
+        return ReusableMessageFactory.INSTANCE.newMessage(message, p0, p1, p2);
+    }
+
+    @Override
+    public Message newMessage(String message, Object p0, Object p1, Object p2, Object p3) {
+        return ReusableMessageFactory.INSTANCE.newMessage(message, p0, p1, p2, p3);
+    }
+
+    @Override
+    public Message newMessage(String message, Object p0, Object p1, Object p2, Object p3, Object p4) {
+        return ReusableMessageFactory.INSTANCE.newMessage(message, p0, p1, p2, p3, p4);
+    }
+
+    @Override
+    public Message newMessage(String message, Object p0, Object p1, Object p2, Object p3, Object p4, Object p5) {
+        return ReusableMessageFactory.INSTANCE.newMessage(message, p0, p1, p2, p3, p4, p5);
+    }
+
+    @Override
+    public Message newMessage(String message, Object p0, Object p1, Object p2, Object p3, Object p4, Object p5, Object p6) {
+        return ReusableMessageFactory.INSTANCE.newMessage(message, p0, p1, p2, p3, p4, p5, p6);
+    }
+
+    @Override
+    public Message newMessage(String message, Object p0, Object p1, Object p2, Object p3, Object p4, Object p5, Object p6, Object p7) {
+        return ReusableMessageFactory.INSTANCE.newMessage(message, p0, p1, p2, p3, p4, p5, p6, p7);
+    }
+
+    @Override
+    public Message newMessage(String message, Object p0, Object p1, Object p2, Object p3, Object p4, Object p5, Object p6, Object p7, Object p8) {
+        return ReusableMessageFactory.INSTANCE.newMessage(message, p0, p1, p2, p3, p4, p5, p6, p7, p8);
+    }
+
+    @Override
+    public Message newMessage(String message, Object p0, Object p1, Object p2, Object p3, Object p4, Object p5, Object p6, Object p7, Object p8, Object p9) {
+        return ReusableMessageFactory.INSTANCE.newMessage(message, p0, p1, p2, p3, p4, p5, p6, p7, p8, p9);
+    }
+}
@@ -0,0 +1,149 @@
+/*-
+ * #%L
+ * Java ECS logging
+ * %%
+ * Copyright (C) 2019 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.logging.log4j2;
+
+import co.elastic.logging.AllocationMeter;
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.LoggerContext;
+import org.apache.logging.log4j.core.impl.MutableLogEvent;
+import org.apache.logging.log4j.core.layout.ByteBufferDestination;
+import org.apache.logging.log4j.core.util.KeyValuePair;
+import org.apache.logging.log4j.message.ReusableMessageFactory;
+import org.apache.logging.log4j.message.StringMapMessage;
+import org.apache.logging.log4j.spi.MutableThreadContextStack;
+import org.apache.logging.log4j.util.SortedArrayStringMap;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Makes sure {@link EcsLayout#encode} is garbage free, except for serializing exceptions.
+ */
+class Log4j2EcsLayoutAllocationTest {
+
+    private EcsLayout ecsLayout;
+    private MutableLogEvent event;
+    private final NullByteBufferDestination destination = new NullByteBufferDestination();
+
+    @BeforeEach
+    void setUp() {
+        ecsLayout = EcsLayout.newBuilder()
+                .setConfiguration(LoggerContext.getContext().getConfiguration())
+                .setServiceName("test")
+                .setAdditionalFields(new KeyValuePair[]{
+                        new KeyValuePair("cluster.uuid", "9fe9134b-20b0-465e-acf9-8cc09ac9053b"),
+                        // resolved once, as the lookup doesn't depend on the event
+                        new KeyValuePair("os.name", "${sys:os.name}")})
+                .build();
+        event = new MutableLogEvent();
+        event.setLevel(Level.INFO);
+        event.setLoggerName("co.elastic.logging.log4j2.Log4j2EcsLayoutAllocationTest");
+        event.setThreadName("main");
+        event.setTimeMillis(System.currentTimeMillis());
+        // the event copies the content of the reusable message
+        event.setMessage(ReusableMessageFactory.INSTANCE.newMessage("Hello {}, \"escaped\"\n", "World"));
+    }
+
+    @Test
+    void testMessage() {
+        assertGarbageFree("message");
+    }
+
+    @Test
+    void testLabelsAndTags() {
+        SortedArrayStringMap contextData = new SortedArrayStringMap();
+        contextData.putValue("foo", "bar");
+        contextData.putValue("trace.id", "0af7651916cd43dd8448eb211c80319c");
+        event.setContextData(contextData);
+        event.setContextStack(new MutableThreadContextStack(List.of("foo", "bar")));
+        assertGarbageFree("labels and tags");
+    }
+
+    @Test
+    void testMapMessage() {
+        event.setMessage(new StringMapMessage().with("foo", "bar").with("baz", "qux"));
+        assertGarbageFree("MapMessage");
+    }
+
+    @Test
+    void testEcsMessage() {
+        event.setMessage(EcsMessageFactory.INSTANCE.newEcsMessage("Request handled")
+                .with("http.response.status_code", 200)
+                .with("event.duration", 1_500_000L)
+                .with("transaction.sample_rate", 0.25)
+                .with("url.path", "/foo"));
+        assertGarbageFree("EcsMessage");
+    }
+
+    @Test
+    void testNestedObjects() {
+        ecsLayout = EcsLayout.newBuilder()
+                .setConfiguration(LoggerContext.getContext().getConfiguration())
+                .setServiceName("test")
+                .setNestedObjects(true)
+                .build();
+        SortedArrayStringMap contextData = new SortedArrayStringMap();
+        contextData.putValue("foo", "bar");
+        event.setContextData(contextData);
+        assertGarbageFree("nested objects");
+    }
+
+    @Test
+    void testException() {
+        event.setThrown(AllocationMeter.createException());
+        // printing the stack trace is inherently not garbage free
+        AllocationMeter.assertAllocatedBytesPerOperation("exception", 4 * 1024, () -> ecsLayout.encode(event, destination));
+    }
+
+    private void assertGarbageFree(String description) {
+        AllocationMeter.assertAllocatedBytesPerOperation(description, 0, () -> ecsLayout.encode(event, destination));
+    }
+
+    private static class NullByteBufferDestination implements ByteBufferDestination {
+        private final ByteBuffer buffer = ByteBuffer.allocate(1024);
+
+        @Override
+        public ByteBuffer getByteBuffer() {
+            return buffer;
+        }
+
+        @Override
+        public ByteBuffer drain(ByteBuffer buf) {
+            buf.clear();
+            return buf;
+        }
+
+        @Override
+        public void writeBytes(ByteBuffer data) {
+            data.position(data.limit());
+        }
+
+        @Override
+        public void writeBytes(byte[] data, int offset, int length) {
+        }
+    }
+}
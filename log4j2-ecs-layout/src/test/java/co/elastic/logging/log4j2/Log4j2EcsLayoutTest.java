@@ -25,17 +25,31 @@
 package co.elastic.logging.log4j2;
 
 import co.elastic.logging.AbstractEcsLoggingTest;
+import co.elastic.logging.EcsJsonSerializer;
+import co.elastic.logging.EcsMetrics;
+import co.elastic.logging.TraceContextProvider;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import org.apache.logging.log4j.Level;
 import org.apache.logging.log4j.ThreadContext;
 import org.apache.logging.log4j.core.Appender;
+import org.apache.logging.log4j.core.LogEvent;
 import org.apache.logging.log4j.core.BasicConfigurationFactory;
 import org.apache.logging.log4j.core.Logger;
 import org.apache.logging.log4j.core.LoggerContext;
 import org.apache.logging.log4j.core.config.ConfigurationFactory;
+import org.apache.logging.log4j.core.impl.ContextDataFactory;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.apache.logging.log4j.core.impl.MutableLogEvent;
+import org.apache.logging.log4j.core.layout.ByteBufferDestination;
 import org.apache.logging.log4j.core.util.KeyValuePair;
+import org.apache.logging.log4j.message.MapMessage;
+import org.apache.logging.log4j.message.MultiformatMessage;
+import org.apache.logging.log4j.message.ObjectMessage;
+import org.apache.logging.log4j.message.ParameterizedMessage;
+import org.apache.logging.log4j.message.SimpleMessage;
 import org.apache.logging.log4j.message.StringMapMessage;
+import org.apache.logging.log4j.util.StringMap;
 import org.apache.logging.log4j.test.appender.ListAppender;
 import org.junit.jupiter.api.AfterAll;
 import org.junit.jupiter.api.AfterEach;
@@ -43,7 +57,12 @@ import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 
 import static org.assertj.core.api.Assertions.assertThat;
@@ -76,9 +95,15 @@ class Log4j2EcsLayoutTest extends AbstractEcsLoggingTest {
         EcsLayout ecsLayout = EcsLayout.newBuilder()
                 .setConfiguration(ctx.getConfiguration())
                 .setServiceName("test")
+                .setRedactPattern("\\d{4}-\\d{4}-\\d{4}-\\d{4}")
+                .setRedactedLabels("password")
+                .setMaxMessageLength(1000)
+                .setMaxLabelValueLength(100)
                 .setAdditionalFields(new KeyValuePair[]{
                         new KeyValuePair("cluster.uuid", "9fe9134b-20b0-465e-acf9-8cc09ac9053b"),
                         new KeyValuePair("node.id", "${node.id}"),
+                        new KeyValuePair("os.name", "${sys:os.name}"),
+                        new KeyValuePair("request.id", "${ctx:request.id}"),
                 })
                 .build();
 
@@ -103,12 +128,404 @@ class Log4j2EcsLayoutTest extends AbstractEcsLoggingTest {
         assertThat(getLastLogLine().get("404")).isNull();
     }
 
+    @Test
+    void testAdditionalFieldLookups() throws Exception {
+        debug("test");
+        assertThat(getLastLogLine().get("os.name").textValue()).isEqualTo(System.getProperty("os.name"));
+        putMdc("request.id", "1");
+        debug("test");
+        assertThat(getLastLogLine().get("request.id").textValue()).isEqualTo("1");
+        putMdc("request.id", "2");
+        debug("test");
+        assertThat(getLastLogLine().get("request.id").textValue()).isEqualTo("2");
+        assertThat(getLastLogLine().get("os.name").textValue()).isEqualTo(System.getProperty("os.name"));
+    }
+
+    @Test
+    void testEventIndependentLookups() {
+        assertThat(EcsLayout.isEventIndependent("foo")).isTrue();
+        assertThat(EcsLayout.isEventIndependent("${hostName}")).isTrue();
+        assertThat(EcsLayout.isEventIndependent("${env:HOME:-/}-${sys:user.name}")).isTrue();
+        assertThat(EcsLayout.isEventIndependent("${java:version}")).isTrue();
+        assertThat(EcsLayout.isEventIndependent("${ctx:request.id}")).isFalse();
+        assertThat(EcsLayout.isEventIndependent("${sys:user.name}-${date:yyyy}")).isFalse();
+        assertThat(EcsLayout.isEventIndependent("${unknown:foo}")).isFalse();
+        assertThat(EcsLayout.isEventIndependent("${sys:${ctx:key}}")).isFalse();
+    }
+
     @Test
     void testMapMessage() throws Exception {
         root.info(new StringMapMessage(Map.of("foo", "bar")));
         assertThat(getLastLogLine().get("labels.foo").textValue()).isEqualTo("bar");
     }
 
+    @Test
+    void testNestedObjects() throws Exception {
+        EcsLayout nestedLayout = EcsLayout.newBuilder()
+                .setConfiguration(ctx.getConfiguration())
+                .setServiceName("test")
+                .setNestedObjects(true)
+                .build();
+        String json = nestedLayout.toSerializable(Log4jLogEvent.newBuilder()
+                .setLoggerName("foo")
+                .setLevel(Level.INFO)
+                .setMessage(new StringMapMessage().with("trace.id", "abc").with("foo", "bar"))
+                .build());
+        JsonNode log = objectMapper.readTree(json);
+        assertThat(log.get("log").get("level").textValue()).isEqualTo("INFO");
+        assertThat(log.get("log").get("logger").textValue()).isEqualTo("foo");
+        assertThat(log.get("service").get("name").textValue()).isEqualTo("test");
+        assertThat(log.get("trace").get("id").textValue()).isEqualTo("abc");
+        assertThat(log.get("labels").get("foo").textValue()).isEqualTo("bar");
+    }
+
+    @Test
+    void testDegradesAboveEventRate() throws Exception {
+        EcsLayout degradingLayout = EcsLayout.newBuilder()
+                .setConfiguration(ctx.getConfiguration())
+                .setServiceName("test")
+                .setDegradeAboveEventsPerSecond(10)
+                .build();
+        StringMap contextData = ContextDataFactory.createContextData();
+        contextData.putValue("trace.id", "foo");
+        contextData.putValue("foo", "bar");
+        JsonNode log = null;
+        for (int i = 0; i < 3; i++) {
+            // 3 events within 100ms
+            log = objectMapper.readTree(degradingLayout.toSerializable(Log4jLogEvent.newBuilder()
+                    .setLoggerName("foo")
+                    .setLevel(Level.ERROR)
+                    .setTimeMillis(1_000 + i * 50)
+                    .setThreadName("main")
+                    .setContextData(contextData)
+                    .setMessage(new StringMapMessage().with("bar", "baz"))
+                    .setThrown(new RuntimeException("boom"))
+                    .build()));
+        }
+        assertThat(log.get("event.degraded").booleanValue()).isTrue();
+        assertThat(log.get("message").textValue()).endsWith("\njava.lang.RuntimeException: boom");
+        assertThat(log.get("trace.id").textValue()).isEqualTo("foo");
+        assertThat(log.get("labels.foo")).isNull();
+        assertThat(log.get("labels.bar")).isNull();
+        assertThat(log.get("process.thread.name")).isNull();
+    }
+
+    @Test
+    void testMessageTemplate() throws Exception {
+        EcsLayout templateLayout = EcsLayout.newBuilder()
+                .setConfiguration(ctx.getConfiguration())
+                .setServiceName("test")
+                .setMessageTemplate(true)
+                .build();
+        RuntimeException thrown = new RuntimeException("boom");
+        JsonNode log = objectMapper.readTree(templateLayout.toSerializable(Log4jLogEvent.newBuilder()
+                .setLoggerName("foo")
+                .setLevel(Level.ERROR)
+                .setMessage(new ParameterizedMessage("{} of {} failed", 3, "jobs", thrown))
+                .setThrown(thrown)
+                .build()));
+        assertThat(log.get("message")).isNull();
+        assertThat(log.get("message_template").textValue()).isEqualTo("{} of {} failed");
+        assertThat(log.get("message_parameters").toString()).isEqualTo("[3,\"jobs\"]");
+        assertThat(log.get("error.stack_trace").textValue()).startsWith("java.lang.RuntimeException: boom");
+
+        // messages which are serialized as fields are always formatted
+        log = objectMapper.readTree(templateLayout.toSerializable(Log4jLogEvent.newBuilder()
+                .setLoggerName("foo")
+                .setLevel(Level.INFO)
+                .setMessage(new StringMapMessage().with("message", "hello").with("bar", "baz"))
+                .build()));
+        assertThat(log.get("message_template")).isNull();
+        assertThat(log.get("labels.bar").textValue()).isEqualTo("baz");
+
+        EcsLayout formattingLayout = EcsLayout.newBuilder()
+                .setConfiguration(ctx.getConfiguration())
+                .setMessageTemplate(true)
+                .setIncludeFormattedMessage(true)
+                .build();
+        log = objectMapper.readTree(formattingLayout.toSerializable(Log4jLogEvent.newBuilder()
+                .setLoggerName("foo")
+                .setLevel(Level.INFO)
+                .setMessage(new ParameterizedMessage("{} of {} done", 3, "jobs"))
+                .build()));
+        assertThat(log.get("message").textValue()).isEqualTo("3 of jobs done");
+        assertThat(log.get("message_template").textValue()).isEqualTo("{} of {} done");
+    }
+
+    @Test
+    void testTraceContextProvider() throws Exception {
+        EcsLayout layout = EcsLayout.newBuilder()
+                .setConfiguration(ctx.getConfiguration())
+                .setTraceContextProvider(TestTraceContextProvider.class.getName())
+                .build();
+        JsonNode log = objectMapper.readTree(layout.toSerializable(Log4jLogEvent.newBuilder()
+                .setLoggerName("foo")
+                .setLevel(Level.INFO)
+                .setMessage(new SimpleMessage("test"))
+                .build()));
+        assertThat(log.get("trace.id").textValue()).isEqualTo("trace");
+        assertThat(log.get("transaction.id").textValue()).isEqualTo("transaction");
+    }
+
+    @Test
+    void testTypedMapMessage() throws Exception {
+        root.info(new MapMessage<>(Map.of(
+                "count", 42,
+                "nested", Map.of("enabled", true, "ratio", 0.5),
+                "list", List.of("a", 1))));
+        JsonNode log = getLastLogLine();
+        assertThat(log.get("labels.count").intValue()).isEqualTo(42);
+        assertThat(log.get("labels.nested").get("enabled").booleanValue()).isTrue();
+        assertThat(log.get("labels.nested").get("ratio").doubleValue()).isEqualTo(0.5);
+        assertThat(log.get("labels.list").get(0).textValue()).isEqualTo("a");
+        assertThat(log.get("labels.list").get(1).intValue()).isEqualTo(1);
+    }
+
+    @Test
+    void testObjectMessageWithMap() throws Exception {
+        root.info(new ObjectMessage(Map.of("trace.id", "foo", "count", 42)));
+        JsonNode log = getLastLogLine();
+        assertThat(log.get("trace.id").textValue()).isEqualTo("foo");
+        assertThat(log.get("labels.count").intValue()).isEqualTo(42);
+    }
+
+    @Test
+    void testJsonMessage() throws Exception {
+        // pretty printed, with a member which clashes with a field of the layout
+        root.info(new JsonMessage("payload", "{\n  \"message\": \"order placed\",\n  \"log.level\": \"x\",\n  \"order\": {\"id\": 1, \"items\": [\"a\", \"b\"]}\n}\n"));
+        String line = listAppender.getMessages().get(listAppender.getMessages().size() - 1);
+        assertThat(line.indexOf('\n')).isEqualTo(line.length() - 1);
+        JsonNode log = getLastLogLine();
+        // the formatted message is not serialized in addition to the JSON
+        assertThat(log.get("message").textValue()).isEqualTo("order placed");
+        assertThat(log.get("log.level").textValue()).isEqualTo("INFO");
+        assertThat(log.get("labels.log.level").textValue()).isEqualTo("x");
+        assertThat(log.get("order").get("id").intValue()).isEqualTo(1);
+        assertThat(log.get("order").get("items").get(1).textValue()).isEqualTo("b");
+
+        root.info(new JsonMessage("not an object", "[1]"));
+        assertThat(getLastLogLine().get("message").textValue()).isEqualTo("not an object");
+    }
+
+    @Test
+    void testJsonMessageRedactedAndTruncated() throws Exception {
+        String longValue = "x".repeat(200);
+        root.info(new JsonMessage("payload", "{\"card\": \"1234-5678-9012-3456\", \"password\": {\"a\": 1}, " +
+                "\"order\": {\"notes\": [\"" + longValue + "\"], \"quote\": \"\\\"\\u0041\"}}"));
+        JsonNode log = getLastLogLine();
+        assertThat(log.get("card").textValue()).isEqualTo("[REDACTED]");
+        assertThat(log.get("password").textValue()).isEqualTo("[REDACTED]");
+        assertThat(log.get("order").get("notes").get(0).textValue()).isEqualTo(longValue.substring(0, 100));
+        assertThat(log.get("order").get("quote").textValue()).isEqualTo("\"A");
+        assertThat(log.get("event.truncated").booleanValue()).isTrue();
+    }
+
+    @Test
+    void testJsonMessageExceedingMaxEventLength() throws Exception {
+        EcsLayout layout = EcsLayout.newBuilder()
+                .setConfiguration(ctx.getConfiguration())
+                .setMaxEventLength(1000)
+                .build();
+        StringBuilder json = new StringBuilder("{");
+        for (int i = 0; i < 100; i++) {
+            json.append("\"field").append(i).append("\": \"value\",");
+        }
+        json.setLength(json.length() - 1);
+        json.append('}');
+
+        JsonNode log = objectMapper.readTree(layout.toSerializable(Log4jLogEvent.newBuilder()
+                .setLevel(Level.INFO)
+                .setLoggerName("test")
+                .setMessage(new JsonMessage("too large", json.toString()))
+                .build()));
+        assertThat(log.get("message").textValue()).isEqualTo("too large");
+        assertThat(log.get("field0")).isNull();
+        assertThat(log.get("event.truncated").booleanValue()).isTrue();
+    }
+
+    @Test
+    void testEcsMessage() throws Exception {
+        root.info(EcsMessageFactory.INSTANCE.newEcsMessage("Request handled")
+                .with("http.response.status_code", 200)
+                .with("event.duration", 1_500_000L)
+                .with("transaction.sampled", true)
+                .with("transaction.sample_rate", 0.25)
+                .with("event.risk_score", Double.NaN)
+                .with("url.path", "/foo\"bar")
+                .with("password", "secret")
+                .with("error.id", (CharSequence) null));
+        JsonNode log = getLastLogLine();
+        assertThat(log.get("message").textValue()).isEqualTo("Request handled");
+        assertThat(log.get("http.response.status_code").isInt()).isTrue();
+        assertThat(log.get("http.response.status_code").intValue()).isEqualTo(200);
+        assertThat(log.get("event.duration").longValue()).isEqualTo(1_500_000L);
+        assertThat(log.get("transaction.sampled").booleanValue()).isTrue();
+        assertThat(log.get("transaction.sample_rate").doubleValue()).isEqualTo(0.25);
+        assertThat(log.get("event.risk_score").textValue()).isEqualTo("NaN");
+        assertThat(log.get("url.path").textValue()).isEqualTo("/foo\"bar");
+        assertThat(log.get("password").textValue()).isEqualTo("[REDACTED]");
+        assertThat(log.get("error.id").isNull()).isTrue();
+    }
+
+    @Test
+    void testEcsMessageRecycling() {
+        EcsMessage message = EcsMessageFactory.INSTANCE.newEcsMessage("first").with("foo", 1);
+        EcsMessage recycled = EcsMessageFactory.INSTANCE.newEcsMessage("second");
+        assertThat(recycled).isSameAs(message);
+        assertThat(recycled.getFieldCount()).isZero();
+        assertThat(recycled.getFormattedMessage()).isEqualTo("second");
+        assertThat(new EcsMessageFactory(false).newEcsMessage("third")).isNotSameAs(recycled);
+    }
+
+    @Test
+    void testEcsMessageRecycledAfterCopy() throws Exception {
+        EcsLayout layout = EcsLayout.newBuilder()
+                .setConfiguration(ctx.getConfiguration())
+                .setMessageTemplate(true)
+                .build();
+        MutableLogEvent reusableEvent = new MutableLogEvent();
+        reusableEvent.setLevel(Level.INFO);
+        reusableEvent.setLoggerName("test");
+        reusableEvent.setMessage(EcsMessageFactory.INSTANCE.newEcsMessage("first").with("foo", 1));
+        // what async loggers and the AsyncAppender hold on to
+        LogEvent immutableEvent = reusableEvent.toImmutable();
+        LogEvent memento = Log4jLogEvent.createMemento(reusableEvent);
+        EcsMessageFactory.INSTANCE.newEcsMessage("second").with("bar", 2);
+
+        for (LogEvent event : List.of(reusableEvent, immutableEvent, memento)) {
+            JsonNode logLine = objectMapper.readTree(layout.toSerializable(event));
+            assertThat(logLine.get("message").textValue()).isEqualTo("first");
+            assertThat(logLine.get("foo").intValue()).isEqualTo(1);
+            assertThat(logLine.get("bar")).isNull();
+            assertThat(logLine.get("message_template")).isNull();
+        }
+    }
+
+    @Test
+    void testParameterizedMessageWithEcsMessageArgument() throws Exception {
+        root.info("wrapped {}", new EcsMessage("inner").with("foo", 1));
+        JsonNode logLine = getLastLogLine();
+        assertThat(logLine.get("message").textValue()).isEqualTo("wrapped inner");
+        assertThat(logLine.get("foo")).isNull();
+    }
+
+    @Test
+    void testStreamingLargeEvents() throws Exception {
+        EcsLayout streamingLayout = EcsLayout.newBuilder()
+                .setConfiguration(ctx.getConfiguration())
+                .setRedactPattern("\\d{4}-\\d{4}-\\d{4}-\\d{4}")
+                .setStreamingChunkSize(1024)
+                .build();
+        String message = String.join("", Collections.nCopies(1020, "x")) + "1234-5678-9012-3456" + String.join("", Collections.nCopies(10_000, "\n"));
+        ListByteBufferDestination destination = new ListByteBufferDestination(256);
+
+        streamingLayout.encode(Log4jLogEvent.newBuilder()
+                .setLevel(Level.INFO)
+                .setLoggerName("test")
+                .setMessage(new SimpleMessage(message))
+                .build(), destination);
+
+        JsonNode logLine = objectMapper.readTree(destination.toString());
+        assertThat(logLine.get("message").textValue()).isEqualTo(message.replace("1234-5678-9012-3456", "[REDACTED]"));
+        assertThat(destination.getWriteCount()).isGreaterThan(20);
+    }
+
+    @Test
+    void testStreamingStackTrace() throws Exception {
+        EcsLayout streamingLayout = EcsLayout.newBuilder()
+                .setConfiguration(ctx.getConfiguration())
+                .setRedactPattern("\\d{4}-\\d{4}-\\d{4}-\\d{4}")
+                .setStreamingChunkSize(64)
+                .build();
+        Log4jLogEvent event = Log4jLogEvent.newBuilder()
+                .setLevel(Level.ERROR)
+                .setLoggerName("test")
+                .setMessage(new SimpleMessage("short"))
+                .setThrown(new IllegalStateException("card 1234-5678-9012-3456"))
+                .build();
+
+        // the chunked writer is reused for subsequent events
+        for (int i = 0; i < 2; i++) {
+            ListByteBufferDestination destination = new ListByteBufferDestination(256);
+            streamingLayout.encode(event, destination);
+            JsonNode logLine = objectMapper.readTree(destination.toString());
+            assertThat(logLine.get("message").textValue()).startsWith("short\njava.lang.IllegalStateException: card [REDACTED]\n\tat ");
+            assertThat(destination.toString()).isEqualTo(streamingLayout.toSerializable(event));
+            assertThat(destination.getWriteCount()).isGreaterThan(1);
+        }
+    }
+
+    @Test
+    void testMetricsCountUtf8Bytes() {
+        assertThat(EcsMetrics.ENABLED).isTrue();
+        long expectedBytes = 0;
+        for (int streamingChunkSize : new int[]{0, 64}) {
+            EcsLayout layout = EcsLayout.newBuilder()
+                    .setConfiguration(ctx.getConfiguration())
+                    .setServiceName("metrics-bytes")
+                    .setStreamingChunkSize(streamingChunkSize)
+                    .build();
+            ListByteBufferDestination destination = new ListByteBufferDestination(256);
+            layout.encode(Log4jLogEvent.newBuilder()
+                    .setLevel(Level.ERROR)
+                    .setLoggerName("test")
+                    .setMessage(new SimpleMessage("äöü€😀"))
+                    .setThrown(new IllegalStateException("äöü€😀"))
+                    .build(), destination);
+            expectedBytes += destination.toString().getBytes(StandardCharsets.UTF_8).length;
+        }
+        assertThat(EcsMetrics.forComponent("log4j2-ecs-layout", "metrics-bytes").getBytes()).isEqualTo(expectedBytes);
+    }
+
+    @Test
+    void testStreamingRejectsNestedObjects() {
+        assertThat(EcsLayout.newBuilder()
+                .setConfiguration(ctx.getConfiguration())
+                .setStreamingChunkSize(1024)
+                .setNestedObjects(true)
+                .build()).isNull();
+    }
+
+    private static class JsonMessage implements MultiformatMessage {
+        private final String text;
+        private final String json;
+
+        private JsonMessage(String text, String json) {
+            this.text = text;
+            this.json = json;
+        }
+
+        @Override
+        public String getFormattedMessage() {
+            return text;
+        }
+
+        @Override
+        public String getFormattedMessage(String[] formats) {
+            return json;
+        }
+
+        @Override
+        public String[] getFormats() {
+            return new String[]{"JSON"};
+        }
+
+        @Override
+        public String getFormat() {
+            return text;
+        }
+
+        @Override
+        public Object[] getParameters() {
+            return null;
+        }
+
+        @Override
+        public Throwable getThrowable() {
+            return null;
+        }
+    }
+
     @Override
     public void putMdc(String key, String value) {
         ThreadContext.put(key, value);
@@ -132,8 +549,63 @@ class Log4j2EcsLayoutTest extends AbstractEcsLoggingTest {
 
     @Override
     public JsonNode getLastLogLine() throws IOException {
-        String content = listAppender.getMessages().get(0);
+        String content = listAppender.getMessages().get(listAppender.getMessages().size() - 1);
         System.out.println(content);
         return objectMapper.readTree(content);
     }
+
+    private static class ListByteBufferDestination implements ByteBufferDestination {
+        private final ByteBuffer buffer;
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        private int writeCount;
+
+        private ListByteBufferDestination(int bufferSize) {
+            buffer = ByteBuffer.allocate(bufferSize);
+        }
+
+        @Override
+        public ByteBuffer getByteBuffer() {
+            return buffer;
+        }
+
+        @Override
+        public ByteBuffer drain(ByteBuffer buf) {
+            buf.flip();
+            out.write(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining());
+            buf.clear();
+            writeCount++;
+            return buf;
+        }
+
+        @Override
+        public void writeBytes(ByteBuffer data) {
+            writeCount++;
+            while (data.hasRemaining()) {
+                out.write(data.get());
+            }
+        }
+
+        @Override
+        public void writeBytes(byte[] data, int offset, int length) {
+            writeCount++;
+            out.write(data, offset, length);
+        }
+
+        int getWriteCount() {
+            return writeCount;
+        }
+
+        @Override
+        public String toString() {
+            drain(buffer);
+            return new String(out.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+
+    public static class TestTraceContextProvider implements TraceContextProvider {
+        @Override
+        public void serializeTraceContext(StringBuilder builder) {
+            EcsJsonSerializer.serializeTraceContext(builder, "trace", "transaction", null);
+        }
+    }
 }
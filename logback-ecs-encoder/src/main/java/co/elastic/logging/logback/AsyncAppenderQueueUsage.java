@@ -0,0 +1,74 @@
+/*-
+ * #%L
+ * Java ECS logging
+ * %%
+ * Copyright (C) 2019 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.logging.logback;
+
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.core.Appender;
+import ch.qos.logback.core.AsyncAppenderBase;
+import co.elastic.logging.DegradationPolicy;
+
+/**
+ * The usage of the queue of an {@link AsyncAppenderBase}, which is looked up by name among the appenders of all loggers.
+ * The lookup is retried until the appender has been attached, as encoders are started before their appenders are attached.
+ */
+class AsyncAppenderQueueUsage implements DegradationPolicy.QueueUsage {
+
+    private final LoggerContext loggerContext;
+    private final String appenderName;
+    private volatile AsyncAppenderBase<?> appender;
+
+    AsyncAppenderQueueUsage(LoggerContext loggerContext, String appenderName) {
+        this.loggerContext = loggerContext;
+        this.appenderName = appenderName;
+    }
+
+    @Override
+    public int getUsagePercent() {
+        AsyncAppenderBase<?> appender = this.appender;
+        if (appender == null) {
+            appender = findAppender();
+            if (appender == null) {
+                return 0;
+            }
+            this.appender = appender;
+        }
+        final int capacity = appender.getQueueSize();
+        if (capacity <= 0) {
+            return 0;
+        }
+        return (int) ((long) appender.getNumberOfElementsInQueue() * 100 / capacity);
+    }
+
+    private AsyncAppenderBase<?> findAppender() {
+        for (Logger logger : loggerContext.getLoggerList()) {
+            final Appender<?> appender = logger.getAppender(appenderName);
+            if (appender instanceof AsyncAppenderBase) {
+                return (AsyncAppenderBase<?>) appender;
+            }
+        }
+        return null;
+    }
+}
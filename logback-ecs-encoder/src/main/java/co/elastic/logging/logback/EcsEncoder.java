@@ -24,22 +24,51 @@
  */
 package co.elastic.logging.logback;
 
+import ch.qos.logback.classic.LoggerContext;
 import ch.qos.logback.classic.pattern.ThrowableProxyConverter;
 import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.IThrowableProxy;
 import ch.qos.logback.core.encoder.EncoderBase;
+import co.elastic.logging.DegradationPolicy;
 import co.elastic.logging.EcsJsonSerializer;
-import co.elastic.logging.JsonUtils;
+import co.elastic.logging.EcsMetrics;
+import co.elastic.logging.FieldLimits;
+import co.elastic.logging.JsonNester;
+import co.elastic.logging.LabelsCache;
+import co.elastic.logging.Redactor;
+import co.elastic.logging.StringBuilderPool;
+import co.elastic.logging.Utf8Encoder;
 
-import java.nio.charset.Charset;
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 
 public class EcsEncoder extends EncoderBase<ILoggingEvent> {
 
-    private static final Charset UTF_8 = Charset.forName("UTF-8");
     private String serviceName;
     private ThrowableProxyConverter throwableProxyConverter;
     private Set<String> topLevelLabels = new HashSet<String>(EcsJsonSerializer.DEFAULT_TOP_LEVEL_LABELS);
+    private final List<String> redactPatterns = new ArrayList<String>();
+    private final List<String> redactedLabels = new ArrayList<String>();
+    private Redactor redactor;
+    private int maxMessageLength;
+    private int maxLabelValueLength;
+    private int maxStackTraceLength;
+    private int maxEventLength;
+    private FieldLimits fieldLimits = FieldLimits.NONE;
+    private boolean nestedObjects;
+    private JsonNester jsonNester;
+    private int degradeAboveEventsPerSecond;
+    private int degradeAboveQueueUsagePercent;
+    private String degradationQueue;
+    private DegradationPolicy degradationPolicy;
+    private boolean messageTemplate;
+    private boolean includeFormattedMessage;
+    private EcsMetrics metrics;
+    private final StringBuilderPool bufferPool = new StringBuilderPool();
+    private final MarkerTags markerTags = new MarkerTags();
+    private LabelsCache labelsCache;
 
     @Override
     public byte[] headerBytes() {
@@ -51,32 +80,195 @@ public class EcsEncoder extends EncoderBase<ILoggingEvent> {
         super.start();
         throwableProxyConverter = new ThrowableProxyConverter();
         throwableProxyConverter.start();
+        redactor = Redactor.create(redactPatterns, redactedLabels);
+        fieldLimits = FieldLimits.create(maxMessageLength, maxLabelValueLength, maxStackTraceLength, maxEventLength);
+        labelsCache = new LabelsCache(topLevelLabels, redactor, fieldLimits);
+        jsonNester = nestedObjects ? new JsonNester() : null;
+        degradationPolicy = DegradationPolicy.create(degradeAboveEventsPerSecond, degradeAboveQueueUsagePercent,
+                degradationQueue != null && getContext() instanceof LoggerContext
+                        ? new AsyncAppenderQueueUsage((LoggerContext) getContext(), degradationQueue)
+                        : null);
+        metrics = EcsMetrics.forComponent("logback-ecs-encoder", serviceName);
     }
 
     @Override
     public byte[] encode(ILoggingEvent event) {
-        StringBuilder builder = new StringBuilder();
-        EcsJsonSerializer.serializeObjectStart(builder, event.getTimeStamp());
-        EcsJsonSerializer.serializeLogLevel(builder, event.getLevel().toString());
-        EcsJsonSerializer.serializeFormattedMessage(builder, event.getFormattedMessage(), null);
-        serializeException(event, builder);
-        EcsJsonSerializer.serializeServiceName(builder, serviceName);
-        EcsJsonSerializer.serializeThreadName(builder, event.getThreadName());
-        EcsJsonSerializer.serializeLoggerName(builder, event.getLoggerName());
-        EcsJsonSerializer.serializeLabels(builder, event.getMDCPropertyMap(), topLevelLabels);
-        EcsJsonSerializer.serializeObjectEnd(builder);
-        // all these allocations kinda hurt
-        return builder.toString().getBytes(UTF_8);
-    }
-
-    private void serializeException(ILoggingEvent event, StringBuilder builder) {
-        if (event.getThrowableProxy() != null) {
+        final long start = EcsMetrics.ENABLED && metrics != null ? metrics.onEventStart() : EcsMetrics.NOT_SAMPLED;
+        final StringBuilder builder = bufferPool.acquire();
+        final int initialCapacity = builder.capacity();
+        try {
+            final boolean degraded = degradationPolicy != null && degradationPolicy.onEvent(event.getTimeStamp());
+            EcsJsonSerializer.serializeObjectStart(builder, event.getTimeStamp());
+            EcsJsonSerializer.serializeLogLevel(builder, event.getLevel().toString());
+            boolean truncated = false;
+            if (!messageTemplate || includeFormattedMessage) {
+                truncated |= EcsJsonSerializer.serializeFormattedMessage(builder, event.getFormattedMessage(), null, redactor, fieldLimits);
+                truncated |= serializeException(event, builder, degraded);
+            } else {
+                truncated |= serializeStackTrace(event, builder, degraded);
+            }
+            if (messageTemplate) {
+                final Object[] arguments = event.getArgumentArray();
+                // structured arguments are serialized as fields of their own
+                truncated |= EcsJsonSerializer.serializeMessageTemplate(builder, event.getMessage(), arguments,
+                        arguments != null ? arguments.length : 0, StructuredArgument.class, redactor, fieldLimits);
+            }
+            EcsJsonSerializer.serializeServiceName(builder, serviceName);
+            if (!degraded) {
+                EcsJsonSerializer.serializeThreadName(builder, event.getThreadName());
+            }
+            EcsJsonSerializer.serializeLoggerName(builder, event.getLoggerName());
+            if (degraded) {
+                truncated |= labelsCache.serializeTopLevelLabels(builder, event.getMDCPropertyMap());
+            } else {
+                truncated |= labelsCache.serializeLabels(builder, event.getMDCPropertyMap());
+            }
+            final List<?> pairs = KeyValuePairs.get(event, this);
+            truncated |= serializeKeyValuePairs(event, pairs, builder, degraded);
+            truncated |= serializeStructuredArguments(event, pairs, builder, degraded);
+            markerTags.serializeTags(builder, event.getMarker());
+            if (truncated) {
+                EcsJsonSerializer.serializeTruncatedMarker(builder);
+            }
+            if (degraded) {
+                EcsJsonSerializer.serializeDegradedMarker(builder);
+            }
+            EcsJsonSerializer.serializeObjectEnd(builder);
+            if (jsonNester != null) {
+                nest(builder);
+            }
+            // encodes the builder directly, without creating an intermediate String
+            final byte[] bytes = Utf8Encoder.toByteArray(builder);
+            if (EcsMetrics.ENABLED && metrics != null) {
+                if (builder.capacity() > initialCapacity) {
+                    metrics.onBufferGrowth();
+                }
+                metrics.onEventEnd(start, bytes.length, event.getThrowableProxy() != null, truncated);
+            }
+            return bytes;
+        } finally {
+            if (bufferPool.release(builder) && EcsMetrics.ENABLED && metrics != null) {
+                metrics.onBufferTrim();
+            }
+        }
+    }
+
+    private void nest(StringBuilder builder) {
+        final StringBuilder scratch = bufferPool.acquire();
+        try {
+            jsonNester.nest(builder, 0, scratch);
+        } finally {
+            bufferPool.release(scratch, false);
+        }
+    }
+
+    /**
+     * @param degraded whether to only serialize the first line of the stack trace, without the stack frames
+     */
+    private boolean serializeException(ILoggingEvent event, StringBuilder builder, boolean degraded) {
+        boolean truncated = false;
+        final IThrowableProxy throwableProxy = event.getThrowableProxy();
+        if (throwableProxy != null) {
             // remove `", `
             builder.setLength(builder.length() - 3);
             builder.append("\\n");
-            JsonUtils.quoteAsString(throwableProxyConverter.convert(event), builder);
+            truncated = serializeThrowable(event, throwableProxy, builder, degraded);
+            builder.append("\",");
+        }
+        return truncated;
+    }
+
+    /**
+     * Serializes the stack trace as {@code error.stack_trace}, for events whose formatted message is not serialized.
+     */
+    private boolean serializeStackTrace(ILoggingEvent event, StringBuilder builder, boolean degraded) {
+        boolean truncated = false;
+        final IThrowableProxy throwableProxy = event.getThrowableProxy();
+        if (throwableProxy != null) {
+            builder.append("\"error.stack_trace\":\"");
+            truncated = serializeThrowable(event, throwableProxy, builder, degraded);
             builder.append("\",");
         }
+        return truncated;
+    }
+
+    private boolean serializeThrowable(ILoggingEvent event, IThrowableProxy throwableProxy, StringBuilder builder, boolean degraded) {
+        if (degraded) {
+            return EcsJsonSerializer.serializeThrowableSummary(builder, throwableProxy.getClassName(), throwableProxy.getMessage(),
+                    redactor, fieldLimits);
+        }
+        return Redactor.quoteAsString(throwableProxyConverter.convert(event), builder, redactor,
+                fieldLimits.getMaxStackTraceLength(), fieldLimits.getMaxBuilderLength());
+    }
+
+    /**
+     * @param degraded whether to only serialize top-level fields
+     */
+    private boolean serializeKeyValuePairs(ILoggingEvent event, List<?> pairs, StringBuilder builder, boolean degraded) {
+        boolean truncated = false;
+        for (int i = 0, size = pairs.size(); i < size; i++) {
+            final Object pair = pairs.get(i);
+            final String key = pair != null ? KeyValuePairs.getKey(pair) : null;
+            if (key != null && !containsKey(pairs, i, key)) {
+                truncated |= serializeEventField(event, builder, key, KeyValuePairs.getValue(pair), degraded);
+            }
+        }
+        return truncated;
+    }
+
+    private boolean serializeStructuredArguments(ILoggingEvent event, List<?> pairs, StringBuilder builder, boolean degraded) {
+        boolean truncated = false;
+        final Object[] arguments = event.getArgumentArray();
+        if (arguments != null) {
+            for (int i = 0; i < arguments.length; i++) {
+                if (arguments[i] instanceof StructuredArgument) {
+                    final StructuredArgument structuredArgument = (StructuredArgument) arguments[i];
+                    final String key = structuredArgument.getKey();
+                    if (!containsKey(pairs, pairs.size(), key) && !containsKey(arguments, i, key)) {
+                        truncated |= serializeEventField(event, builder, key, structuredArgument.getValue(), degraded);
+                    }
+                }
+            }
+        }
+        return truncated;
+    }
+
+    /**
+     * Serializes a key-value pair or a structured argument.
+     * Like MDC entries, keys which are not top-level labels are prefixed with {@code labels.},
+     * so that keys such as {@code message} don't clash with the fields the encoder writes itself.
+     * Keys which are already set by the MDC are skipped, so that the event doesn't contain duplicate keys.
+     */
+    private boolean serializeEventField(ILoggingEvent event, StringBuilder builder, String key, Object value, boolean degraded) {
+        if (event.getMDCPropertyMap().containsKey(key) || degraded && !topLevelLabels.contains(key)) {
+            return false;
+        }
+        return EcsJsonSerializer.serializeField(builder, key, value, topLevelLabels, redactor, fieldLimits);
+    }
+
+    /**
+     * @return whether one of the first {@code end} key-value pairs has the key
+     */
+    private static boolean containsKey(List<?> pairs, int end, String key) {
+        for (int i = 0; i < end; i++) {
+            final Object pair = pairs.get(i);
+            if (pair != null && key.equals(KeyValuePairs.getKey(pair))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return whether one of the first {@code end} arguments is a structured argument with the key
+     */
+    private static boolean containsKey(Object[] arguments, int end, String key) {
+        for (int i = 0; i < end; i++) {
+            if (arguments[i] instanceof StructuredArgument && key.equals(((StructuredArgument) arguments[i]).getKey())) {
+                return true;
+            }
+        }
+        return false;
     }
 
     @Override
@@ -87,4 +279,88 @@ public class EcsEncoder extends EncoderBase<ILoggingEvent> {
     public void setServiceName(String serviceName) {
         this.serviceName = serviceName;
     }
+
+    /**
+     * Matches of this regular expression are masked in the message, the stack trace and label values.
+     * Can be specified multiple times.
+     */
+    public void addRedactPattern(String redactPattern) {
+        this.redactPatterns.add(redactPattern);
+    }
+
+    /**
+     * The value of the label with this key is masked entirely.
+     * Can be specified multiple times.
+     */
+    public void addRedactedLabel(String redactedLabel) {
+        this.redactedLabels.add(redactedLabel);
+    }
+
+    public void setMaxMessageLength(int maxMessageLength) {
+        this.maxMessageLength = maxMessageLength;
+    }
+
+    public void setMaxLabelValueLength(int maxLabelValueLength) {
+        this.maxLabelValueLength = maxLabelValueLength;
+    }
+
+    public void setMaxStackTraceLength(int maxStackTraceLength) {
+        this.maxStackTraceLength = maxStackTraceLength;
+    }
+
+    public void setMaxEventLength(int maxEventLength) {
+        this.maxEventLength = maxEventLength;
+    }
+
+    /**
+     * Writes dotted keys as nested objects, for example {@code "log":{"level":"INFO"}} instead of {@code "log.level":"INFO"}.
+     */
+    public void setNestedObjects(boolean nestedObjects) {
+        this.nestedObjects = nestedObjects;
+    }
+
+    /**
+     * Serializes events in a compact form while more than this many events per second are encoded.
+     * Degraded events don't contain stack frames, labels which are not top-level and thread names.
+     * Full detail is restored once the rate has fallen below half of this threshold.
+     */
+    public void setDegradeAboveEventsPerSecond(int degradeAboveEventsPerSecond) {
+        this.degradeAboveEventsPerSecond = degradeAboveEventsPerSecond;
+    }
+
+    /**
+     * Serializes events in a compact form while the queue of the {@link #setDegradationQueue(String) degradation queue}
+     * is filled to this percentage or more.
+     * Full detail is restored once the usage has fallen below half of this threshold.
+     */
+    public void setDegradeAboveQueueUsagePercent(int degradeAboveQueueUsagePercent) {
+        this.degradeAboveQueueUsagePercent = degradeAboveQueueUsagePercent;
+    }
+
+    /**
+     * The name of the {@link ch.qos.logback.classic.AsyncAppender} whose queue usage is watched.
+     */
+    public void setDegradationQueue(String degradationQueue) {
+        this.degradationQueue = degradationQueue;
+    }
+
+    DegradationPolicy getDegradationPolicy() {
+        return degradationPolicy;
+    }
+
+    /**
+     * Serializes the unformatted message as {@code message_template} and the arguments as {@code message_parameters},
+     * instead of the formatted {@code message}, unless {@link #setIncludeFormattedMessage(boolean)} is set.
+     * Without the formatted message, the stack trace is serialized as {@code error.stack_trace}.
+     */
+    public void setMessageTemplate(boolean messageTemplate) {
+        this.messageTemplate = messageTemplate;
+    }
+
+    /**
+     * Also serializes the formatted {@code message} when {@link #setMessageTemplate(boolean) messageTemplate} is enabled.
+     */
+    public void setIncludeFormattedMessage(boolean includeFormattedMessage) {
+        this.includeFormattedMessage = includeFormattedMessage;
+    }
 }
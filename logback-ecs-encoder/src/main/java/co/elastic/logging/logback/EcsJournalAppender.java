@@ -0,0 +1,197 @@
+/*-
+ * #%L
+ * Java ECS logging
+ * %%
+ * Copyright (C) 2019 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.logging.logback;
+
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.IThrowableProxy;
+import ch.qos.logback.classic.spi.ThrowableProxyUtil;
+import ch.qos.logback.core.UnsynchronizedAppenderBase;
+import co.elastic.logging.EcsJsonSerializer;
+import co.elastic.logging.EventJournal;
+import co.elastic.logging.Utf8Encoder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Copies events into an {@link EventJournal} on the logging thread
+ * and renders them as ECS NDJSON into a file on a background thread.
+ * <p>
+ * Formatting the message and printing the stack trace still happen on the logging thread,
+ * as the arguments and the throwable may be mutable and must not be referenced after the event has been appended.
+ * Only the JSON escaping and serialization are moved to the background thread.
+ * </p>
+ * <p>
+ * Events which have not been rendered when the application stops are rendered on the next start,
+ * or with {@code java -cp ecs-logging-core.jar co.elastic.logging.EventJournal <journal>}.
+ * </p>
+ */
+public class EcsJournalAppender extends UnsynchronizedAppenderBase<ILoggingEvent> {
+
+    private static final int BATCH_SIZE = 1024;
+    private static final long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private String journal;
+    private int journalSize = 64 * 1024 * 1024;
+    private String file;
+    private String serviceName;
+    private final Set<String> topLevelLabels = new HashSet<String>(EcsJsonSerializer.DEFAULT_TOP_LEVEL_LABELS);
+    private EventJournal eventJournal;
+    private OutputStream out;
+    private Renderer renderer;
+
+    @Override
+    public void start() {
+        if (journal == null || file == null) {
+            addError("The journal and the file have to be set for appender " + getName());
+            return;
+        }
+        try {
+            eventJournal = new EventJournal(new File(journal), journalSize);
+            out = new FileOutputStream(file, true);
+        } catch (IOException e) {
+            addError("Could not open the journal " + journal + " or the file " + file, e);
+            closeQuietly();
+            return;
+        }
+        renderer = new Renderer();
+        renderer.start();
+        super.start();
+    }
+
+    @Override
+    protected void append(ILoggingEvent event) {
+        final IThrowableProxy throwableProxy = event.getThrowableProxy();
+        eventJournal.write(event.getTimeStamp(), event.getLevel().toString(), event.getLoggerName(), event.getThreadName(),
+                event.getFormattedMessage(), throwableProxy != null ? ThrowableProxyUtil.asString(throwableProxy) : null,
+                event.getMDCPropertyMap());
+    }
+
+    @Override
+    public void stop() {
+        if (!isStarted()) {
+            return;
+        }
+        super.stop();
+        renderer.running = false;
+        try {
+            renderer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (eventJournal.getDroppedEvents() > 0) {
+            addWarn("Dropped " + eventJournal.getDroppedEvents() + " events because the journal " + journal + " was full");
+        }
+        closeQuietly();
+    }
+
+    private void closeQuietly() {
+        try {
+            if (eventJournal != null) {
+                eventJournal.close();
+            }
+            if (out != null) {
+                out.close();
+            }
+        } catch (IOException e) {
+            addError("Could not close the journal " + journal + " or the file " + file, e);
+        }
+        eventJournal = null;
+        out = null;
+    }
+
+    /**
+     * Sets the path of the memory mapped journal file
+     */
+    public void setJournal(String journal) {
+        this.journal = journal;
+    }
+
+    /**
+     * Sets the capacity of a new journal in bytes. The capacity of an existing journal is retained.
+     */
+    public void setJournalSize(int journalSize) {
+        this.journalSize = journalSize;
+    }
+
+    /**
+     * Sets the path of the NDJSON file the events are rendered into
+     */
+    public void setFile(String file) {
+        this.file = file;
+    }
+
+    public void setServiceName(String serviceName) {
+        this.serviceName = serviceName;
+    }
+
+    public void addTopLevelLabel(String topLevelLabel) {
+        this.topLevelLabels.add(topLevelLabel);
+    }
+
+    private class Renderer extends Thread {
+
+        private volatile boolean running = true;
+        private final StringBuilder builder = new StringBuilder();
+
+        Renderer() {
+            super("ecs-journal-renderer-" + EcsJournalAppender.this.getName());
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                if (renderBatch() == 0) {
+                    LockSupport.parkNanos(IDLE_NANOS);
+                }
+            }
+            // drains the events which have been written before the appender was stopped
+            int events;
+            do {
+                events = renderBatch();
+            } while (events > 0);
+        }
+
+        private int renderBatch() {
+            builder.setLength(0);
+            final int events = eventJournal.render(builder, serviceName, topLevelLabels, BATCH_SIZE);
+            if (events > 0) {
+                try {
+                    out.write(Utf8Encoder.toByteArray(builder));
+                } catch (IOException e) {
+                    addError("Could not write to " + file, e);
+                }
+            }
+            return events;
+        }
+    }
+}
@@ -0,0 +1,138 @@
+/*-
+ * #%L
+ * Java ECS logging
+ * %%
+ * Copyright (C) 2019 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.logging.logback;
+
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.core.UnsynchronizedAppenderBase;
+import ch.qos.logback.core.encoder.Encoder;
+import co.elastic.logging.StripedFileSink;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes the events encoded by the {@link #setEncoder(Encoder) encoder}, usually an {@link EcsEncoder},
+ * into a {@link StripedFileSink}, which gives each stripe of threads its own buffered file instead of sharing one locked stream.
+ * <p>
+ * The buffers are flushed every {@link #setFlushIntervalMillis(long) flushIntervalMillis} and when the appender is stopped.
+ * </p>
+ */
+public class EcsStripedFileAppender extends UnsynchronizedAppenderBase<ILoggingEvent> {
+
+    private Encoder<ILoggingEvent> encoder;
+    private String file;
+    private int stripes = Runtime.getRuntime().availableProcessors();
+    private int bufferSize = 8192;
+    private long flushIntervalMillis = 1000;
+    private StripedFileSink sink;
+    private ScheduledFuture<?> flushTask;
+
+    @Override
+    public void start() {
+        if (encoder == null || file == null) {
+            addError("The encoder and the file have to be set for appender " + getName());
+            return;
+        }
+        try {
+            sink = new StripedFileSink(new File(file), stripes, bufferSize);
+        } catch (IOException e) {
+            addError("Could not open the stripes of " + file, e);
+            return;
+        }
+        if (flushIntervalMillis > 0) {
+            flushTask = getContext().getScheduledExecutorService().scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    flush();
+                }
+            }, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+        super.start();
+    }
+
+    @Override
+    protected void append(ILoggingEvent event) {
+        try {
+            sink.write(encoder.encode(event));
+        } catch (IOException e) {
+            addError("Could not write to the stripes of " + file, e);
+        }
+    }
+
+    private void flush() {
+        try {
+            sink.flush();
+        } catch (IOException e) {
+            addError("Could not flush the stripes of " + file, e);
+        }
+    }
+
+    @Override
+    public void stop() {
+        if (!isStarted()) {
+            return;
+        }
+        super.stop();
+        if (flushTask != null) {
+            flushTask.cancel(false);
+        }
+        try {
+            sink.close();
+        } catch (IOException e) {
+            addError("Could not close the stripes of " + file, e);
+        }
+    }
+
+    public void setEncoder(Encoder<ILoggingEvent> encoder) {
+        this.encoder = encoder;
+    }
+
+    /**
+     * Sets the base file, which is only used to derive the names of the stripe files, see {@link StripedFileSink#getStripeFile(File, int)}
+     */
+    public void setFile(String file) {
+        this.file = file;
+    }
+
+    /**
+     * Sets the number of files, which defaults to the number of available processors
+     */
+    public void setStripes(int stripes) {
+        this.stripes = stripes;
+    }
+
+    public void setBufferSize(int bufferSize) {
+        this.bufferSize = bufferSize;
+    }
+
+    /**
+     * Sets how often the buffers are flushed. {@code 0} only flushes when the buffer of a stripe is full or when the appender is stopped
+     */
+    public void setFlushIntervalMillis(long flushIntervalMillis) {
+        this.flushIntervalMillis = flushIntervalMillis;
+    }
+}
@@ -0,0 +1,179 @@
+/*-
+ * #%L
+ * Java ECS logging
+ * %%
+ * Copyright (C) 2019 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.logging.logback;
+
+import ch.qos.logback.core.spi.ContextAware;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Reads the key-value pairs which the SLF4J 2 fluent API ({@code logger.atInfo().addKeyValue(key, value)}) attaches to an event.
+ * <p>
+ * This module compiles against logback 1.2, which doesn't know about key-value pairs,
+ * so the {@code getKeyValuePairs()} method and the {@code key} and {@code value} fields of the pairs are resolved reflectively.
+ * The lookups are cached per class, so that reading the pairs doesn't allocate,
+ * even if event classes alternate, such as {@code LoggingEvent} and the deserialized {@code LoggingEventVO}.
+ * Events whose class doesn't have the getter, such as all events of logback 1.2, are not reflected upon at all.
+ * If calling the getter fails, the failure is reported once and the key-value pairs of that class are ignored from then on.
+ * </p>
+ */
+class KeyValuePairs {
+
+    private static final Object[] NO_ARGS = new Object[0];
+    private static final AccessorCache eventAccessors = new AccessorCache();
+    private static final AccessorCache pairAccessors = new AccessorCache();
+
+    private KeyValuePairs() {
+    }
+
+    /**
+     * @param status where to report a failure to read the key-value pairs
+     * @return the key-value pairs of the event, or an empty list if there are none or they are not supported by the logback version
+     */
+    static List<?> get(Object event, ContextAware status) {
+        Accessor accessor = eventAccessors.get(event.getClass());
+        if (accessor == null) {
+            accessor = eventAccessors.add(new Accessor(event.getClass(), findGetter(event.getClass()), null));
+        }
+        if (accessor.getter != null && !accessor.failed.get()) {
+            try {
+                final List<?> pairs = (List<?>) accessor.getter.invoke(event, NO_ARGS);
+                if (pairs != null) {
+                    return pairs;
+                }
+            } catch (IllegalAccessException e) {
+                onFailure(accessor, status, e);
+            } catch (InvocationTargetException e) {
+                onFailure(accessor, status, e.getCause());
+            }
+        }
+        return Collections.emptyList();
+    }
+
+    private static void onFailure(Accessor accessor, ContextAware status, Throwable cause) {
+        if (accessor.failed.compareAndSet(false, true)) {
+            status.addWarn("Could not read the key-value pairs of " + accessor.type.getName() + ", they are ignored from now on", cause);
+        }
+    }
+
+    /**
+     * @return the key of the pair, or {@code null} if the pair doesn't have a {@code key} field
+     */
+    static String getKey(Object pair) {
+        final Field[] fields = getFields(pair);
+        if (fields == null) {
+            return null;
+        }
+        final Object key = read(fields[0], pair);
+        return key != null ? key.toString() : null;
+    }
+
+    static Object getValue(Object pair) {
+        final Field[] fields = getFields(pair);
+        return fields != null ? read(fields[1], pair) : null;
+    }
+
+    private static Field[] getFields(Object pair) {
+        Accessor accessor = pairAccessors.get(pair.getClass());
+        if (accessor == null) {
+            accessor = pairAccessors.add(new Accessor(pair.getClass(), null, findFields(pair.getClass())));
+        }
+        return accessor.fields;
+    }
+
+    private static Method findGetter(Class<?> type) {
+        try {
+            final Method method = type.getMethod("getKeyValuePairs");
+            return List.class.isAssignableFrom(method.getReturnType()) ? method : null;
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    private static Field[] findFields(Class<?> type) {
+        try {
+            return new Field[]{type.getField("key"), type.getField("value")};
+        } catch (NoSuchFieldException e) {
+            return null;
+        }
+    }
+
+    private static Object read(Field field, Object pair) {
+        try {
+            return field.get(pair);
+        } catch (IllegalAccessException e) {
+            return null;
+        }
+    }
+
+    /**
+     * A small copy-on-write cache of the accessors of the most recently seen classes, as {@code ClassValue} requires Java 7.
+     * It is bounded, so that it doesn't retain the classes of redeployed applications indefinitely.
+     */
+    private static class AccessorCache {
+        private static final int MAX_SIZE = 8;
+        private volatile Accessor[] accessors = new Accessor[0];
+
+        Accessor get(Class<?> type) {
+            for (Accessor accessor : accessors) {
+                if (accessor.type == type) {
+                    return accessor;
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Adds the accessor, evicting the oldest one if the cache is full.
+         */
+        synchronized Accessor add(Accessor accessor) {
+            final Accessor[] current = accessors;
+            final int kept = Math.min(current.length, MAX_SIZE - 1);
+            final Accessor[] updated = new Accessor[kept + 1];
+            System.arraycopy(current, current.length - kept, updated, 0, kept);
+            updated[kept] = accessor;
+            accessors = updated;
+            return accessor;
+        }
+    }
+
+    private static class Accessor {
+        private final Class<?> type;
+        private final Method getter;
+        private final Field[] fields;
+        private final AtomicBoolean failed = new AtomicBoolean();
+
+        private Accessor(Class<?> type, Method getter, Field[] fields) {
+            this.type = type;
+            this.getter = getter;
+            this.fields = fields;
+        }
+    }
+}
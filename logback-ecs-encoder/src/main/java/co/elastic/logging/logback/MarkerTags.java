@@ -0,0 +1,108 @@
+/*-
+ * #%L
+ * Java ECS logging
+ * %%
+ * Copyright (C) 2019 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.logging.logback;
+
+import co.elastic.logging.JsonUtils;
+import org.slf4j.Marker;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Serializes a {@link Marker} and the markers it references as ECS {@code tags}.
+ * <p>
+ * As markers are usually long-lived singletons, the rendered {@code "tags":[...]} fragment is cached per marker instance,
+ * so that tagging an event only costs a single copy.
+ * The cache is a small hash table indexed by the identity hash code of the marker, where colliding markers replace each other.
+ * Markers are expected not to change once events have been logged with them,
+ * references which are added later on don't show up in the cached fragment.
+ * </p>
+ * <p>
+ * This class is thread safe.
+ * </p>
+ */
+class MarkerTags {
+
+    private static final int SIZE = 64;
+
+    private final AtomicReferenceArray<Entry> entries = new AtomicReferenceArray<Entry>(SIZE);
+
+    void serializeTags(StringBuilder builder, Marker marker) {
+        if (marker == null) {
+            return;
+        }
+        final int index = System.identityHashCode(marker) & (SIZE - 1);
+        Entry entry = entries.get(index);
+        if (entry == null || entry.marker != marker) {
+            entry = new Entry(marker, render(marker));
+            entries.set(index, entry);
+        }
+        builder.append(entry.fragment);
+    }
+
+    private static String render(Marker marker) {
+        final List<String> names = new ArrayList<String>();
+        collectNames(marker, names);
+        final StringBuilder fragment = new StringBuilder();
+        fragment.append("\"tags\":[");
+        for (int i = 0; i < names.size(); i++) {
+            if (i > 0) {
+                fragment.append(',');
+            }
+            fragment.append('\"');
+            JsonUtils.quoteAsString(names.get(i), fragment);
+            fragment.append('\"');
+        }
+        fragment.append("],");
+        return fragment.toString();
+    }
+
+    /**
+     * Collects the names depth-first, skipping duplicates, which also guards against cyclic references
+     */
+    private static void collectNames(Marker marker, List<String> names) {
+        if (names.contains(marker.getName())) {
+            return;
+        }
+        names.add(marker.getName());
+        if (marker.hasReferences()) {
+            for (Iterator<Marker> references = marker.iterator(); references.hasNext(); ) {
+                collectNames(references.next(), names);
+            }
+        }
+    }
+
+    private static final class Entry {
+        private final Marker marker;
+        private final String fragment;
+
+        private Entry(Marker marker, String fragment) {
+            this.marker = marker;
+            this.fragment = fragment;
+        }
+    }
+}
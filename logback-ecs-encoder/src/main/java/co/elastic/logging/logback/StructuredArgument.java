@@ -0,0 +1,66 @@
+/*-
+ * #%L
+ * Java ECS logging
+ * %%
+ * Copyright (C) 2019 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.logging.logback;
+
+/**
+ * A logging argument that the {@link EcsEncoder} serializes as a field of its own, in addition to formatting it into the message.
+ * <pre>
+ * logger.info("Handled {}", kv("http.response.status_code", 200));
+ * </pre>
+ * The value is serialized according to its type: numbers and booleans as JSON numbers and booleans, everything else as a string.
+ * Keys which are not configured as top level labels are prefixed with {@code labels.}.
+ * With {@link EcsEncoder#setMessageTemplate(boolean) messageTemplate}, the argument is left out of {@code message_parameters},
+ * so that it's serialized only once.
+ */
+public final class StructuredArgument {
+
+    private final String key;
+    private final Object value;
+
+    private StructuredArgument(String key, Object value) {
+        this.key = key;
+        this.value = value;
+    }
+
+    public static StructuredArgument kv(String key, Object value) {
+        return new StructuredArgument(key, value);
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public Object getValue() {
+        return value;
+    }
+
+    /**
+     * Used when the argument is formatted into the message.
+     */
+    @Override
+    public String toString() {
+        return key + "=" + value;
+    }
+}
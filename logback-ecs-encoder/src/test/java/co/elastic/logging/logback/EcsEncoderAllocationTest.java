@@ -0,0 +1,100 @@
+/*-
+ * #%L
+ * Java ECS logging
+ * %%
+ * Copyright (C) 2019 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.logging.logback;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.LoggingEvent;
+import ch.qos.logback.classic.spi.ThrowableProxy;
+import co.elastic.logging.AllocationMeter;
+import org.junit.jupiter.api.BeforeEach;
+import org.slf4j.Marker;
+import org.slf4j.MarkerFactory;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The {@link EcsEncoder} can't be garbage free, as logback's encoder API returns a new {@code byte[]} for each event.
+ * The budgets allow for the returned array, an intermediate {@link String} on Java 9+ and some headroom,
+ * as the JIT compiler doesn't reliably eliminate all short-lived objects, for example iterators.
+ */
+class EcsEncoderAllocationTest {
+
+    private EcsEncoder ecsEncoder;
+    private LoggingEvent event;
+
+    @BeforeEach
+    void setUp() {
+        LoggerContext context = new LoggerContext();
+        ecsEncoder = new EcsEncoder();
+        ecsEncoder.setServiceName("test");
+        ecsEncoder.start();
+        event = new LoggingEvent(getClass().getName(), context.getLogger(getClass()), Level.INFO,
+                "Hello {}, \"escaped\"\n", null, new Object[]{"World"});
+        event.setThreadName("main");
+    }
+
+    @Test
+    void testMessage() {
+        assertAllocatedBytes("message", 2 * 1024);
+    }
+
+    @Test
+    void testLabels() {
+        event.setMDCPropertyMap(Map.of("foo", "bar", "trace.id", "0af7651916cd43dd8448eb211c80319c"));
+        assertAllocatedBytes("labels", 2 * 1024);
+    }
+
+    @Test
+    void testKeyValuePairs() {
+        event = new EcsEncoderTest.KeyValuePairLoggingEvent(new LoggerContext().getLogger(getClass()), List.of(
+                new EcsEncoderTest.KeyValuePair("http.response.status_code", 200),
+                new EcsEncoderTest.KeyValuePair("url.path", "/foo")));
+        event.setThreadName("main");
+        assertAllocatedBytes("key-value pairs", 2 * 1024);
+    }
+
+    @Test
+    void testMarkers() {
+        Marker marker = MarkerFactory.getDetachedMarker("audit");
+        marker.add(MarkerFactory.getDetachedMarker("security"));
+        event.setMarker(marker);
+        assertAllocatedBytes("markers", 2 * 1024);
+    }
+
+    @Test
+    void testException() {
+        event = new LoggingEvent(getClass().getName(), new LoggerContext().getLogger(getClass()), Level.ERROR,
+                "test", AllocationMeter.createException(), null);
+        // printing the stack trace is inherently not garbage free
+        AllocationMeter.assertAllocatedBytesPerOperation("exception", 8 * 1024, () -> ecsEncoder.encode(event));
+    }
+
+    private void assertAllocatedBytes(String description, long budget) {
+        AllocationMeter.assertAllocatedBytesPerOperation(description, budget, () -> ecsEncoder.encode(event));
+    }
+}
@@ -24,17 +24,28 @@
  */
 package co.elastic.logging.logback;
 
+import ch.qos.logback.classic.Level;
 import ch.qos.logback.classic.Logger;
 import ch.qos.logback.classic.LoggerContext;
 import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.LoggingEvent;
 import ch.qos.logback.core.read.ListAppender;
+import ch.qos.logback.core.status.Status;
 import co.elastic.logging.AbstractEcsLoggingTest;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
 import org.slf4j.MDC;
+import org.slf4j.Marker;
+import org.slf4j.MarkerFactory;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import static co.elastic.logging.logback.StructuredArgument.kv;
+import static org.assertj.core.api.Assertions.assertThat;
 
 class EcsEncoderTest extends AbstractEcsLoggingTest {
 
@@ -53,7 +64,214 @@ class EcsEncoderTest extends AbstractEcsLoggingTest {
         logger.addAppender(appender);
         ecsEncoder = new EcsEncoder();
         ecsEncoder.setServiceName("test");
+        ecsEncoder.addRedactPattern("\\d{4}-\\d{4}-\\d{4}-\\d{4}");
+        ecsEncoder.addRedactedLabel("password");
+        ecsEncoder.setMaxMessageLength(1000);
+        ecsEncoder.setMaxLabelValueLength(100);
+        ecsEncoder.start();
+    }
+
+    @Test
+    void testNestedObjects() throws Exception {
+        ecsEncoder.setNestedObjects(true);
+        ecsEncoder.start();
+        putMdc("foo", "bar");
+        logger.info("test {}", kv("url.path", "/foo"));
+        JsonNode log = getLastLogLine();
+        assertThat(log.get("log").get("level").textValue()).isEqualTo("INFO");
+        assertThat(log.get("process").get("thread").get("name").textValue()).isEqualTo(Thread.currentThread().getName());
+        assertThat(log.get("labels").get("foo").textValue()).isEqualTo("bar");
+        assertThat(log.get("labels").get("url").get("path").textValue()).isEqualTo("/foo");
+        MDC.remove("foo");
+    }
+
+    @Test
+    void testStructuredArguments() throws Exception {
+        logger.info("Handled {} {}", kv("http.response.status_code", 200), kv("url.path", "/foo"));
+        JsonNode log = getLastLogLine();
+        assertThat(log.get("message").textValue()).isEqualTo("Handled http.response.status_code=200 url.path=/foo");
+        assertThat(log.get("labels.http.response.status_code").isInt()).isTrue();
+        assertThat(log.get("labels.http.response.status_code").intValue()).isEqualTo(200);
+        assertThat(log.get("labels.url.path").textValue()).isEqualTo("/foo");
+    }
+
+    @Test
+    void testDegradesAboveEventRate() throws Exception {
+        ecsEncoder.setDegradeAboveEventsPerSecond(10);
+        ecsEncoder.start();
+        putMdc("trace.id", "foo");
+        putMdc("foo", "bar");
+        JsonNode log = null;
+        for (int i = 0; i < 3; i++) {
+            LoggingEvent event = new LoggingEvent(getClass().getName(), logger, Level.ERROR, "test", new RuntimeException("boom"), null);
+            // 3 events within 100ms
+            event.setTimeStamp(i * 50);
+            log = objectMapper.readTree(ecsEncoder.encode(event));
+        }
+        assertThat(log.get("event.degraded").booleanValue()).isTrue();
+        assertThat(log.get("message").textValue()).isEqualTo("test\njava.lang.RuntimeException: boom");
+        assertThat(log.get("trace.id").textValue()).isEqualTo("foo");
+        assertThat(log.get("labels.foo")).isNull();
+        assertThat(log.get("process.thread.name")).isNull();
+        assertThat(log.get("log.logger").textValue()).isEqualTo(getClass().getName());
+        MDC.clear();
+    }
+
+    @Test
+    void testMarkersAsTags() throws Exception {
+        Marker marker = MarkerFactory.getDetachedMarker("audit");
+        Marker child = MarkerFactory.getDetachedMarker("security");
+        Marker pii = MarkerFactory.getDetachedMarker("pii");
+        marker.add(child);
+        child.add(pii);
+        // reachable through two paths, but only tagged once
+        marker.add(pii);
+        logger.info(marker, "test");
+        assertThat(getLatestLogLine().get("tags").toString()).isEqualTo("[\"audit\",\"security\",\"pii\"]");
+        // the fragment is served from the cache
+        logger.info(marker, "test");
+        assertThat(getLatestLogLine().get("tags").toString()).isEqualTo("[\"audit\",\"security\",\"pii\"]");
+        logger.info(child, "test");
+        assertThat(getLatestLogLine().get("tags").toString()).isEqualTo("[\"security\",\"pii\"]");
+    }
+
+    @Test
+    void testMessageTemplate() throws Exception {
+        ecsEncoder.setMessageTemplate(true);
+        ecsEncoder.start();
+        logger.error("{} of {} failed", 3, "jobs", new RuntimeException("boom"));
+        JsonNode log = getLatestLogLine();
+        assertThat(log.get("message")).isNull();
+        assertThat(log.get("message_template").textValue()).isEqualTo("{} of {} failed");
+        assertThat(log.get("message_parameters").toString()).isEqualTo("[3,\"jobs\"]");
+        assertThat(log.get("error.stack_trace").textValue()).startsWith("java.lang.RuntimeException: boom");
+
+        ecsEncoder.setIncludeFormattedMessage(true);
+        ecsEncoder.start();
+        logger.info("{} of {} done", 3, "jobs");
+        log = getLatestLogLine();
+        assertThat(log.get("message").textValue()).isEqualTo("3 of jobs done");
+        assertThat(log.get("message_template").textValue()).isEqualTo("{} of {} done");
+        assertThat(log.get("error.stack_trace")).isNull();
+    }
+
+    @Test
+    void testKeyValuePairs() throws Exception {
+        LoggingEvent event = new KeyValuePairLoggingEvent(logger, List.of(
+                new KeyValuePair("trace.id", "foo"),
+                new KeyValuePair("sampled", true),
+                new KeyValuePair("rate", 0.5),
+                new KeyValuePair("count", 42L),
+                new KeyValuePair("infinity", Double.POSITIVE_INFINITY),
+                new KeyValuePair("password", "secret"),
+                new KeyValuePair("missing", null)));
+        JsonNode log = objectMapper.readTree(ecsEncoder.encode(event));
+        assertThat(log.get("trace.id").textValue()).isEqualTo("foo");
+        assertThat(log.get("labels.sampled").booleanValue()).isTrue();
+        assertThat(log.get("labels.rate").doubleValue()).isEqualTo(0.5);
+        assertThat(log.get("labels.count").longValue()).isEqualTo(42L);
+        assertThat(log.get("labels.infinity").textValue()).isEqualTo("Infinity");
+        assertThat(log.get("labels.password").textValue()).isEqualTo("[REDACTED]");
+        assertThat(log.get("labels.missing").isNull()).isTrue();
+
+        // the accessors are cached per class, so alternating event classes read the right pairs
+        assertThat(objectMapper.readTree(ecsEncoder.encode(new LoggingEvent(getClass().getName(), logger, Level.INFO, "plain", null, null)))
+                .get("trace.id")).isNull();
+        assertThat(objectMapper.readTree(ecsEncoder.encode(event)).get("trace.id").textValue()).isEqualTo("foo");
+    }
+
+    @Test
+    void testKeyValuePairsDontDuplicateKeys() throws Exception {
+        putMdc("trace.id", "mdc");
+        putMdc("foo", "mdc");
+        LoggingEvent event = new KeyValuePairLoggingEvent(logger, List.of(
+                new KeyValuePair("trace.id", "pair"),
+                new KeyValuePair("foo", "pair"),
+                new KeyValuePair("message", "pair"),
+                new KeyValuePair("bar", 1),
+                new KeyValuePair("bar", 2)),
+                kv("bar", 3), kv("baz", 4), kv("baz", 5));
+        String json = new String(ecsEncoder.encode(event), StandardCharsets.UTF_8);
+        JsonNode log = objectMapper.readTree(json);
+        assertThat(log.get("trace.id").textValue()).isEqualTo("mdc");
+        assertThat(log.get("labels.foo").textValue()).isEqualTo("mdc");
+        assertThat(log.get("message").textValue()).isEqualTo("test");
+        assertThat(log.get("labels.message").textValue()).isEqualTo("pair");
+        assertThat(log.get("labels.bar").intValue()).isEqualTo(1);
+        assertThat(log.get("labels.baz").intValue()).isEqualTo(4);
+        for (String key : List.of("\"trace.id\"", "\"labels.foo\"", "\"labels.bar\"", "\"labels.baz\"")) {
+            assertThat(json.indexOf(key)).isEqualTo(json.lastIndexOf(key));
+        }
+        MDC.clear();
+    }
+
+    @Test
+    void testMessageTemplateWithStructuredArguments() throws Exception {
+        ecsEncoder.setMessageTemplate(true);
         ecsEncoder.start();
+        logger.info("{} handled {}", "request", kv("http.response.status_code", 200));
+        JsonNode log = getLatestLogLine();
+        assertThat(log.get("message_template").textValue()).isEqualTo("{} handled {}");
+        assertThat(log.get("message_parameters").toString()).isEqualTo("[\"request\"]");
+        assertThat(log.get("labels.http.response.status_code").intValue()).isEqualTo(200);
+
+        logger.info("handled {}", kv("http.response.status_code", 200));
+        log = getLatestLogLine();
+        assertThat(log.get("message_parameters")).isNull();
+        assertThat(log.get("labels.http.response.status_code").intValue()).isEqualTo(200);
+    }
+
+    @Test
+    void testFailingKeyValuePairsWarnOnce() throws Exception {
+        ecsEncoder.setContext(new LoggerContext());
+        LoggingEvent event = new FailingKeyValuePairLoggingEvent(logger);
+        for (int i = 0; i < 2; i++) {
+            JsonNode log = objectMapper.readTree(ecsEncoder.encode(event));
+            assertThat(log.get("message").textValue()).isEqualTo("test");
+        }
+        assertThat(ecsEncoder.getStatusManager().getCopyOfStatusList())
+                .filteredOn(status -> status.getLevel() == Status.WARN)
+                .hasSize(1);
+    }
+
+    /**
+     * Mimics logback 1.3+, which exposes the key-value pairs of the SLF4J 2 fluent API
+     */
+    public static class KeyValuePairLoggingEvent extends LoggingEvent {
+        private final List<KeyValuePair> keyValuePairs;
+
+        KeyValuePairLoggingEvent(Logger logger, List<KeyValuePair> keyValuePairs, Object... arguments) {
+            super(KeyValuePairLoggingEvent.class.getName(), logger, Level.INFO, "test", null, arguments);
+            this.keyValuePairs = keyValuePairs;
+        }
+
+        public List<KeyValuePair> getKeyValuePairs() {
+            return keyValuePairs;
+        }
+    }
+
+    public static class FailingKeyValuePairLoggingEvent extends LoggingEvent {
+
+        FailingKeyValuePairLoggingEvent(Logger logger) {
+            super(FailingKeyValuePairLoggingEvent.class.getName(), logger, Level.INFO, "test", null, null);
+        }
+
+        public List<KeyValuePair> getKeyValuePairs() {
+            throw new IllegalStateException("boom");
+        }
+    }
+
+    /**
+     * Mimics {@code org.slf4j.event.KeyValuePair}
+     */
+    public static class KeyValuePair {
+        public final String key;
+        public final Object value;
+
+        KeyValuePair(String key, Object value) {
+            this.key = key;
+            this.value = value;
+        }
     }
 
     @Override
@@ -75,4 +293,11 @@ class EcsEncoderTest extends AbstractEcsLoggingTest {
     public JsonNode getLastLogLine() throws IOException {
         return objectMapper.readTree(ecsEncoder.encode(appender.list.get(0)));
     }
+
+    /**
+     * For tests which log more than one event
+     */
+    private JsonNode getLatestLogLine() throws IOException {
+        return objectMapper.readTree(ecsEncoder.encode(appender.list.get(appender.list.size() - 1)));
+    }
 }
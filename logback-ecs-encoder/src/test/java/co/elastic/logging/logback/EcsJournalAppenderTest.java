@@ -0,0 +1,104 @@
+/*-
+ * #%L
+ * Java ECS logging
+ * %%
+ * Copyright (C) 2019 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.logging.logback;
+
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.LoggerContext;
+import co.elastic.logging.EventJournal;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.slf4j.MDC;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class EcsJournalAppenderTest {
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void testRendersEventsIntoFile() throws Exception {
+        LoggerContext context = new LoggerContext();
+        Logger logger = context.getLogger(getClass());
+        EcsJournalAppender appender = new EcsJournalAppender();
+        appender.setContext(context);
+        appender.setJournal(tempDir.resolve("app.journal").toString());
+        appender.setJournalSize(64 * 1024);
+        appender.setFile(tempDir.resolve("app.ndjson").toString());
+        appender.setServiceName("test");
+        appender.start();
+        logger.addAppender(appender);
+
+        MDC.put("foo", "bar");
+        try {
+            logger.info("test {}", "message");
+        } finally {
+            MDC.clear();
+        }
+        logger.error("failure", new RuntimeException("boom"));
+        appender.stop();
+
+        List<String> lines = Files.readAllLines(tempDir.resolve("app.ndjson"), StandardCharsets.UTF_8);
+        assertThat(lines).hasSize(2);
+        JsonNode info = objectMapper.readTree(lines.get(0));
+        assertThat(info.get("log.level").textValue()).isEqualTo("INFO");
+        assertThat(info.get("message").textValue()).isEqualTo("test message");
+        assertThat(info.get("service.name").textValue()).isEqualTo("test");
+        assertThat(info.get("log.logger").textValue()).isEqualTo(getClass().getName());
+        assertThat(info.get("process.thread.name").textValue()).isEqualTo(Thread.currentThread().getName());
+        assertThat(info.get("labels.foo").textValue()).isEqualTo("bar");
+        JsonNode error = objectMapper.readTree(lines.get(1));
+        assertThat(error.get("message").textValue()).startsWith("failure\njava.lang.RuntimeException: boom");
+    }
+
+    @Test
+    void testRendersPendingEventsOfPreviousRun() throws Exception {
+        File journalFile = tempDir.resolve("app.journal").toFile();
+        // simulates events which have been written before the application stopped, but not rendered
+        try (EventJournal journal = new EventJournal(journalFile, 64 * 1024)) {
+            journal.write(1_000, "WARN", "logger", "main", "pending", null, null);
+        }
+        EcsJournalAppender appender = new EcsJournalAppender();
+        appender.setContext(new LoggerContext());
+        appender.setJournal(journalFile.toString());
+        appender.setFile(tempDir.resolve("app.ndjson").toString());
+        appender.start();
+        appender.stop();
+
+        List<String> lines = Files.readAllLines(tempDir.resolve("app.ndjson"), StandardCharsets.UTF_8);
+        assertThat(lines).hasSize(1);
+        assertThat(objectMapper.readTree(lines.get(0)).get("message").textValue()).isEqualTo("pending");
+    }
+}
@@ -0,0 +1,99 @@
+/*-
+ * #%L
+ * Java ECS logging
+ * %%
+ * Copyright (C) 2019 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.logging.logback;
+
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.LoggerContext;
+import co.elastic.logging.StripedFileSink;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class EcsStripedFileAppenderTest {
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void testWritesEventsOfThreadsIntoStripes() throws Exception {
+        LoggerContext context = new LoggerContext();
+        Logger logger = context.getLogger(getClass());
+        EcsEncoder encoder = new EcsEncoder();
+        encoder.setContext(context);
+        encoder.setServiceName("test");
+        encoder.start();
+        File baseFile = tempDir.resolve("app.json").toFile();
+        EcsStripedFileAppender appender = new EcsStripedFileAppender();
+        appender.setContext(context);
+        appender.setEncoder(encoder);
+        appender.setFile(baseFile.toString());
+        appender.setStripes(2);
+        appender.start();
+        logger.addAppender(appender);
+
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            int thread = t;
+            threads.add(new Thread(() -> {
+                for (int i = 0; i < 100; i++) {
+                    logger.info("thread {} event {}", thread, i);
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        appender.stop();
+
+        List<File> files = StripedFileSink.getStripeFiles(baseFile);
+        assertThat(files).hasSize(2);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertThat(StripedFileSink.merge(files, out)).isEqualTo(400);
+        Set<String> messages = new HashSet<>();
+        for (String line : new String(out.toByteArray(), StandardCharsets.UTF_8).split("\n")) {
+            JsonNode event = objectMapper.readTree(line);
+            assertThat(event.get("service.name").textValue()).isEqualTo("test");
+            messages.add(event.get("message").textValue());
+        }
+        assertThat(messages).hasSize(400).contains("thread 3 event 99");
+    }
+}